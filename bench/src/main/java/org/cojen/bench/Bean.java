@@ -0,0 +1,70 @@
+/*
+ *  Copyright 2010 Brian S O'Neill
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.cojen.bench;
+
+/**
+ * Simple bean used by the property and comparator benchmarks.
+ *
+ * @author Brian S O'Neill
+ */
+public class Bean {
+    private int mId;
+    private long mAmount;
+    private String mName;
+    private String mCategory;
+
+    public Bean() {
+    }
+
+    public Bean(int id, long amount, String name, String category) {
+        mId = id;
+        mAmount = amount;
+        mName = name;
+        mCategory = category;
+    }
+
+    public int getId() {
+        return mId;
+    }
+
+    public void setId(int id) {
+        mId = id;
+    }
+
+    public long getAmount() {
+        return mAmount;
+    }
+
+    public void setAmount(long amount) {
+        mAmount = amount;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public void setName(String name) {
+        mName = name;
+    }
+
+    public String getCategory() {
+        return mCategory;
+    }
+
+    public void setCategory(String category) {
+        mCategory = category;
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ *  Copyright 2010 Brian S O'Neill
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.cojen.bench;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import org.cojen.util.BeanComparator;
+import org.cojen.util.BeanPropertyAccessor;
+import org.cojen.util.PropertyAccessor;
+
+/**
+ * Compares generated bean property access against reflection, and measures
+ * generated comparators. The property benchmarks resolve the property name
+ * once, instead of on every access.
+ *
+ * @author Brian S O'Neill
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BeanBenchmark {
+    private Bean mBean;
+    private Bean mOther;
+    private BeanPropertyAccessor<Bean> mAccessor;
+    private PropertyAccessor<Bean> mNameProperty;
+    private PropertyAccessor<Bean> mAmountProperty;
+    private Method mReadMethod;
+    private BeanComparator<Bean> mComparator;
+
+    @Setup
+    public void setup() throws Exception {
+        mBean = new Bean(1, 100L, "Alice", "red");
+        mOther = new Bean(2, 100L, "alice", "red");
+        mAccessor = BeanPropertyAccessor.forClass(Bean.class);
+        mNameProperty = PropertyAccessor.forProperty(Bean.class, "name");
+        mAmountProperty = PropertyAccessor.forProperty(Bean.class, "amount");
+        mReadMethod = Bean.class.getMethod("getName");
+        mComparator = BeanComparator.forClass(Bean.class)
+            .orderBy("category").orderBy("-amount").orderBy("name").orderBy("id");
+    }
+
+    @Benchmark
+    public Object accessorGet() {
+        return mAccessor.getPropertyValue(mBean, "name");
+    }
+
+    @Benchmark
+    public Object accessorGetPrimitive() {
+        return mAccessor.getPropertyValue(mBean, "amount");
+    }
+
+    @Benchmark
+    public Object propertyGet() {
+        return mNameProperty.getValue(mBean);
+    }
+
+    @Benchmark
+    public long propertyGetPrimitive() {
+        return mAmountProperty.getLongValue(mBean);
+    }
+
+    @Benchmark
+    public Object reflectionGet() throws Exception {
+        return mReadMethod.invoke(mBean);
+    }
+
+    @Benchmark
+    public int comparatorCompare() {
+        return mComparator.compare(mBean, mOther);
+    }
+}
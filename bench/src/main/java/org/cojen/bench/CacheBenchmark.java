@@ -0,0 +1,102 @@
+/*
+ *  Copyright 2010 Brian S O'Neill
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.cojen.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import org.cojen.util.*;
+
+/**
+ * Measures multi-threaded throughput of the synchronized caches and their
+ * concurrent counterparts, for a mix of mostly reads with roughly one write
+ * in sixteen.
+ *
+ * @author Brian S O'Neill
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+@State(Scope.Thread)
+public class CacheBenchmark {
+    private static final int KEYS = 10000;
+
+    @State(Scope.Benchmark)
+    public static class Caches {
+        @Param({"SoftValueCache", "ConcurrentSoftValueCache",
+                "WeakValueCache", "ConcurrentWeakValueCache",
+                "WeakKeyCache", "ConcurrentWeakKeyCache",
+                "WeakIdentityCache", "ConcurrentWeakIdentityCache"})
+        String type;
+
+        Cache<Integer, Integer> mCache;
+        final Integer[] mKeys = new Integer[KEYS];
+
+        @Setup
+        public void setup() {
+            for (int i=0; i<KEYS; i++) {
+                mKeys[i] = new Integer(i);
+            }
+            mCache = create(type);
+        }
+
+        private static Cache<Integer, Integer> create(String type) {
+            switch (type) {
+            case "SoftValueCache":
+                return new SoftValueCache<Integer, Integer>(17);
+            case "ConcurrentSoftValueCache":
+                return new ConcurrentSoftValueCache<Integer, Integer>(17);
+            case "WeakValueCache":
+                return new WeakValueCache<Integer, Integer>(17);
+            case "ConcurrentWeakValueCache":
+                return new ConcurrentWeakValueCache<Integer, Integer>(17);
+            case "WeakKeyCache":
+                return new WeakKeyCache<Integer, Integer>(17);
+            case "ConcurrentWeakKeyCache":
+                return new ConcurrentWeakKeyCache<Integer, Integer>(17);
+            case "WeakIdentityCache":
+                return new WeakIdentityCache<Integer, Integer>(17);
+            case "ConcurrentWeakIdentityCache":
+                return new ConcurrentWeakIdentityCache<Integer, Integer>(17);
+            default:
+                throw new IllegalArgumentException(type);
+            }
+        }
+    }
+
+    private int mSeed = System.identityHashCode(this) | 1;
+
+    @Benchmark
+    public Integer mixed(Caches caches) {
+        int seed = mSeed;
+        seed ^= seed << 13;
+        seed ^= seed >>> 17;
+        seed ^= seed << 5;
+        mSeed = seed;
+
+        Cache<Integer, Integer> cache = caches.mCache;
+        Integer key = caches.mKeys[(seed & 0x7fffffff) % KEYS];
+        if ((seed & 15) == 0) {
+            return cache.put(key, key);
+        }
+        Integer value = cache.get(key);
+        return value == null ? cache.putIfAbsent(key, key) : value;
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ *  Copyright 2010 Brian S O'Neill
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.cojen.bench;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import org.cojen.classfile.MethodDesc;
+import org.cojen.classfile.TypeDesc;
+
+import org.cojen.util.WeakCanonicalSet;
+
+/**
+ * Measures concurrent canonicalization, as performed whenever TypeDesc and
+ * MethodDesc instances are acquired. The set benchmarks compare
+ * WeakCanonicalSet against the fully synchronized implementation it
+ * replaced.
+ *
+ * @author Brian S O'Neill
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+@State(Scope.Thread)
+public class CanonicalBenchmark {
+    private static final Class[] CLASSES = {
+        String.class, Integer.class, int[].class, java.util.List.class,
+        java.util.HashMap.class, Object[][].class, Thread.class, StringBuilder.class,
+    };
+
+    private static final String[] DESCRIPTORS = {
+        "Ljava/lang/String;", "[I", "[[Ljava/lang/Object;", "Ljava/util/Map;",
+        "J", "[Ljava/lang/Thread;", "Ljava/lang/Number;", "[[D",
+    };
+
+    @State(Scope.Benchmark)
+    public static class Sets {
+        final WeakCanonicalSet<String> mCurrent = new WeakCanonicalSet<String>();
+        final LegacyCanonicalSet<String> mLegacy = new LegacyCanonicalSet<String>();
+        final String[] mValues = new String[1000];
+
+        @Setup
+        public void setup() {
+            for (int i=0; i<mValues.length; i++) {
+                mValues[i] = "value-" + i;
+                mCurrent.put(mValues[i]);
+                mLegacy.put(mValues[i]);
+            }
+        }
+    }
+
+    private int mIndex;
+
+    @Benchmark
+    public String setPutCurrent(Sets sets) {
+        return sets.mCurrent.put(new String(sets.mValues[next(sets.mValues.length)]));
+    }
+
+    @Benchmark
+    public String setPutLegacy(Sets sets) {
+        return sets.mLegacy.put(new String(sets.mValues[next(sets.mValues.length)]));
+    }
+
+    @Benchmark
+    public TypeDesc typeDescForClass() {
+        return TypeDesc.forClass(CLASSES[next(CLASSES.length)]);
+    }
+
+    @Benchmark
+    public TypeDesc typeDescForDescriptor() {
+        return TypeDesc.forDescriptor(DESCRIPTORS[next(DESCRIPTORS.length)]);
+    }
+
+    @Benchmark
+    public MethodDesc methodDescForArguments() {
+        TypeDesc type = TypeDesc.forClass(CLASSES[next(CLASSES.length)]);
+        return MethodDesc.forArguments(type, new TypeDesc[] {TypeDesc.INT, type});
+    }
+
+    private int next(int length) {
+        int index = mIndex;
+        mIndex = index + 1 >= length ? 0 : index + 1;
+        return index;
+    }
+
+    /**
+     * Canonicalizing set which synchronizes every put, as WeakCanonicalSet
+     * used to.
+     */
+    static final class LegacyCanonicalSet<T> {
+        private Entry<T>[] mEntries = new Entry[17];
+        private int mSize;
+        private int mThreshold = (int) (17 * 0.75f);
+
+        synchronized <U extends T> U put(U obj) {
+            Entry<T>[] entries = mEntries;
+            int hash = obj.hashCode();
+            int index = (hash & 0x7fffffff) % entries.length;
+            for (Entry<T> e = entries[index]; e != null; e = e.mNext) {
+                T iobj = e.get();
+                if (iobj != null && e.mHash == hash && obj.equals(iobj)) {
+                    return (U) iobj;
+                }
+            }
+            if (mSize >= mThreshold) {
+                rehash();
+                entries = mEntries;
+                index = (hash & 0x7fffffff) % entries.length;
+            }
+            entries[index] = new Entry<T>(obj, hash, entries[index]);
+            mSize++;
+            return obj;
+        }
+
+        private void rehash() {
+            Entry<T>[] oldEntries = mEntries;
+            int newCapacity = oldEntries.length * 2 + 1;
+            Entry<T>[] newEntries = new Entry[newCapacity];
+            for (int i=oldEntries.length; --i>=0 ;) {
+                for (Entry<T> old = oldEntries[i]; old != null; ) {
+                    Entry<T> e = old;
+                    old = old.mNext;
+                    int index = (e.mHash & 0x7fffffff) % newCapacity;
+                    e.mNext = newEntries[index];
+                    newEntries[index] = e;
+                }
+            }
+            mEntries = newEntries;
+            mThreshold = (int) (newCapacity * 0.75f);
+        }
+
+        static final class Entry<T> extends WeakReference<T> {
+            final int mHash;
+            Entry<T> mNext;
+
+            Entry(T obj, int hash, Entry<T> next) {
+                super(obj);
+                mHash = hash;
+                mNext = next;
+            }
+        }
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ *  Copyright 2010 Brian S O'Neill
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.cojen.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import org.cojen.classfile.*;
+
+/**
+ * Measures assembly and disassembly throughput of the classfile package.
+ *
+ * @author Brian S O'Neill
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ClassFileBenchmark {
+    /** Number of generated methods per class. */
+    @Param({"10", "100"})
+    int methods;
+
+    private byte[] mBytes;
+    private ByteBuffer mDirect;
+
+    private final ClassFileReader mReader = new ClassFileReader();
+    private final CountingVisitor mVisitor = new CountingVisitor();
+
+    @Setup
+    public void setup() throws IOException {
+        mBytes = generate();
+        mDirect = ByteBuffer.allocateDirect(mBytes.length);
+        mDirect.put(mBytes).flip();
+    }
+
+    /**
+     * Builds a class with CodeBuilder and writes it out.
+     */
+    @Benchmark
+    public byte[] build() throws IOException {
+        return generate();
+    }
+
+    /**
+     * Reads a class and disassembles all of its methods.
+     */
+    @Benchmark
+    public int parse() throws IOException {
+        ClassFile cf = ClassFile.readFrom(new ByteArrayInputStream(mBytes));
+        int count = 0;
+        for (MethodInfo mi : cf.getMethods()) {
+            if (mi.getCodeAttr() != null) {
+                CountingAssembler counter = new CountingAssembler(mi);
+                new CodeDisassembler(mi).disassemble(counter);
+                count += counter.count();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Streams a class through a visitor, counting instructions without
+     * building a ClassFile.
+     */
+    @Benchmark
+    public int stream() throws IOException {
+        mVisitor.mCount = 0;
+        mReader.read(mBytes, mVisitor);
+        return mVisitor.mCount;
+    }
+
+    /**
+     * Reads a class directly from a heap buffer.
+     */
+    @Benchmark
+    public ClassFile readHeapBuffer() throws IOException {
+        return ClassFile.readFrom(ByteBuffer.wrap(mBytes));
+    }
+
+    /**
+     * Reads a class directly from a direct buffer.
+     */
+    @Benchmark
+    public ClassFile readDirectBuffer() throws IOException {
+        return ClassFile.readFrom(mDirect.duplicate());
+    }
+
+    /**
+     * Reads a class lazily, and only accesses its header.
+     */
+    @Benchmark
+    public String[] readLazyHeader() throws IOException {
+        return ClassFile.readFrom(ByteBuffer.wrap(mBytes), null, null, true).getInterfaces();
+    }
+
+    /**
+     * Reads a class eagerly, and only accesses its header.
+     */
+    @Benchmark
+    public String[] readEagerHeader() throws IOException {
+        return ClassFile.readFrom(ByteBuffer.wrap(mBytes)).getInterfaces();
+    }
+
+    /**
+     * Reads a class from a stream, for comparison with the buffer variants.
+     */
+    @Benchmark
+    public ClassFile readStream() throws IOException {
+        return ClassFile.readFrom(new ByteArrayInputStream(mBytes));
+    }
+
+    /**
+     * Rewrites a class, reassembling the code of every method.
+     */
+    @Benchmark
+    public ClassFile rewriteAll() throws IOException {
+        return rewrite(new ClassFileRewriter() {
+            @Override
+            protected boolean isRewritable(MethodInfo method) {
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Rewrites a class, reassembling the code of one method and copying the
+     * rest as-is.
+     */
+    @Benchmark
+    public ClassFile rewriteOne() throws IOException {
+        return rewrite(new ClassFileRewriter() {
+            @Override
+            protected boolean isRewritable(MethodInfo method) {
+                return method.getName().equals("method0");
+            }
+        });
+    }
+
+    private ClassFile rewrite(ClassFileRewriter rewriter) throws IOException {
+        ClassFile cf = rewriter.rewrite(ClassFile.readFrom(ByteBuffer.wrap(mBytes)));
+        cf.writeTo(new ByteArrayOutputStream(mBytes.length));
+        return cf;
+    }
+
+    private byte[] generate() throws IOException {
+        ClassFile cf = new ClassFile("org.cojen.bench.Generated");
+        cf.addDefaultConstructor();
+
+        TypeDesc[] params = {TypeDesc.INT, TypeDesc.STRING};
+
+        for (int i=0; i<methods; i++) {
+            MethodInfo mi = cf.addMethod
+                (Modifiers.PUBLIC_STATIC, "method" + i, TypeDesc.STRING, params);
+            CodeBuilder b = new CodeBuilder(mi);
+
+            LocalVariable countVar = b.getParameter(0);
+            LocalVariable strVar = b.getParameter(1);
+            LocalVariable sbVar = b.createLocalVariable("sb", TypeDesc.forClass(StringBuilder.class));
+
+            TypeDesc sbType = sbVar.getType();
+            b.newObject(sbType);
+            b.dup();
+            b.invokeConstructor(sbType, null);
+            b.storeLocal(sbVar);
+
+            Label loop = b.createLabel().setLocation();
+            Label done = b.createLabel();
+            b.loadLocal(countVar);
+            b.ifZeroComparisonBranch(done, "<=");
+            b.loadLocal(sbVar);
+            b.loadLocal(strVar);
+            b.invokeVirtual(sbType, "append", sbType, new TypeDesc[] {TypeDesc.STRING});
+            b.loadConstant(i);
+            b.invokeVirtual(sbType, "append", sbType, new TypeDesc[] {TypeDesc.INT});
+            b.pop();
+            b.integerIncrement(countVar, -1);
+            b.branch(loop);
+
+            done.setLocation();
+            b.loadLocal(sbVar);
+            b.invokeVirtual(sbType, "toString", TypeDesc.STRING, null);
+            b.returnValue(TypeDesc.STRING);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        cf.writeTo(out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Counts instructions without retaining them.
+     */
+    static class CountingAssembler extends NullCodeAssembler {
+        CountingAssembler(MethodInfo mi) {
+            super(mi);
+        }
+
+        int count() {
+            return getInstructionsSeen();
+        }
+    }
+
+    /**
+     * Counts instructions passed to a CodeVisitor.
+     */
+    static class CountingVisitor extends ClassFileVisitor {
+        int mCount;
+
+        private final CodeVisitor mCodeVisitor = new CodeVisitor() {
+            @Override
+            public void visitInstruction(int address, byte opcode) {
+                mCount++;
+            }
+
+            @Override
+            public void visitIntInstruction(int address, byte opcode, int operand) {
+                mCount++;
+            }
+
+            @Override
+            public void visitLocalInstruction(int address, byte opcode, int localIndex) {
+                mCount++;
+            }
+
+            @Override
+            public void visitIncrementInstruction(int address, int localIndex, int amount) {
+                mCount++;
+            }
+
+            @Override
+            public void visitBranchInstruction(int address, byte opcode, int targetAddress) {
+                mCount++;
+            }
+
+            @Override
+            public void visitConstantInstruction(int address, byte opcode,
+                                                 ConstantInfo constant)
+            {
+                mCount++;
+            }
+        };
+
+        @Override
+        public CodeVisitor visitMethod(Modifiers modifiers, String name, MethodDesc desc) {
+            return mCodeVisitor;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ *  Copyright 2010 Brian S O'Neill
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import org.cojen.classfile.*;
+
+/**
+ * Compares defining generated classes one at a time against defining them
+ * as a batch.
+ *
+ * @author Brian S O'Neill
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DefineBenchmark {
+    /** Number of classes defined per operation. */
+    @Param({"100"})
+    int classes;
+
+    @Benchmark
+    public Class defineEach() {
+        Class last = null;
+        for (RuntimeClassFile cf : generate()) {
+            last = cf.defineClass();
+        }
+        return last;
+    }
+
+    @Benchmark
+    public RuntimeClassFile.Batch defineBatch() {
+        return RuntimeClassFile.defineClasses(generate());
+    }
+
+    private RuntimeClassFile[] generate() {
+        RuntimeClassFile[] cfs = new RuntimeClassFile[classes];
+        TypeDesc beanType = TypeDesc.forClass(Bean.class);
+        for (int i=0; i<classes; i++) {
+            RuntimeClassFile cf = new RuntimeClassFile
+                ("org.cojen.bench.Accessor", null, Bean.class.getClassLoader());
+            cf.addDefaultConstructor();
+            MethodInfo mi = cf.addMethod(Modifiers.PUBLIC, "get", TypeDesc.OBJECT,
+                                         new TypeDesc[] {TypeDesc.OBJECT});
+            CodeBuilder b = new CodeBuilder(mi);
+            b.loadLocal(b.getParameter(0));
+            b.checkCast(beanType);
+            b.invokeVirtual(beanType, "getName", TypeDesc.STRING, null);
+            b.returnValue(TypeDesc.OBJECT);
+            cfs[i] = cf;
+        }
+        return cfs;
+    }
+}
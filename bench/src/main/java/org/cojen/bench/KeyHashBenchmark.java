@@ -0,0 +1,160 @@
+/*
+ *  Copyright 2010 Brian S O'Neill
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.cojen.bench;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import org.cojen.util.KeyFactory;
+
+/**
+ * Compares the KeyFactory byte array hash against the shift-accumulating
+ * hash it replaced, over several realistic key sets. Hashing throughput and
+ * HashMap lookups are measured, and the setup prints the number of colliding
+ * hash codes for each key set.
+ *
+ * @author Brian S O'Neill
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class KeyHashBenchmark {
+    /**
+     * paths: UTF-8 encoded URL paths; ids: 16 byte random identifiers;
+     * blocks: 512 byte buffers which differ in a leading sequence number.
+     */
+    @Param({"paths", "ids", "blocks"})
+    String keySet;
+
+    private static final int KEY_COUNT = 10000;
+
+    private byte[][] mKeys;
+    private byte[][] mProbes;
+    private Map<Object, Integer> mLegacyMap;
+    private Map<Object, Integer> mCurrentMap;
+    private int mIndex;
+
+    @Setup
+    public void setup() {
+        Random rnd = new Random(8675309);
+        mKeys = new byte[KEY_COUNT][];
+        Charset utf8 = Charset.forName("UTF-8");
+
+        for (int i=0; i<KEY_COUNT; i++) {
+            byte[] key;
+            if ("paths".equals(keySet)) {
+                key = ("/api/v1/customers/" + rnd.nextInt(100000) + "/orders/" + i)
+                    .getBytes(utf8);
+            } else if ("ids".equals(keySet)) {
+                key = new byte[16];
+                rnd.nextBytes(key);
+            } else {
+                key = new byte[512];
+                Arrays.fill(key, (byte) 0x20);
+                key[0] = (byte) (i >> 24);
+                key[1] = (byte) (i >> 16);
+                key[2] = (byte) (i >> 8);
+                key[3] = (byte) i;
+            }
+            mKeys[i] = key;
+        }
+
+        // Probe with copies, so that lookups cannot match by identity.
+        mProbes = new byte[KEY_COUNT][];
+        mLegacyMap = new HashMap<Object, Integer>();
+        mCurrentMap = new HashMap<Object, Integer>();
+        Set<Integer> legacyHashes = new HashSet<Integer>();
+        Set<Integer> currentHashes = new HashSet<Integer>();
+        for (int i=0; i<KEY_COUNT; i++) {
+            byte[] key = mKeys[i];
+            mProbes[i] = key.clone();
+            mLegacyMap.put(new LegacyKey(key), i);
+            mCurrentMap.put(KeyFactory.createKey(key), i);
+            legacyHashes.add(legacyHash(key));
+            currentHashes.add(KeyFactory.createKey(key).hashCode());
+        }
+
+        System.out.println();
+        System.out.println(keySet + " hash collisions: legacy " +
+                           (KEY_COUNT - legacyHashes.size()) + ", current " +
+                           (KEY_COUNT - currentHashes.size()) + ", of " + KEY_COUNT);
+    }
+
+    @Benchmark
+    public int hashLegacy() {
+        return legacyHash(nextProbe());
+    }
+
+    @Benchmark
+    public int hashCurrent() {
+        return KeyFactory.createKey(nextProbe()).hashCode();
+    }
+
+    @Benchmark
+    public Integer lookupLegacy() {
+        return mLegacyMap.get(new LegacyKey(nextProbe()));
+    }
+
+    @Benchmark
+    public Integer lookupCurrent() {
+        return mCurrentMap.get(KeyFactory.createKey(nextProbe()));
+    }
+
+    private byte[] nextProbe() {
+        byte[] probe = mProbes[mIndex];
+        if (++mIndex >= mProbes.length) {
+            mIndex = 0;
+        }
+        return probe;
+    }
+
+    static int legacyHash(byte[] a) {
+        int hash = 0;
+        for (int i = a.length; --i >= 0; ) {
+            hash = (hash << 1) + a[i];
+        }
+        return hash == 0 ? -1 : hash;
+    }
+
+    static final class LegacyKey {
+        private final byte[] mArray;
+
+        LegacyKey(byte[] array) {
+            mArray = array;
+        }
+
+        @Override
+        public int hashCode() {
+            return legacyHash(mArray);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof LegacyKey && Arrays.equals(mArray, ((LegacyKey) obj).mArray);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ *  Copyright 2010 Brian S O'Neill
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.cojen.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import org.cojen.classfile.*;
+
+/**
+ * Measures generation of a method with about 100,000 instructions, like the
+ * ones produced by rule engines. Most conditional branches jump over 32K
+ * bytes of code, and so they must be widened into goto_w instructions
+ * during layout. The generated method is too large to be loaded, but this
+ * only measures the time to build and write it out.
+ *
+ * @author Brian S O'Neill
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LargeMethodBenchmark {
+    private static final int INSTRUCTIONS = 100000;
+
+    /**
+     * near: branch spans stay below 32K bytes; far: spans straddle 32K, and
+     * widening one branch can push others out of range.
+     */
+    @Param({"near", "far"})
+    String spans;
+
+    @Benchmark
+    public byte[] build() throws IOException {
+        boolean far = "far".equals(spans);
+        Random rnd = new Random(5551212);
+
+        ClassFile cf = new ClassFile("org.cojen.bench.LargeMethod");
+        MethodInfo mi = cf.addMethod
+            (Modifiers.PUBLIC_STATIC, "eval", TypeDesc.INT, new TypeDesc[] {TypeDesc.INT});
+        CodeBuilder b = new CodeBuilder(mi);
+
+        LocalVariable inputVar = b.getParameter(0);
+        LocalVariable resultVar = b.createLocalVariable("result", TypeDesc.INT);
+        b.loadConstant(0);
+        b.storeLocal(resultVar);
+
+        // Each rule is 48 instructions, and about 60 bytes of code.
+        int rules = INSTRUCTIONS / 48;
+        Label[] labels = new Label[rules + 1];
+        for (int i=0; i<labels.length; i++) {
+            labels[i] = b.createLabel();
+        }
+
+        for (int i=0; i<rules; i++) {
+            labels[i].setLocation();
+
+            int span = far ? (500 + rnd.nextInt(200)) : (50 + rnd.nextInt(400));
+            b.loadLocal(inputVar);
+            b.loadConstant(i);
+            b.ifComparisonBranch(labels[Math.min(rules, i + span)], "==");
+
+            for (int j=0; j<10; j++) {
+                b.loadLocal(resultVar);
+                b.loadConstant(j + 1);
+                b.math(Opcode.IADD);
+                b.storeLocal(resultVar);
+            }
+
+            // Occasionally loop back to an earlier rule.
+            Label next = b.createLabel();
+            b.loadLocal(inputVar);
+            b.ifZeroComparisonBranch(next, ">=");
+            b.integerIncrement(inputVar, 1);
+            int back = far ? (500 + rnd.nextInt(200)) : (50 + rnd.nextInt(400));
+            b.branch(labels[Math.max(0, i - back)]);
+            next.setLocation();
+        }
+
+        labels[rules].setLocation();
+        b.loadLocal(resultVar);
+        b.returnValue(TypeDesc.INT);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(128 * 1024);
+        cf.writeTo(out);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ *  Copyright 2010 Brian S O'Neill
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.cojen.bench;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import org.cojen.util.BeanComparator;
+
+/**
+ * Compares sorting beans with Arrays.sort and a BeanComparator against
+ * BeanComparator.sort, for numeric rules (radix sorted long keys) and rules
+ * with strings (merge sorted byte array keys).
+ *
+ * @author Brian S O'Neill
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SortBenchmark {
+    /** Number of beans sorted per operation. */
+    @Param({"100000"})
+    int size;
+
+    private Bean[] mBeans;
+    private BeanComparator<Bean> mNumeric;
+    private BeanComparator<Bean> mMixed;
+
+    @Setup
+    public void setup() {
+        Random rnd = new Random(8675309);
+        mBeans = new Bean[size];
+        for (int i=0; i<size; i++) {
+            mBeans[i] = new Bean(rnd.nextInt(), rnd.nextInt(1000),
+                                 "name-" + rnd.nextInt(size), "cat-" + rnd.nextInt(20));
+        }
+        mNumeric = BeanComparator.forClass(Bean.class).orderBy("-amount").orderBy("id");
+        mMixed = BeanComparator.forClass(Bean.class)
+            .orderBy("category").orderBy("-amount").orderBy("name").orderBy("id");
+    }
+
+    @Benchmark
+    public Bean[] arraysSortNumeric() {
+        Bean[] beans = mBeans.clone();
+        Arrays.sort(beans, mNumeric);
+        return beans;
+    }
+
+    @Benchmark
+    public Bean[] beanSortNumeric() {
+        Bean[] beans = mBeans.clone();
+        mNumeric.sort(beans);
+        return beans;
+    }
+
+    @Benchmark
+    public Bean[] arraysSortMixed() {
+        Bean[] beans = mBeans.clone();
+        Arrays.sort(beans, mMixed);
+        return beans;
+    }
+
+    @Benchmark
+    public Bean[] beanSortMixed() {
+        Bean[] beans = mBeans.clone();
+        mMixed.sort(beans);
+        return beans;
+    }
+}
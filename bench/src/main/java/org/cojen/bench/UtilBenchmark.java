@@ -0,0 +1,151 @@
+/*
+ *  Copyright 2010 Brian S O'Neill
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.cojen.bench;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import org.cojen.util.IntHashMap;
+import org.cojen.util.KeyFactory;
+import org.cojen.util.OpenIntHashMap;
+import org.cojen.util.PatternMatcher;
+
+/**
+ * Measures PatternMatcher lookups and KeyFactory key hashing. Composite keys
+ * are created from the same field values as array keys and generated flat
+ * keys, to compare the costs of boxing and wrapping. The int map benchmarks
+ * fill and probe a map keyed by code addresses, as the disassembler does.
+ *
+ * @author Brian S O'Neill
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class UtilBenchmark {
+    public interface Keys {
+        Object newKey(String category, int id, long version, boolean flag);
+    }
+
+    private PatternMatcher<Integer> mMatcher;
+    private String[] mLookups;
+    private int mLookupIndex;
+
+    private Object[] mCompositeKey;
+    private byte[] mByteKey;
+
+    private Keys mKeys;
+    private String mCategory;
+    private int mId;
+    private long mVersion;
+
+    @Setup
+    public void setup() {
+        Map<String, Integer> patterns = new HashMap<String, Integer>();
+        patterns.put("/static/*", 1);
+        patterns.put("/api/v1/users/*", 2);
+        patterns.put("/api/v1/users/*/orders/*", 3);
+        patterns.put("/api/v2/*", 4);
+        patterns.put("*.html", 5);
+        patterns.put("/", 6);
+        mMatcher = PatternMatcher.forPatterns(patterns);
+
+        mLookups = new String[] {
+            "/static/css/site.css",
+            "/api/v1/users/1234",
+            "/api/v1/users/1234/orders/5678",
+            "/api/v2/status",
+            "/docs/index.html",
+            "/missing",
+        };
+
+        mCompositeKey = new Object[] {"category", 12345, 678L, Boolean.TRUE};
+
+        mKeys = KeyFactory.forInterface(Keys.class);
+        mCategory = "category";
+        mId = 12345;
+        mVersion = 678L;
+
+        mByteKey = new byte[256];
+        for (int i=0; i<mByteKey.length; i++) {
+            mByteKey[i] = (byte) (i * 31);
+        }
+    }
+
+    @Benchmark
+    public Object patternMatch() {
+        String lookup = mLookups[mLookupIndex];
+        if (++mLookupIndex >= mLookups.length) {
+            mLookupIndex = 0;
+        }
+        return mMatcher.getMatch(lookup);
+    }
+
+    @Benchmark
+    public int createObjectArrayKey() {
+        return KeyFactory.createKey(mCompositeKey).hashCode();
+    }
+
+    @Benchmark
+    public int createBoxedArrayKey() {
+        return KeyFactory.createKey(new Object[] {mCategory, mId, mVersion, true}).hashCode();
+    }
+
+    @Benchmark
+    public int createFlatKey() {
+        return mKeys.newKey(mCategory, mId, mVersion, true).hashCode();
+    }
+
+    @Benchmark
+    public int intHashMapPutGet() {
+        IntHashMap<Object> map = new IntHashMap<Object>();
+        for (int i=0; i<1000; i += 3) {
+            map.put(i, this);
+        }
+        int found = 0;
+        for (int i=0; i<1000; i++) {
+            if (map.get(i) != null) {
+                found++;
+            }
+        }
+        return found;
+    }
+
+    @Benchmark
+    public int openIntHashMapPutGet() {
+        OpenIntHashMap<Object> map = new OpenIntHashMap<Object>();
+        for (int i=0; i<1000; i += 3) {
+            map.put(i, this);
+        }
+        int found = 0;
+        for (int i=0; i<1000; i++) {
+            if (map.get(i) != null) {
+                found++;
+            }
+        }
+        return found;
+    }
+
+    @Benchmark
+    public int createByteArrayKey() {
+        return KeyFactory.createKey(mByteKey).hashCode();
+    }
+}
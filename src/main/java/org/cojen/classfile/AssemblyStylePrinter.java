@@ -25,7 +25,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
-import org.cojen.util.IntHashMap;
+import org.cojen.util.OpenIntHashMap;
 import org.cojen.classfile.attribute.Annotation;
 import org.cojen.classfile.attribute.BootstrapMethodsAttr;
 import org.cojen.classfile.attribute.CodeAttr;
@@ -62,12 +62,12 @@ class AssemblyStylePrinter implements DisassemblyTool.Printer {
     private int mAddress;
 
     // Maps int address keys to String labels.
-    private IntHashMap<Object> mLabels;
+    private OpenIntHashMap<Object> mLabels;
 
     private ExceptionHandler[] mExceptionHandlers;
 
     // Maps int catch locations to Lists of ExceptionHandler objects.
-    private IntHashMap<List<ExceptionHandler>> mCatchLocations;
+    private OpenIntHashMap<List<ExceptionHandler>> mCatchLocations;
 
     public AssemblyStylePrinter() {
     }
@@ -1245,8 +1245,8 @@ class AssemblyStylePrinter implements DisassemblyTool.Printer {
     }
 
     private void gatherLabels() {
-        mLabels = new IntHashMap<Object>();
-        mCatchLocations = new IntHashMap<List<ExceptionHandler>>
+        mLabels = new OpenIntHashMap<Object>();
+        mCatchLocations = new OpenIntHashMap<List<ExceptionHandler>>
             (mExceptionHandlers.length * 2 + 1);
 
         // Gather labels for any exception handlers.
@@ -1509,8 +1509,7 @@ class AssemblyStylePrinter implements DisassemblyTool.Printer {
             } // end huge switch
         } // end for loop
 
-        Integer[] keys = new Integer[mLabels.size()];
-        keys = mLabels.keySet().toArray(keys);
+        int[] keys = mLabels.keys();
         Arrays.sort(keys);
         for (int i=0; i<keys.length; i++) {
             mLabels.put(keys[i], "L" + (i + 1) + '_' + keys[i]);
@@ -28,6 +28,7 @@ import org.cojen.classfile.attribute.ExceptionsAttr;
 import org.cojen.classfile.attribute.InnerClassesAttr;
 import org.cojen.classfile.attribute.LineNumberTableAttr;
 import org.cojen.classfile.attribute.LocalVariableTableAttr;
+import org.cojen.classfile.attribute.LocalVariableTypeTableAttr;
 import org.cojen.classfile.attribute.MethodParametersAttr;
 import org.cojen.classfile.attribute.RuntimeInvisibleAnnotationsAttr;
 import org.cojen.classfile.attribute.RuntimeInvisibleParameterAnnotationsAttr;
@@ -58,6 +59,7 @@ public abstract class Attribute {
     public static final String INNER_CLASSES = "InnerClasses";
     public static final String LINE_NUMBER_TABLE = "LineNumberTable";
     public static final String LOCAL_VARIABLE_TABLE = "LocalVariableTable";
+    public static final String LOCAL_VARIABLE_TYPE_TABLE = "LocalVariableTypeTable";
     public static final String SOURCE_FILE = "SourceFile";
     public static final String SYNTHETIC = "Synthetic";
     public static final String SIGNATURE = "Signature";
@@ -221,6 +223,8 @@ public abstract class Attribute {
                         return new LineNumberTableAttr(cp, name, length, din);
                     } else if (name.equals(LOCAL_VARIABLE_TABLE)) {
                         return new LocalVariableTableAttr(cp, name, length, din);
+                    } else if (name.equals(LOCAL_VARIABLE_TYPE_TABLE)) {
+                        return new LocalVariableTypeTableAttr(cp, name, length, din);
                     }
                     break;
                 case 'M':
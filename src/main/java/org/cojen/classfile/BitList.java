@@ -16,24 +16,57 @@
 
 package org.cojen.classfile;
 
+import java.util.Arrays;
+
 /**
- * A specialized, faster BitSet used by InstructionList.
+ * A specialized, faster BitSet used by InstructionList. Lists with few bits
+ * set are stored as sorted indexes, and they switch to words once the indexes
+ * would need more memory. Bulk operations modify the list in place, and so
+ * flow analysis can reuse lists instead of allocating new ones.
  *
  * @author Brian S O'Neill
  */
 final class BitList implements Cloneable {
-    // Bits are stored little endian.
-    private int[] mData;
+    private static final int[] NO_INDEXES = new int[0];
+
+    // Bits are stored little endian, in words. Is null if sparse.
+    private long[] mWords;
+
+    // Sorted indexes of the set bits, when sparse.
+    private int[] mIndexes;
+    private int mCount;
+
+    // Amount of bits stored, which is always a multiple of 64.
+    private int mCapacity;
 
     /**
      * @param capacity initial amount of bits to store
-     */    
+     */
     public BitList(int capacity) {
-        mData = new int[(capacity + 31) >> 5];
+        this(capacity, false);
+    }
+
+    /**
+     * @param capacity initial amount of bits to store
+     * @param sparse when true, start with sparse storage if capacity is large
+     * enough for it to matter
+     */
+    public BitList(int capacity, boolean sparse) {
+        mCapacity = ((capacity + 63) >> 6) << 6;
+        if (!sparse || sparseLimit() < 4) {
+            mWords = new long[mCapacity >> 6];
+        } else {
+            mIndexes = NO_INDEXES;
+        }
     }
 
     public boolean get(int index) {
-        return (mData[index >> 5] & (0x80000000 >>> index)) != 0;
+        long[] words = mWords;
+        if (words != null) {
+            int i = index >> 6;
+            return i < words.length && (words[i] & (1L << index)) != 0;
+        }
+        return Arrays.binarySearch(mIndexes, 0, mCount, index) >= 0;
     }
 
     /**
@@ -41,20 +74,27 @@ final class BitList implements Cloneable {
      * @return -1 if not found
      */
     public int nextSetBit(int fromIndex) {
-        int i = fromIndex >> 5;
-        int[] data = mData;
-        if (i >= data.length) {
+        long[] words = mWords;
+        if (words == null) {
+            int pos = Arrays.binarySearch(mIndexes, 0, mCount, fromIndex);
+            if (pos < 0) {
+                pos = ~pos;
+            }
+            return pos < mCount ? mIndexes[pos] : -1;
+        }
+        int i = fromIndex >> 6;
+        if (i >= words.length) {
             return -1;
         }
-        int v = data[i] & (0xffffffff >>> fromIndex);
+        long v = words[i] & (-1L << fromIndex);
         while (true) {
             if (v != 0) {
-                return (i << 5) + Integer.numberOfLeadingZeros(v);
+                return (i << 6) + Long.numberOfTrailingZeros(v);
             }
-            if (++i >= data.length) {
+            if (++i >= words.length) {
                 return -1;
             }
-            v = data[i];
+            v = words[i];
         }
     }
 
@@ -63,20 +103,30 @@ final class BitList implements Cloneable {
      * @return non-negative index
      */
     public int nextClearBit(int fromIndex) {
-        int i = fromIndex >> 5;
-        int[] data = mData;
-        if (i >= data.length) {
+        long[] words = mWords;
+        if (words == null) {
+            int pos = Arrays.binarySearch(mIndexes, 0, mCount, fromIndex);
+            if (pos >= 0) {
+                while (++pos < mCount && mIndexes[pos] == ++fromIndex);
+                if (pos >= mCount) {
+                    fromIndex++;
+                }
+            }
             return fromIndex;
         }
-        int v = ~data[i] & (0xffffffff >>> fromIndex);
+        int i = fromIndex >> 6;
+        if (i >= words.length) {
+            return fromIndex;
+        }
+        long v = ~words[i] & (-1L << fromIndex);
         while (true) {
             if (v != 0) {
-                return (i << 5) + Integer.numberOfLeadingZeros(v);
+                return (i << 6) + Long.numberOfTrailingZeros(v);
             }
-            if (++i >= data.length) {
-                return data.length << 5;
+            if (++i >= words.length) {
+                return words.length << 6;
             }
-            v = ~data[i];
+            v = ~words[i];
         }
     }
 
@@ -84,26 +134,276 @@ final class BitList implements Cloneable {
      * @return true if any change made
      */
     public boolean set(int index) {
-        int i = index >> 5;
-        int v = mData[i];
-        return v != (mData[i] = v | (0x80000000 >>> index));
+        long[] words = mWords;
+        if (words == null) {
+            int pos = Arrays.binarySearch(mIndexes, 0, mCount, index);
+            if (pos >= 0) {
+                return false;
+            }
+            if (mCount < sparseLimit()) {
+                insert(~pos, index);
+                return true;
+            }
+            words = toDense();
+        }
+        int i = index >> 6;
+        if (i >= words.length) {
+            words = grow(index + 1);
+        }
+        long v = words[i];
+        return v != (words[i] = v | (1L << index));
+    }
+
+    /**
+     * Sets all the bits in the given range.
+     *
+     * @param fromIndex inclusive
+     * @param toIndex exclusive
+     */
+    public void set(int fromIndex, int toIndex) {
+        if (fromIndex >= toIndex) {
+            return;
+        }
+        long[] words = mWords;
+        if (words == null) {
+            if (mCount + (toIndex - fromIndex) <= sparseLimit()) {
+                for (int i=fromIndex; i<toIndex; i++) {
+                    set(i);
+                }
+                return;
+            }
+            words = toDense();
+        }
+        int last = (toIndex - 1) >> 6;
+        if (last >= words.length) {
+            words = grow(toIndex);
+        }
+        int first = fromIndex >> 6;
+        long firstMask = -1L << fromIndex;
+        long lastMask = -1L >>> -toIndex;
+        if (first == last) {
+            words[first] |= firstMask & lastMask;
+        } else {
+            words[first] |= firstMask;
+            for (int i=first+1; i<last; i++) {
+                words[i] = -1L;
+            }
+            words[last] |= lastMask;
+        }
+    }
+
+    /**
+     * @return true if any change made
+     */
+    public boolean clear(int index) {
+        long[] words = mWords;
+        if (words == null) {
+            int pos = Arrays.binarySearch(mIndexes, 0, mCount, index);
+            if (pos < 0) {
+                return false;
+            }
+            System.arraycopy(mIndexes, pos + 1, mIndexes, pos, --mCount - pos);
+            return true;
+        }
+        int i = index >> 6;
+        if (i >= words.length) {
+            return false;
+        }
+        long v = words[i];
+        return v != (words[i] = v & ~(1L << index));
+    }
+
+    /**
+     * Clears all bits, but retains the storage for reuse.
+     */
+    public void clearAll() {
+        if (mWords == null) {
+            mCount = 0;
+        } else {
+            Arrays.fill(mWords, 0);
+        }
+    }
+
+    /**
+     * Replaces the contents of this list with those of the given list,
+     * reusing storage when possible.
+     */
+    public void copyFrom(BitList list) {
+        long[] other = list.mWords;
+        if (other != null) {
+            long[] words = mWords;
+            if (words == null || words.length < other.length) {
+                mWords = other.clone();
+                mIndexes = null;
+                mCount = 0;
+                mCapacity = Math.max(mCapacity, other.length << 6);
+            } else {
+                System.arraycopy(other, 0, words, 0, other.length);
+                Arrays.fill(words, other.length, words.length, 0);
+            }
+        } else if (mWords != null) {
+            clearAll();
+            for (int i=0; i<list.mCount; i++) {
+                set(list.mIndexes[i]);
+            }
+        } else {
+            if (mIndexes.length < list.mCount) {
+                mIndexes = new int[list.mCount];
+            }
+            System.arraycopy(list.mIndexes, 0, mIndexes, 0, list.mCount);
+            mCount = list.mCount;
+        }
     }
 
     /**
      * @return true if any changes made
      */
     public boolean or(BitList list) {
-        boolean changes = ensureCapacity(list.capacity());
-        for (int i=list.mData.length; --i >= 0; ) {
-            int v = mData[i];
-            changes |= (v != (mData[i] = v | list.mData[i]));
+        long[] words = mWords;
+        long[] other = list.mWords;
+
+        if (other == null) {
+            if (words == null) {
+                return merge(list, false);
+            }
+            boolean changes = false;
+            for (int i=0; i<list.mCount; i++) {
+                changes |= set(list.mIndexes[i]);
+            }
+            return changes;
+        }
+
+        if (words == null) {
+            if (mCount + list.cardinality() <= sparseLimit()) {
+                boolean changes = false;
+                for (int i = list.nextSetBit(0); i >= 0; i = list.nextSetBit(i + 1)) {
+                    changes |= set(i);
+                }
+                return changes;
+            }
+            words = toDense();
+        }
+
+        if (other.length > words.length) {
+            words = grow(other.length << 6);
+        }
+
+        boolean changes = false;
+        for (int i=other.length; --i >= 0; ) {
+            long v = words[i];
+            changes |= (v != (words[i] = v | other[i]));
         }
         return changes;
     }
 
+    /**
+     * Clears all the bits which aren't set in the given list.
+     *
+     * @return true if any changes made
+     */
+    public boolean and(BitList list) {
+        long[] words = mWords;
+        if (words == null) {
+            int count = mCount;
+            retain(list, true);
+            return count != mCount;
+        }
+        boolean changes = false;
+        for (int i=words.length; --i >= 0; ) {
+            long v = words[i];
+            changes |= (v != (words[i] = v & list.word(i)));
+        }
+        return changes;
+    }
+
+    /**
+     * Clears all the bits which are set in the given list.
+     *
+     * @return true if any changes made
+     */
+    public boolean andNot(BitList list) {
+        long[] words = mWords;
+        if (words == null) {
+            int count = mCount;
+            retain(list, false);
+            return count != mCount;
+        }
+        long[] other = list.mWords;
+        boolean changes = false;
+        if (other == null) {
+            for (int i=0; i<list.mCount; i++) {
+                changes |= clear(list.mIndexes[i]);
+            }
+        } else {
+            for (int i=Math.min(words.length, other.length); --i >= 0; ) {
+                long v = words[i];
+                changes |= (v != (words[i] = v & ~other[i]));
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * Flips all the bits which are set in the given list.
+     *
+     * @return true if any changes made
+     */
+    public boolean xor(BitList list) {
+        long[] words = mWords;
+        long[] other = list.mWords;
+
+        if (words == null) {
+            if (other == null) {
+                return merge(list, true);
+            }
+            words = toDense();
+        }
+
+        if (other == null) {
+            for (int i=0; i<list.mCount; i++) {
+                int index = list.mIndexes[i];
+                if (!set(index)) {
+                    clear(index);
+                }
+            }
+            return list.mCount != 0;
+        }
+
+        if (other.length > words.length) {
+            words = grow(other.length << 6);
+        }
+
+        boolean changes = false;
+        for (int i=other.length; --i >= 0; ) {
+            long v = other[i];
+            words[i] ^= v;
+            changes |= v != 0;
+        }
+        return changes;
+    }
+
+    /**
+     * @return amount of bits which are set
+     */
+    public int cardinality() {
+        long[] words = mWords;
+        if (words == null) {
+            return mCount;
+        }
+        int count = 0;
+        for (int i=words.length; --i >= 0; ) {
+            count += Long.bitCount(words[i]);
+        }
+        return count;
+    }
+
     public boolean isAllClear() {
-        for (int i=mData.length; --i >= 0; ) {
-            if (mData[i] != 0) {
+        long[] words = mWords;
+        if (words == null) {
+            return mCount == 0;
+        }
+        for (int i=words.length; --i >= 0; ) {
+            if (words[i] != 0) {
                 return false;
             }
         }
@@ -111,8 +411,12 @@ final class BitList implements Cloneable {
     }
 
     public boolean isAllSet() {
-        for (int i=mData.length; --i >= 0; ) {
-            if (mData[i] != 0xffffffff) {
+        long[] words = mWords;
+        if (words == null) {
+            return mCount == mCapacity;
+        }
+        for (int i=words.length; --i >= 0; ) {
+            if (words[i] != -1L) {
                 return false;
             }
         }
@@ -120,16 +424,25 @@ final class BitList implements Cloneable {
     }
 
     /**
-     * @return true if the bitwise or of the two lists is different than the
-     * bitwise xor.
+     * @return true if any bit is set in both lists
      */
     public boolean intersects(BitList list) {
         if (list != null) {
-            for (int i=Math.min(mData.length, list.mData.length); --i >= 0; ) {
-                int v1 = mData[i];
-                int v2 = list.mData[i];
-                if ((v1 | v2) != (v1 ^ v2)) {
-                    return true;
+            if (mWords != null && list.mWords != null) {
+                long[] a = mWords;
+                long[] b = list.mWords;
+                for (int i=Math.min(a.length, b.length); --i >= 0; ) {
+                    if ((a[i] & b[i]) != 0) {
+                        return true;
+                    }
+                }
+            } else {
+                BitList sparse = mWords == null ? this : list;
+                BitList other = sparse == this ? list : this;
+                for (int i=0; i<sparse.mCount; i++) {
+                    if (other.get(sparse.mIndexes[i])) {
+                        return true;
+                    }
                 }
             }
         }
@@ -137,22 +450,35 @@ final class BitList implements Cloneable {
     }
 
     public int hashCode() {
-        int hash = 0;
-        for (int i=mData.length; --i >= 0; ) {
-            hash = hash * 31 + mData[i];
+        // Only words with bits set are hashed, independent of storage.
+        long hash = 1234;
+        for (int i = nextSetBit(0); i >= 0; ) {
+            int w = i >> 6;
+            hash ^= word(w) * (w + 1);
+            i = nextSetBit((w + 1) << 6);
         }
-        return hash;
+        return (int) ((hash >> 32) ^ hash);
     }
 
     public int capacity() {
-        return mData.length << 5;
+        return mCapacity;
     }
 
     public boolean equals(Object obj) {
-        if (obj instanceof BitList) {
-            return java.util.Arrays.equals(mData, ((BitList)obj).mData);
+        if (this == obj) {
+            return true;
         }
-        return false;
+        if (!(obj instanceof BitList)) {
+            return false;
+        }
+        BitList other = (BitList) obj;
+        int length = Math.max(mCapacity, other.mCapacity) >> 6;
+        for (int i=0; i<length; i++) {
+            if (word(i) != other.word(i)) {
+                return false;
+            }
+        }
+        return true;
     }
 
     public BitList copy() {
@@ -161,7 +487,13 @@ final class BitList implements Cloneable {
 
     public Object clone() {
         try {
-            return super.clone();
+            BitList copy = (BitList) super.clone();
+            if (mWords != null) {
+                copy.mWords = mWords.clone();
+            } else {
+                copy.mIndexes = mCount == 0 ? NO_INDEXES : Arrays.copyOf(mIndexes, mCount);
+            }
+            return copy;
         }
         catch (CloneNotSupportedException e) {
             throw new InternalError();
@@ -169,27 +501,154 @@ final class BitList implements Cloneable {
     }
 
     public String toString() {
-        StringBuffer buf = new StringBuffer(mData.length + 2);
-        buf.append('[');
-        for (int i=0; i<mData.length; i++) {
-            String binary = Integer.toBinaryString(mData[i]);
-            for (int j=binary.length(); j<32; j++) {
-                buf.append('0');
+        StringBuffer buf = new StringBuffer();
+        buf.append('{');
+        for (int i = nextSetBit(0); i >= 0; i = nextSetBit(i + 1)) {
+            if (buf.length() > 1) {
+                buf.append(", ");
             }
-            buf.append(binary);
+            buf.append(i);
         }
-        buf.append(']');
+        buf.append('}');
         return buf.toString();
     }
 
-    private boolean ensureCapacity(int capacity) {
-        int len = (capacity + 31) >> 5;
-        if (len > mData.length) {
-            int[] newData = new int[len];
-            System.arraycopy(mData, 0, newData, 0, mData.length);
-            mData = newData;
-            return true;
+    /**
+     * Maximum amount of sparse indexes, which use no more memory than words.
+     */
+    private int sparseLimit() {
+        return mCapacity >> 5;
+    }
+
+    /**
+     * @return word i, which is computed if sparse
+     */
+    private long word(int i) {
+        long[] words = mWords;
+        if (words != null) {
+            return i < words.length ? words[i] : 0;
         }
-        return false;
+        int[] indexes = mIndexes;
+        int start = i << 6;
+        int pos = Arrays.binarySearch(indexes, 0, mCount, start);
+        if (pos < 0) {
+            pos = ~pos;
+        }
+        long v = 0;
+        for (int end = start + 64; pos < mCount && indexes[pos] < end; pos++) {
+            v |= 1L << indexes[pos];
+        }
+        return v;
+    }
+
+    private void insert(int pos, int index) {
+        int[] indexes = mIndexes;
+        if (mCount >= indexes.length) {
+            mIndexes = indexes = Arrays.copyOf(indexes, Math.max(4, mCount * 2));
+        }
+        System.arraycopy(indexes, pos, indexes, pos + 1, mCount - pos);
+        indexes[pos] = index;
+        mCount++;
+    }
+
+    /**
+     * Keeps only the sparse indexes which are set, or not set, in the given list.
+     */
+    private void retain(BitList list, boolean set) {
+        int[] indexes = mIndexes;
+        int count = 0;
+        for (int i=0; i<mCount; i++) {
+            int index = indexes[i];
+            if (list.get(index) == set) {
+                indexes[count++] = index;
+            }
+        }
+        mCount = count;
+    }
+
+    /**
+     * Merges another sparse list into this sparse list.
+     *
+     * @param xor when true, drop indexes found in both lists
+     * @return true if any changes made
+     */
+    private boolean merge(BitList list, boolean xor) {
+        int[] a = mIndexes;
+        int[] b = list.mIndexes;
+        int aCount = mCount;
+        int bCount = list.mCount;
+        if (bCount == 0) {
+            return false;
+        }
+
+        int[] merged = new int[aCount + bCount];
+        int count = 0;
+        int i = 0, j = 0;
+        while (i < aCount && j < bCount) {
+            int x = a[i];
+            int y = b[j];
+            if (x < y) {
+                merged[count++] = x;
+                i++;
+            } else if (x > y) {
+                merged[count++] = y;
+                j++;
+            } else {
+                if (!xor) {
+                    merged[count++] = x;
+                }
+                i++;
+                j++;
+            }
+        }
+        while (i < aCount) {
+            merged[count++] = a[i++];
+        }
+        while (j < bCount) {
+            merged[count++] = b[j++];
+        }
+
+        boolean changes = xor || count != aCount;
+
+        mIndexes = merged;
+        mCount = count;
+        if (count > sparseLimit()) {
+            toDense();
+        }
+
+        return changes;
+    }
+
+    /**
+     * Switches to words, and returns them.
+     */
+    private long[] toDense() {
+        int[] indexes = mIndexes;
+        int count = mCount;
+        int capacity = mCapacity;
+        if (count > 0) {
+            capacity = Math.max(capacity, ((indexes[count - 1] >> 6) + 1) << 6);
+        }
+        long[] words = new long[capacity >> 6];
+        for (int i=0; i<count; i++) {
+            int index = indexes[i];
+            words[index >> 6] |= 1L << index;
+        }
+        mWords = words;
+        mIndexes = null;
+        mCount = 0;
+        mCapacity = capacity;
+        return words;
+    }
+
+    /**
+     * Grows the words to hold at least the given amount of bits.
+     */
+    private long[] grow(int capacity) {
+        long[] words = mWords;
+        int length = Math.max(words.length * 2, (capacity + 63) >> 6);
+        mWords = words = Arrays.copyOf(words, length);
+        mCapacity = length << 6;
+        return words;
     }
 }
@@ -0,0 +1,271 @@
+/*
+ *  Copyright 2010 Brian S O'Neill
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.classfile;
+
+import java.io.DataInput;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * DataInput which decodes directly from a ByteBuffer, without copying into an
+ * intermediate buffer. Works with heap, direct and memory-mapped buffers.
+ *
+ * @author Brian S O'Neill
+ */
+class ByteBufferDataInput implements DataInput {
+    private final ByteBuffer mBuffer;
+    private final byte[] mArray;
+    private final int mArrayOffset;
+
+    // Reusable buffer for decoding modified UTF-8 strings.
+    private char[] mChars;
+
+    /**
+     * @param buffer source buffer; reads start at its current position, which
+     * is not modified
+     */
+    ByteBufferDataInput(ByteBuffer buffer) {
+        this(buffer, buffer.position());
+    }
+
+    /**
+     * @param buffer source buffer, whose position is not modified
+     * @param position absolute position in the source buffer to start reading from
+     */
+    ByteBufferDataInput(ByteBuffer buffer, int position) {
+        buffer = buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+        buffer.position(position);
+        mBuffer = buffer;
+        if (buffer.hasArray()) {
+            mArray = buffer.array();
+            mArrayOffset = buffer.arrayOffset();
+        } else {
+            mArray = null;
+            mArrayOffset = 0;
+        }
+    }
+
+    /**
+     * Returns the position in the source buffer of the next byte to read.
+     */
+    int position() {
+        return mBuffer.position();
+    }
+
+    public void readFully(byte[] b) throws IOException {
+        readFully(b, 0, b.length);
+    }
+
+    public void readFully(byte[] b, int off, int len) throws IOException {
+        require(len);
+        mBuffer.get(b, off, len);
+    }
+
+    public int skipBytes(int n) {
+        if (n <= 0) {
+            return 0;
+        }
+        ByteBuffer buffer = mBuffer;
+        n = Math.min(n, buffer.remaining());
+        buffer.position(buffer.position() + n);
+        return n;
+    }
+
+    public boolean readBoolean() throws IOException {
+        return readByte() != 0;
+    }
+
+    public byte readByte() throws IOException {
+        require(1);
+        return mBuffer.get();
+    }
+
+    public int readUnsignedByte() throws IOException {
+        return readByte() & 0xff;
+    }
+
+    public short readShort() throws IOException {
+        require(2);
+        return mBuffer.getShort();
+    }
+
+    public int readUnsignedShort() throws IOException {
+        return readShort() & 0xffff;
+    }
+
+    public char readChar() throws IOException {
+        require(2);
+        return mBuffer.getChar();
+    }
+
+    public int readInt() throws IOException {
+        require(4);
+        return mBuffer.getInt();
+    }
+
+    public long readLong() throws IOException {
+        require(8);
+        return mBuffer.getLong();
+    }
+
+    public float readFloat() throws IOException {
+        require(4);
+        return mBuffer.getFloat();
+    }
+
+    public double readDouble() throws IOException {
+        require(8);
+        return mBuffer.getDouble();
+    }
+
+    public String readLine() throws IOException {
+        ByteBuffer buffer = mBuffer;
+        if (!buffer.hasRemaining()) {
+            return null;
+        }
+        StringBuilder b = new StringBuilder();
+        while (buffer.hasRemaining()) {
+            int c = buffer.get() & 0xff;
+            if (c == '\n') {
+                break;
+            }
+            if (c == '\r') {
+                if (buffer.hasRemaining() && buffer.get(buffer.position()) == '\n') {
+                    buffer.get();
+                }
+                break;
+            }
+            b.append((char) c);
+        }
+        return b.toString();
+    }
+
+    /**
+     * Decodes a modified UTF-8 string in place, as defined by {@link DataInput}.
+     */
+    public String readUTF() throws IOException {
+        int length = readUnsignedShort();
+        require(length);
+
+        ByteBuffer buffer = mBuffer;
+        int start = buffer.position();
+
+        char[] chars = mChars;
+        if (chars == null || chars.length < length) {
+            mChars = chars = new char[Math.max(length, 64)];
+        }
+
+        int count = 0;
+
+        if (mArray != null) {
+            byte[] array = mArray;
+            int pos = mArrayOffset + start;
+            int end = pos + length;
+            while (pos < end) {
+                int c = array[pos] & 0xff;
+                if (c < 0x80) {
+                    chars[count++] = (char) c;
+                    pos++;
+                    continue;
+                }
+                switch (c >> 4) {
+                case 12: case 13:
+                    if (pos + 2 > end) {
+                        throw malformed(pos - mArrayOffset);
+                    }
+                    int c2 = array[pos + 1];
+                    if ((c2 & 0xc0) != 0x80) {
+                        throw malformed(pos + 1 - mArrayOffset);
+                    }
+                    chars[count++] = (char) (((c & 0x1f) << 6) | (c2 & 0x3f));
+                    pos += 2;
+                    break;
+                case 14:
+                    if (pos + 3 > end) {
+                        throw malformed(pos - mArrayOffset);
+                    }
+                    c2 = array[pos + 1];
+                    int c3 = array[pos + 2];
+                    if ((c2 & 0xc0) != 0x80 || (c3 & 0xc0) != 0x80) {
+                        throw malformed(pos + 1 - mArrayOffset);
+                    }
+                    chars[count++] = (char)
+                        (((c & 0x0f) << 12) | ((c2 & 0x3f) << 6) | (c3 & 0x3f));
+                    pos += 3;
+                    break;
+                default:
+                    throw malformed(pos - mArrayOffset);
+                }
+            }
+        } else {
+            int pos = start;
+            int end = pos + length;
+            while (pos < end) {
+                int c = buffer.get(pos) & 0xff;
+                if (c < 0x80) {
+                    chars[count++] = (char) c;
+                    pos++;
+                    continue;
+                }
+                switch (c >> 4) {
+                case 12: case 13:
+                    if (pos + 2 > end) {
+                        throw malformed(pos);
+                    }
+                    int c2 = buffer.get(pos + 1);
+                    if ((c2 & 0xc0) != 0x80) {
+                        throw malformed(pos + 1);
+                    }
+                    chars[count++] = (char) (((c & 0x1f) << 6) | (c2 & 0x3f));
+                    pos += 2;
+                    break;
+                case 14:
+                    if (pos + 3 > end) {
+                        throw malformed(pos);
+                    }
+                    c2 = buffer.get(pos + 1);
+                    int c3 = buffer.get(pos + 2);
+                    if ((c2 & 0xc0) != 0x80 || (c3 & 0xc0) != 0x80) {
+                        throw malformed(pos + 1);
+                    }
+                    chars[count++] = (char)
+                        (((c & 0x0f) << 12) | ((c2 & 0x3f) << 6) | (c3 & 0x3f));
+                    pos += 3;
+                    break;
+                default:
+                    throw malformed(pos);
+                }
+            }
+        }
+
+        buffer.position(start + length);
+        return new String(chars, 0, count);
+    }
+
+    private void require(int amount) throws EOFException {
+        if (mBuffer.remaining() < amount) {
+            throw new EOFException();
+        }
+    }
+
+    private static UTFDataFormatException malformed(int position) {
+        return new UTFDataFormatException("Malformed input at position " + position);
+    }
+}
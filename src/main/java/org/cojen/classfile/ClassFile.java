@@ -31,6 +31,7 @@ import java.io.DataOutputStream;
 import java.io.InputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import org.cojen.classfile.attribute.Annotation;
 import org.cojen.classfile.attribute.AnnotationsAttr;
 import org.cojen.classfile.attribute.BootstrapMethodsAttr;
@@ -53,7 +54,7 @@ import org.cojen.classfile.constant.ConstantClassInfo;
  * @author Brian S O'Neill
  */
 public class ClassFile {
-    private static final int MAGIC = 0xCAFEBABE;
+    static final int MAGIC = 0xCAFEBABE;
 
     /**
      * Reads a ClassFile from the given InputStream. With this method, inner
@@ -136,6 +137,92 @@ public class ClassFile {
         return readFrom(din, loader, attrFactory, new HashMap<String, ClassFile>(11), null);
     }
 
+    /**
+     * Reads a ClassFile from the given ByteBuffer, starting at its current
+     * position. Data is decoded directly from the buffer, which may be a heap,
+     * direct or memory-mapped buffer. With this method, inner classes cannot
+     * be loaded, and custom attributes cannot be defined.
+     *
+     * @param buffer source of class file data; position is advanced past the
+     * end of the class file
+     * @throws IOException if classfile is invalid.
+     * @throws ArrayIndexOutOfBoundsException if a constant pool index is out
+     * of range.
+     * @throws ClassCastException if a constant pool index references the
+     * wrong type.
+     */
+    public static ClassFile readFrom(ByteBuffer buffer) throws IOException {
+        return readFrom(buffer, null, null);
+    }
+
+    /**
+     * Reads a ClassFile from the given ByteBuffer, starting at its current
+     * position. Data is decoded directly from the buffer, which may be a heap,
+     * direct or memory-mapped buffer. A {@link ClassFileDataLoader} may be
+     * provided, which allows inner class definitions to be loaded. Also, an
+     * {@link AttributeFactory} may be provided, which allows non-standard
+     * attributes to be read. All remaining unknown attribute types are
+     * captured, but are not decoded.
+     *
+     * @param buffer source of class file data; position is advanced past the
+     * end of the class file
+     * @param loader optional loader for reading inner class definitions
+     * @param attrFactory optional factory for reading custom attributes
+     * @throws IOException if classfile is invalid.
+     * @throws ArrayIndexOutOfBoundsException if a constant pool index is out
+     * of range.
+     * @throws ClassCastException if a constant pool index references the
+     * wrong type.
+     */
+    public static ClassFile readFrom(ByteBuffer buffer,
+                                     ClassFileDataLoader loader,
+                                     AttributeFactory attrFactory)
+        throws IOException
+    {
+        return readFrom(buffer, loader, attrFactory, false);
+    }
+
+    /**
+     * Reads a ClassFile from the given ByteBuffer, starting at its current
+     * position. Data is decoded directly from the buffer, which may be a heap,
+     * direct or memory-mapped buffer. A {@link ClassFileDataLoader} may be
+     * provided, which allows inner class definitions to be loaded. Also, an
+     * {@link AttributeFactory} may be provided, which allows non-standard
+     * attributes to be read. All remaining unknown attribute types are
+     * captured, but are not decoded.
+     *
+     * <p>When read lazily, only the constant pool, class names and interfaces
+     * are decoded immediately. Fields, methods and attributes are decoded the
+     * first time they are accessed, and the attributes of each field and method
+     * (including code) are decoded when first accessed through that member. The
+     * buffer contents must not be modified while the ClassFile is in use, and
+     * malformed data which is decoded late causes an IllegalStateException.
+     *
+     * @param buffer source of class file data; position is advanced past the
+     * end of the class file
+     * @param loader optional loader for reading inner class definitions
+     * @param attrFactory optional factory for reading custom attributes
+     * @param lazy when true, defer decoding of members and attributes
+     * @throws IOException if classfile is invalid.
+     * @throws ArrayIndexOutOfBoundsException if a constant pool index is out
+     * of range.
+     * @throws ClassCastException if a constant pool index references the
+     * wrong type.
+     */
+    public static ClassFile readFrom(ByteBuffer buffer,
+                                     ClassFileDataLoader loader,
+                                     AttributeFactory attrFactory,
+                                     boolean lazy)
+        throws IOException
+    {
+        ByteBufferDataInput din = new ByteBufferDataInput(buffer);
+        LazyClassData lazyData = lazy ? new LazyClassData(buffer, attrFactory) : null;
+        ClassFile cf = readFrom(din, loader, attrFactory,
+                                new HashMap<String, ClassFile>(11), null, lazyData);
+        buffer.position(din.position());
+        return cf;
+    }
+
     /**
      * @param loadedClassFiles Maps name to ClassFiles for classes already
      * loaded. This prevents infinite loop: inner loads outer loads inner...
@@ -146,6 +233,21 @@ public class ClassFile {
                                       Map<String, ClassFile> loadedClassFiles,
                                       ClassFile outerClass)
         throws IOException
+    {
+        return readFrom(din, loader, attrFactory, loadedClassFiles, outerClass, null);
+    }
+
+    /**
+     * @param lazyData when non-null, din must be a ByteBufferDataInput over the
+     * same data, and the member and attribute tables are read upon first access
+     */
+    private static ClassFile readFrom(DataInput din,
+                                      ClassFileDataLoader loader,
+                                      AttributeFactory attrFactory,
+                                      Map<String, ClassFile> loadedClassFiles,
+                                      ClassFile outerClass,
+                                      LazyClassData lazyData)
+        throws IOException
     {
         int magic = din.readInt();
         if (magic != MAGIC) {
@@ -181,25 +283,49 @@ public class ClassFile {
             cf.addInterface(info.getType().getRootName());
         }
         
-        // Read fields.
-        size = din.readUnsignedShort();
-        for (int i=0; i<size; i++) {
-            cf.mFields.add(FieldInfo.readFrom(cf, din, attrFactory));
-        }
-        
-        // Read methods.
-        size = din.readUnsignedShort();
-        for (int i=0; i<size; i++) {
-            cf.mMethods.add(MethodInfo.readFrom(cf, din, attrFactory));
-        }
+        if (lazyData != null) {
+            // Only note where the tables are, and skip over them.
+            ByteBufferDataInput bin = (ByteBufferDataInput)din;
+            cf.mLazyData = lazyData;
+            cf.mLazyFields = bin.position();
+            LazyClassData.skipMembers(bin);
+            cf.mLazyMethods = bin.position();
+            LazyClassData.skipMembers(bin);
+            cf.mLazyAttributes = bin.position();
+            LazyClassData.skipAttributes(bin);
+            final ClassFile lazyClass = cf;
+            cp.beforeAdd(new Runnable() {
+                public void run() {
+                    // Reading methods adds constants, which must come before
+                    // any others to keep the same order as an eager read.
+                    lazyClass.readMethods();
+                }
+            });
+            if (loader != null) {
+                // Inner class attribute is needed now.
+                cf.readAttributes();
+            }
+        } else {
+            // Read fields.
+            size = din.readUnsignedShort();
+            for (int i=0; i<size; i++) {
+                cf.mFields.add(FieldInfo.readFrom(cf, din, attrFactory));
+            }
 
-        // Read attributes.
-        size = din.readUnsignedShort();
-        for (int i=0; i<size; i++) {
-            Attribute attr = Attribute.readFrom(cp, din, attrFactory);
-            cf.addAttribute(attr);
-            if (attr instanceof InnerClassesAttr) {
-                cf.mInnerClassesAttr = (InnerClassesAttr)attr;
+            // Read methods.
+            size = din.readUnsignedShort();
+            for (int i=0; i<size; i++) {
+                cf.mMethods.add(MethodInfo.readFrom(cf, din, attrFactory));
+            }
+
+            // Read attributes.
+            size = din.readUnsignedShort();
+            for (int i=0; i<size; i++) {
+                Attribute attr = Attribute.readFrom(cp, din, attrFactory);
+                cf.addAttribute(attr);
+                if (attr instanceof InnerClassesAttr) {
+                    cf.mInnerClassesAttr = (InnerClassesAttr)attr;
+                }
             }
         }
 
@@ -344,6 +470,13 @@ public class ClassFile {
 
     private BootstrapMethodsAttr mBootstrapMethodsAttr;
 
+    // When non-null, the class was read lazily, and non-zero positions refer to
+    // tables which haven't been read yet.
+    private LazyClassData mLazyData;
+    private int mLazyFields;
+    private int mLazyMethods;
+    private int mLazyAttributes;
+
     // Is non-null for inner classes.
     private ClassFile mOuterClass;
 
@@ -472,6 +605,7 @@ public class ClassFile {
      * Returns all the fields defined in this class.
      */
     public FieldInfo[] getFields() {
+        readFields();
         return mFields.toArray(new FieldInfo[mFields.size()]);
     }
 
@@ -480,6 +614,7 @@ public class ClassFile {
      * constructors and static initializers.
      */
     public MethodInfo[] getMethods() {
+        readMethods();
         int size = mMethods.size();
         List<MethodInfo> methodsOnly = new ArrayList<MethodInfo>(size);
 
@@ -499,6 +634,7 @@ public class ClassFile {
      * class.
      */
     public MethodInfo[] getAllMethods() {
+        readMethods();
         return mMethods.toArray(new MethodInfo[mMethods.size()]);
     }
 
@@ -506,6 +642,7 @@ public class ClassFile {
      * Returns all the constructors defined in this class.
      */
     public MethodInfo[] getConstructors() {
+        readMethods();
         int size = mMethods.size();
         List<MethodInfo> ctorsOnly = new ArrayList<MethodInfo>(size);
 
@@ -524,6 +661,7 @@ public class ClassFile {
      * isn't one.
      */
     public MethodInfo getInitializer() {
+        readMethods();
         int size = mMethods.size();
 
         for (int i=0; i<size; i++) {
@@ -593,6 +731,7 @@ public class ClassFile {
      * Returns the source file of this class file or null if not set.
      */
     public String getSourceFile() {
+        readAttributes();
         if (mSource == null) {
             return null;
         } else {
@@ -601,6 +740,7 @@ public class ClassFile {
     }
 
     public boolean isSynthetic() {
+        readAttributes();
         for (int i = mAttributes.size(); --i >= 0; ) {
             Attribute attr = mAttributes.get(i);
             if (attr instanceof SyntheticAttr) {
@@ -611,6 +751,7 @@ public class ClassFile {
     }
 
     public boolean isDeprecated() {
+        readAttributes();
         for (int i = mAttributes.size(); --i >= 0; ) {
             Attribute attr = mAttributes.get(i);
             if (attr instanceof DeprecatedAttr) {
@@ -625,6 +766,7 @@ public class ClassFile {
      * file, or an empty array if none.
      */
     public Annotation[] getRuntimeInvisibleAnnotations() {
+        readAttributes();
         for (int i = mAttributes.size(); --i >= 0; ) {
             Attribute attr = mAttributes.get(i);
             if (attr instanceof RuntimeInvisibleAnnotationsAttr) {
@@ -639,6 +781,7 @@ public class ClassFile {
      * or an empty array if none.
      */
     public Annotation[] getRuntimeVisibleAnnotations() {
+        readAttributes();
         for (int i = mAttributes.size(); --i >= 0; ) {
             Attribute attr = mAttributes.get(i);
             if (attr instanceof RuntimeVisibleAnnotationsAttr) {
@@ -652,6 +795,7 @@ public class ClassFile {
      * Add a runtime invisible annotation.
      */
     public Annotation addRuntimeInvisibleAnnotation(TypeDesc type) {
+        readAttributes();
         AnnotationsAttr attr = null;
         for (int i = mAttributes.size(); --i >= 0; ) {
             Attribute a = mAttributes.get(i);
@@ -673,6 +817,7 @@ public class ClassFile {
      * Add a runtime visible annotation.
      */
     public Annotation addRuntimeVisibleAnnotation(TypeDesc type) {
+        readAttributes();
         AnnotationsAttr attr = null;
         for (int i = mAttributes.size(); --i >= 0; ) {
             Attribute a = mAttributes.get(i);
@@ -696,6 +841,7 @@ public class ClassFile {
      */
     // TODO: Eventually remove this method
     public SignatureAttr getSignatureAttr() {
+        readAttributes();
         for (int i = mAttributes.size(); --i >= 0; ) {
             Attribute attr = mAttributes.get(i);
             if (attr instanceof SignatureAttr) {
@@ -743,6 +889,7 @@ public class ClassFile {
     public FieldInfo addField(Modifiers modifiers,
                               String fieldName,
                               TypeDesc type) {
+        readFields();
         FieldInfo fi = new FieldInfo(this, modifiers, fieldName, type);
         mFields.add(fi);
         return fi;
@@ -776,6 +923,7 @@ public class ClassFile {
     public MethodInfo addMethod(Modifiers modifiers,
                                 String methodName,
                                 MethodDesc md) {
+        readMethods();
         MethodInfo mi = new MethodInfo(this, modifiers, methodName, md);
         mMethods.add(mi);
         return mi;
@@ -826,6 +974,7 @@ public class ClassFile {
     public MethodInfo addConstructor(Modifiers modifiers,
                                      TypeDesc[] params) {
         MethodDesc md = MethodDesc.forArguments(null, params);
+        readMethods();
         MethodInfo mi = new MethodInfo(this, modifiers, "<init>", md);
         mMethods.add(mi);
         return mi;
@@ -849,6 +998,7 @@ public class ClassFile {
     public MethodInfo addInitializer() {
         MethodDesc md = MethodDesc.forArguments(null, null);
         Modifiers af = Modifiers.NONE.toStatic(true);
+        readMethods();
         MethodInfo mi = new MethodInfo(this, af, "<clinit>", md);
         mMethods.add(mi);
         return mi;
@@ -896,6 +1046,8 @@ public class ClassFile {
             }
         }
 
+        readAttributes();
+
         ClassFile inner = new ClassFile(fullInnerClassName, superClassName);
         Modifiers modifiers = inner.getModifiers().toPrivate(true).toStatic(true);
         inner.setModifiers(modifiers);
@@ -954,13 +1106,64 @@ public class ClassFile {
      * Returns null if invokedynamic isn't used in this class.
      */
     public BootstrapMethodsAttr getBootstrapMethodsAttr() {
+        readAttributes();
         return mBootstrapMethodsAttr;
     }
 
+    /**
+     * Adds a bootstrap method for use by invokedynamic instructions, unless
+     * an identical one already exists.
+     *
+     * @param bootstrap handle to the bootstrap method
+     * @param args static arguments, each of which must be a String, Integer,
+     * Long, Float, Double, TypeDesc, MethodDesc or MethodHandleDesc
+     * @return index of the bootstrap method
+     * @throws IllegalArgumentException if an argument type is unsupported
+     */
+    public int addBootstrapMethod(MethodHandleDesc bootstrap, Object... args) {
+        ConstantInfo[] argConstants = new ConstantInfo[args == null ? 0 : args.length];
+        for (int i=0; i<argConstants.length; i++) {
+            argConstants[i] = addBootstrapArgument(args[i]);
+        }
+
+        BootstrapMethodsAttr attr = getBootstrapMethodsAttr();
+        if (attr == null) {
+            attr = new BootstrapMethodsAttr(mCp);
+            addAttribute(attr);
+        }
+
+        return attr.addMethod(mCp.addConstantMethodHandle(bootstrap), argConstants);
+    }
+
+    private ConstantInfo addBootstrapArgument(Object arg) {
+        if (arg instanceof String) {
+            return mCp.addConstantString((String) arg);
+        } else if (arg instanceof Integer) {
+            return mCp.addConstantInteger((Integer) arg);
+        } else if (arg instanceof Long) {
+            return mCp.addConstantLong((Long) arg);
+        } else if (arg instanceof Float) {
+            return mCp.addConstantFloat((Float) arg);
+        } else if (arg instanceof Double) {
+            return mCp.addConstantDouble((Double) arg);
+        } else if (arg instanceof TypeDesc) {
+            TypeDesc type = (TypeDesc) arg;
+            if (!type.isPrimitive()) {
+                return mCp.addConstantClass(type);
+            }
+        } else if (arg instanceof MethodDesc) {
+            return mCp.addConstantMethodType((MethodDesc) arg);
+        } else if (arg instanceof MethodHandleDesc) {
+            return mCp.addConstantMethodHandle((MethodHandleDesc) arg);
+        }
+        throw new IllegalArgumentException("Unsupported bootstrap argument: " + arg);
+    }
+
     /**
      * Add an attribute to this class.
      */
     public void addAttribute(Attribute attr) {
+        readAttributes();
         if (attr.getConstantPool() != mCp) {
             attr = attr.copyTo(mCp);
         }
@@ -986,6 +1189,7 @@ public class ClassFile {
     }
 
     public Attribute[] getAttributes() {
+        readAttributes();
         return mAttributes.toArray(new Attribute[mAttributes.size()]);
     }
 
@@ -1118,6 +1322,10 @@ public class ClassFile {
      * Writes the ClassFile to the given DataOutput.
      */
     public void writeTo(DataOutput dout) throws IOException {
+        readFields();
+        readMethods();
+        readAttributes();
+
         checkSize(mInterfaces, 65535, "Interface");
         checkSize(mFields, 65535, "Field");
         checkSize(mMethods, 65535, "Method");
@@ -1205,6 +1413,48 @@ public class ClassFile {
         }
     }
 
+    private void readFields() {
+        int position = mLazyFields;
+        if (position != 0) {
+            mLazyFields = 0;
+            try {
+                ByteBufferDataInput din = mLazyData.input(position);
+                int size = din.readUnsignedShort();
+                for (int i=0; i<size; i++) {
+                    mFields.add(FieldInfo.readLazily(this, din, mLazyData));
+                }
+            } catch (IOException e) {
+                throw LazyClassData.malformed(e);
+            }
+        }
+    }
+
+    private void readMethods() {
+        int position = mLazyMethods;
+        if (position != 0) {
+            mLazyMethods = 0;
+            try {
+                ByteBufferDataInput din = mLazyData.input(position);
+                int size = din.readUnsignedShort();
+                for (int i=0; i<size; i++) {
+                    mMethods.add(MethodInfo.readLazily(this, din, mLazyData));
+                }
+            } catch (IOException e) {
+                throw LazyClassData.malformed(e);
+            }
+        }
+    }
+
+    private void readAttributes() {
+        int position = mLazyAttributes;
+        if (position != 0) {
+            mLazyAttributes = 0;
+            for (Attribute attr : mLazyData.readAttributes(mCp, position)) {
+                addAttribute(attr);
+            }
+        }
+    }
+
     public String toString() {
         StringBuffer buf = new StringBuffer();
         String modStr = mModifiers.toString();
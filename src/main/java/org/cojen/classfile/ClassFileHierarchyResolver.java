@@ -0,0 +1,199 @@
+/*
+ *  Copyright 2010 Brian S O'Neill
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.classfile;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.cojen.util.ConcurrentSoftValueCache;
+import org.cojen.util.LoadingCache;
+
+/**
+ * {@link ClassHierarchyResolver} implementation which reads class file
+ * headers from a {@link ClassFileDataLoader}. Only the superclass name and
+ * modifiers of each class are retained, in a cache which is shared by all
+ * threads using the resolver.
+ *
+ * @author Brian S O'Neill
+ */
+public class ClassFileHierarchyResolver implements ClassHierarchyResolver {
+    private static final String OBJECT = "java.lang.Object";
+
+    private static final Header MISSING = new Header(null, false);
+
+    private final ClassFileDataLoader mLoader;
+    private final LoadingCache<String, Header> mHeaders;
+    private final ConcurrentHashMap<String, Header> mAdded;
+
+    private final LoadingCache.Loader<String, Header> mHeaderLoader;
+
+    /**
+     * Reads class files as resources from the ClassLoader that loaded this
+     * class.
+     */
+    public ClassFileHierarchyResolver() {
+        this(new ResourceClassFileDataLoader());
+    }
+
+    public ClassFileHierarchyResolver(ClassFileDataLoader loader) {
+        if (loader == null) {
+            throw new IllegalArgumentException("ClassFileDataLoader is null");
+        }
+        mLoader = loader;
+        mHeaders = new ConcurrentSoftValueCache<String, Header>(17);
+        mAdded = new ConcurrentHashMap<String, Header>();
+        mHeaderLoader = new LoadingCache.Loader<String, Header>() {
+            public Header load(String name) {
+                return loadHeader(name);
+            }
+        };
+    }
+
+    /**
+     * Adds a class which the loader cannot find, such as one which is still
+     * being generated.
+     */
+    public void addClassFile(ClassFile cf) {
+        mAdded.put(cf.getClassName(),
+                   new Header(cf.getSuperClassName(), cf.getModifiers().isInterface()));
+    }
+
+    public TypeDesc getCommonSuperclass(TypeDesc a, TypeDesc b) {
+        if (a.equals(b)) {
+            return a;
+        }
+
+        if (a.isArray() || b.isArray()) {
+            if (a.isArray() && b.isArray()) {
+                TypeDesc ac = a.getComponentType();
+                TypeDesc bc = b.getComponentType();
+                if (!ac.isPrimitive() && !bc.isPrimitive()) {
+                    TypeDesc common = getCommonSuperclass(ac, bc);
+                    return common == null ? null : common.toArrayType();
+                }
+            }
+            return TypeDesc.OBJECT;
+        }
+
+        if (a.isPrimitive() || b.isPrimitive()) {
+            return null;
+        }
+
+        // Gather all the superclasses of a, and then find the first
+        // superclass of b which is among them.
+
+        Set<String> supers = new HashSet<String>();
+
+        for (String name = a.getRootName(); name != null; ) {
+            supers.add(name);
+            Header header = header(name);
+            if (header == null) {
+                return null;
+            }
+            if (header.mIsInterface) {
+                return TypeDesc.OBJECT;
+            }
+            name = header.mSuperClassName;
+        }
+
+        for (String name = b.getRootName(); name != null; ) {
+            Header header = header(name);
+            if (header == null) {
+                return null;
+            }
+            if (header.mIsInterface) {
+                return TypeDesc.OBJECT;
+            }
+            if (supers.contains(name)) {
+                return TypeDesc.forClass(name);
+            }
+            name = header.mSuperClassName;
+        }
+
+        return TypeDesc.OBJECT;
+    }
+
+    /**
+     * @return null if not found
+     */
+    private Header header(String name) {
+        if (OBJECT.equals(name)) {
+            return Header.OBJECT;
+        }
+        Header header = mAdded.get(name);
+        if (header == null) {
+            header = mHeaders.get(name, mHeaderLoader);
+            if (header == MISSING) {
+                header = null;
+            }
+        }
+        return header;
+    }
+
+    /**
+     * @return MISSING if not found, or null if an I/O error occurred, which
+     * isn't cached
+     */
+    Header loadHeader(String name) {
+        try {
+            InputStream in = mLoader.getClassData(name);
+            if (in == null) {
+                return MISSING;
+            }
+
+            byte[] bytes;
+            try {
+                ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+                byte[] buffer = new byte[1024];
+                int amt;
+                while ((amt = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, amt);
+                }
+                bytes = out.toByteArray();
+            } finally {
+                in.close();
+            }
+
+            // Read lazily, which decodes little more than the constant pool.
+            ClassFile cf = ClassFile.readFrom(ByteBuffer.wrap(bytes), null, null, true);
+
+            return new Header(cf.getSuperClassName(), cf.getModifiers().isInterface());
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static class Header {
+        static final Header OBJECT = new Header(null, false);
+
+        final String mSuperClassName;
+        final boolean mIsInterface;
+
+        Header(String superClassName, boolean isInterface) {
+            mSuperClassName = superClassName;
+            mIsInterface = isInterface;
+        }
+    }
+}
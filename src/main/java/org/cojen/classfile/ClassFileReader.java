@@ -0,0 +1,545 @@
+/*
+ *  Copyright 2010 Brian S O'Neill
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.classfile;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import org.cojen.classfile.attribute.BootstrapMethodsAttr;
+import org.cojen.classfile.attribute.LineNumberTableAttr;
+import org.cojen.classfile.constant.ConstantClassInfo;
+import org.cojen.classfile.constant.ConstantUTFInfo;
+
+/**
+ * Reads class files and passes their contents to a {@link ClassFileVisitor},
+ * without building a ClassFile. Apart from the constant pool, which is read
+ * in full, no objects are allocated for the class file contents, and method
+ * code is passed one instruction at a time to a {@link CodeVisitor}. The
+ * same reader should be used for reading many class files, to reuse its
+ * internal buffers.
+ *
+ * <p>ClassFileReader instances are not thread-safe.
+ *
+ * @author Brian S O'Neill
+ */
+public class ClassFileReader {
+    private ByteBuffer mBuffer;
+    private ConstantPool mCp;
+
+    // Position of the methods count, and the bootstrap methods if needed.
+    private int mMethodsPos;
+    private BootstrapMethodsAttr mBootstrapMethods;
+
+    // Bit set of code addresses which are labels, for the current method.
+    private int[] mLabels = new int[8];
+    private int[] mCases = new int[8];
+    private int[] mCaseAddresses = new int[8];
+
+    public ClassFileReader() {
+    }
+
+    /**
+     * Reads a class file from the given array.
+     */
+    public void read(byte[] bytes, ClassFileVisitor visitor) throws IOException {
+        read(ByteBuffer.wrap(bytes), visitor);
+    }
+
+    /**
+     * Reads a class file from the given buffer, starting at its current
+     * position. Upon return, the position is advanced past the class file.
+     */
+    public void read(ByteBuffer buffer, ClassFileVisitor visitor) throws IOException {
+        ByteBuffer bb = buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+        mBuffer = bb;
+        try {
+            ByteBufferDataInput din = new ByteBufferDataInput(bb);
+
+            int magic = din.readInt();
+            if (magic != ClassFile.MAGIC) {
+                throw new IOException("Incorrect magic number: 0x" +
+                                      Integer.toHexString(magic));
+            }
+
+            int minor = din.readUnsignedShort();
+            int major = din.readUnsignedShort();
+
+            ConstantPool cp = ConstantPool.readFrom(din);
+            mCp = cp;
+
+            int pos = din.position();
+
+            Modifiers modifiers = Modifiers.getInstance(u2(pos)).toSynchronized(false);
+            String className = ((ConstantClassInfo)cp.getConstant(u2(pos + 2)))
+                .getType().getRootName();
+            String superClassName = null;
+            int index = u2(pos + 4);
+            if (index > 0) {
+                superClassName = ((ConstantClassInfo)cp.getConstant(index))
+                    .getType().getRootName();
+            }
+
+            String[] interfaces = new String[u2(pos + 6)];
+            pos += 8;
+            for (int i=0; i<interfaces.length; i++, pos += 2) {
+                interfaces[i] = ((ConstantClassInfo)cp.getConstant(u2(pos)))
+                    .getType().getRootName();
+            }
+
+            visitor.visit(major, minor, cp, modifiers, className, superClassName, interfaces);
+
+            // Read fields.
+            int count = u2(pos);
+            pos += 2;
+            for (int i=0; i<count; i++) {
+                visitor.visitField(Modifiers.getInstance(u2(pos)),
+                                   utf(u2(pos + 2)),
+                                   TypeDesc.forDescriptor(utf(u2(pos + 4))));
+                pos = skipAttributes(pos + 6);
+            }
+
+            // Read methods.
+            mMethodsPos = pos;
+            count = u2(pos);
+            pos += 2;
+            for (int i=0; i<count; i++) {
+                Modifiers methodModifiers = Modifiers.getInstance(u2(pos));
+                String name = utf(u2(pos + 2));
+                MethodDesc desc = MethodDesc.forDescriptor(utf(u2(pos + 4)));
+
+                int codePos = -1;
+                int attrCount = u2(pos + 6);
+                pos += 8;
+                for (int j=0; j<attrCount; j++) {
+                    if (Attribute.CODE.equals(utf(u2(pos)))) {
+                        codePos = pos + 6;
+                    }
+                    pos += 6 + u4(pos + 2);
+                }
+
+                CodeVisitor cv = visitor.visitMethod(methodModifiers, name, desc);
+                if (codePos >= 0) {
+                    if (cv != null) {
+                        readCode(codePos, cv);
+                    } else {
+                        CodeAssembler assembler =
+                            visitor.visitMethodAssembler(methodModifiers, name, desc);
+                        if (assembler != null) {
+                            disassemble(codePos, className, superClassName,
+                                        name, methodModifiers, desc, assembler);
+                        }
+                    }
+                }
+            }
+
+            pos = skipAttributes(pos);
+
+            visitor.visitEnd();
+
+            buffer.position(pos);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Unexpected end of class file");
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Malformed class file: " + e);
+        } catch (ClassCastException e) {
+            throw new IOException("Malformed class file: " + e);
+        } finally {
+            mBuffer = null;
+            mCp = null;
+            mBootstrapMethods = null;
+        }
+    }
+
+    private void readCode(int pos, CodeVisitor cv) throws IOException {
+        int maxStackDepth = u2(pos);
+        int maxLocals = u2(pos + 2);
+        int codeLength = u4(pos + 4);
+        int codeStart = pos + 8;
+        pos = codeStart + codeLength;
+
+        cv.visitCode(maxStackDepth, maxLocals, codeLength);
+
+        // Clear the labels used by the previous method.
+        int labelWords = (codeLength >> 5) + 1;
+        if (mLabels.length < labelWords) {
+            mLabels = new int[Math.max(labelWords, mLabels.length << 1)];
+        } else {
+            Arrays.fill(mLabels, 0, labelWords, 0);
+        }
+
+        int handlerCount = u2(pos);
+        pos += 2;
+        for (int i=0; i<handlerCount; i++, pos += 8) {
+            int start = u2(pos);
+            int end = u2(pos + 2);
+            int handler = u2(pos + 4);
+            int catchIndex = u2(pos + 6);
+            ConstantClassInfo catchType = catchIndex == 0 ? null
+                : (ConstantClassInfo)mCp.getConstant(catchIndex);
+            cv.visitExceptionHandler(start, end, handler, catchType);
+            addLabel(start, codeLength);
+            addLabel(end, codeLength);
+            addLabel(handler, codeLength);
+        }
+
+        int attrCount = u2(pos);
+        pos += 2;
+        for (int i=0; i<attrCount; i++) {
+            int length = u4(pos + 2);
+            if (Attribute.LINE_NUMBER_TABLE.equals(utf(u2(pos)))) {
+                int entryPos = pos + 6;
+                int entryCount = u2(entryPos);
+                entryPos += 2;
+                for (int j=0; j<entryCount; j++, entryPos += 4) {
+                    cv.visitLineNumber(u2(entryPos), u2(entryPos + 2));
+                }
+            }
+            pos += 6 + length;
+        }
+
+        // First pass gathers labels, and second pass visits the instructions.
+        readInstructions(codeStart, codeLength, null);
+        readInstructions(codeStart, codeLength, cv);
+
+        if (isLabel(codeLength)) {
+            cv.visitLabel(codeLength);
+        }
+
+        cv.visitEnd();
+    }
+
+    /**
+     * @param cv when null, only gather labels
+     */
+    private void readInstructions(int codeStart, int codeLength, CodeVisitor cv)
+        throws IOException
+    {
+        final ByteBuffer bb = mBuffer;
+
+        int address = 0;
+        while (address < codeLength) {
+            if (cv != null && isLabel(address)) {
+                cv.visitLabel(address);
+            }
+
+            int pos = codeStart + address;
+            byte opcode = bb.get(pos);
+
+            switch (opcode) {
+            default:
+                int op = opcode & 0xff;
+                if (op >= (Opcode.ILOAD_0 & 0xff) && op <= (Opcode.ALOAD_3 & 0xff)) {
+                    if (cv != null) {
+                        cv.visitLocalInstruction(address, opcode, (op - Opcode.ILOAD_0) & 3);
+                    }
+                } else if (op >= (Opcode.ISTORE_0 & 0xff) && op <= (Opcode.ASTORE_3 & 0xff)) {
+                    if (cv != null) {
+                        cv.visitLocalInstruction(address, opcode, (op - Opcode.ISTORE_0) & 3);
+                    }
+                } else if (op <= (Opcode.BREAKPOINT & 0xff)) {
+                    if (cv != null) {
+                        cv.visitInstruction(address, opcode);
+                    }
+                } else {
+                    throw new IOException("Unknown opcode " + op + " at address " + address);
+                }
+                address += 1;
+                break;
+
+            case Opcode.BIPUSH:
+                if (cv != null) {
+                    cv.visitIntInstruction(address, opcode, bb.get(pos + 1));
+                }
+                address += 2;
+                break;
+
+            case Opcode.NEWARRAY:
+                if (cv != null) {
+                    cv.visitIntInstruction(address, opcode, bb.get(pos + 1) & 0xff);
+                }
+                address += 2;
+                break;
+
+            case Opcode.SIPUSH:
+                if (cv != null) {
+                    cv.visitIntInstruction(address, opcode, bb.getShort(pos + 1));
+                }
+                address += 3;
+                break;
+
+            case Opcode.ILOAD: case Opcode.LLOAD: case Opcode.FLOAD:
+            case Opcode.DLOAD: case Opcode.ALOAD:
+            case Opcode.ISTORE: case Opcode.LSTORE: case Opcode.FSTORE:
+            case Opcode.DSTORE: case Opcode.ASTORE:
+            case Opcode.RET:
+                if (cv != null) {
+                    cv.visitLocalInstruction(address, opcode, bb.get(pos + 1) & 0xff);
+                }
+                address += 2;
+                break;
+
+            case Opcode.IINC:
+                if (cv != null) {
+                    cv.visitIncrementInstruction(address, bb.get(pos + 1) & 0xff,
+                                                 bb.get(pos + 2));
+                }
+                address += 3;
+                break;
+
+            case Opcode.WIDE: {
+                byte wideOpcode = bb.get(pos + 1);
+                if (wideOpcode == Opcode.IINC) {
+                    if (cv != null) {
+                        cv.visitIncrementInstruction(address, u2(pos + 2), bb.getShort(pos + 4));
+                    }
+                    address += 6;
+                } else {
+                    if (cv != null) {
+                        cv.visitLocalInstruction(address, wideOpcode, u2(pos + 2));
+                    }
+                    address += 4;
+                }
+                break;
+            }
+
+            case Opcode.IFEQ: case Opcode.IFNE: case Opcode.IFLT:
+            case Opcode.IFGE: case Opcode.IFGT: case Opcode.IFLE:
+            case Opcode.IF_ICMPEQ: case Opcode.IF_ICMPNE: case Opcode.IF_ICMPLT:
+            case Opcode.IF_ICMPGE: case Opcode.IF_ICMPGT: case Opcode.IF_ICMPLE:
+            case Opcode.IF_ACMPEQ: case Opcode.IF_ACMPNE:
+            case Opcode.GOTO: case Opcode.JSR:
+            case Opcode.IFNULL: case Opcode.IFNONNULL: {
+                int target = address + bb.getShort(pos + 1);
+                if (cv == null) {
+                    addLabel(target, codeLength);
+                } else {
+                    cv.visitBranchInstruction(address, opcode, target);
+                }
+                address += 3;
+                break;
+            }
+
+            case Opcode.GOTO_W: case Opcode.JSR_W: {
+                int target = address + bb.getInt(pos + 1);
+                if (cv == null) {
+                    addLabel(target, codeLength);
+                } else {
+                    cv.visitBranchInstruction(address, opcode, target);
+                }
+                address += 5;
+                break;
+            }
+
+            case Opcode.LDC:
+                if (cv != null) {
+                    cv.visitConstantInstruction
+                        (address, opcode, mCp.getConstant(bb.get(pos + 1) & 0xff));
+                }
+                address += 2;
+                break;
+
+            case Opcode.LDC_W: case Opcode.LDC2_W:
+            case Opcode.GETSTATIC: case Opcode.PUTSTATIC:
+            case Opcode.GETFIELD: case Opcode.PUTFIELD:
+            case Opcode.INVOKEVIRTUAL: case Opcode.INVOKESPECIAL: case Opcode.INVOKESTATIC:
+            case Opcode.NEW: case Opcode.ANEWARRAY:
+            case Opcode.CHECKCAST: case Opcode.INSTANCEOF:
+                if (cv != null) {
+                    cv.visitConstantInstruction(address, opcode, mCp.getConstant(u2(pos + 1)));
+                }
+                address += 3;
+                break;
+
+            case Opcode.INVOKEINTERFACE:
+            case Opcode.INVOKEDYNAMIC:
+                if (cv != null) {
+                    cv.visitConstantInstruction(address, opcode, mCp.getConstant(u2(pos + 1)));
+                }
+                address += 5;
+                break;
+
+            case Opcode.MULTIANEWARRAY:
+                if (cv != null) {
+                    cv.visitMultiANewArrayInstruction
+                        (address, (ConstantClassInfo)mCp.getConstant(u2(pos + 1)),
+                         bb.get(pos + 3) & 0xff);
+                }
+                address += 4;
+                break;
+
+            case Opcode.TABLESWITCH:
+            case Opcode.LOOKUPSWITCH: {
+                // Skip padding until address is 32 bit word aligned.
+                int next = (address + 4) & ~3;
+                pos = codeStart + next;
+                int defaultAddress = address + bb.getInt(pos);
+                int caseCount;
+
+                if (opcode == Opcode.TABLESWITCH) {
+                    int lowValue = bb.getInt(pos + 4);
+                    int highValue = bb.getInt(pos + 8);
+                    caseCount = highValue - lowValue + 1;
+                    if (caseCount < 0 || caseCount > codeLength) {
+                        throw new IOException("Malformed switch at address " + address);
+                    }
+                    ensureCaseCapacity(caseCount);
+                    pos += 12;
+                    for (int i=0; i<caseCount; i++, pos += 4) {
+                        mCases[i] = lowValue + i;
+                        mCaseAddresses[i] = address + bb.getInt(pos);
+                    }
+                } else {
+                    caseCount = bb.getInt(pos + 4);
+                    if (caseCount < 0 || caseCount > codeLength) {
+                        throw new IOException("Malformed switch at address " + address);
+                    }
+                    ensureCaseCapacity(caseCount);
+                    pos += 8;
+                    for (int i=0; i<caseCount; i++, pos += 8) {
+                        mCases[i] = bb.getInt(pos);
+                        mCaseAddresses[i] = address + bb.getInt(pos + 4);
+                    }
+                }
+
+                if (cv == null) {
+                    addLabel(defaultAddress, codeLength);
+                    for (int i=0; i<caseCount; i++) {
+                        addLabel(mCaseAddresses[i], codeLength);
+                    }
+                } else {
+                    cv.visitSwitchInstruction(address, opcode, defaultAddress,
+                                              caseCount, mCases, mCaseAddresses);
+                }
+
+                address = pos - codeStart;
+                break;
+            }
+            }
+        }
+    }
+
+    private void disassemble(int pos, String className, String superClassName,
+                             String methodName, Modifiers modifiers, MethodDesc desc,
+                             CodeAssembler assembler)
+        throws IOException
+    {
+        final ByteBuffer bb = mBuffer;
+        final ConstantPool cp = mCp;
+
+        byte[] byteCodes = new byte[u4(pos + 4)];
+        bb.position(pos + 8);
+        bb.get(byteCodes);
+
+        ByteBufferDataInput din = new ByteBufferDataInput(bb);
+        ExceptionHandler<?>[] handlers = new ExceptionHandler<?>[din.readUnsignedShort()];
+        for (int i=0; i<handlers.length; i++) {
+            handlers[i] = ExceptionHandler.readFrom(cp, din);
+        }
+
+        LineNumberTableAttr lineNumbers = null;
+        int attrCount = din.readUnsignedShort();
+        for (int i=0; i<attrCount; i++) {
+            String name = utf(din.readUnsignedShort());
+            int length = din.readInt();
+            if (Attribute.LINE_NUMBER_TABLE.equals(name)) {
+                lineNumbers = new LineNumberTableAttr(cp, name, length, din);
+            } else {
+                din.skipBytes(length);
+            }
+        }
+
+        new CodeDisassembler(className, superClassName, methodName, modifiers, desc,
+                             cp, byteCodes, handlers, lineNumbers, bootstrapMethods())
+            .disassemble(assembler);
+    }
+
+    /**
+     * Returns the bootstrap methods of the class, which are defined after
+     * all the methods. Returns null if none.
+     */
+    private BootstrapMethodsAttr bootstrapMethods() throws IOException {
+        BootstrapMethodsAttr attr = mBootstrapMethods;
+        if (attr != null) {
+            return attr;
+        }
+
+        int pos = mMethodsPos;
+        int count = u2(pos);
+        pos += 2;
+        for (int i=0; i<count; i++) {
+            pos = skipAttributes(pos + 6);
+        }
+
+        count = u2(pos);
+        pos += 2;
+        for (int i=0; i<count; i++) {
+            if (Attribute.BOOTSTRAP_METHODS.equals(utf(u2(pos)))) {
+                ByteBuffer bb = mBuffer;
+                bb.position(pos + 6);
+                mBootstrapMethods = attr = new BootstrapMethodsAttr
+                    (mCp, Attribute.BOOTSTRAP_METHODS, u4(pos + 2), new ByteBufferDataInput(bb));
+                break;
+            }
+            pos += 6 + u4(pos + 2);
+        }
+
+        return attr;
+    }
+
+    private int skipAttributes(int pos) {
+        int count = u2(pos);
+        pos += 2;
+        for (int i=0; i<count; i++) {
+            pos += 6 + u4(pos + 2);
+        }
+        return pos;
+    }
+
+    private void addLabel(int address, int codeLength) {
+        // Ignore addresses out of range, which the verifier rejects anyhow.
+        if (address >= 0 && address <= codeLength) {
+            mLabels[address >> 5] |= 1 << address;
+        }
+    }
+
+    private boolean isLabel(int address) {
+        return (mLabels[address >> 5] & (1 << address)) != 0;
+    }
+
+    private void ensureCaseCapacity(int caseCount) {
+        if (mCases.length < caseCount) {
+            int length = Math.max(caseCount, mCases.length << 1);
+            mCases = new int[length];
+            mCaseAddresses = new int[length];
+        }
+    }
+
+    private String utf(int index) {
+        return ((ConstantUTFInfo)mCp.getConstant(index)).getValue();
+    }
+
+    private int u2(int pos) {
+        return mBuffer.getShort(pos) & 0xffff;
+    }
+
+    private int u4(int pos) {
+        return mBuffer.getInt(pos);
+    }
+}
@@ -31,7 +31,23 @@ public class ClassFileRewriter {
         rewriter.rewrite(new File(args[0]), new File(args[1]));
     }
 
+    private final ClassHierarchyResolver mResolver;
+
+    /**
+     * Rewrites methods using a {@link ClassFileHierarchyResolver}, which reads
+     * classes from the ClassLoader that loaded this class.
+     */
     public ClassFileRewriter() {
+        this(new ClassFileHierarchyResolver());
+    }
+
+    /**
+     * @param resolver resolves the types which merge in the stack map frames
+     * of rewritten methods; pass null to always merge to Object
+     * @see CodeBuilder#setClassHierarchyResolver
+     */
+    public ClassFileRewriter(ClassHierarchyResolver resolver) {
+        mResolver = resolver;
     }
 
     public void rewrite(File sourceFile, File targetFile) throws IOException {
@@ -75,7 +91,7 @@ public class ClassFileRewriter {
     }
 
     private void rewrite(ClassFile source, ClassFile target) {
-        target.setTarget(source.getTarget());
+        target.setVersion(source.getMajorVersion(), source.getMinorVersion());
         target.setModifiers(source.getModifiers());
 
         for (String iface : source.getInterfaces()) {
@@ -91,11 +107,38 @@ public class ClassFileRewriter {
         }
 
         for (MethodInfo method : source.getAllMethods()) {
-            //method.copyTo(target);
-            rewrite(method, target.addMethod(method));
+            if (method.getCodeAttr() == null || !isRewritable(method)) {
+                // Copy as-is, only remapping constant pool indexes.
+                method.copyTo(target);
+            } else {
+                rewrite(method, target.addMethod(method));
+            }
         }
     }
 
+    /**
+     * Returns true if the code of the given method should be disassembled and
+     * passed to {@link #rewrite(MethodInfo, CodeAssembler)}. Otherwise, the
+     * method is copied without decoding its code, and only constant pool
+     * indexes are remapped. Default implementation returns false, and so
+     * subclasses must opt in to rewriting.
+     */
+    protected boolean isRewritable(MethodInfo method) {
+        return false;
+    }
+
+    /**
+     * Called to rewrite the code of a method, which has already been copied
+     * except for its code. Default implementation disassembles the code into
+     * the given assembler without modification.
+     *
+     * @param sourceMethod method to rewrite
+     * @param assembler assembler for the new method code
+     */
+    protected void rewrite(MethodInfo sourceMethod, CodeAssembler assembler) {
+        new CodeDisassembler(sourceMethod).disassemble(assembler);
+    }
+
     private void rewrite(MethodInfo sourceMethod, MethodInfo targetMethod) {
         for (Attribute attr : sourceMethod.getAttributes()) {
             if (!(attr instanceof CodeAttr)) {
@@ -103,13 +146,10 @@ public class ClassFileRewriter {
             }
         }
 
-        if (sourceMethod.getCodeAttr() == null) {
-            return;
-        }
-
         // FIXME: save local variables (if debug info exists)
 
-        CodeBuilder b = targetMethod.newCodeBuilder();
-        new CodeDisassembler(sourceMethod).disassemble(b);
+        CodeBuilder builder = targetMethod.newCodeBuilder();
+        builder.setClassHierarchyResolver(mResolver);
+        rewrite(sourceMethod, builder);
     }
 }
@@ -0,0 +1,77 @@
+/*
+ *  Copyright 2010 Brian S O'Neill
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.classfile;
+
+/**
+ * Receives the contents of a class file from a {@link ClassFileReader}, in
+ * the order they appear in the class file. All methods do nothing by
+ * default.
+ *
+ * @author Brian S O'Neill
+ * @see CodeVisitor
+ */
+public abstract class ClassFileVisitor {
+    protected ClassFileVisitor() {
+    }
+
+    /**
+     * Called first, with the class file header.
+     *
+     * @param cp constant pool of the class, for resolving constants
+     * @param superClassName null only for java.lang.Object
+     * @param interfaces names of implemented interfaces; the array is not
+     * reused by the reader
+     */
+    public void visit(int majorVersion, int minorVersion, ConstantPool cp,
+                      Modifiers modifiers, String className, String superClassName,
+                      String[] interfaces)
+    {
+    }
+
+    /**
+     * Called for each field.
+     */
+    public void visitField(Modifiers modifiers, String name, TypeDesc type) {
+    }
+
+    /**
+     * Called for each method. Return a CodeVisitor to receive the code of the
+     * method, or return null to skip it.
+     */
+    public CodeVisitor visitMethod(Modifiers modifiers, String name, MethodDesc desc) {
+        return null;
+    }
+
+    /**
+     * Called for each method which has code and for which {@link
+     * #visitMethod visitMethod} returned null. Return a CodeAssembler to
+     * receive the disassembled code, as if by {@link CodeDisassembler}, or
+     * return null to skip it. Unlike CodeVisitor, disassembling allocates
+     * objects for each instruction.
+     */
+    public CodeAssembler visitMethodAssembler(Modifiers modifiers, String name,
+                                              MethodDesc desc)
+    {
+        return null;
+    }
+
+    /**
+     * Called last, after all fields and methods have been visited.
+     */
+    public void visitEnd() {
+    }
+}
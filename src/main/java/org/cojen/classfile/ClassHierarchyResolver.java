@@ -0,0 +1,37 @@
+/*
+ *  Copyright 2010 Brian S O'Neill
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.classfile;
+
+/**
+ * Finds common superclasses of reference types, for merging the types of
+ * stack map frames. Implementations must not load the classes, which might
+ * not be loadable yet or might be defined by a different ClassLoader.
+ *
+ * @author Brian S O'Neill
+ * @see CodeBuilder#setClassHierarchyResolver
+ * @see ClassFileHierarchyResolver
+ */
+public interface ClassHierarchyResolver {
+    /**
+     * Returns the most specific class which both of the given object or array
+     * types can be assigned to. Interfaces are treated as Object, as the
+     * verifier does.
+     *
+     * @return common superclass, or null if the hierarchy cannot be resolved
+     */
+    TypeDesc getCommonSuperclass(TypeDesc a, TypeDesc b);
+}
@@ -185,6 +185,24 @@ public interface CodeAssembler {
      */
     void loadConstant(double value);
 
+    /**
+     * Generates code that loads a constant MethodType value onto the stack.
+     * If value is null, the generated code loads a null onto the stack.
+     *
+     * @throws IllegalStateException if class file target version does not
+     * support this feature
+     */
+    void loadConstant(MethodDesc type) throws IllegalStateException;
+
+    /**
+     * Generates code that loads a constant MethodHandle value onto the stack.
+     * If value is null, the generated code loads a null onto the stack.
+     *
+     * @throws IllegalStateException if class file target version does not
+     * support this feature
+     */
+    void loadConstant(MethodHandleDesc handle) throws IllegalStateException;
+
     // load-local-to-stack style instructions
 
     /**
@@ -544,6 +562,27 @@ public interface CodeAssembler {
                          TypeDesc ret,
                          TypeDesc[] params);
 
+    /**
+     * Generates code to invoke a dynamically linked call site. The call site
+     * is linked by the bootstrap method when first executed, and the
+     * method's argument(s) must be on the stack.
+     *
+     * @param ret May be null if method returns void.
+     * @param params May be null if method takes no parameters.
+     * @param bootstrap handle to a static bootstrap method
+     * @param bootstrapArgs static arguments passed to the bootstrap method,
+     * each of which must be a String, Integer, Long, Float, Double, TypeDesc,
+     * MethodDesc or MethodHandleDesc
+     * @throws IllegalStateException if class file target version does not
+     * support this feature
+     */
+    void invokeDynamic(String methodName,
+                       TypeDesc ret,
+                       TypeDesc[] params,
+                       MethodHandleDesc bootstrap,
+                       Object... bootstrapArgs)
+        throws IllegalStateException;
+
     /**
      * Generates code to invoke a private method in this class.
      * The object reference and the method's argument(s) must be on the stack.
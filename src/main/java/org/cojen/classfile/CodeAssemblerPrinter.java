@@ -174,31 +174,27 @@ public class CodeAssemblerPrinter extends AbstractCodeAssembler implements CodeA
     }
 
     public void loadConstant(float value) {
-        String str;
-        if (value != value) {
-            str = "0.0f/0.0f";
-        } else if (value == Float.NEGATIVE_INFINITY) {
-            str = "-1.0f/0.0f";
-        } else if (value == Float.POSITIVE_INFINITY) {
-            str = "1.0f/0.0f";
+        println(mBulder + "loadConstant(" + toLiteral(value) + ")");
+    }
+
+    public void loadConstant(double value) {
+        println(mBulder + "loadConstant(" + toLiteral(value) + ")");
+    }
+
+    public void loadConstant(MethodDesc type) {
+        if (type == null) {
+            loadNull();
         } else {
-            str = String.valueOf(value) + 'f';
+            println(mBulder + "loadConstant(" + getMethodDescName(type) + ')');
         }
-        println(mBulder + "loadConstant(" + str + ")");
     }
 
-    public void loadConstant(double value) {
-        String str;
-        if (value != value) {
-            str = "0.0d/0.0d";
-        } else if (value == Double.NEGATIVE_INFINITY) {
-            str = "-1.0d/0.0d";
-        } else if (value == Double.POSITIVE_INFINITY) {
-            str = "1.0d/0.0d";
+    public void loadConstant(MethodHandleDesc handle) {
+        if (handle == null) {
+            loadNull();
         } else {
-            str = String.valueOf(value) + 'd';
+            println(mBulder + "loadConstant(" + getMethodHandleDescName(handle) + ')');
         }
-        println(mBulder + "loadConstant(" + str + ")");
     }
 
     public void loadLocal(LocalVariable local) {
@@ -417,6 +413,25 @@ public class CodeAssemblerPrinter extends AbstractCodeAssembler implements CodeA
                 getTypeDescArrayName(params) + ')');
     }
 
+    public void invokeDynamic(String methodName,
+                              TypeDesc ret,
+                              TypeDesc[] params,
+                              MethodHandleDesc bootstrap,
+                              Object... bootstrapArgs) {
+        StringBuffer buf = new StringBuffer();
+        buf.append(mBulder).append("invokeDynamic(\"").append(methodName).append("\", ");
+        buf.append(getTypeDescName(ret)).append(", ");
+        buf.append(getTypeDescArrayName(params)).append(", ");
+        buf.append(getMethodHandleDescName(bootstrap));
+        if (bootstrapArgs != null) {
+            for (Object arg : bootstrapArgs) {
+                buf.append(", ").append(getConstantName(arg));
+            }
+        }
+        buf.append(')');
+        println(buf.toString());
+    }
+
     public void invokePrivate(String methodName,
                               TypeDesc ret,
                               TypeDesc[] params) {
@@ -698,6 +713,90 @@ public class CodeAssemblerPrinter extends AbstractCodeAssembler implements CodeA
         return name;
     }
 
+    private String getMethodDescName(MethodDesc desc) {
+        return "MethodDesc.forDescriptor(\"" + desc.getDescriptor() + "\")";
+    }
+
+    private String getMethodHandleDescName(MethodHandleDesc handle) {
+        String kind;
+        switch (handle.getKind()) {
+        case MethodHandleDesc.REF_GET_FIELD: kind = "REF_GET_FIELD"; break;
+        case MethodHandleDesc.REF_GET_STATIC: kind = "REF_GET_STATIC"; break;
+        case MethodHandleDesc.REF_PUT_FIELD: kind = "REF_PUT_FIELD"; break;
+        case MethodHandleDesc.REF_PUT_STATIC: kind = "REF_PUT_STATIC"; break;
+        case MethodHandleDesc.REF_INVOKE_VIRTUAL: kind = "REF_INVOKE_VIRTUAL"; break;
+        case MethodHandleDesc.REF_INVOKE_STATIC: kind = "REF_INVOKE_STATIC"; break;
+        case MethodHandleDesc.REF_INVOKE_SPECIAL: kind = "REF_INVOKE_SPECIAL"; break;
+        case MethodHandleDesc.REF_NEW_INVOKE_SPECIAL: kind = "REF_NEW_INVOKE_SPECIAL"; break;
+        default: kind = "REF_INVOKE_INTERFACE"; break;
+        }
+
+        StringBuffer buf = new StringBuffer("MethodHandleDesc.");
+        if (handle.isField()) {
+            buf.append("forField(");
+        } else {
+            buf.append("forMethod(");
+        }
+        buf.append("MethodHandleDesc.").append(kind).append(", ");
+        buf.append(getTypeDescName(handle.getOwner())).append(", ");
+        if (!handle.isField() && handle.isOwnerInterface()
+            && handle.getKind() != MethodHandleDesc.REF_INVOKE_INTERFACE)
+        {
+            buf.append("true, ");
+        }
+        buf.append('"').append(handle.getName()).append("\", ");
+        if (handle.isField()) {
+            buf.append(getTypeDescName((TypeDesc) handle.getDescriptor()));
+        } else {
+            buf.append(getMethodDescName((MethodDesc) handle.getDescriptor()));
+        }
+        buf.append(')');
+        return buf.toString();
+    }
+
+    private String getConstantName(Object value) {
+        if (value instanceof String) {
+            return '"' + escape((String) value) + '"';
+        } else if (value instanceof Long) {
+            return value.toString() + 'L';
+        } else if (value instanceof Float) {
+            return toLiteral((Float) value);
+        } else if (value instanceof Double) {
+            return toLiteral((Double) value);
+        } else if (value instanceof TypeDesc) {
+            return getTypeDescName((TypeDesc) value);
+        } else if (value instanceof MethodDesc) {
+            return getMethodDescName((MethodDesc) value);
+        } else if (value instanceof MethodHandleDesc) {
+            return getMethodHandleDescName((MethodHandleDesc) value);
+        }
+        return String.valueOf(value);
+    }
+
+    private static String toLiteral(float value) {
+        if (value != value) {
+            return "0.0f/0.0f";
+        } else if (value == Float.NEGATIVE_INFINITY) {
+            return "-1.0f/0.0f";
+        } else if (value == Float.POSITIVE_INFINITY) {
+            return "1.0f/0.0f";
+        } else {
+            return String.valueOf(value) + 'f';
+        }
+    }
+
+    private static String toLiteral(double value) {
+        if (value != value) {
+            return "0.0d/0.0d";
+        } else if (value == Double.NEGATIVE_INFINITY) {
+            return "-1.0d/0.0d";
+        } else if (value == Double.POSITIVE_INFINITY) {
+            return "1.0d/0.0d";
+        } else {
+            return String.valueOf(value) + 'd';
+        }
+    }
+
     private String getTypeDescArrayName(TypeDesc[] types) {
         if (types == null) {
             return "null";
@@ -83,7 +83,9 @@ public class CodeBuilder extends AbstractCodeAssembler implements CodeBuffer, Co
         } else if ("1.7".equals(target)) {
             mTarget = 0x00010007;
         } else {
-            mTarget = 0x00010000;
+            // Target isn't a known string, so derive it from the version.
+            int major = info.getClassFile().getMajorVersion();
+            mTarget = major >= 46 ? (0x00010000 + major - 44) : 0x00010000;
         }
 
         boolean generateVerificationInfo = mTarget >= 0x00010006;
@@ -116,6 +118,7 @@ public class CodeBuilder extends AbstractCodeAssembler implements CodeBuffer, Co
             if (info.getName().equals("<init>")) {
                 // FIXME: Broken. Assumes that this is always uninitialized.
                 mThisType = VerificationInfo.uninitializedThisType();
+                mInstructions.setUninitializedThis();
             } else {
                 mThisType = VerificationInfo.toType(mThisReference.getType());
             }
@@ -147,6 +150,21 @@ public class CodeBuilder extends AbstractCodeAssembler implements CodeBuffer, Co
         mInstructions.reduceLocalVariables(b);
     }
 
+    /**
+     * Set a resolver for finding the common superclass of differing reference
+     * types which merge in stack map frames. Without one, the types merge to
+     * Object, which can require extra casts. The resolver must reflect the
+     * class hierarchy seen at runtime, or else the verifier might reject the
+     * generated code. Stack map frames are only generated for class files
+     * which target Java 6 or higher.
+     *
+     * @param resolver resolver to use, or null to always merge to Object
+     * @see ClassFileHierarchyResolver
+     */
+    public void setClassHierarchyResolver(ClassHierarchyResolver resolver) {
+        mInstructions.setClassHierarchyResolver(resolver);
+    }
+
     public int getMaxStackDepth() {
         return mInstructions.getMaxStackDepth();
     }
@@ -411,6 +429,34 @@ public class CodeBuilder extends AbstractCodeAssembler implements CodeBuffer, Co
         }
     }
 
+    public void loadConstant(MethodDesc type) throws IllegalStateException {
+        if (type == null) {
+            loadNull();
+            return;
+        }
+        if (mTarget < 0x00010007) {
+            throw new IllegalStateException
+                ("Loading constant method types not supported below target version 1.7");
+        }
+        ConstantInfo info = mCp.addConstantMethodType(type);
+        mInstructions.new LoadConstantInstruction
+            (1, TypeDesc.forClass("java.lang.invoke.MethodType"), info);
+    }
+
+    public void loadConstant(MethodHandleDesc handle) throws IllegalStateException {
+        if (handle == null) {
+            loadNull();
+            return;
+        }
+        if (mTarget < 0x00010007) {
+            throw new IllegalStateException
+                ("Loading constant method handles not supported below target version 1.7");
+        }
+        ConstantInfo info = mCp.addConstantMethodHandle(handle);
+        mInstructions.new LoadConstantInstruction
+            (1, TypeDesc.forClass("java.lang.invoke.MethodHandle"), info);
+    }
+
     public void loadConstant(boolean value) {
         loadConstant(value ? 1 : 0);
     }
@@ -1287,6 +1333,24 @@ public class CodeBuilder extends AbstractCodeAssembler implements CodeBuffer, Co
         invokeInterface(getClassName(classDesc), methodName, ret, params);
     }
 
+    public void invokeDynamic(String methodName,
+                              TypeDesc ret,
+                              TypeDesc[] params,
+                              MethodHandleDesc bootstrap,
+                              Object... bootstrapArgs)
+        throws IllegalStateException
+    {
+        if (mTarget < 0x00010007) {
+            throw new IllegalStateException
+                ("Invokedynamic not supported below target version 1.7");
+        }
+        int index = mClassFile.addBootstrapMethod(bootstrap, bootstrapArgs);
+        mInstructions.new InvokeInstruction
+            (Opcode.INVOKEDYNAMIC,
+             mCp.addConstantInvokeDynamic(index, methodName, MethodDesc.forArguments(ret, params)),
+             ret, params);
+    }
+
     public void invokePrivate(String methodName,
                               TypeDesc ret,
                               TypeDesc[] params) {
@@ -20,16 +20,21 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Vector;
-import org.cojen.util.IntHashMap;
+import org.cojen.util.OpenIntHashMap;
+import org.cojen.classfile.attribute.BootstrapMethodsAttr;
 import org.cojen.classfile.attribute.CodeAttr;
+import org.cojen.classfile.attribute.LineNumberTableAttr;
 import org.cojen.classfile.constant.ConstantClassInfo;
 import org.cojen.classfile.constant.ConstantDoubleInfo;
 import org.cojen.classfile.constant.ConstantFieldInfo;
 import org.cojen.classfile.constant.ConstantFloatInfo;
 import org.cojen.classfile.constant.ConstantIntegerInfo;
 import org.cojen.classfile.constant.ConstantInterfaceMethodInfo;
+import org.cojen.classfile.constant.ConstantInvokeDynamicInfo;
 import org.cojen.classfile.constant.ConstantLongInfo;
+import org.cojen.classfile.constant.ConstantMethodHandleInfo;
 import org.cojen.classfile.constant.ConstantMethodInfo;
+import org.cojen.classfile.constant.ConstantMethodTypeInfo;
 import org.cojen.classfile.constant.ConstantNameAndTypeInfo;
 import org.cojen.classfile.constant.ConstantStringInfo;
 
@@ -39,13 +44,20 @@ import org.cojen.classfile.constant.ConstantStringInfo;
  * @author Brian S O'Neill
  */
 public class CodeDisassembler {
-    private final MethodInfo mMethod;
     private final String mEnclosingClassName;
     private final String mSuperClassName;
+    private final String mMethodName;
+    private final boolean mIsStatic;
+    private final TypeDesc[] mParamTypes;
     private final CodeAttr mCode;
+    private final LineNumberTableAttr mLineNumbers;
     private final ConstantPool mCp;
     private final byte[] mByteCodes;
     private final ExceptionHandler[] mExceptionHandlers;
+    private final ClassFile mClassFile;
+
+    // Resolved when first needed, if from a ClassFile.
+    private BootstrapMethodsAttr mBootstrapMethods;
 
     // Current CodeAssembler in use for disassembly.
     private CodeAssembler mAssembler;
@@ -57,10 +69,10 @@ public class CodeDisassembler {
 
     // Maps int address keys to itself, but to Label objects after first
     // needed.
-    private IntHashMap<Object> mLabels;
+    private OpenIntHashMap<Object> mLabels;
 
     // Maps int catch locations to Lists of ExceptionHandler objects.
-    private IntHashMap<List<ExceptionHandler>> mCatchLocations;
+    private OpenIntHashMap<List<ExceptionHandler>> mCatchLocations;
 
     // Current address being decompiled.
     private int mAddress;
@@ -69,16 +81,45 @@ public class CodeDisassembler {
      * @throws IllegalArgumentException if method has no code
      */
     public CodeDisassembler(MethodInfo method) throws IllegalArgumentException {
-        mMethod = method;
         mEnclosingClassName = method.getClassFile().getClassName();
         mSuperClassName = method.getClassFile().getSuperClassName();
+        mMethodName = method.getName();
+        mIsStatic = method.getModifiers().isStatic();
+        mParamTypes = method.getMethodDescriptor().getParameterTypes();
         if ((mCode = method.getCodeAttr()) == null) {
             throw new IllegalArgumentException("Method defines no code");
         }
+        mLineNumbers = null;
         mCp = mCode.getConstantPool();
         CodeBuffer buffer = mCode.getCodeBuffer();
         mByteCodes = buffer.getByteCodes();
         mExceptionHandlers = buffer.getExceptionHandlers();
+        mClassFile = method.getClassFile();
+    }
+
+    /**
+     * Constructor used by ClassFileReader, which doesn't build a MethodInfo.
+     *
+     * @param lineNumbers optional line number table
+     * @param bootstrapMethods optional bootstrap methods of the class
+     */
+    CodeDisassembler(String enclosingClassName, String superClassName,
+                     String methodName, Modifiers modifiers, MethodDesc desc,
+                     ConstantPool cp, byte[] byteCodes, ExceptionHandler[] handlers,
+                     LineNumberTableAttr lineNumbers, BootstrapMethodsAttr bootstrapMethods)
+    {
+        mEnclosingClassName = enclosingClassName;
+        mSuperClassName = superClassName;
+        mMethodName = methodName;
+        mIsStatic = modifiers.isStatic();
+        mParamTypes = desc.getParameterTypes();
+        mCode = null;
+        mLineNumbers = lineNumbers;
+        mCp = cp;
+        mByteCodes = byteCodes;
+        mExceptionHandlers = handlers;
+        mClassFile = null;
+        mBootstrapMethods = bootstrapMethods;
     }
 
     /**
@@ -102,7 +143,7 @@ public class CodeDisassembler {
                                          LocalVariable[] params, Location returnLocation) {
         mAssembler = assembler;
         mLocals = new Vector<Object>();
-        if (!mMethod.getModifiers().isStatic()) {
+        if (!mIsStatic) {
             mLocals.add(mAssembler.getThis());
         }
 
@@ -110,7 +151,7 @@ public class CodeDisassembler {
 
         // Gather the local variables of the parameters.
         {
-            TypeDesc[] paramTypes = mMethod.getMethodDescriptor().getParameterTypes();
+            TypeDesc[] paramTypes = mParamTypes;
             
             if (params == null) {
                 params = new LocalVariable[assembler.getParameterCount()];
@@ -167,7 +208,7 @@ public class CodeDisassembler {
         int currentLine = -1;
 
         for (mAddress = 0; mAddress < mByteCodes.length; mAddress++) {
-            int nextLine = mCode.getLineNumber(currentLoc);
+            int nextLine = getLineNumber(currentLoc);
             if (nextLine != currentLine) {
                 if ((currentLine = nextLine) >= 0) {
                     mAssembler.mapLineNumber(currentLine);
@@ -477,6 +518,15 @@ public class CodeDisassembler {
                     assembler.loadConstant(((ConstantDoubleInfo)ci).getValue());
                 } else if (ci instanceof ConstantClassInfo) {
                     assembler.loadConstant(((ConstantClassInfo)ci).getType());
+                } else if (ci instanceof ConstantMethodTypeInfo) {
+                    assembler.loadConstant(((ConstantMethodTypeInfo)ci).getDescriptor());
+                } else if (ci instanceof ConstantMethodHandleInfo) {
+                    MethodHandleDesc handle = toMethodHandleDesc((ConstantMethodHandleInfo)ci);
+                    if (handle == null) {
+                        error(opcode, "Invalid method handle: " + ci);
+                    } else {
+                        assembler.loadConstant(handle);
+                    }
                 } else {
                     error(opcode, "Invalid constant type for load: " + ci);
                 }
@@ -634,7 +684,6 @@ public class CodeDisassembler {
             case Opcode.INVOKESPECIAL:
             case Opcode.INVOKESTATIC:
             case Opcode.INVOKEINTERFACE:
-            case Opcode.INVOKEDYNAMIC:
                 index = readUnsignedShort();
                 try {
                     ci = mCp.getConstant(index);
@@ -655,12 +704,6 @@ public class CodeDisassembler {
                     ConstantInterfaceMethodInfo method = (ConstantInterfaceMethodInfo)ci;
                     className = method.getParentClass().getType().getFullName();
                     nameAndType = method.getNameAndType();
-                } else if (opcode == Opcode.INVOKEDYNAMIC) {
-                    // Read and ignore extra bytes.
-                    readShort();
-                    ConstantInterfaceMethodInfo method = (ConstantInterfaceMethodInfo)ci;
-                    className = method.getParentClass().getType().getFullName();
-                    nameAndType = method.getNameAndType();
                 } else {
                     if (!(ci instanceof ConstantMethodInfo)) {
                         error(opcode, "Invalid constant type for method invocation: " + ci);
@@ -702,7 +745,7 @@ public class CodeDisassembler {
                         if (className == null) {
                             assembler.invokeConstructor(paramTypes);
                         } else {
-                            if ("<init>".equals(mMethod.getName())
+                            if ("<init>".equals(mMethodName)
                                 && className.equals(mSuperClassName)) {
                                 assembler.invokeSuperConstructor(paramTypes);
                             } else {
@@ -730,6 +773,27 @@ public class CodeDisassembler {
                 }
                 break;
 
+            case Opcode.INVOKEDYNAMIC:
+                index = readUnsignedShort();
+                // Read and ignore extra bytes.
+                readShort();
+                try {
+                    ci = mCp.getConstant(index);
+                } catch (IndexOutOfBoundsException e) {
+                    error(opcode, "Undefined constant at index: " + index);
+                    break;
+                }
+
+                if (!(ci instanceof ConstantInvokeDynamicInfo)
+                    || ci.getTag() != ConstantInfo.TAG_INVOKE_DYNAMIC)
+                {
+                    error(opcode, "Invalid constant type for invokedynamic: " + ci);
+                    break;
+                }
+
+                invokeDynamic((ConstantInvokeDynamicInfo)ci);
+                break;
+
                 // End opcodes that load a constant from the constant pool.
 
                 // Opcodes that load or store local variables...
@@ -1204,15 +1268,135 @@ public class CodeDisassembler {
         } // end for loop
     }
 
+    private int getLineNumber(Location location) {
+        if (mCode != null) {
+            return mCode.getLineNumber(location);
+        }
+        return mLineNumbers == null ? -1 : mLineNumbers.getLineNumber(location);
+    }
+
     /**
      * Invoked on disassembly errors. By default, this method does nothing.
      */
     protected void error(byte opcode, String message) {
     }
 
+    private void invokeDynamic(ConstantInvokeDynamicInfo info) {
+        BootstrapMethodsAttr bootstrapMethods = mBootstrapMethods;
+        if (bootstrapMethods == null && mClassFile != null) {
+            mBootstrapMethods = bootstrapMethods = mClassFile.getBootstrapMethodsAttr();
+        }
+
+        int index = info.getBootstrapIndex();
+        if (bootstrapMethods == null || index >= bootstrapMethods.getMethodCount()) {
+            error(Opcode.INVOKEDYNAMIC, "Undefined bootstrap method: " + index);
+            return;
+        }
+
+        BootstrapMethodsAttr.Method bootstrap = bootstrapMethods.getMethod(index);
+        MethodHandleDesc handle = toMethodHandleDesc(bootstrap.getInfo());
+        if (handle == null) {
+            error(Opcode.INVOKEDYNAMIC, "Invalid bootstrap method: " + bootstrap.getInfo());
+            return;
+        }
+
+        Object[] args = new Object[bootstrap.getArgCount()];
+        for (int i=0; i<args.length; i++) {
+            ConstantInfo arg = bootstrap.getArg(i);
+            if ((args[i] = toBootstrapArgument(arg)) == null) {
+                error(Opcode.INVOKEDYNAMIC, "Unsupported bootstrap argument: " + arg);
+                return;
+            }
+        }
+
+        ConstantNameAndTypeInfo nameAndType = info.getNameAndType();
+        Descriptor desc = nameAndType.getType();
+        if (!(desc instanceof MethodDesc)) {
+            error(Opcode.INVOKEDYNAMIC, "Invalid descriptor for method invocation: " + desc);
+            return;
+        }
+
+        TypeDesc ret = ((MethodDesc)desc).getReturnType();
+        if (ret == TypeDesc.VOID) {
+            ret = null;
+        }
+        TypeDesc[] paramTypes = ((MethodDesc)desc).getParameterTypes();
+        if (paramTypes.length == 0) {
+            paramTypes = null;
+        }
+
+        mAssembler.invokeDynamic(nameAndType.getName(), ret, paramTypes, handle, args);
+    }
+
+    /**
+     * @return null if invalid
+     */
+    private static MethodHandleDesc toMethodHandleDesc(ConstantMethodHandleInfo info) {
+        ConstantInfo ref = info.getConstant();
+        ConstantClassInfo owner;
+        ConstantNameAndTypeInfo nameAndType;
+        boolean ownerIsInterface = false;
+
+        if (ref instanceof ConstantFieldInfo) {
+            owner = ((ConstantFieldInfo)ref).getParentClass();
+            nameAndType = ((ConstantFieldInfo)ref).getNameAndType();
+        } else if (ref instanceof ConstantMethodInfo) {
+            owner = ((ConstantMethodInfo)ref).getParentClass();
+            nameAndType = ((ConstantMethodInfo)ref).getNameAndType();
+        } else if (ref instanceof ConstantInterfaceMethodInfo) {
+            owner = ((ConstantInterfaceMethodInfo)ref).getParentClass();
+            nameAndType = ((ConstantInterfaceMethodInfo)ref).getNameAndType();
+            ownerIsInterface = true;
+        } else {
+            return null;
+        }
+
+        Descriptor desc = nameAndType.getType();
+        int kind = info.getKind();
+
+        try {
+            if (desc instanceof TypeDesc) {
+                return MethodHandleDesc.forField
+                    (kind, owner.getType(), nameAndType.getName(), (TypeDesc)desc);
+            }
+            if (kind == MethodHandleDesc.REF_NEW_INVOKE_SPECIAL) {
+                return MethodHandleDesc.forConstructor
+                    (owner.getType(), ((MethodDesc)desc).getParameterTypes());
+            }
+            return MethodHandleDesc.forMethod
+                (kind, owner.getType(), ownerIsInterface, nameAndType.getName(), (MethodDesc)desc);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return null if unsupported
+     */
+    private static Object toBootstrapArgument(ConstantInfo ci) {
+        if (ci instanceof ConstantStringInfo) {
+            return ((ConstantStringInfo)ci).getValue();
+        } else if (ci instanceof ConstantIntegerInfo) {
+            return ((ConstantIntegerInfo)ci).getValue();
+        } else if (ci instanceof ConstantLongInfo) {
+            return ((ConstantLongInfo)ci).getValue();
+        } else if (ci instanceof ConstantFloatInfo) {
+            return ((ConstantFloatInfo)ci).getValue();
+        } else if (ci instanceof ConstantDoubleInfo) {
+            return ((ConstantDoubleInfo)ci).getValue();
+        } else if (ci instanceof ConstantClassInfo) {
+            return ((ConstantClassInfo)ci).getType();
+        } else if (ci instanceof ConstantMethodTypeInfo) {
+            return ((ConstantMethodTypeInfo)ci).getDescriptor();
+        } else if (ci instanceof ConstantMethodHandleInfo) {
+            return toMethodHandleDesc((ConstantMethodHandleInfo)ci);
+        }
+        return null;
+    }
+
     private void gatherLabels() {
-        mLabels = new IntHashMap<Object>();
-        mCatchLocations = new IntHashMap<List<ExceptionHandler>>
+        mLabels = new OpenIntHashMap<Object>();
+        mCatchLocations = new OpenIntHashMap<List<ExceptionHandler>>
             (mExceptionHandlers.length * 2 + 1);
         int labelKey;
 
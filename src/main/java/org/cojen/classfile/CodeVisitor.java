@@ -0,0 +1,135 @@
+/*
+ *  Copyright 2010 Brian S O'Neill
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.classfile;
+
+import org.cojen.classfile.constant.ConstantClassInfo;
+
+/**
+ * Receives the code of a method from a {@link ClassFileReader}, one
+ * instruction at a time. Instructions are identified by their address, and
+ * branch targets are passed as addresses too, so the reader doesn't allocate
+ * any objects per instruction. All methods do nothing by default.
+ *
+ * <p>Methods are called in this order: {@link #visitCode visitCode}, then
+ * all exception handlers and line numbers, then all instructions in address
+ * order, and finally {@link #visitEnd visitEnd}. Each address which is the
+ * target of a branch, switch or exception handler is passed to {@link
+ * #visitLabel visitLabel} before the instruction at that address.
+ *
+ * @author Brian S O'Neill
+ * @see ClassFileVisitor
+ */
+public abstract class CodeVisitor {
+    protected CodeVisitor() {
+    }
+
+    /**
+     * Called first.
+     *
+     * @param codeLength length of the code, in bytes
+     */
+    public void visitCode(int maxStackDepth, int maxLocals, int codeLength) {
+    }
+
+    /**
+     * @param endAddress exclusive end of the range covered by the handler
+     * @param catchType null if every exception is caught
+     */
+    public void visitExceptionHandler(int startAddress, int endAddress, int handlerAddress,
+                                      ConstantClassInfo catchType)
+    {
+    }
+
+    /**
+     * Called for each entry of the line number table.
+     */
+    public void visitLineNumber(int startAddress, int lineNumber) {
+    }
+
+    /**
+     * Called for an address which is the target of a branch, switch or
+     * exception handler. The address may be equal to the code length, if it
+     * is the end of an exception handler range.
+     */
+    public void visitLabel(int address) {
+    }
+
+    /**
+     * Called for instructions which have no operands, like Opcode.IADD and
+     * Opcode.ARETURN.
+     */
+    public void visitInstruction(int address, byte opcode) {
+    }
+
+    /**
+     * Called for Opcode.BIPUSH, Opcode.SIPUSH and Opcode.NEWARRAY.
+     *
+     * @param operand pushed value, or the array type code for NEWARRAY
+     */
+    public void visitIntInstruction(int address, byte opcode, int operand) {
+    }
+
+    /**
+     * Called for instructions which load or store a local variable, including
+     * the short forms like Opcode.ILOAD_0, and for Opcode.RET. For wide
+     * instructions, the opcode is the one following Opcode.WIDE.
+     */
+    public void visitLocalInstruction(int address, byte opcode, int localIndex) {
+    }
+
+    /**
+     * Called for Opcode.IINC, wide or not.
+     */
+    public void visitIncrementInstruction(int address, int localIndex, int amount) {
+    }
+
+    /**
+     * Called for conditional branches, Opcode.GOTO, Opcode.JSR and their wide
+     * forms.
+     */
+    public void visitBranchInstruction(int address, byte opcode, int targetAddress) {
+    }
+
+    /**
+     * Called for instructions which have a constant pool operand: the ldc
+     * family, field access, method invocation, Opcode.NEW, Opcode.ANEWARRAY,
+     * Opcode.CHECKCAST and Opcode.INSTANCEOF.
+     */
+    public void visitConstantInstruction(int address, byte opcode, ConstantInfo constant) {
+    }
+
+    public void visitMultiANewArrayInstruction(int address, ConstantClassInfo type,
+                                               int dimensions)
+    {
+    }
+
+    /**
+     * Called for Opcode.TABLESWITCH and Opcode.LOOKUPSWITCH. The arrays are
+     * reused by the reader, and only their first caseCount elements are
+     * defined.
+     */
+    public void visitSwitchInstruction(int address, byte opcode, int defaultAddress,
+                                       int caseCount, int[] cases, int[] addresses)
+    {
+    }
+
+    /**
+     * Called last.
+     */
+    public void visitEnd() {
+    }
+}
@@ -64,6 +64,13 @@ public abstract class ConstantInfo {
         return mIndex;
     }
 
+    /**
+     * Returns one of the TAG_ constants.
+     */
+    public int getTag() {
+        return mTag;
+    }
+
     /**
      * Returns a new instance of this ConstantInfo, except stored in a
      * different ConstantPool.
@@ -17,6 +17,7 @@
 package org.cojen.classfile;
 
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -69,6 +70,12 @@ public class ConstantPool {
     // Preserve the order only if the constant pool was read in.
     private boolean mPreserveOrder;
 
+    // Constants which must be assigned a one-byte index.
+    private Set<ConstantInfo> mNarrowConstants;
+
+    // Runs before a new constant is first added.
+    private Runnable mBeforeAdd;
+
     ConstantPool() {
     }
 
@@ -194,6 +201,52 @@ public class ConstantPool {
         return addConstantMethod(className, "<init>", null, params);
     }
 
+    /**
+     * Get or create a constant from the constant pool representing a method
+     * type.
+     */
+    public ConstantMethodTypeInfo addConstantMethodType(MethodDesc desc) {
+        return (ConstantMethodTypeInfo)addConstant(new ConstantMethodTypeInfo(this, desc));
+    }
+
+    /**
+     * Get or create a constant from the constant pool representing a method
+     * handle.
+     */
+    public ConstantMethodHandleInfo addConstantMethodHandle(MethodHandleDesc handle) {
+        String className = handle.getOwner().getRootName();
+        ConstantInfo ref;
+        if (handle.isField()) {
+            ref = addConstantField(className, handle.getName(),
+                                   (TypeDesc)handle.getDescriptor());
+        } else {
+            MethodDesc md = (MethodDesc)handle.getDescriptor();
+            if (handle.isOwnerInterface()) {
+                ref = addConstantInterfaceMethod(className, handle.getName(),
+                                                 md.getReturnType(), md.getParameterTypes());
+            } else {
+                ref = addConstantMethod(className, handle.getName(),
+                                        md.getReturnType(), md.getParameterTypes());
+            }
+        }
+        return (ConstantMethodHandleInfo)addConstant
+            (new ConstantMethodHandleInfo(handle.getKind(), ref));
+    }
+
+    /**
+     * Get or create a constant from the constant pool representing a call
+     * site for the invokedynamic instruction.
+     *
+     * @param bootstrapIndex index into the BootstrapMethodsAttr of the ClassFile
+     */
+    public ConstantInvokeDynamicInfo addConstantInvokeDynamic(int bootstrapIndex,
+                                                              String methodName,
+                                                              MethodDesc desc) {
+        ConstantInfo ci = new ConstantInvokeDynamicInfo
+            (bootstrapIndex, addConstantNameAndType(methodName, desc));
+        return (ConstantInvokeDynamicInfo)addConstant(ci);
+    }
+
     /**
      * Get or create a constant integer from the constant pool.
      */
@@ -265,6 +318,15 @@ public class ConstantPool {
         if (info != null) {
             return info;
         }
+
+        Runnable beforeAdd = mBeforeAdd;
+        if (beforeAdd != null) {
+            mBeforeAdd = null;
+            beforeAdd.run();
+            if ((info = mConstants.get(constant)) != null) {
+                return info;
+            }
+        }
         
         int entryCount = constant.getEntryCount();
 
@@ -281,6 +343,35 @@ public class ConstantPool {
         return constant;
     }
 
+    /**
+     * Requests that a constant already in this pool be assigned an index
+     * which fits into one byte, as required by Opcode.LDC. Such constants are
+     * written out before all others.
+     *
+     * @return false if the constant has already been assigned an index which
+     * doesn't fit into one byte
+     */
+    public boolean requireNarrowIndex(ConstantInfo constant) {
+        if (mPreserveOrder) {
+            return constant.getIndex() <= 255;
+        }
+        if (mNarrowConstants == null) {
+            mNarrowConstants = new HashSet<ConstantInfo>();
+        } else if (mNarrowConstants.size() >= 255 && !mNarrowConstants.contains(constant)) {
+            return false;
+        }
+        mNarrowConstants.add(constant);
+        return true;
+    }
+
+    /**
+     * Sets a task to run once, before a constant which isn't in the pool is
+     * first added.
+     */
+    void beforeAdd(Runnable task) {
+        mBeforeAdd = task;
+    }
+
     public void writeTo(DataOutput dout) throws IOException {
         // Write out the size (number of entries) of the constant pool.
 
@@ -295,17 +386,33 @@ public class ConstantPool {
             mIndexedConstants = new Vector<ConstantInfo>(size);
             mIndexedConstants.setSize(size);
             int index = 1; // one-based constant pool index
-            
-            // First write constants of higher priority -- String, Integer, 
+
+            Set<ConstantInfo> narrow = mNarrowConstants;
+            if (narrow == null) {
+                narrow = Collections.emptySet();
+            }
+
+            // Constants which must have a one-byte index go first.
+            Iterator it = mConstants.keySet().iterator();
+            while (it.hasNext()) {
+                ConstantInfo constant = (ConstantInfo)it.next();
+                if (narrow.contains(constant)) {
+                    constant.mIndex = index;
+                    mIndexedConstants.set(index, constant);
+                    index += constant.getEntryCount();
+                }
+            }
+
+            // Next write constants of higher priority -- String, Integer, 
             // Float.
             // This is a slight optimization. It means that Opcode.LDC will 
             // more likely be used (one-byte index) than Opcode.LDC_W (two-byte
             // index).
             
-            Iterator it = mConstants.keySet().iterator();
+            it = mConstants.keySet().iterator();
             while (it.hasNext()) {
                 ConstantInfo constant = (ConstantInfo)it.next();
-                if (constant.hasPriority()) {
+                if (constant.hasPriority() && !narrow.contains(constant)) {
                     constant.mIndex = index;
                     mIndexedConstants.set(index, constant);
                     index += constant.getEntryCount();
@@ -317,7 +424,7 @@ public class ConstantPool {
             it = mConstants.keySet().iterator();
             while (it.hasNext()) {
                 ConstantInfo constant = (ConstantInfo)it.next();
-                if (!constant.hasPriority()) {
+                if (!constant.hasPriority() && !narrow.contains(constant)) {
                     constant.mIndex = index;
                     mIndexedConstants.set(index, constant);
                     index += constant.getEntryCount();
@@ -454,7 +561,8 @@ public class ConstantPool {
 
         case ConstantInfo.TAG_DYNAMIC_CONSTANT:
         case ConstantInfo.TAG_INVOKE_DYNAMIC: {
-            ci = new ConstantInvokeDynamicInfo(data >>> 16, (ConstantNameAndTypeInfo)ci1);
+            ci = new ConstantInvokeDynamicInfo
+                (entry.mTag, data >>> 16, (ConstantNameAndTypeInfo)ci1);
             break;
         }
 
@@ -90,6 +90,14 @@ public class DelegatedCodeAssembler implements CodeAssembler {
         mAssembler.loadConstant(type);
     }
 
+    public void loadConstant(MethodDesc type) {
+        mAssembler.loadConstant(type);
+    }
+
+    public void loadConstant(MethodHandleDesc handle) {
+        mAssembler.loadConstant(handle);
+    }
+
     public void loadConstant(boolean value) {
         mAssembler.loadConstant(value);
     }
@@ -272,6 +280,14 @@ public class DelegatedCodeAssembler implements CodeAssembler {
         mAssembler.invokeInterface(classDesc, methodName, ret, params);
     }
 
+    public void invokeDynamic(String methodName,
+                              TypeDesc ret,
+                              TypeDesc[] params,
+                              MethodHandleDesc bootstrap,
+                              Object... bootstrapArgs) {
+        mAssembler.invokeDynamic(methodName, ret, params, bootstrap, bootstrapArgs);
+    }
+
     public void invokePrivate(String methodName,
                               TypeDesc ret,
                               TypeDesc[] params) {
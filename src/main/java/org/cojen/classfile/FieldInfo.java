@@ -54,6 +54,10 @@ public class FieldInfo {
     private final List<Attribute> mAttributes = new ArrayList<Attribute>(2);
 
     private ConstantValueAttr mConstant;
+
+    // When non-null, attributes are read from it upon first access.
+    private LazyClassData mLazyData;
+    private int mLazyAttributes;
     
     FieldInfo(ClassFile parent,
               Modifiers modifiers,
@@ -137,6 +141,7 @@ public class FieldInfo {
      * Returns the constant value for this field or null if no constant set.
      */
     public ConstantInfo getConstantValue() {
+        readAttributes();
         if (mConstant == null) {
             return null;
         } else {
@@ -145,6 +150,7 @@ public class FieldInfo {
     }
 
     public boolean isSynthetic() {
+        readAttributes();
         for (int i = mAttributes.size(); --i >= 0; ) {
             Attribute attr = mAttributes.get(i);
             if (attr instanceof SyntheticAttr) {
@@ -155,6 +161,7 @@ public class FieldInfo {
     }
 
     public boolean isDeprecated() {
+        readAttributes();
         for (int i = mAttributes.size(); --i >= 0; ) {
             Attribute attr = mAttributes.get(i);
             if (attr instanceof DeprecatedAttr) {
@@ -169,6 +176,7 @@ public class FieldInfo {
      * file, or an empty array if none.
      */
     public Annotation[] getRuntimeInvisibleAnnotations() {
+        readAttributes();
         for (int i = mAttributes.size(); --i >= 0; ) {
             Attribute attr = mAttributes.get(i);
             if (attr instanceof RuntimeInvisibleAnnotationsAttr) {
@@ -183,6 +191,7 @@ public class FieldInfo {
      * or an empty array if none.
      */
     public Annotation[] getRuntimeVisibleAnnotations() {
+        readAttributes();
         for (int i = mAttributes.size(); --i >= 0; ) {
             Attribute attr = mAttributes.get(i);
             if (attr instanceof RuntimeVisibleAnnotationsAttr) {
@@ -196,6 +205,7 @@ public class FieldInfo {
      * Add a runtime invisible annotation.
      */
     public Annotation addRuntimeInvisibleAnnotation(TypeDesc type) {
+        readAttributes();
         AnnotationsAttr attr = null;
         for (int i = mAttributes.size(); --i >= 0; ) {
             Attribute a = mAttributes.get(i);
@@ -217,6 +227,7 @@ public class FieldInfo {
      * Add a runtime visible annotation.
      */
     public Annotation addRuntimeVisibleAnnotation(TypeDesc type) {
+        readAttributes();
         AnnotationsAttr attr = null;
         for (int i = mAttributes.size(); --i >= 0; ) {
             Attribute a = mAttributes.get(i);
@@ -240,6 +251,7 @@ public class FieldInfo {
      */
     // TODO: Eventually remove this method
     public SignatureAttr getSignatureAttr() {
+        readAttributes();
         for (int i = mAttributes.size(); --i >= 0; ) {
             Attribute attr = mAttributes.get(i);
             if (attr instanceof SignatureAttr) {
@@ -285,6 +297,7 @@ public class FieldInfo {
     }
 
     public void removeConstantValue() {
+        readAttributes();
         if (mConstant != null) {
             mAttributes.remove(mConstant);
         }
@@ -306,6 +319,7 @@ public class FieldInfo {
     }
 
     public void addAttribute(Attribute attr) {
+        readAttributes();
         if (attr.getConstantPool() != mCp) {
             attr = attr.copyTo(mCp);
         }
@@ -321,6 +335,7 @@ public class FieldInfo {
     }
 
     public Attribute[] getAttributes() {
+        readAttributes();
         return mAttributes.toArray(new Attribute[mAttributes.size()]);
     }
 
@@ -328,6 +343,7 @@ public class FieldInfo {
      * Returns the length (in bytes) of this object in the class file.
      */
     public int getLength() {
+        readAttributes();
         int length = 8;
         
         int size = mAttributes.size();
@@ -342,6 +358,7 @@ public class FieldInfo {
      * Copies everything but the modifiers, name and type from the given field.
      */
     public void copyFrom(FieldInfo field) {
+        field.readAttributes();
         for (Attribute attr : field.mAttributes) {
             addAttribute(attr);
         }
@@ -362,6 +379,7 @@ public class FieldInfo {
      * Perform final preparations before constant pool is written out.
      */
     public void prepare() {
+        readAttributes();
         int size = mAttributes.size();
         for (int i=0; i<size; i++) {
             mAttributes.get(i).prepare();
@@ -369,6 +387,7 @@ public class FieldInfo {
     }
 
     public void writeTo(DataOutput dout) throws IOException {
+        readAttributes();
         dout.writeShort(mModifiers.getBitmask());
         dout.writeShort(mNameConstant.getIndex());
         dout.writeShort(mDescriptorConstant.getIndex());
@@ -413,4 +432,39 @@ public class FieldInfo {
 
         return info;
     }
+
+    /**
+     * Reads the field header, and retains only the position of the attributes.
+     */
+    static FieldInfo readLazily(ClassFile parent,
+                                ByteBufferDataInput din,
+                                LazyClassData data)
+        throws IOException
+    {
+        ConstantPool cp = parent.getConstantPool();
+
+        int modifier = din.readUnsignedShort();
+        int index = din.readUnsignedShort();
+        ConstantUTFInfo nameConstant = (ConstantUTFInfo)cp.getConstant(index);
+        index = din.readUnsignedShort();
+        ConstantUTFInfo descConstant = (ConstantUTFInfo)cp.getConstant(index);
+
+        FieldInfo info = new FieldInfo(parent, modifier, nameConstant, descConstant);
+
+        info.mLazyData = data;
+        info.mLazyAttributes = din.position();
+        LazyClassData.skipAttributes(din);
+
+        return info;
+    }
+
+    private void readAttributes() {
+        LazyClassData data = mLazyData;
+        if (data != null) {
+            mLazyData = null;
+            for (Attribute attr : data.readAttributes(mCp, mLazyAttributes)) {
+                addAttribute(attr);
+            }
+        }
+    }
 }
@@ -17,6 +17,7 @@
 package org.cojen.classfile;
 
 import java.util.AbstractCollection;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -33,6 +34,8 @@ import java.util.Stack;
 import org.cojen.classfile.constant.ConstantClassInfo;
 import org.cojen.classfile.constant.ConstantMethodInfo;
 
+import org.cojen.util.IntIntHashMap;
+
 /**
  * The InstructionList class is used by the CodeBuilder to perform lower-level
  * bookkeeping operations and flow analysis.
@@ -73,6 +76,8 @@ class InstructionList implements CodeBuffer {
     private final boolean mGenerateVerificationInfo;
 
     private Boolean mReduceLocalVariables;
+    private ClassHierarchyResolver mHierarchyResolver;
+    private boolean mUninitializedThis;
 
     Instruction mFirst;
     Instruction mLast;
@@ -91,7 +96,6 @@ class InstructionList implements CodeBuffer {
 
     private byte[] mByteCodes;
 
-    // FIXME: chuck
     private Map<Location, VerificationInfo> mVerificationInfoMap;
     private BitList[] mVarUsage;
 
@@ -107,6 +111,18 @@ class InstructionList implements CodeBuffer {
         mReduceLocalVariables = b;
     }
 
+    public void setClassHierarchyResolver(ClassHierarchyResolver resolver) {
+        mHierarchyResolver = resolver;
+    }
+
+    /**
+     * Indicates that the first parameter is a "this" reference which is
+     * uninitialized until a constructor is invoked on it.
+     */
+    void setUninitializedThis() {
+        mUninitializedThis = true;
+    }
+
     /**
      * Returns an immutable collection of all the instructions in this
      * InstructionList.
@@ -164,99 +180,151 @@ class InstructionList implements CodeBuffer {
             return mByteCodes;
         }
 
-        // Build up the byte code and set real instruction locations.
-        // Multiple passes may be required because instructions may adjust
-        // their size as locations are set. Changing size affects the locations
-        // of other instructions, so that is why additional passes are
-        // required.
+        // Set real instruction locations, with every branch in its shortest
+        // form. Branches whose targets are then out of range are widened,
+        // which moves all the instructions that follow. Only the branches
+        // are checked again, and locations are only recomputed from the
+        // first widened branch. Branches never shrink, and so this
+        // converges, usually after a few rounds. Because switch padding
+        // depends on location, switch instructions can also change length.
 
         int instrCount = mAnalyzed;
-        byte[] byteCodes = new byte[instrCount * 2]; // estimate
-        int byteCount;
+        Instruction[] instrs = new Instruction[instrCount];
+        int[] branchIndexes = new int[Math.min(instrCount, 16)];
+        int branchCount = 0;
 
-        while (true) {
-            boolean passAgain = false;
-            byteCount = 0;
-            
-            for (Instruction instr = mFirst; instr != null; instr = instr.mNext) {
-                if (!instr.isResolved()) {
-                    passAgain = true;
-                }
-                
-                if (instr instanceof Label) {
-                    if (instr.mLocation != byteCount) {
-                        if (instr.mLocation >= 0) {
-                            // If the location of this label is not where it
-                            // should be, (most likely because an instruction
-                            // needed to expand in size) then do another pass.
-                            passAgain = true;
-                        }
-                        instr.mLocation = byteCount;
+        {
+            int n = 0;
+            for (Instruction instr = mFirst; instr != null; instr = instr.mNext, n++) {
+                instrs[n] = instr;
+                if (instr instanceof BranchInstruction && !isDropped(instr)) {
+                    if (branchCount >= branchIndexes.length) {
+                        branchIndexes = Arrays.copyOf(branchIndexes, branchCount * 2);
                     }
-                } else {
-                    instr.mLocation = byteCount;
-                    
-                    byte[] instrBytes = instr.getBytes();
-                    if (instrBytes != null) {
-                        int instrLength = instrBytes.length;
-                        if (!passAgain) {
-                            if (byteCount + instrLength > byteCodes.length) {
-                                byte[] newByteCodes = new byte
-                                    [Math.max(byteCodes.length * 2, byteCount + instrLength)];
-                                System.arraycopy(byteCodes, 0, newByteCodes, 0, byteCount);
-                                byteCodes = newByteCodes;
-                            }
-                            System.arraycopy(instrBytes, 0, byteCodes, byteCount, instrLength);
-                        }
-                        byteCount += instrLength;
+                    branchIndexes[branchCount++] = n;
+                }
+            }
+        }
+
+        int byteCount = 0;
+        int from = 0;
+
+        while (true) {
+            int location = 0;
+            if (from > 0) {
+                Instruction prev = instrs[from - 1];
+                location = prev.mLocation + codeLength(prev);
+            }
+
+            for (int n=from; n<instrCount; n++) {
+                Instruction instr = instrs[n];
+                instr.mLocation = location;
+                location += codeLength(instr);
+            }
+
+            byteCount = location;
+            from = instrCount;
+
+            for (int i=0; i<branchCount; i++) {
+                int n = branchIndexes[i];
+                if (((BranchInstruction) instrs[n]).widen()) {
+                    if (n < from) {
+                        from = n;
                     }
                 }
             }
 
-            if (!passAgain) {
+            if (from >= instrCount) {
                 break;
             }
 
-            if (byteCount > byteCodes.length) {
-                byteCodes = new byte[byteCount];
-            }
+            // Locations up to and including the first widened branch are
+            // unaffected.
+            from++;
         }
-        
-        if (byteCount != byteCodes.length) {
-            byte[] newByteCodes = new byte[byteCount];
-            System.arraycopy(byteCodes, 0, newByteCodes, 0, byteCount);
-            byteCodes = newByteCodes;
+
+        // Locations are stable, so write each instruction directly into the
+        // final array.
+        byte[] byteCodes = new byte[byteCount];
+        for (int n=0; n<instrCount; n++) {
+            Instruction instr = instrs[n];
+            if (!isDropped(instr)) {
+                instr.writeTo(byteCodes, instr.mLocation);
+            }
         }
 
         mByteCodes = byteCodes;
 
-        // Set analyzed again because during byte code generation, it gets
-        // reset while changes are being made to the list of instructions.
-        mAnalyzed = instrCount;
-
         return byteCodes;
     }
 
+    /**
+     * Unreachable code is dropped when generating verification info, because
+     * the verifier requires a stack map frame for it, but it has no types.
+     */
+    private boolean isDropped(Instruction instr) {
+        return mGenerateVerificationInfo && instr.mStackDepth < 0;
+    }
+
+    private int codeLength(Instruction instr) {
+        return isDropped(instr) ? 0 : instr.getLength();
+    }
+
     public ExceptionHandler[] getExceptionHandlers() {
         analyze();
 
-        ExceptionHandler[] handlers = new ExceptionHandler[mExceptionHandlers.size()];
-        return mExceptionHandlers.toArray(handlers);
+        List<ExceptionHandler<LabelInstruction>> list = mExceptionHandlers;
+
+        if (mGenerateVerificationInfo) {
+            // Handlers which only guard dropped code are dropped too.
+            list = new ArrayList<ExceptionHandler<LabelInstruction>>(list.size());
+            for (ExceptionHandler<LabelInstruction> handler : mExceptionHandlers) {
+                Instruction instr = handler.getStartLocation();
+                LabelInstruction end = handler.getEndLocation();
+                for ( ; instr != null && instr != end; instr = instr.mNext) {
+                    if (!(instr instanceof LabelInstruction) && !isDropped(instr)) {
+                        list.add(handler);
+                        break;
+                    }
+                }
+            }
+        }
+
+        ExceptionHandler[] handlers = new ExceptionHandler[list.size()];
+        return list.toArray(handlers);
     }
 
     public VerificationInfo[] getVerificationInfos() {
         analyze();
 
-        if (mVerificationInfoMap == null || mVerificationInfoMap.isEmpty()) {
+        if (mVerificationInfoMap == null) {
             return null;
         }
 
         // Need correct instruction locations resolved.
         getByteCodes();
 
+        List<VerificationInfo> list = new ArrayList<VerificationInfo>(mVerificationInfoMap.values());
+
+        // A widened branch jumps over its goto_w to the next instruction,
+        // which needs a frame unless it's an entry point already.
+        for (Instruction instr = mFirst; instr != null; instr = instr.mNext) {
+            if (instr instanceof BranchInstruction) {
+                BranchInstruction branch = (BranchInstruction) instr;
+                if (branch.mHasShortHop && branch.mShortHopInfo != null && !isDropped(branch)) {
+                    Instruction next = branch.mNext;
+                    if (!(next instanceof LabelInstruction)
+                        || ((LabelInstruction) next.skipPseudo()).mStack == null)
+                    {
+                        list.add(branch.mShortHopInfo);
+                    }
+                }
+            }
+        }
+
         // FIXME: don't sort each time
-        VerificationInfo[] infos = new VerificationInfo[mVerificationInfoMap.size()];
-        infos = mVerificationInfoMap.values().toArray(infos);
+        VerificationInfo[] infos = new VerificationInfo[list.size()];
+        infos = list.toArray(infos);
         Arrays.sort(infos);
         return infos;
     }
@@ -315,17 +383,23 @@ class InstructionList implements CodeBuffer {
             instr.reset(instrCount++);
         }
 
-        // Make sure exception handlers are registered with all guarded
-        // instructions.
         for (ExceptionHandler<LabelInstruction> handler : mExceptionHandlers) {
             handler.getCatchLocation().markBranchTarget();
-            Instruction instr = handler.getStartLocation();
-            LabelInstruction end = handler.getEndLocation();
-            for ( ; instr != null && instr != end; instr = instr.mNext) {
-                instr.addExceptionHandler(handler);
+            if (mGenerateVerificationInfo) {
+                // Type inference still operates over the instruction objects,
+                // and so register exception handlers with all guarded
+                // instructions.
+                Instruction instr = handler.getStartLocation();
+                LabelInstruction end = handler.getEndLocation();
+                for ( ; instr != null && instr != end; instr = instr.mNext) {
+                    instr.addExceptionHandler(handler);
+                }
             }
         }
 
+        // Encode the flow graph into arrays, indexed by instruction number.
+        InstructionTable table = new InstructionTable(instrCount);
+
         boolean doLivenessAnalysis = DO_LIVENESS_ANALYSIS;
 
         if (mReduceLocalVariables != null) {
@@ -351,30 +425,22 @@ class InstructionList implements CodeBuffer {
             // Perform variable liveness flow analysis for each local variable, in
             // order to determine which register it should be assigned. Takes
             // advantage of the fact that instruction addresses are not yet
-            // resolved to true addresses, but are instead indexes. This means the
-            // liveness analysis operates on smaller BitLists, which makes some
-            // operations (i.e. intersection) a bit faster.
+            // resolved to true addresses, but are instead indexes. Live ranges
+            // are therefore runs of instruction indexes, and variables can share
+            // a register if none of their ranges overlap.
 
             int size = mLocalVariables.size();
-            BitList[] liveIn = new BitList[size];
-            BitList[] liveOut = new BitList[size];
-            for (int v=0; v<size; v++) {
-                liveIn[v] = new BitList(instrCount);
-                liveOut[v] = new BitList(instrCount);
-            }
-            
-            livenessAnalysis(liveIn, liveOut);
-            
-            // Register number -> list of variables that use that register.
-            List<List<LocalVariable>> registerUsers = new ArrayList<List<LocalVariable>>();
-            
-            // First fill up list with variables that have a fixed number.
+            int[][] ranges = livenessAnalysis(table, size);
+
+            // Ensure that max locals is large enough to hold parameters.
             for (int v=0; v<size; v++) {
                 LocalVariableImpl var = (LocalVariableImpl)mLocalVariables.get(v);
                 if (var.isFixedNumber()) {
-                    addRegisterUser(registerUsers, var);
-                    // Ensure that max locals is large enough to hold parameters.
                     int num = var.getNumber();
+                    if (num < 0) {
+                        throw new IllegalStateException
+                            ("Local variable number not resolved: " + var);
+                    }
                     if (var.isDoubleWord()) {
                         num++;
                     }
@@ -383,40 +449,23 @@ class InstructionList implements CodeBuffer {
                     }
                 }
             }
-            
-            // Merge bit lists together.
-            BitList[] live = liveIn;
-            for (int v=0; v<size; v++) {
-                live[v].or(liveOut[v]);
-                if (live[v].isAllClear()) {
-                    // Variable isn't needed.
-                    live[v] = null;
-                }
-            }
 
             if (mSaveLocalVariableInfo) {
-                // Create indexable list of instructions.
-                List<Instruction> instrList = new ArrayList<Instruction>(instrCount);
-                instrList.addAll(getInstructions());
+                Instruction[] instrs = table.mInstructions;
 
                 for (int v=0; v<size; v++) {
-                    BitList list = live[v];
-                    if (list == null) {
+                    int[] varRanges = ranges[v];
+                    if (varRanges == null) {
                         continue;
                     }
 
                     LocationRange firstRange = null;
                     Set<LocationRange> rangeSet = null;
 
-                    int end = -1;
-                    do {
-                        int start = list.nextSetBit(end + 1);
-                        if (start < 0) {
-                            break;
-                        }
-                        end = list.nextClearBit(start + 1);
-                        Location startLoc = instrList.get(start);
-                        Location endLoc = instrList.get(end < instrCount ? end : instrCount - 1);
+                    for (int i=0; i<varRanges.length; i+=2) {
+                        int end = varRanges[i + 1];
+                        Location startLoc = instrs[varRanges[i]];
+                        Location endLoc = instrs[end < instrCount ? end : instrCount - 1];
                         LocationRange range = new LocationRangeImpl(startLoc, endLoc);
 
                         if (firstRange == null) {
@@ -428,13 +477,11 @@ class InstructionList implements CodeBuffer {
                             }
                             rangeSet.add(range);
                         }
-                    } while (end < instrCount);
+                    }
 
                     LocalVariableImpl var = (LocalVariableImpl)mLocalVariables.get(v);
 
-                    if (firstRange == null) {
-                        var.setLocationRangeSet(null);
-                    } else if (rangeSet == null || rangeSet.size() == 1) {
+                    if (rangeSet == null || rangeSet.size() == 1) {
                         var.setLocationRangeSet(Collections.singleton(firstRange));
                     } else {
                         var.setLocationRangeSet(Collections.unmodifiableSet(rangeSet));
@@ -442,46 +489,41 @@ class InstructionList implements CodeBuffer {
                 }
             }
 
-            for (int v=0; v<size; v++) {
-                if (live[v] == null) {
-                    continue;
+            // Creation order tends to keep frequently used variables in the
+            // low registers, which have compact load, store and iinc forms.
+            // Assigning double word variables first, in order of their first
+            // live instruction, sometimes requires fewer registers, and so
+            // only use that assignment when it is strictly smaller.
+            int[] numbers = assignRegisters(ranges, false);
+            {
+                int[] alt = assignRegisters(ranges, true);
+                if (alt[size] < numbers[size]) {
+                    numbers = alt;
                 }
+            }
+
+            for (int v=0; v<size; v++) {
                 LocalVariableImpl var = (LocalVariableImpl)mLocalVariables.get(v);
-                if (var.isFixedNumber()) {
-                    continue;
+                if (ranges[v] != null && !var.isFixedNumber()) {
+                    var.setNumber(numbers[v]);
                 }
-                int r = 0;
-                while (true) {
-                    r = findAvailableRegister(registerUsers, r, live, v);
-                    if (var.isDoubleWord()) {
-                        if (findAvailableRegister(registerUsers, ++r, live, v) == r) {
-                            // Found consecutive registers, required for double word.
-                            r--;
-                            break;
-                        }
-                    } else {
-                        break;
-                    }
-                }
-                var.setNumber(r);
-                addRegisterUser(registerUsers, var);
             }
-            
-            mMaxLocals = Math.max(mMaxLocals, registerUsers.size());
+
+            mMaxLocals = Math.max(mMaxLocals, numbers[size]);
 
             if (mGenerateVerificationInfo) {
                 // Build final variable usage now that variable numbers are shared.
                 mVarUsage = new BitList[mMaxLocals];
                 for (int v=0; v<size; v++) {
-                    BitList list = live[v];
-                    if (list != null) {
-                        LocalVariable var = mLocalVariables.get(v);
-                        int varNum = var.getNumber();
-                        BitList existing = mVarUsage[varNum];
-                        if (existing == null) {
-                            mVarUsage[varNum] = list;
-                        } else {
-                            existing.or(list);
+                    int[] varRanges = ranges[v];
+                    if (varRanges != null) {
+                        int varNum = mLocalVariables.get(v).getNumber();
+                        BitList list = mVarUsage[varNum];
+                        if (list == null) {
+                            mVarUsage[varNum] = list = new BitList(instrCount);
+                        }
+                        for (int i=0; i<varRanges.length; i+=2) {
+                            list.set(varRanges[i], varRanges[i + 1]);
                         }
                     }
                 }
@@ -491,23 +533,21 @@ class InstructionList implements CodeBuffer {
         // Perform flow analysis to determine the max stack size and to
         // determine verification info.
         {
-            Stack<VerificationInfo.Type> stack;
-            VerificationInfo.Type[] locals;
-
-            if (!mGenerateVerificationInfo) {
-                stack = null;
-                locals = null;
-            } else {
+            if (mGenerateVerificationInfo) {
                 // Although Locations are Comparable, TreeMap cannot be used
                 // because Locations are mutable.
                 mVerificationInfoMap = new HashMap<Location, VerificationInfo>();
 
-                stack = new Stack<VerificationInfo.Type>();
-                locals = new VerificationInfo.Type[mMaxLocals];
+                Stack<VerificationInfo.Type> stack = new Stack<VerificationInfo.Type>();
+                VerificationInfo.Type[] locals = new VerificationInfo.Type[mMaxLocals];
                 int slot = 0;
                 for (int i=0; i<mParameterCount; i++) {
                     TypeDesc paramType = mLocalVariables.get(i).getType();
-                    locals[slot++] = toVerificationType(paramType);
+                    if (i == 0 && mUninitializedThis) {
+                        locals[slot++] = VerificationInfo.uninitializedThisType();
+                    } else {
+                        locals[slot++] = toVerificationType(paramType);
+                    }
                     if (paramType.isDoubleWord()) {
                         locals[slot++] = VerificationInfo.topType();
                     }
@@ -515,391 +555,580 @@ class InstructionList implements CodeBuffer {
                 for (; slot<locals.length; slot++) {
                     locals[slot] = VerificationInfo.topType();
                 }
-            }
 
-            Map<LabelInstruction, Integer> subAdjustMap =
-                new HashMap<LabelInstruction, Integer>(1);
+                typeAnalyze(stack, locals);
+            } else if (instrCount > 0) {
+                // Without types to track, only the stack depth is computed,
+                // which is done over the encoded flow graph.
+                IntIntHashMap subAdjustMap = new IntIntHashMap(1);
 
-            // Start the flow analysis at the first instruction.
-            stackAnalyze(0, stack, locals, mFirst, subAdjustMap);
+                stackAnalyze(table, 0, 0, subAdjustMap);
 
-            if (!mGenerateVerificationInfo) {
                 // Continue flow analysis into exception handler entry points.
-                for (ExceptionHandler<LabelInstruction> handler : mExceptionHandlers) {
-                    Instruction enter = handler.getCatchLocation();
-                    // Initial stack depth is one because caught exception is on the stack.
-                    stackAnalyze(1, null, null, enter, subAdjustMap);
+                for (int i=0; i<table.mHandlerCatches.length; i++) {
+                    int enter = table.mHandlerCatches[i];
+                    if (enter >= 0) {
+                        // Initial stack depth is one because caught exception is on the stack.
+                        stackAnalyze(table, 1, enter, subAdjustMap);
+                    }
                 }
+
+                table.copyStackDepths();
             }
         }
 
         mAnalyzed = instrCount;
     }
 
-    private void livenessAnalysis(BitList[] liveIn, BitList[] liveOut) {
-        // Track stores to variables to see if the result is discarded.
-        List<StoreLocalInstruction>[] localStores = new List[liveIn.length];
+    /**
+     * @param ranges live ranges of each variable
+     * @param byStart when true, assign double word variables first, and then
+     * in order of first live instruction; otherwise assign in creation order
+     * @return register of each live variable, followed by the register count
+     */
+    private int[] assignRegisters(int[][] ranges, boolean byStart) {
+        int size = ranges.length;
+        RegisterAllocator registers = new RegisterAllocator();
+
+        // First reserve the registers of variables that have a fixed number.
+        // Keys of the remaining live variables determine the assignment order.
+        long[] order = new long[size];
+        int orderSize = 0;
+
+        for (int v=0; v<size; v++) {
+            LocalVariableImpl var = (LocalVariableImpl)mLocalVariables.get(v);
+            if (var.isFixedNumber()) {
+                int num = var.getNumber();
+                registers.reserve(num, ranges[v]);
+                if (var.isDoubleWord()) {
+                    registers.reserve(num + 1, ranges[v]);
+                }
+            } else if (ranges[v] != null) {
+                long key = v;
+                if (byStart) {
+                    key |= ((long) ranges[v][0]) << 32;
+                    if (!var.isDoubleWord()) {
+                        key |= 1L << 62;
+                    }
+                }
+                order[orderSize++] = key;
+            }
+        }
+
+        Arrays.sort(order, 0, orderSize);
+
+        int[] numbers = new int[size + 1];
+        for (int i=0; i<orderSize; i++) {
+            int v = (int) order[i];
+            numbers[v] = registers.allocate(ranges[v], mLocalVariables.get(v).isDoubleWord());
+        }
+
+        numbers[size] = registers.size();
+        return numbers;
+    }
+
+    /**
+     * Performs liveness analysis over the basic blocks of the flow graph, and
+     * then makes local store instructions discard their results if the
+     * variable isn't live afterwards.
+     *
+     * @param varCount number of local variables
+     * @return live ranges for each variable, or null if never live; ranges
+     * are sorted pairs of inclusive start and exclusive end instruction indexes
+     */
+    private int[][] livenessAnalysis(InstructionTable table, int varCount) {
+        byte[] flags = table.mFlags;
+        int[] vars = table.mVariables;
+        int[] succStart = table.mSuccessorStart;
+        int[] catchStart = table.mCatchStart;
+        int[] succ = table.mSuccessors;
+        int instrCount = flags.length;
 
-        int passCount = -1;
-        boolean passAgain;
-        do {
-            passCount++;
-            passAgain = false;
+        int[][] ranges = new int[varCount][];
+        if (instrCount == 0) {
+            return ranges;
+        }
 
-            for (Instruction instr = mLast; instr != null; instr = instr.mPrev) {
-                int n = instr.getLocation();
+        // Blocks begin at branch targets, exception handler entry points,
+        // after branches, and wherever the set of guarding exception handlers
+        // changes. All the instructions in a block share the same handlers.
+        BitList leaders = new BitList(instrCount + 1);
+        leaders.set(0);
+        for (int n=0; n<instrCount; n++) {
+            int start = succStart[n];
+            int end = succStart[n + 1];
+            for (int i=start; i<end; i++) {
+                leaders.set(succ[i]);
+            }
+            if (catchStart[n] > start || (flags[n] & InstructionTable.FLOW_THROUGH) == 0) {
+                leaders.set(n + 1);
+            }
+            if (n > 0 && !sameCatches(table, n - 1, n)) {
+                leaders.set(n);
+            }
+        }
 
-                int useIndex = -1;
-                int defIndex = -1;
+        int blockCount = 0;
+        for (int n = 0; (n = leaders.nextSetBit(n)) >= 0 && n < instrCount; n++) {
+            blockCount++;
+        }
 
-                if (instr instanceof LocalOperandInstruction) {
-                    LocalOperandInstruction loi = (LocalOperandInstruction)instr;
-                    LocalVariableImpl var = loi.getLocalVariable();
-                    int varIndex = var.getIndex();
+        int[] blockStart = new int[blockCount + 1];
+        int[] blockOf = new int[instrCount];
+        for (int n=0, b=-1; n<instrCount; n++) {
+            if (leaders.get(n)) {
+                blockStart[++b] = n;
+            }
+            blockOf[n] = b;
+        }
+        blockStart[blockCount] = instrCount;
 
-                    if (loi.isLoad()) {
-                        useIndex = varIndex;
-                    }
+        // Successors of block b are in blockSucc, from blockSuccStart[b] to
+        // blockSuccStart[b + 1]. Handler entry blocks start at blockCatchStart[b].
+        int[] blockSuccStart = new int[blockCount + 1];
+        int[] blockCatchStart = new int[blockCount];
+        int[] blockSucc = new int[blockCount * 2];
+        int size = 0;
 
-                    if (loi.isStore()) {
-                        defIndex = varIndex;
-                        if (passCount == 0 && loi instanceof StoreLocalInstruction) {
-                            List<StoreLocalInstruction> stores = localStores[varIndex];
-                            if (stores == null) {
-                                stores = new ArrayList<StoreLocalInstruction>();
-                                localStores[varIndex] = stores;
-                            }
-                            stores.add((StoreLocalInstruction)loi);
-                        }
-                    }
+        for (int b=0; b<blockCount; b++) {
+            int first = blockStart[b];
+            int last = blockStart[b + 1] - 1;
+            blockSuccStart[b] = size;
+            int required = size + 1 + (catchStart[last] - succStart[last])
+                + (succStart[first + 1] - catchStart[first]);
+            if (required > blockSucc.length) {
+                blockSucc = Arrays.copyOf(blockSucc, Math.max(blockSucc.length * 2, required));
+            }
+            if ((flags[last] & InstructionTable.FLOW_THROUGH) != 0 && last + 1 < instrCount) {
+                blockSucc[size++] = b + 1;
+            }
+            for (int i = succStart[last]; i < catchStart[last]; i++) {
+                blockSucc[size++] = blockOf[succ[i]];
+            }
+            blockCatchStart[b] = size;
+            for (int i = catchStart[first]; i < succStart[first + 1]; i++) {
+                blockSucc[size++] = blockOf[succ[i]];
+            }
+        }
+
+        blockSuccStart[blockCount] = size;
+
+        int[] predStart = new int[blockCount + 1];
+        for (int i=0; i<size; i++) {
+            predStart[blockSucc[i] + 1]++;
+        }
+        for (int b=0; b<blockCount; b++) {
+            predStart[b + 1] += predStart[b];
+        }
+        int[] preds = new int[size];
+        {
+            int[] cursors = predStart.clone();
+            for (int b=0; b<blockCount; b++) {
+                for (int i = blockSuccStart[b]; i < blockSuccStart[b + 1]; i++) {
+                    preds[cursors[blockSucc[i]]++] = b;
                 }
+            }
+        }
 
-                for (int v=liveIn.length; --v>=0; ) {
-                    boolean setLiveIn, setLiveOut;
+        // Variables used before being defined in each block, variables
+        // defined in each block, and the variable defined by the first
+        // instruction. Variables live into a handler are live out of every
+        // guarded instruction, and so only the first definition masks them.
+        BitList[] gen = new BitList[blockCount];
+        BitList[] kill = new BitList[blockCount];
+        BitList[] liveIn = new BitList[blockCount];
+        int[] firstDef = new int[blockCount];
+
+        for (int b=0; b<blockCount; b++) {
+            BitList blockGen = gen[b] = new BitList(varCount, true);
+            BitList blockKill = kill[b] = new BitList(varCount, true);
+            liveIn[b] = new BitList(varCount, true);
+            int first = blockStart[b];
+            firstDef[b] = (flags[first] & InstructionTable.DEF) != 0 ? vars[first] : -1;
+            for (int n = first; n < blockStart[b + 1]; n++) {
+                int flag = flags[n];
+                if ((flag & InstructionTable.USE) != 0 && !blockKill.get(vars[n])) {
+                    blockGen.set(vars[n]);
+                }
+                if ((flag & InstructionTable.DEF) != 0) {
+                    blockKill.set(vars[n]);
+                }
+            }
+        }
 
-                    if (useIndex == v || (v != defIndex && liveOut[v].get(n))) {
-                        passAgain |= liveIn[v].set(n);
-                        setLiveIn = true;
-                    } else {
-                        setLiveIn = false;
-                    }
+        // Iterate to a fixed point, revisiting only the predecessors of blocks
+        // whose live-in set changed. Blocks are initially visited in reverse.
+        int[] work = new int[blockCount];
+        boolean[] queued = new boolean[blockCount];
+        int top = 0;
+        for (int b=0; b<blockCount; b++) {
+            work[top++] = b;
+            queued[b] = true;
+        }
 
-                    setLiveOut = false;
+        BitList live = new BitList(varCount);
 
-                    if (instr.isFlowThrough() && instr.mNext != null) {
-                        if (liveIn[v].get(instr.mNext.getLocation())) {
-                            setLiveOut = true;
-                            passAgain |= liveOut[v].set(n);
-                        }
-                    }
+        while (top > 0) {
+            int b = work[--top];
+            queued[b] = false;
 
-                    LabelInstruction[] targets = instr.getBranchTargets();
-                    if (targets != null) {
-                        for (int i=0; i<targets.length; i++) {
-                            if (liveIn[v].get(targets[i].getLocation())) {
-                                setLiveOut = true;
-                                passAgain |= liveOut[v].set(n);
-                            }
-                        }
+            // in = gen | (out - kill) | (handler live-in - first definition)
+            live.clearAll();
+            for (int i = blockSuccStart[b]; i < blockCatchStart[b]; i++) {
+                live.or(liveIn[blockSucc[i]]);
+            }
+            live.andNot(kill[b]);
+            live.or(gen[b]);
+            int def = firstDef[b];
+            boolean keepDef = def < 0 || live.get(def);
+            for (int i = blockCatchStart[b]; i < blockSuccStart[b + 1]; i++) {
+                live.or(liveIn[blockSucc[i]]);
+            }
+            if (!keepDef) {
+                live.clear(def);
+            }
+
+            if (liveIn[b].or(live)) {
+                for (int i = predStart[b]; i < predStart[b + 1]; i++) {
+                    int p = preds[i];
+                    if (!queued[p]) {
+                        queued[p] = true;
+                        work[top++] = p;
                     }
+                }
+            }
+        }
 
-                    Collection<ExceptionHandler<LabelInstruction>> handlers =
-                        instr.getExceptionHandlers();
-                    if (handlers != null) {
-                        for (ExceptionHandler<LabelInstruction> handler : handlers) {
-                            Instruction catchInstr = handler.getCatchLocation();
-                            if (liveIn[v].get(catchInstr.getLocation())) {
-                                setLiveOut = true;
-                                passAgain |= liveOut[v].set(n);
-                            }
+        // Walk backwards through each block to find the variables which are
+        // live in or out of each instruction. Because blocks are also visited
+        // in reverse, the ranges are built in descending order.
+        Instruction[] instrs = table.mInstructions;
+        int[] rangeLengths = new int[varCount];
+        int[] openStart = new int[varCount];
+        int[] openEnd = new int[varCount];
+        Arrays.fill(openStart, -1);
+        BitList catchLive = new BitList(varCount);
+
+        for (int b = blockCount; --b >= 0; ) {
+            live.clearAll();
+            for (int i = blockSuccStart[b]; i < blockCatchStart[b]; i++) {
+                live.or(liveIn[blockSucc[i]]);
+            }
+            catchLive.clearAll();
+            for (int i = blockCatchStart[b]; i < blockSuccStart[b + 1]; i++) {
+                catchLive.or(liveIn[blockSucc[i]]);
+            }
+            live.or(catchLive);
+
+            for (int n = blockStart[b + 1]; --n >= blockStart[b]; ) {
+                int flag = flags[n];
+                int var = vars[n];
+
+                // Live set is currently the live-out set.
+                if ((flag & InstructionTable.STORE) != 0 && !live.get(var)) {
+                    ((StoreLocalInstruction) instrs[n]).discardResult();
+                }
+
+                if ((flag & InstructionTable.USE) != 0) {
+                    live.set(var);
+                }
+
+                for (int v = live.nextSetBit(0); v >= 0; v = live.nextSetBit(v + 1)) {
+                    int start = openStart[v];
+                    if (start == n + 1) {
+                        openStart[v] = n;
+                    } else {
+                        if (start >= 0) {
+                            addRange(ranges, rangeLengths, v, start, openEnd[v]);
                         }
+                        openStart[v] = n;
+                        openEnd[v] = n + 1;
                     }
+                }
 
-                    if (!setLiveIn && setLiveOut && v != defIndex) {
-                        // Set liveIn entry now that liveOut has been
-                        // updated. This greatly reduces the number of full
-                        // passes required.
-                        passAgain |= liveIn[v].set(n);
-                    }
+                // Convert to the live-in set, which is also live-out of the
+                // previous instruction, along with the handler entry points.
+                if ((flag & (InstructionTable.USE | InstructionTable.DEF))
+                    == InstructionTable.DEF)
+                {
+                    live.clear(var);
                 }
+                live.or(catchLive);
             }
-        } while (passAgain); // do {} while ();
+        }
 
-        // See which local store instructions should discard their results.
-        for (int v=localStores.length; --v>=0; ) {
-            List<StoreLocalInstruction> stores = localStores[v];
-            if (stores != null) {
-                for (int i=stores.size(); --i>=0; ) {
-                    StoreLocalInstruction instr = stores.get(i);
-                    if (!liveOut[v].get(instr.getLocation())) {
-                        instr.discardResult();
-                    }
+        for (int v=0; v<varCount; v++) {
+            if (openStart[v] >= 0) {
+                addRange(ranges, rangeLengths, v, openStart[v], openEnd[v]);
+            }
+            int[] descending = ranges[v];
+            if (descending != null) {
+                int length = rangeLengths[v];
+                int[] ascending = new int[length];
+                for (int i=0; i<length; i+=2) {
+                    ascending[length - 2 - i] = descending[i];
+                    ascending[length - 1 - i] = descending[i + 1];
                 }
+                ranges[v] = ascending;
             }
         }
+
+        return ranges;
     }
 
-    private void addRegisterUser(List<List<LocalVariable>> registerUsers, LocalVariable var) {
-        int num = var.getNumber();
-        if (num < 0) {
-            throw new IllegalStateException("Local variable number not resolved: " + var);
+    /**
+     * @return true if both instructions are guarded by the same exception handlers
+     */
+    private static boolean sameCatches(InstructionTable table, int a, int b) {
+        int[] succStart = table.mSuccessorStart;
+        int[] catchStart = table.mCatchStart;
+        int[] succ = table.mSuccessors;
+        int i = catchStart[a];
+        int j = catchStart[b];
+        int count = succStart[a + 1] - i;
+        if (count != succStart[b + 1] - j) {
+            return false;
         }
-        getRegisterUsers(registerUsers, num).add(var);
-        if (var.isDoubleWord()) {
-            getRegisterUsers(registerUsers, num + 1).add(var);
+        while (--count >= 0) {
+            if (succ[i++] != succ[j++]) {
+                return false;
+            }
         }
+        return true;
     }
 
-    private List<LocalVariable> getRegisterUsers(List<List<LocalVariable>> registerUsers,int num) {
-        while (registerUsers.size() <= num) {
-            registerUsers.add(new ArrayList<LocalVariable>());
-        }
-        return registerUsers.get(num);
+    private static void addRange(int[][] ranges, int[] lengths, int v, int start, int end) {
+        int[] r = ranges[v];
+        int length = lengths[v];
+        if (r == null) {
+            ranges[v] = r = new int[4];
+        } else if (length >= r.length) {
+            ranges[v] = r = Arrays.copyOf(r, length * 2);
+        }
+        r[length] = start;
+        r[length + 1] = end;
+        lengths[v] = length + 2;
     }
 
     /**
-     * @param registerUsers
-     * @param r index into registerUsers
-     * @return index into registerUsers which is available, which may be equal
-     * to r or equal to the size of registerUsers
+     * Flow analysis which infers the types on the operand stack and in the
+     * local variables. Types are merged at each entry point, which is a branch
+     * target or exception handler, and the code which follows an entry point
+     * is analyzed again whenever its merged types change. Every instruction
+     * which is reached has its stack depth set, and a VerificationInfo is
+     * recorded for every entry point which is reached.
+     *
+     * @param stack initial operand stack types
+     * @param locals initial local variable types
      */
-    private int findAvailableRegister(List<List<LocalVariable>> registerUsers,
-                                      int r, BitList[] live, int v) {
-        registerScan:
-        for (; r<registerUsers.size(); r++) {
-            List users = getRegisterUsers(registerUsers, r);
-            for (int i=0; i<users.size(); i++) {
-                int v2 = ((LocalVariableImpl)users.get(i)).getIndex();
-                if (live[v].intersects(live[v2])) {
-                    continue registerScan;
+    private void typeAnalyze(Stack<VerificationInfo.Type> stack, VerificationInfo.Type[] locals) {
+        // Types at an entry point are held by the last label of the group of
+        // labels at its location.
+        for (Instruction instr = mFirst; instr != null; instr = instr.mNext) {
+            if (instr.isBranchTarget()) {
+                ((LabelInstruction) instr.skipPseudo()).mIsEntry = true;
+            }
+        }
+
+        ArrayDeque<LabelInstruction> queue = new ArrayDeque<LabelInstruction>();
+
+        typeFlow(mFirst, stack, locals, queue);
+
+        LabelInstruction entry;
+        while ((entry = queue.poll()) != null) {
+            entry.mQueued = false;
+            stack = new Stack<VerificationInfo.Type>();
+            stack.addAll(entry.mStack);
+            typeFlow(entry.mNext, stack, entry.mLocals.clone(), queue);
+        }
+
+        for (Instruction instr = mFirst; instr != null; instr = instr.mNext) {
+            if (instr instanceof LabelInstruction) {
+                LabelInstruction label = (LabelInstruction) instr;
+                if (label.mStack != null) {
+                    mVerificationInfoMap.put
+                        (label, newVerificationInfo(label, label.mStack, label.mLocals));
                 }
             }
-            break;
         }
-        return r;
     }
 
     /**
-     * @param stackDepth initial operand stack depth
+     * Flows types through instructions, until reaching an entry point or an
+     * instruction which doesn't flow through.
+     *
      * @param instr flow analysis start instruction
-     * @param subAdjustMap cache of stack adjustments for subroutine blocks;
-     * key is first instruction of subroutine (jsr target)
-     * @return updated stack depth, which may increment or decrement
+     * @param stack mutable operand stack types
+     * @param locals mutable local variable types
+     * @param queue entry points whose types have changed
      */
-    private int stackAnalyze(int stackDepth,
-                             Stack<VerificationInfo.Type> stack,
-                             VerificationInfo.Type[] locals,
-                             Instruction instr,
-                             Map<LabelInstruction, Integer> subAdjustMap)
+    private void typeFlow(Instruction instr,
+                          Stack<VerificationInfo.Type> stack,
+                          VerificationInfo.Type[] locals,
+                          ArrayDeque<LabelInstruction> queue)
     {
-        boolean keepGoing = false;
-        while (instr != null) {
-            instr = instr.skipPseudo();
-
-            if (stack != null) {
-                // FIXME: If anything changes, keep flowing.
-                // FIXME: hack testing
-                Stack<VerificationInfo.Type> sCopy = new Stack<VerificationInfo.Type>();
-                sCopy.addAll(stack);
-                VerificationInfo.Type[] lCopy = locals.clone();
-
-                instr.adjustTypes(stack, locals);
-                //System.out.println(instr);
-
-                if (instr.mStackDepth >= 0) {
-                    if (!sCopy.equals(stack)) {
-                        //System.out.println("stack change");
-                        //System.out.println(sCopy);
-                        //System.out.println(stack);
-                    }
-                    if (!Arrays.equals(lCopy, locals)) {
-                        //System.out.println("locals change");
-                        //System.out.println(Arrays.toString(lCopy));
-                        //System.out.println(Arrays.toString(locals));
-                    }
+        for (; instr != null; instr = instr.mNext) {
+            if (instr instanceof LabelInstruction) {
+                LabelInstruction label = (LabelInstruction) instr;
+                if (label.mIsEntry) {
+                    // Continue later from the merged types.
+                    mergeTypes(label, stack, locals, queue);
+                    return;
                 }
+                continue;
             }
 
-            // Set the stack depth, marking this instruction as being visited.
-            // If already visited, break out of this flow.
-            if (instr.mStackDepth < 0) {
-                instr.mStackDepth = stackDepth;
-            } else {
-                /* Let verifier detect this illegal state.
-                if (instr.mStackDepth != stackDepth) {
-                    throw new IllegalStateException
-                        ("Stack depth different at previously visited " +
-                         "instruction: " + instr.mStackDepth + 
-                         " != " + stackDepth);
-                }
-                */
-                if (keepGoing) {
-                    //System.out.println("should keep going");
-                    keepGoing = false;
-                } else {
-                    break;
-                }
+            instr.mStackDepth = stack.size();
+
+            Collection<ExceptionHandler<LabelInstruction>> handlers =
+                instr.getExceptionHandlers();
+
+            if (handlers != null) {
+                mergeHandlerTypes(handlers, locals, queue);
             }
 
-            stackDepth += instr.getStackAdjustment();
-            if (stackDepth > mMaxStack) {
-                mMaxStack = stackDepth;
-            } else if (stackDepth < 0) {
-                // Negative stack depth is illegal, but let verifier detect this.
-                stackDepth = 0;
+            instr.adjustTypes(stack, locals);
+
+            if (stack.size() > mMaxStack) {
+                mMaxStack = stack.size();
+            }
+
+            if (handlers != null) {
+                // Local variable stores and constructor calls change the
+                // types which the handlers can observe.
+                mergeHandlerTypes(handlers, locals, queue);
             }
 
-            // Determine the next instruction to flow down to.
-            Instruction next = instr.isFlowThrough() ? instr.mNext : null;
             LabelInstruction[] targets = instr.getBranchTargets();
 
             if (targets != null) {
-                for (int i=0; i<targets.length; i++) {
-                    LabelInstruction target = targets[i];
-
-                    if (i == 0 && next == null) {
-                        // Simply flow to the first target if instruction
-                        // doesn't flow to its next instruction.
-                        next = target;
-                        continue;
+                if (instr.isSubroutineCall()) {
+                    // This is gibberish -- subroutines aren't allowed with
+                    // the 1.6 target. Let the verifier deal with it, and
+                    // assume that the subroutine consumes its return address.
+                    Stack<VerificationInfo.Type> targetStack = new Stack<VerificationInfo.Type>();
+                    targetStack.addAll(stack);
+                    targetStack.set(stack.size() - 1, toVerificationType(TypeDesc.OBJECT));
+                    mergeTypes((LabelInstruction) targets[0].skipPseudo(),
+                               targetStack, locals, queue);
+                    stack.pop();
+                } else {
+                    for (LabelInstruction target : targets) {
+                        mergeTypes((LabelInstruction) target.skipPseudo(), stack, locals, queue);
                     }
-
-                    // Clone the stack and locals for target location.
-                    Stack<VerificationInfo.Type> targetStack = stack;
-                    VerificationInfo.Type[] targetLocals = locals;
-                    if (targetStack != null) {
-                        targetStack = new Stack<VerificationInfo.Type>();
-                        targetStack.addAll(stack);
-                        targetLocals = targetLocals.clone();
+                    if (instr instanceof BranchInstruction && instr.isFlowThrough()
+                        && instr.mNext != null)
+                    {
+                        // Needed if the branch is widened.
+                        ((BranchInstruction) instr).mShortHopInfo =
+                            newVerificationInfo(instr.mNext, stack, locals);
                     }
+                }
+            }
 
-                    if (!instr.isSubroutineCall()) {
-                        stackAnalyze(stackDepth, targetStack, targetLocals, target, subAdjustMap);
-                    } else {
-                        Integer subAdjust = subAdjustMap.get(target);
-
-                        if (subAdjust == null) {
-                            if (targetStack != null) {
-                                // This is gibberish -- subroutines aren't
-                                // allowed with the 1.6 target. Let the
-                                // verifier deal with it.
-                                targetStack.push(toVerificationType(TypeDesc.OBJECT));
-                            }
-                            int newDepth = stackAnalyze
-                                (stackDepth, targetStack, targetLocals, target, subAdjustMap);
-                            subAdjust = newDepth - stackDepth;
-                            subAdjustMap.put(target, subAdjust);
-                        }
+            if (!instr.isFlowThrough()) {
+                return;
+            }
+        }
+    }
 
-                        stackDepth += subAdjust.intValue();
-                    }
+    /**
+     * Merges types into those held by an entry point, and queues the entry
+     * point for analysis if any changed.
+     */
+    private void mergeTypes(LabelInstruction entry,
+                            List<VerificationInfo.Type> stack,
+                            VerificationInfo.Type[] locals,
+                            ArrayDeque<LabelInstruction> queue)
+    {
+        Stack<VerificationInfo.Type> entryStack = entry.mStack;
+        boolean changed = false;
 
-                    if (targetStack != null) {
-                        if (!targetStack.equals(stack)) {
-                            //System.out.println("Stack changed");
-                            //System.out.println(stack);
-                            //System.out.println(targetStack);
-                            keepGoing = true;
-                        }
-                        if (!Arrays.equals(targetLocals, locals)) {
-                            //System.out.println("Locals changed");
-                            //System.out.println(Arrays.toString(locals));
-                            //System.out.println(Arrays.toString(targetLocals));
-                            keepGoing = true;
-                        }
+        if (entryStack == null) {
+            entryStack = new Stack<VerificationInfo.Type>();
+            entryStack.addAll(stack);
+            VerificationInfo.Type[] entryLocals = locals.clone();
+
+            BitList[] varUsage = mVarUsage;
+            if (varUsage != null) {
+                // Variables which aren't live at the entry point are never
+                // read from it, and they remain top when merged. An
+                // uninitialized "this" is kept, because the verifier requires
+                // it to be seen before the constructor is invoked.
+                int location = entry.getLocation();
+                for (int i=0; i<varUsage.length; i++) {
+                    BitList list = varUsage[i];
+                    if ((list == null || !list.get(location)) && !entryLocals[i].isThis()) {
+                        entryLocals[i] = VerificationInfo.topType();
                     }
                 }
             }
 
-            analyzeHandlers: if (stack != null) {
-                Collection<ExceptionHandler<LabelInstruction>> handlers =
-                    instr.getExceptionHandlers();
-
-                if (handlers == null) {
-                    break analyzeHandlers;
+            entry.mStack = entryStack;
+            entry.mLocals = entryLocals;
+            changed = true;
+        } else {
+            // Stack size should match, but let verifier detect this.
+            int size = Math.min(entryStack.size(), stack.size());
+            for (int i=0; i<size; i++) {
+                VerificationInfo.Type type = entryStack.get(i);
+                VerificationInfo.Type other = stack.get(i);
+                if (!type.equals(other)) {
+                    VerificationInfo.Type merged = merge(type, other);
+                    if (!type.equals(merged)) {
+                        entryStack.set(i, merged);
+                        changed = true;
+                    }
                 }
+            }
 
-                for (ExceptionHandler<LabelInstruction> handler : handlers) {
-                    // FIXME: This can be really slow since each instruction in
-                    // the try-catch block branches to all handlers. This is
-                    // done only to ensure that local variable types are
-                    // merged. Optimize this somehow by seeing that catch
-                    // locatation has been visited.
-
-                    Stack<VerificationInfo.Type> catchStack;
-                    {
-                        catchStack = new Stack<VerificationInfo.Type>();
-                        TypeDesc catchType;
-                        ConstantClassInfo catchInfo = handler.getCatchType();
-                        if (catchInfo == null) {
-                            catchType = TypeDesc.forClass(Throwable.class);
-                        } else {
-                            catchType = catchInfo.getType();
-                        }
-                        catchStack.push(toVerificationType(catchType));
+            VerificationInfo.Type[] entryLocals = entry.mLocals;
+            for (int i=0; i<entryLocals.length; i++) {
+                VerificationInfo.Type type = entryLocals[i];
+                VerificationInfo.Type other = locals[i];
+                if (!type.equals(other)) {
+                    VerificationInfo.Type merged = merge(type, other);
+                    if (!type.equals(merged)) {
+                        entryLocals[i] = merged;
+                        changed = true;
                     }
-
-                    VerificationInfo.Type[] catchLocals = locals.clone();
-
-                    // FIXME
-                    /*
-                    System.out.println("*** " + instr);
-                    System.out.println(catchStack);
-                    System.out.println(Arrays.toString(catchLocals));
-                    */
-
-                    LabelInstruction catchLocation = handler.getCatchLocation();
-
-                    stackAnalyze(1, catchStack, catchLocals, catchLocation, subAdjustMap);
                 }
             }
-
-            instr = next;
         }
 
-        return stackDepth;
+        if (changed && !entry.mQueued) {
+            entry.mQueued = true;
+            queue.add(entry);
+        }
     }
 
-    // FIXME: remove
-    private void addVerificationInfo(Instruction instr,
-                                     Stack<VerificationInfo.Type> stack,
-                                     VerificationInfo.Type[] locals)
+    /**
+     * Merges local variable types into the exception handlers which guard an
+     * instruction.
+     */
+    private void mergeHandlerTypes(Collection<ExceptionHandler<LabelInstruction>> handlers,
+                                   VerificationInfo.Type[] locals,
+                                   ArrayDeque<LabelInstruction> queue)
     {
-        // Associate with a real instruction in order to support merging of types.
-        while (instr instanceof LabelInstruction) {
-            Instruction next = instr.mNext;
-            if (next == null) {
-                // A branch target should never flow past the end of the
-                // method, but ignore this and let verifier complain.
-                break;
-            }
-            instr = next;
-        }
-
-        //System.out.println(instr + ", " + Arrays.toString(locals));
-        // FIXME: Optimize merge case.
-
-        // FIXME: Merged types must be stored with instruction, then converted
-        // later.  This is required as stack analysis visits branch targets.
-        // Without this, store to local cannot read correct stack value. The
-        // skip past label must be performed before addVerificationInfo is
-        // called, before adjustTypes is called. No need to associate with real
-        // instruction, just last label in group.
-
-        {
-            BitList[] varUsage = mVarUsage;
-            int location = instr.getLocation();
-            for (int i=0; i<varUsage.length; i++) {
-                BitList list = varUsage[i];
-                if (list == null || !list.get(location)) {
-                    locals[i] = VerificationInfo.topType();
-                }
+        for (ExceptionHandler<LabelInstruction> handler : handlers) {
+            TypeDesc catchType;
+            ConstantClassInfo catchInfo = handler.getCatchType();
+            if (catchInfo == null) {
+                catchType = TypeDesc.forClass(Throwable.class);
+            } else {
+                catchType = catchInfo.getType();
             }
+            mergeTypes((LabelInstruction) handler.getCatchLocation().skipPseudo(),
+                       Collections.singletonList(toVerificationType(catchType)),
+                       locals, queue);
         }
+    }
 
+    private static VerificationInfo newVerificationInfo(Location location,
+                                                        List<VerificationInfo.Type> stack,
+                                                        VerificationInfo.Type[] locals)
+    {
         List<VerificationInfo.Type> stackCopy;
-        List<VerificationInfo.Type> localsCopy;
-
         if (stack.isEmpty()) {
             stackCopy = Collections.emptyList();
         } else {
@@ -907,104 +1136,136 @@ class InstructionList implements CodeBuffer {
             stackCopy = Arrays.asList(stack.toArray(stackArray));
         }
 
-        if (locals == null || locals.length == 0) {
-            localsCopy = Collections.emptyList();
-        } else {
-            int length = locals.length;
-            if (!locals[length - 1].isTop()) {
-                localsCopy = Arrays.asList(locals.clone());
-            } else {
-                // Prune off the top variables.
-                int i = length - 1;
-                while (--i >= 0) {
-                    if (!locals[i].isTop()) {
-                        break;
-                    }
-                }
-                if (i < 0) {
-                    localsCopy = Collections.emptyList();
-                } else {
-                    VerificationInfo.Type[] newArray = new VerificationInfo.Type[i + 1];
-                    System.arraycopy(locals, 0, newArray, 0, i + 1);
-                    localsCopy = Arrays.asList(newArray);
-                }
-            }
+        // Prune off the top variables.
+        int length = locals.length;
+        while (length > 0 && locals[length - 1].isTop()) {
+            length--;
         }
 
-        VerificationInfo existing = mVerificationInfoMap.get(instr);
-        if (existing != null) {
-            stackCopy = mergeTypes(existing.getOperandStackTypes(), stackCopy);
-            localsCopy = mergeTypes(existing.getLocalVariableTypes(), localsCopy);
+        List<VerificationInfo.Type> localsCopy;
+        if (length == 0) {
+            localsCopy = Collections.emptyList();
+        } else {
+            localsCopy = Arrays.asList(Arrays.copyOf(locals, length));
         }
 
-        mVerificationInfoMap.put(instr, new VerificationInfo(instr, stackCopy, localsCopy));
+        return new VerificationInfo(location, stackCopy, localsCopy);
     }
 
-    // FIXME: remove
-    private List<VerificationInfo.Type> mergeTypes(List<VerificationInfo.Type> a,
-                                                   List<VerificationInfo.Type> b)
+    /**
+     * Stack depth flow analysis over the encoded instructions, which is used
+     * when no types are tracked.
+     *
+     * @param stackDepth initial operand stack depth
+     * @param n flow analysis start instruction index
+     * @param subAdjustMap cache of stack adjustments for subroutine blocks;
+     * key is index of first instruction of subroutine (jsr target)
+     * @return updated stack depth, which may increment or decrement
+     */
+    private int stackAnalyze(InstructionTable table, int stackDepth, int n,
+                             IntIntHashMap subAdjustMap)
     {
-        List<VerificationInfo.Type> merged = null;
+        byte[] flags = table.mFlags;
+        int[] depths = table.mStackDepths;
+        int[] succStart = table.mSuccessorStart;
+        int[] catchStart = table.mCatchStart;
+        int[] succ = table.mSuccessors;
+        int instrCount = flags.length;
 
-        int size = Math.min(a.size(), b.size());
-        for (int i=0; i<size; i++) {
-            VerificationInfo.Type atype = a.get(i);
-            VerificationInfo.Type btype = b.get(i);
-            if (atype.equals(btype)) {
-                continue;
+        while (n >= 0) {
+            // Skip to the last label in a group.
+            while ((flags[n] & InstructionTable.LABEL) != 0 && n + 1 < instrCount
+                   && (flags[n + 1] & InstructionTable.LABEL) != 0)
+            {
+                n++;
             }
 
-            if (merged == null) {
-                if (a.size() < b.size()) {
-                    merged = new ArrayList<VerificationInfo.Type>(a);
-                } else {
-                    merged = new ArrayList<VerificationInfo.Type>(b);
-                }
+            // Set the stack depth, marking this instruction as being visited.
+            // If already visited, break out of this flow. Let verifier detect
+            // a different stack depth at a previously visited instruction.
+            if (depths[n] >= 0) {
+                break;
             }
+            depths[n] = stackDepth;
 
-            merged.set(i, merge(atype, btype));
-        }
+            stackDepth += table.mStackAdjustments[n];
+            if (stackDepth > mMaxStack) {
+                mMaxStack = stackDepth;
+            } else if (stackDepth < 0) {
+                // Negative stack depth is illegal, but let verifier detect this.
+                stackDepth = 0;
+            }
 
-        if (merged == null) {
-            // Choose the smaller because all pruned types would be top, and
-            // top always wins the merge.
-            return a.size() < b.size() ? a : b;
-        }
+            // Determine the next instruction to flow down to.
+            int next = ((flags[n] & InstructionTable.FLOW_THROUGH) != 0 && n + 1 < instrCount)
+                ? (n + 1) : -1;
+
+            int start = succStart[n];
+            int end = catchStart[n];
+            for (int i=start; i<end; i++) {
+                int target = succ[i];
+
+                if (i == start && next < 0) {
+                    // Simply flow to the first target if instruction
+                    // doesn't flow to its next instruction.
+                    next = target;
+                    continue;
+                }
 
-        // Prune off the top variables.
-        for (int i = merged.size(); --i >= 0; ) {
-            if (!merged.get(i).isTop()) {
-                break;
+                if ((flags[n] & InstructionTable.SUBROUTINE_CALL) == 0) {
+                    stackAnalyze(table, stackDepth, target, subAdjustMap);
+                } else {
+                    int subAdjust;
+
+                    if (subAdjustMap.containsKey(target)) {
+                        subAdjust = subAdjustMap.get(target, 0);
+                    } else {
+                        int newDepth = stackAnalyze(table, stackDepth, target, subAdjustMap);
+                        subAdjust = newDepth - stackDepth;
+                        subAdjustMap.put(target, subAdjust);
+                    }
+
+                    stackDepth += subAdjust;
+                }
             }
-            merged.remove(i);
+
+            n = next;
         }
 
-        return merged;
+        return stackDepth;
     }
 
     /**
      * Pass in two types which are already known to be unequal.
      */
     VerificationInfo.Type merge(VerificationInfo.Type a, VerificationInfo.Type b) {
-        //System.out.println(a + " vs. " + b);
         if (a.isTop() || b.isTop()) {
-            return a;
+            return VerificationInfo.topType();
         }
-        if (a.isReference() && b.isReference()) {
+        if (a.isReference() && b.isReference()
+            && !a.isUninitialized() && !b.isUninitialized())
+        {
             if (a.isNull()) {
-                //System.out.println("ret " + b);
                 return b;
             } else if (b.isNull()) {
-                //System.out.println("ret " + a);
                 return a;
             } else {
-                // Find a common type, even though it might not be the
-                // best. Simply choosing Object seems to be fine with the
-                // verifier. Javac tries harder, finding a common superclass,
-                // but this isn't always the best choice. It's actually quite
-                // fragile, since the common superclass might not exist at
-                // runtime.
-                return toVerificationType(TypeDesc.OBJECT);
+                // Javac finds the common superclass, but it's quite fragile,
+                // since the common superclass might not exist at runtime. And
+                // so it's only done when a resolver is provided. Otherwise,
+                // the merged type is Object, which the verifier only accepts
+                // if nothing more specific is required by the code that
+                // follows.
+                TypeDesc common = null;
+                ClassHierarchyResolver resolver = mHierarchyResolver;
+                if (resolver != null) {
+                    TypeDesc atype = a.getType();
+                    TypeDesc btype = b.getType();
+                    if (atype != null && btype != null) {
+                        common = resolver.getCommonSuperclass(atype, btype);
+                    }
+                }
+                return toVerificationType(common == null ? TypeDesc.OBJECT : common);
             }
         }
         return VerificationInfo.topType();
@@ -1047,51 +1308,373 @@ class InstructionList implements CodeBuffer {
         }
 
         /**
-         * May return null if this LocalVariable is unnamed.
+         * May return null if this LocalVariable is unnamed.
+         */
+        public String getName() {
+            return mName;
+        }
+
+        public void setName(String name) {
+            mName = name;
+        }
+
+        public TypeDesc getType() {
+            return mType;
+        }
+
+        public boolean isDoubleWord() {
+            return mType.isDoubleWord();
+        }
+
+        public int getNumber() {
+            return mNumber;
+        }
+
+        public Set<LocationRange> getLocationRangeSet() {
+            return mLocationRangeSet;
+        }
+
+        void setLocationRangeSet(Set<LocationRange> set) {
+            mLocationRangeSet = set;
+        }
+
+        public void setNumber(int number) {
+            mNumber = number;
+        }
+
+        public void setFixedNumber(int number) {
+            mNumber = number;
+            mFixed = true;
+        }
+
+        public boolean isFixedNumber() {
+            return mFixed;
+        }
+
+        public String toString() {
+            return "variable {type=" + getType() + ", name=" + getName() + '}';
+        }
+    }
+
+    /**
+     * Compact encoding of the instruction flow graph, in which each
+     * instruction is identified by its index. Flow analysis runs over these
+     * arrays instead of querying each instruction object, which would
+     * otherwise allocate branch target arrays and handler sets.
+     */
+    private final class InstructionTable {
+        static final int FLOW_THROUGH = 1, SUBROUTINE_CALL = 2, LABEL = 4,
+            USE = 8, DEF = 16, STORE = 32;
+
+        final Instruction[] mInstructions;
+        final byte[] mFlags;
+        final int[] mStackAdjustments;
+        // Local variable index, for instructions with USE or DEF flags.
+        final int[] mVariables;
+
+        // Successors of instruction n are in mSuccessors, from
+        // mSuccessorStart[n] to mSuccessorStart[n + 1]. Branch targets are
+        // first, and exception handler entry points start at mCatchStart[n].
+        final int[] mSuccessorStart;
+        final int[] mCatchStart;
+        final int[] mSuccessors;
+
+        // Entry point of each exception handler, or -1 if not in the list.
+        final int[] mHandlerCatches;
+
+        final int[] mStackDepths;
+
+        /**
+         * Instructions must have already been reset to their indexes.
+         */
+        InstructionTable(int instrCount) {
+            Instruction[] instrs = new Instruction[instrCount];
+            byte[] flags = new byte[instrCount];
+            int[] adjustments = new int[instrCount];
+            int[] vars = new int[instrCount];
+
+            int n = 0;
+            for (Instruction instr = mFirst; instr != null; instr = instr.mNext, n++) {
+                instrs[n] = instr;
+                adjustments[n] = instr.getStackAdjustment();
+
+                int flag = 0;
+                if (instr.isFlowThrough()) {
+                    flag |= FLOW_THROUGH;
+                }
+                if (instr.isSubroutineCall()) {
+                    flag |= SUBROUTINE_CALL;
+                }
+                if (instr instanceof LabelInstruction) {
+                    flag |= LABEL;
+                } else if (instr instanceof LocalOperandInstruction) {
+                    LocalOperandInstruction loi = (LocalOperandInstruction) instr;
+                    vars[n] = loi.getLocalVariable().getIndex();
+                    if (loi.isLoad()) {
+                        flag |= USE;
+                    }
+                    if (loi.isStore()) {
+                        flag |= DEF;
+                        if (loi instanceof StoreLocalInstruction) {
+                            flag |= STORE;
+                        }
+                    }
+                }
+                flags[n] = (byte) flag;
+            }
+
+            mInstructions = instrs;
+            mFlags = flags;
+            mStackAdjustments = adjustments;
+            mVariables = vars;
+
+            // Resolve exception handler ranges, counting the handlers which
+            // guard each instruction.
+            List<ExceptionHandler<LabelInstruction>> handlers = mExceptionHandlers;
+            int handlerCount = handlers.size();
+            int[] handlerRanges = new int[handlerCount * 2];
+            int[] catches = new int[handlerCount];
+            int[] catchCounts = new int[instrCount];
+
+            for (int h=0; h<handlerCount; h++) {
+                ExceptionHandler<LabelInstruction> handler = handlers.get(h);
+                int start = indexOf(handler.getStartLocation());
+                int end = indexOf(handler.getEndLocation());
+                if (end < start) {
+                    // Guarded range extends to the end.
+                    end = instrCount;
+                }
+                int enter = indexOf(handler.getCatchLocation());
+                catches[h] = enter;
+                if (start < 0 || enter < 0) {
+                    start = end = 0;
+                }
+                handlerRanges[h * 2] = start;
+                handlerRanges[h * 2 + 1] = end;
+                for (int i=start; i<end; i++) {
+                    catchCounts[i]++;
+                }
+            }
+
+            mHandlerCatches = catches;
+
+            // Fill in branch targets and reserve room for handler entries.
+            int[] succStart = new int[instrCount + 1];
+            int[] catchStart = new int[instrCount];
+            int[] succ = new int[instrCount];
+            int size = 0;
+
+            for (n=0; n<instrCount; n++) {
+                succStart[n] = size;
+                LabelInstruction[] targets = instrs[n].getBranchTargets();
+                int targetCount = targets == null ? 0 : targets.length;
+                int required = size + targetCount + catchCounts[n];
+                if (required > succ.length) {
+                    succ = Arrays.copyOf(succ, Math.max(succ.length * 2, required));
+                }
+                for (int i=0; i<targetCount; i++) {
+                    succ[size++] = targets[i].getLocation();
+                }
+                catchStart[n] = size;
+                // Count becomes the cursor for filling in handler entries.
+                catchCounts[n] = size;
+                size = required;
+            }
+
+            succStart[instrCount] = size;
+
+            for (int h=0; h<handlerCount; h++) {
+                int enter = catches[h];
+                for (int i = handlerRanges[h * 2], end = handlerRanges[h * 2 + 1]; i < end; i++) {
+                    succ[catchCounts[i]++] = enter;
+                }
+            }
+
+            mSuccessorStart = succStart;
+            mCatchStart = catchStart;
+            mSuccessors = succ;
+
+            int[] depths = new int[instrCount];
+            Arrays.fill(depths, -1);
+            mStackDepths = depths;
+        }
+
+        /**
+         * Copies the results of stack depth flow analysis into the
+         * instructions.
+         */
+        void copyStackDepths() {
+            Instruction[] instrs = mInstructions;
+            int[] depths = mStackDepths;
+            for (int n=0; n<instrs.length; n++) {
+                instrs[n].mStackDepth = depths[n];
+            }
+        }
+
+        /**
+         * @return -1 if instruction isn't in the list
+         */
+        private int indexOf(Instruction instr) {
+            int n = instr.mLocation;
+            return (n >= 0 && n < mInstructions.length && mInstructions[n] == instr) ? n : -1;
+        }
+    }
+
+    /**
+     * Assigns local variable registers, treating each variable as a set of
+     * live ranges. Variables share a register only if none of their ranges
+     * overlap.
+     */
+    private static final class RegisterAllocator {
+        // Sorted and disjoint ranges of instruction indexes in which each
+        // register is occupied, as pairs of inclusive start and exclusive end.
+        private int[][] mRanges = new int[8][];
+        private int[] mLengths = new int[8];
+        private int mSize;
+
+        /**
+         * @param ranges variable live ranges, which must not be null
+         * @return lowest register which is free over all the ranges, and
+         * which is followed by another free register if double word
          */
-        public String getName() {
-            return mName;
+        int allocate(int[] ranges, boolean doubleWord) {
+            for (int r=0; ; r++) {
+                if (isFree(r, ranges) && (!doubleWord || isFree(r + 1, ranges))) {
+                    reserve(r, ranges);
+                    if (doubleWord) {
+                        reserve(r + 1, ranges);
+                    }
+                    return r;
+                }
+            }
         }
 
-        public void setName(String name) {
-            mName = name;
-        }
+        /**
+         * @param ranges variable live ranges; null if never live
+         */
+        void reserve(int r, int[] ranges) {
+            if (r >= mSize) {
+                mSize = r + 1;
+                if (r >= mRanges.length) {
+                    int capacity = Math.max(mRanges.length * 2, r + 1);
+                    mRanges = Arrays.copyOf(mRanges, capacity);
+                    mLengths = Arrays.copyOf(mLengths, capacity);
+                }
+            }
 
-        public TypeDesc getType() {
-            return mType;
-        }
+            if (ranges == null) {
+                return;
+            }
 
-        public boolean isDoubleWord() {
-            return mType.isDoubleWord();
-        }
+            int[] occupied = mRanges[r];
+            int length = mLengths[r];
 
-        public int getNumber() {
-            return mNumber;
-        }
+            if (occupied == null) {
+                mRanges[r] = Arrays.copyOf(ranges, Math.max(8, ranges.length));
+                mLengths[r] = ranges.length;
+                return;
+            }
 
-        public Set<LocationRange> getLocationRangeSet() {
-            return mLocationRangeSet;
-        }
+            if (ranges[0] >= occupied[length - 1]) {
+                // Common case when variables are assigned in order; append.
+                if (length + ranges.length > occupied.length) {
+                    mRanges[r] = occupied = Arrays.copyOf
+                        (occupied, Math.max(occupied.length * 2, length + ranges.length));
+                }
+                mLengths[r] = merge(occupied, length, ranges, 0, ranges.length);
+                return;
+            }
 
-        void setLocationRangeSet(Set<LocationRange> set) {
-            mLocationRangeSet = set;
-        }
+            int[] merged = new int[length + ranges.length];
+            int mergedLength = 0;
+            int i = 0, j = 0;
+            while (i < length || j < ranges.length) {
+                if (j >= ranges.length || (i < length && occupied[i] <= ranges[j])) {
+                    mergedLength = merge(merged, mergedLength, occupied, i, 2);
+                    i += 2;
+                } else {
+                    mergedLength = merge(merged, mergedLength, ranges, j, 2);
+                    j += 2;
+                }
+            }
 
-        public void setNumber(int number) {
-            mNumber = number;
+            mRanges[r] = merged;
+            mLengths[r] = mergedLength;
         }
 
-        public void setFixedNumber(int number) {
-            mNumber = number;
-            mFixed = true;
+        /**
+         * @return number of registers
+         */
+        int size() {
+            return mSize;
         }
 
-        public boolean isFixedNumber() {
-            return mFixed;
+        private boolean isFree(int r, int[] ranges) {
+            if (r >= mSize || ranges == null) {
+                return true;
+            }
+            int[] occupied = mRanges[r];
+            if (occupied == null) {
+                return true;
+            }
+            int length = mLengths[r];
+            int i = 0;
+            for (int j=0; j<ranges.length; j+=2) {
+                // Skip occupied ranges which end before this range starts. Both
+                // lists are sorted, and so gallop forward and then do a binary
+                // search, which is fast for short and long lists alike.
+                int start = ranges[j];
+                if (occupied[i + 1] <= start) {
+                    int low = i + 2;
+                    int step = 2;
+                    while (true) {
+                        int probe = i + step;
+                        if (probe >= length) {
+                            probe = length;
+                        } else if (occupied[probe + 1] <= start) {
+                            low = probe + 2;
+                            step <<= 1;
+                            continue;
+                        }
+                        // Range is at or before the probe.
+                        int high = probe - 2;
+                        while (low <= high) {
+                            int mid = ((low + high) >>> 1) & ~1;
+                            if (occupied[mid + 1] <= start) {
+                                low = mid + 2;
+                            } else {
+                                high = mid - 2;
+                            }
+                        }
+                        break;
+                    }
+                    if ((i = low) >= length) {
+                        return true;
+                    }
+                }
+                if (occupied[i] < ranges[j + 1]) {
+                    return false;
+                }
+            }
+            return true;
         }
 
-        public String toString() {
-            return "variable {type=" + getType() + ", name=" + getName() + '}';
+        /**
+         * Appends sorted ranges, coalescing any that overlap or touch.
+         *
+         * @return new length of the target
+         */
+        private static int merge(int[] target, int length, int[] ranges, int from, int count) {
+            for (int end = from + count; from < end; from += 2) {
+                int start = ranges[from];
+                if (length > 0 && target[length - 1] >= start) {
+                    target[length - 1] = Math.max(target[length - 1], ranges[from + 1]);
+                } else {
+                    target[length++] = start;
+                    target[length++] = ranges[from + 1];
+                }
+            }
+            return length;
         }
     }
 
@@ -1267,14 +1850,13 @@ class InstructionList implements CodeBuffer {
         }
 
         /**
+         * Adjusts the known types to reflect the execution of this instruction.
+         *
          * @param stack mutable representation of known types on stack; double
          * word types occupy two slots
          * @param locals mutable representation of known types for local
          * variables; double word types occupy two slots
-         * @return true if any changes to types on stack or in locals; stack size change
-         * not considered a type change
          */
-        // FIXME: return type doc wrong
         public abstract void adjustTypes(Stack<VerificationInfo.Type> stack,
                                          VerificationInfo.Type[] locals);
 
@@ -1338,6 +1920,27 @@ class InstructionList implements CodeBuffer {
          */
         public abstract byte[] getBytes();
 
+        /**
+         * Returns the number of bytes generated for this instruction at its
+         * current location, which is zero for pseudo instructions. Unlike
+         * getBytes, this method doesn't allocate a byte array.
+         */
+        int getLength() {
+            byte[] bytes = getBytes();
+            return bytes == null ? 0 : bytes.length;
+        }
+
+        /**
+         * Writes the bytes generated for this instruction into the given
+         * array, which must have room for getLength bytes.
+         */
+        void writeTo(byte[] code, int offset) {
+            byte[] bytes = getBytes();
+            if (bytes != null) {
+                System.arraycopy(bytes, 0, code, offset, bytes.length);
+            }
+        }
+
         /**
          * An instruction is resolved when it has all information needed to
          * generate correct byte code.
@@ -1439,6 +2042,7 @@ class InstructionList implements CodeBuffer {
             mStackDepth = -1;
             // Start with a fake location.
             mLocation = instrCount;
+            mExceptionHandlers = null;
         }
     }
 
@@ -1448,8 +2052,14 @@ class InstructionList implements CodeBuffer {
      */
     public class LabelInstruction extends Instruction implements Label {
         private boolean mIsTarget;
-        private Stack<VerificationInfo.Type> mStack;
-        private VerificationInfo.Type[] mLocals;
+
+        // Set on the last label of a group when any is a branch target.
+        boolean mIsEntry;
+        boolean mQueued;
+
+        // Merged types at the entry point, or null if not reached.
+        Stack<VerificationInfo.Type> mStack;
+        VerificationInfo.Type[] mLocals;
 
         public LabelInstruction() {
             super(0, false);
@@ -1512,6 +2122,15 @@ class InstructionList implements CodeBuffer {
             return null;
         }
 
+        @Override
+        int getLength() {
+            return 0;
+        }
+
+        @Override
+        void writeTo(byte[] code, int offset) {
+        }
+
         @Override
         public boolean isResolved() {
             return getLocation() >= 0;
@@ -1532,73 +2151,22 @@ class InstructionList implements CodeBuffer {
         }
 
         /**
-         * Stores a copy of the stack and locals, but also modifies them to
-         * match what was previously stored here.
+         * Labels don't change types. Instead, types are merged by the flow
+         * analysis at each entry point.
          */
         @Override
         public void adjustTypes(Stack<VerificationInfo.Type> stack,
                                 VerificationInfo.Type[] locals)
         {
-            if (!isBranchTarget()) {
-                //return false;
-                // FIXME
-                return;
-            }
-
-            boolean changes = false;
-            if (mStack == null) {
-                mStack = new Stack<VerificationInfo.Type>();
-                mStack.addAll(stack);
-
-                // Merge usage, but only needs to be done first time.
-                BitList[] varUsage = mVarUsage;
-                int location = getLocation();
-                for (int i=0; i<varUsage.length; i++) {
-                    BitList list = varUsage[i];
-                    if (list == null || !list.get(location)) {
-                        if (!locals[i].isTop()) {
-                            locals[i] = VerificationInfo.topType();
-                            changes = true;
-                        }
-                    }
-                }
-
-                mLocals = locals.clone();
-            } else {
-                Stack<VerificationInfo.Type> ourStack = mStack;
-                // Stack size should match, but let verifier detect this.
-                int size = Math.min(ourStack.size(), stack.size());
-
-                for (int i=0; i<size; i++) {
-                    VerificationInfo.Type type = stack.get(i);
-                    VerificationInfo.Type ourType = ourStack.get(i);
-                    if (!type.equals(ourType)) {
-                        type = merge(type, ourType);
-                        stack.set(i, type);
-                        ourStack.set(i, type);
-                        changes = true;
-                    }
-                }
-                
-                VerificationInfo.Type[] ourLocals = mLocals;
-                // Locals should always match length, but choose larger to
-                // expose any potential bug.
-                size = Math.max(ourLocals.length, locals.length);
-
-                for (int i=0; i<size; i++) {
-                    VerificationInfo.Type type = locals[i];
-                    VerificationInfo.Type ourType = ourLocals[i];
-                    if (!type.equals(ourType)) {
-                        type = merge(type, ourType);
-                        locals[i]= type;
-                        ourLocals[i] = type;
-                        changes = true;
-                    }
-                }
-            }
+        }
 
-            // FIXME return changes;
-            return;
+        @Override
+        void reset(int instrCount) {
+            super.reset(instrCount);
+            mIsEntry = false;
+            mQueued = false;
+            mStack = null;
+            mLocals = null;
         }
 
         // FIXME: testing
@@ -1665,6 +2233,16 @@ class InstructionList implements CodeBuffer {
             return mBytes;
         }
 
+        @Override
+        int getLength() {
+            return mBytes.length;
+        }
+
+        @Override
+        void writeTo(byte[] code, int offset) {
+            System.arraycopy(mBytes, 0, code, offset, mBytes.length);
+        }
+
         @Override
         public boolean isResolved() {
             return true;
@@ -1716,8 +2294,7 @@ class InstructionList implements CodeBuffer {
                 // Push a type which is more accurate than specified by user.
                 stack.pop(); // pop array index
                 TypeDesc arrayType = stack.pop().getType();
-                TypeDesc actualType;
-                if (arrayType.isArray()) {
+                if (arrayType != null && arrayType.isArray()) {
                     stack.push(toVerificationType(arrayType.getComponentType()));
                 } else {
                     // Fallback to user type.
@@ -1770,6 +2347,17 @@ class InstructionList implements CodeBuffer {
             return mBytes;
         }
 
+        @Override
+        int getLength() {
+            return getBytes().length;
+        }
+
+        @Override
+        void writeTo(byte[] code, int offset) {
+            byte[] bytes = getBytes();
+            System.arraycopy(bytes, 0, code, offset, bytes.length);
+        }
+
         @Override
         public boolean isResolved() {
             return mInfo.getIndex() >= 0;
@@ -1817,6 +2405,7 @@ class InstructionList implements CodeBuffer {
 
         switch (opcode) {
         case Opcode.INVOKESTATIC:
+        case Opcode.INVOKEDYNAMIC:
             break;
         case Opcode.INVOKEVIRTUAL:
         case Opcode.INVOKEINTERFACE:
@@ -1836,6 +2425,9 @@ class InstructionList implements CodeBuffer {
         if (opcode == Opcode.INVOKEINTERFACE) {
             bytes = new byte[5];
             bytes[3] = (byte)(1 + argSize(params));
+        } else if (opcode == Opcode.INVOKEDYNAMIC) {
+            // Last two bytes must be zero.
+            bytes = new byte[5];
         } else {
             bytes = new byte[3];
         }
@@ -1882,13 +2474,22 @@ class InstructionList implements CodeBuffer {
         {
             VerificationInfo.Type type = stack.get(stack.size() + getStackAdjustment());
             if (type.isUninitialized()) {
-                VerificationInfo.Type newType = VerificationInfo.toType(mConstuctedType);
+                VerificationInfo.Type newType;
+                if (type.isThis()) {
+                    newType = toVerificationType(mLocalVariables.get(0).getType());
+                } else {
+                    newType = toVerificationType(mConstuctedType);
+                }
                 for (int i=stack.size(); --i>=0; ) {
-                    VerificationInfo.Type stype = stack.get(i);
-                    if (stype == type) {
+                    if (stack.get(i) == type) {
                         stack.set(i, newType);
                     }
                 }
+                for (int i=locals.length; --i>=0; ) {
+                    if (locals[i] == type) {
+                        locals[i] = newType;
+                    }
+                }
             }
             super.adjustTypes(stack, locals);
         }
@@ -1957,30 +2558,42 @@ class InstructionList implements CodeBuffer {
 
         @Override
         public byte[] getBytes() {
-            int index = mInfo.getIndex();
+            byte[] bytes = new byte[getLength()];
+            writeTo(bytes, 0);
+            return bytes;
+        }
 
-            if (index < 0) {
-                throw new IllegalStateException("Constant pool index not resolved");
-            }
+        @Override
+        int getLength() {
+            return (mWideOnly || getIndex() > 255) ? 3 : 2;
+        }
+
+        @Override
+        void writeTo(byte[] code, int offset) {
+            int index = getIndex();
 
             if (mWideOnly) {
-                byte[] bytes = new byte[3];
-                bytes[0] = Opcode.LDC2_W;
-                bytes[1] = (byte)(index >> 8);
-                bytes[2] = (byte)index;
-                return bytes;
+                code[offset++] = Opcode.LDC2_W;
+                code[offset++] = (byte)(index >> 8);
+                code[offset] = (byte)index;
             } else if (index <= 255) {
-                byte[] bytes = new byte[2];
-                bytes[0] = Opcode.LDC;
-                bytes[1] = (byte)index;
-                return bytes;
+                code[offset++] = Opcode.LDC;
+                code[offset] = (byte)index;
             } else {
-                byte[] bytes = new byte[3];
-                bytes[0] = Opcode.LDC_W;
-                bytes[1] = (byte)(index >> 8);
-                bytes[2] = (byte)index;
-                return bytes;
+                code[offset++] = Opcode.LDC_W;
+                code[offset++] = (byte)(index >> 8);
+                code[offset] = (byte)index;
+            }
+        }
+
+        private int getIndex() {
+            int index = mInfo.getIndex();
+
+            if (index < 0) {
+                throw new IllegalStateException("Constant pool index not resolved");
             }
+
+            return index;
         }
 
         @Override
@@ -1995,17 +2608,15 @@ class InstructionList implements CodeBuffer {
      */
     public class BranchInstruction extends CodeInstruction {
         private final LabelInstruction mTarget;
-        private boolean mHasShortHop = false;
+        boolean mHasShortHop = false;
         private boolean mIsSub = false;
 
+        // Types at the next instruction, which needs a frame if widened.
+        VerificationInfo mShortHopInfo;
+
         public BranchInstruction(int stackAdjust,
                                  byte opcode, LabelInstruction target) {
-            this(stackAdjust, true, opcode, target);
-        }
-
-        private BranchInstruction(int stackAdjust, boolean addInstruction,
-                                  byte opcode, LabelInstruction target) {
-            super(stackAdjust, null, addInstruction);
+            super(stackAdjust, null);
 
             mTarget = target;
             target.markBranchTarget();
@@ -2056,34 +2667,51 @@ class InstructionList implements CodeBuffer {
             return mIsSub;
         }
 
+        @Override
+        void reset(int instrCount) {
+            super.reset(instrCount);
+            mShortHopInfo = null;
+        }
+
         @Override
         public byte[] getBytes() {
-            if (!isResolved() || mHasShortHop) {
-                return mBytes;
+            byte[] bytes = new byte[getLength()];
+            writeTo(bytes, 0);
+            return bytes;
+        }
+
+        @Override
+        int getLength() {
+            // A short hop is followed by a goto_w instruction.
+            return mHasShortHop ? (3 + 5) : mBytes.length;
+        }
+
+        /**
+         * Switches to a wider form of this branch if the offset to the target
+         * doesn't fit, as of the current locations.
+         *
+         * @return true if length changed
+         */
+        boolean widen() {
+            if (mHasShortHop || mBytes.length != 3) {
+                // Already wide.
+                return false;
             }
 
             int offset = mTarget.getLocation() - mLocation;
+            if (-32768 <= offset && offset <= 32767) {
+                return false;
+            }
+
             byte opcode = mBytes[0];
 
-            if (opcode == Opcode.GOTO_W || opcode == Opcode.JSR_W) {
-                mBytes[1] = (byte)(offset >> 24);
-                mBytes[2] = (byte)(offset >> 16);
-                mBytes[3] = (byte)(offset >> 8);
-                mBytes[4] = (byte)(offset >> 0);
-            } else if (-32768 <= offset && offset <= 32767) {
-                mBytes[1] = (byte)(offset >> 8);
-                mBytes[2] = (byte)(offset >> 0);
-            } else if (opcode == Opcode.GOTO || opcode == Opcode.JSR) {
+            if (opcode == Opcode.GOTO || opcode == Opcode.JSR) {
                 mBytes = new byte[5];
                 if (opcode == Opcode.GOTO) {
                     mBytes[0] = Opcode.GOTO_W;
                 } else {
                     mBytes[0] = Opcode.JSR_W;
                 }
-                mBytes[1] = (byte)(offset >> 24);
-                mBytes[2] = (byte)(offset >> 16);
-                mBytes[3] = (byte)(offset >> 8);
-                mBytes[4] = (byte)(offset >> 0);
             } else {
                 // The if branch requires a 32 bit offset.
 
@@ -2101,19 +2729,44 @@ class InstructionList implements CodeBuffer {
                 // target:   // reached if <cond> true
 
                 mHasShortHop = true;
+                mBytes[0] = Opcode.reverseIfOpcode(opcode);
+            }
 
-                opcode = Opcode.reverseIfOpcode(opcode);
+            return true;
+        }
 
-                mBytes[0] = opcode;
+        @Override
+        void writeTo(byte[] code, int offset) {
+            byte[] bytes = mBytes;
+            int location = mLocation;
+
+            if (mHasShortHop) {
+                code[offset++] = bytes[0];
                 // Specify offset to jump to shortHop.
-                mBytes[1] = (byte)0;
-                mBytes[2] = (byte)(3 + 5); // 3: if statement size; 5: goto_w size
+                code[offset++] = (byte)0;
+                code[offset++] = (byte)(3 + 5); // 3: if statement size; 5: goto_w size
+                code[offset++] = Opcode.GOTO_W;
+                location += 3;
+                bytes = null;
+            } else {
+                code[offset++] = bytes[0];
+            }
 
-                // insert goto_w instruction after this one.
-                insert(new BranchInstruction(0, false, Opcode.GOTO_W, mTarget));
+            if (!isResolved()) {
+                return;
             }
 
-            return mBytes;
+            int branchOffset = mTarget.getLocation() - location;
+
+            if (bytes == null || bytes.length == 5) {
+                code[offset++] = (byte)(branchOffset >> 24);
+                code[offset++] = (byte)(branchOffset >> 16);
+                code[offset++] = (byte)(branchOffset >> 8);
+                code[offset] = (byte)(branchOffset >> 0);
+            } else {
+                code[offset++] = (byte)(branchOffset >> 8);
+                code[offset] = (byte)(branchOffset >> 0);
+            }
         }
 
         @Override
@@ -2155,9 +2808,45 @@ class InstructionList implements CodeBuffer {
             return varNum;
         }
 
+        @Override
+        public byte[] getBytes() {
+            byte[] bytes = new byte[getLength()];
+            writeTo(bytes, 0);
+            return bytes;
+        }
+
+        @Override
+        abstract int getLength();
+
+        @Override
+        abstract void writeTo(byte[] code, int offset);
+
         public abstract boolean isLoad();
 
         public abstract boolean isStore();
+
+        /**
+         * Returns the length of an instruction with an explicit variable
+         * number operand, which is wide if the number doesn't fit in a byte.
+         */
+        int operandLength(int varNum) {
+            return varNum <= 255 ? 2 : 4;
+        }
+
+        /**
+         * Writes an instruction with an explicit variable number operand.
+         */
+        void writeOperand(byte[] code, int offset, byte opcode, int varNum) {
+            if (varNum <= 255) {
+                code[offset++] = opcode;
+                code[offset] = (byte)varNum;
+            } else {
+                code[offset++] = Opcode.WIDE;
+                code[offset++] = opcode;
+                code[offset++] = (byte)(varNum >> 8);
+                code[offset] = (byte)varNum;
+            }
+        }
     }
 
     /**
@@ -2178,10 +2867,15 @@ class InstructionList implements CodeBuffer {
         }
 
         @Override
-        public byte[] getBytes() {
+        int getLength() {
+            int varNum = getVariableNumber();
+            return varNum <= 3 ? 1 : operandLength(varNum);
+        }
+
+        @Override
+        void writeTo(byte[] code, int offset) {
             int varNum = getVariableNumber();
             byte opcode;
-            boolean writeIndex = false;
 
             int typeCode = mLocal.getType().getTypeCode();
 
@@ -2279,8 +2973,6 @@ class InstructionList implements CodeBuffer {
                 }
                 break;
             default:
-                writeIndex = true;
-
                 switch (typeCode) {
                 default:
                     opcode = Opcode.ALOAD;
@@ -2305,32 +2997,21 @@ class InstructionList implements CodeBuffer {
                 break;
             }
 
-            if (!writeIndex) {
-                mBytes = new byte[] { opcode };
+            if (varNum <= 3) {
+                code[offset] = opcode;
             } else {
-                if (varNum <= 255) {
-                    mBytes = new byte[] { opcode, (byte)varNum };
-                } else {
-                    mBytes = new byte[] 
-                    {
-                        Opcode.WIDE,
-                        opcode,
-                        (byte)(varNum >> 8),
-                        (byte)varNum
-                    };
-                }
+                writeOperand(code, offset, opcode, varNum);
             }
-
-            return mBytes;
         }
 
         @Override
         public void adjustTypes(Stack<VerificationInfo.Type> stack,
                                 VerificationInfo.Type[] locals)
         {
-            if (mPushed.isReference()) {
+            VerificationInfo.Type type;
+            if (mPushed.isReference() && !(type = locals[getVariableNumber()]).isTop()) {
                 // Push a type which is more accurate than specified by user.
-                stack.push(locals[getVariableNumber()]);
+                stack.push(type);
             } else {
                 super.adjustTypes(stack, locals);
             }
@@ -2362,17 +3043,26 @@ class InstructionList implements CodeBuffer {
         }
 
         @Override
-        public byte[] getBytes() {
+        int getLength() {
+            if (mDiscardResult) {
+                return 1;
+            }
+            int varNum = getVariableNumber();
+            return varNum <= 3 ? 1 : operandLength(varNum);
+        }
+
+        @Override
+        void writeTo(byte[] code, int offset) {
             if (mDiscardResult) {
                 // Liveness analysis discovered that the results of this store
                 // are not needed so just pop it off the stack.
-                return new byte[] { mLocal.isDoubleWord() ? Opcode.POP2 : Opcode.POP };
+                code[offset] = mLocal.isDoubleWord() ? Opcode.POP2 : Opcode.POP;
+                return;
             }
 
             int varNum = getVariableNumber();
 
             byte opcode;
-            boolean writeIndex = false;
 
             int typeCode = mLocal.getType().getTypeCode();
 
@@ -2470,8 +3160,6 @@ class InstructionList implements CodeBuffer {
                 }
                 break;
             default:
-                writeIndex = true;
-
                 switch (typeCode) {
                 default:
                     opcode = Opcode.ASTORE;
@@ -2496,23 +3184,11 @@ class InstructionList implements CodeBuffer {
                 break;
             }
 
-            if (!writeIndex) {
-                mBytes = new byte[] { opcode };
+            if (varNum <= 3) {
+                code[offset] = opcode;
             } else {
-                if (varNum <= 255) {
-                    mBytes = new byte[] { opcode, (byte)varNum };
-                } else {
-                    mBytes = new byte[] 
-                    {
-                        Opcode.WIDE,
-                        opcode,
-                        (byte)(varNum >> 8),
-                        (byte)varNum
-                    };
-                }
+                writeOperand(code, offset, opcode, varNum);
             }
-
-            return mBytes;
         }
 
         @Override
@@ -2526,11 +3202,16 @@ class InstructionList implements CodeBuffer {
         {
             if (!mDiscardResult && !stack.isEmpty()) {
                 int varNum = getVariableNumber();
-                if ((locals[varNum] = stack.peek()).isDoubleWord()) {
+                if (mLocal.isDoubleWord()) {
+                    locals[varNum] = stack.get(stack.size() - 2);
                     locals[varNum + 1] = VerificationInfo.topType();
+                } else {
+                    locals[varNum] = stack.peek();
+                }
+                if (varNum > 0 && locals[varNum - 1].isDoubleWord()) {
+                    // Overwrote the second word of a double word variable.
+                    locals[varNum - 1] = VerificationInfo.topType();
                 }
-                //System.out.println("xxx " + stack);
-                //System.out.println("*** " + this + ", " + Arrays.toString(locals));
             }
             super.adjustTypes(stack, locals);
         }
@@ -2572,22 +3253,13 @@ class InstructionList implements CodeBuffer {
         }
 
         @Override
-        public byte[] getBytes() {
-            int varNum = getVariableNumber();
-
-            if (varNum <= 255) {
-                mBytes = new byte[] { Opcode.RET, (byte)varNum };
-            } else {
-                mBytes = new byte[] 
-                { 
-                    Opcode.WIDE, 
-                    Opcode.RET, 
-                    (byte)(varNum >> 8),
-                    (byte)varNum
-                };
-            }
+        int getLength() {
+            return operandLength(getVariableNumber());
+        }
 
-            return mBytes;
+        @Override
+        void writeTo(byte[] code, int offset) {
+            writeOperand(code, offset, Opcode.RET, getVariableNumber());
         }
 
         public boolean isLoad() {
@@ -2617,27 +3289,30 @@ class InstructionList implements CodeBuffer {
         }
 
         @Override
-        public byte[] getBytes() {
+        int getLength() {
+            return isShort(getVariableNumber()) ? 3 : 6;
+        }
+
+        @Override
+        void writeTo(byte[] code, int offset) {
             int varNum = getVariableNumber();
 
-            if ((-128 <= mAmount && mAmount <= 127) && varNum <= 255) {
-                mBytes = new byte[] {
-                    Opcode.IINC, 
-                    (byte)varNum, 
-                    (byte)mAmount 
-                };
+            if (isShort(varNum)) {
+                code[offset++] = Opcode.IINC;
+                code[offset++] = (byte)varNum;
+                code[offset] = (byte)mAmount;
             } else {
-                mBytes = new byte[] {
-                    Opcode.WIDE,
-                    Opcode.IINC,
-                    (byte)(varNum >> 8),
-                    (byte)varNum,
-                    (byte)(mAmount >> 8),
-                    (byte)mAmount
-                };
+                code[offset++] = Opcode.WIDE;
+                code[offset++] = Opcode.IINC;
+                code[offset++] = (byte)(varNum >> 8);
+                code[offset++] = (byte)varNum;
+                code[offset++] = (byte)(mAmount >> 8);
+                code[offset] = (byte)mAmount;
             }
+        }
 
-            return mBytes;
+        private boolean isShort(int varNum) {
+            return (-128 <= mAmount && mAmount <= 127) && varNum <= 255;
         }
 
         public boolean isLoad() {
@@ -2745,6 +3420,15 @@ class InstructionList implements CodeBuffer {
 
         @Override
         public byte[] getBytes() {
+            byte[] bytes = new byte[getLength()];
+            if (isResolved()) {
+                writeTo(bytes, 0);
+            }
+            return bytes;
+        }
+
+        @Override
+        int getLength() {
             int length = 1;
             int pad = 3 - (mLocation & 3);
             length += pad;
@@ -2755,73 +3439,51 @@ class InstructionList implements CodeBuffer {
                 length += 8 + 8 * mCases.length;
             }
 
-            mBytes = new byte[length];
+            return length;
+        }
 
-            if (!isResolved()) {
-                return mBytes;
+        @Override
+        void writeTo(byte[] code, int offset) {
+            code[offset] = mOpcode;
+            int cursor = offset + 1;
+            for (int pad = 3 - (mLocation & 3); --pad >= 0; ) {
+                code[cursor++] = 0;
             }
 
-            mBytes[0] = mOpcode;
-            int cursor = pad + 1;
-
             int defaultOffset = mDefaultLocation.getLocation() - mLocation;
-            mBytes[cursor++] = (byte)(defaultOffset >> 24);
-            mBytes[cursor++] = (byte)(defaultOffset >> 16);
-            mBytes[cursor++] = (byte)(defaultOffset >> 8);
-            mBytes[cursor++] = (byte)(defaultOffset >> 0);
+            cursor = writeInt(code, cursor, defaultOffset);
 
             if (mOpcode == Opcode.TABLESWITCH) {
-                mBytes[cursor++] = (byte)(mSmallest >> 24);
-                mBytes[cursor++] = (byte)(mSmallest >> 16);
-                mBytes[cursor++] = (byte)(mSmallest >> 8);
-                mBytes[cursor++] = (byte)(mSmallest >> 0);
-
-                mBytes[cursor++] = (byte)(mLargest >> 24);
-                mBytes[cursor++] = (byte)(mLargest >> 16);
-                mBytes[cursor++] = (byte)(mLargest >> 8);
-                mBytes[cursor++] = (byte)(mLargest >> 0);
+                cursor = writeInt(code, cursor, mSmallest);
+                cursor = writeInt(code, cursor, mLargest);
 
                 int index = 0;
                 for (int case_ = mSmallest; case_ <= mLargest; case_++) {
                     if (case_ == mCases[index]) {
-                        int offset = 
-                            mLocations[index].getLocation() - mLocation;
-                        mBytes[cursor++] = (byte)(offset >> 24);
-                        mBytes[cursor++] = (byte)(offset >> 16);
-                        mBytes[cursor++] = (byte)(offset >> 8);
-                        mBytes[cursor++] = (byte)(offset >> 0);
-
+                        int caseOffset = mLocations[index].getLocation() - mLocation;
+                        cursor = writeInt(code, cursor, caseOffset);
                         index++;
                     } else {
-                        mBytes[cursor++] = (byte)(defaultOffset >> 24);
-                        mBytes[cursor++] = (byte)(defaultOffset >> 16);
-                        mBytes[cursor++] = (byte)(defaultOffset >> 8);
-                        mBytes[cursor++] = (byte)(defaultOffset >> 0);
+                        cursor = writeInt(code, cursor, defaultOffset);
                     }
                 }
             } else {
-                mBytes[cursor++] = (byte)(mCases.length >> 24);
-                mBytes[cursor++] = (byte)(mCases.length >> 16);
-                mBytes[cursor++] = (byte)(mCases.length >> 8);
-                mBytes[cursor++] = (byte)(mCases.length >> 0);
+                cursor = writeInt(code, cursor, mCases.length);
 
                 for (int index = 0; index < mCases.length; index++) {
-                    int case_ = mCases[index];
-
-                    mBytes[cursor++] = (byte)(case_ >> 24);
-                    mBytes[cursor++] = (byte)(case_ >> 16);
-                    mBytes[cursor++] = (byte)(case_ >> 8);
-                    mBytes[cursor++] = (byte)(case_ >> 0);
-
-                    int offset = mLocations[index].getLocation() - mLocation;
-                    mBytes[cursor++] = (byte)(offset >> 24);
-                    mBytes[cursor++] = (byte)(offset >> 16);
-                    mBytes[cursor++] = (byte)(offset >> 8);
-                    mBytes[cursor++] = (byte)(offset >> 0);
+                    cursor = writeInt(code, cursor, mCases[index]);
+                    int caseOffset = mLocations[index].getLocation() - mLocation;
+                    cursor = writeInt(code, cursor, caseOffset);
                 }
             }
+        }
 
-            return mBytes;
+        private int writeInt(byte[] code, int cursor, int value) {
+            code[cursor++] = (byte)(value >> 24);
+            code[cursor++] = (byte)(value >> 16);
+            code[cursor++] = (byte)(value >> 8);
+            code[cursor++] = (byte)(value >> 0);
+            return cursor;
         }
 
         @Override
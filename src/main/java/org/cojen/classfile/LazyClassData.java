@@ -0,0 +1,128 @@
+/*
+ *  Copyright 2010 Brian S O'Neill
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.cojen.classfile;
+
+import java.io.DataInput;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.cojen.classfile.constant.ConstantUTFInfo;
+
+/**
+ * Raw class file data retained by a lazily read ClassFile and its members, which
+ * only keep offsets into it until their contents are first accessed.
+ *
+ * @author Brian S O'Neill
+ */
+final class LazyClassData {
+    private final ByteBuffer mBuffer;
+    private final AttributeFactory mAttrFactory;
+
+    LazyClassData(ByteBuffer buffer, AttributeFactory attrFactory) {
+        mBuffer = buffer;
+        mAttrFactory = attrFactory;
+    }
+
+    AttributeFactory getAttributeFactory() {
+        return mAttrFactory;
+    }
+
+    /**
+     * Returns an independent input which starts reading at the given absolute
+     * position.
+     */
+    ByteBufferDataInput input(int position) {
+        return new ByteBufferDataInput(mBuffer, position);
+    }
+
+    /**
+     * Reads an attribute table, starting at the attribute count.
+     *
+     * @param position absolute position of the attribute count
+     * @throws IllegalStateException if class file is malformed
+     */
+    Attribute[] readAttributes(ConstantPool cp, int position) {
+        try {
+            DataInput din = input(position);
+            Attribute[] attrs = new Attribute[din.readUnsignedShort()];
+            for (int i=0; i<attrs.length; i++) {
+                attrs[i] = Attribute.readFrom(cp, din, mAttrFactory);
+            }
+            return attrs;
+        } catch (IOException e) {
+            throw malformed(e);
+        }
+    }
+
+    /**
+     * Skips over an attribute table, starting at the attribute count.
+     */
+    static void skipAttributes(DataInput din) throws IOException {
+        int size = din.readUnsignedShort();
+        for (int i=0; i<size; i++) {
+            din.readUnsignedShort();
+            skip(din, din.readInt());
+        }
+    }
+
+    /**
+     * Skips over an attribute table, starting at the attribute count.
+     *
+     * @return true if an attribute with the given name was skipped
+     */
+    static boolean skipAttributes(DataInput din, ConstantPool cp, String name)
+        throws IOException
+    {
+        boolean found = false;
+        int size = din.readUnsignedShort();
+        for (int i=0; i<size; i++) {
+            if (!found) {
+                ConstantInfo ci = cp.getConstant(din.readUnsignedShort());
+                found = ci instanceof ConstantUTFInfo
+                    && ((ConstantUTFInfo) ci).getValue().equals(name);
+            } else {
+                din.readUnsignedShort();
+            }
+            skip(din, din.readInt());
+        }
+        return found;
+    }
+
+    /**
+     * Skips over a field or method table, starting at the member count.
+     */
+    static void skipMembers(DataInput din) throws IOException {
+        int size = din.readUnsignedShort();
+        for (int i=0; i<size; i++) {
+            skip(din, 6);
+            skipAttributes(din);
+        }
+    }
+
+    static IllegalStateException malformed(IOException e) {
+        IllegalStateException e2 = new IllegalStateException
+            ("Malformed class file: " + e.getMessage());
+        e2.initCause(e);
+        return e2;
+    }
+
+    private static void skip(DataInput din, int amount) throws IOException {
+        if (amount < 0 || !Attribute.skipBytes(din, amount)) {
+            throw new EOFException();
+        }
+    }
+}
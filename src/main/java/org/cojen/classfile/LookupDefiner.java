@@ -0,0 +1,134 @@
+/*
+ *  Copyright 2010 Brian S O'Neill
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.classfile;
+
+import java.lang.invoke.MethodHandles;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.UndeclaredThrowableException;
+
+/**
+ * Defines classes into the class loader and package of a {@link
+ * MethodHandles.Lookup}, instead of creating a class loader for them. When
+ * supported by the JVM (Java 15 or later), classes are defined as hidden
+ * classes, which can be unloaded as soon as they are unreachable, and which
+ * cannot be referenced by name. Otherwise, when supported (Java 9 or later),
+ * classes are defined as ordinary classes of the lookup's class loader, which
+ * are only unloaded with the loader itself.
+ *
+ * @author Brian S O'Neill
+ * @see RuntimeClassFile#RuntimeClassFile(MethodHandles.Lookup, String, String)
+ */
+public final class LookupDefiner {
+    private static final Method cDefineHiddenClass;
+    private static final Object cHiddenClassOptions;
+    private static final Method cDefineClass;
+
+    static {
+        Method defineHiddenClass = null;
+        Object options = null;
+        try {
+            Class<?> optionClass =
+                Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+            options = Array.newInstance(optionClass, 0);
+            defineHiddenClass = MethodHandles.Lookup.class.getMethod
+                ("defineHiddenClass", byte[].class, boolean.class, options.getClass());
+        } catch (Exception e) {
+            defineHiddenClass = null;
+            options = null;
+        }
+        cDefineHiddenClass = defineHiddenClass;
+        cHiddenClassOptions = options;
+
+        Method defineClass;
+        try {
+            defineClass = MethodHandles.Lookup.class.getMethod("defineClass", byte[].class);
+        } catch (Exception e) {
+            defineClass = null;
+        }
+        cDefineClass = defineClass;
+    }
+
+    private LookupDefiner() {
+    }
+
+    /**
+     * Returns true if classes are defined as hidden classes.
+     */
+    public static boolean isHiddenClassSupported() {
+        return cDefineHiddenClass != null;
+    }
+
+    /**
+     * Returns true if classes can be defined with a Lookup at all.
+     */
+    public static boolean isSupported() {
+        return cDefineHiddenClass != null || cDefineClass != null;
+    }
+
+    /**
+     * Checks that the given class name is in the same package as the
+     * lookup's class, as required for defining it.
+     *
+     * @throws IllegalArgumentException if the package differs
+     */
+    public static void checkPackage(MethodHandles.Lookup lookup, String className) {
+        String lookupName = lookup.lookupClass().getName();
+        String lookupPackage = lookupName.substring(0, lookupName.lastIndexOf('.') + 1);
+        int index = className.lastIndexOf('.');
+        if (index + 1 != lookupPackage.length() || !className.startsWith(lookupPackage)) {
+            throw new IllegalArgumentException
+                ("Class " + className + " must be in the same package as " + lookupName);
+        }
+    }
+
+    /**
+     * Defines a class from the given class file bytes. The class is linked
+     * but not initialized.
+     *
+     * @param lookup lookup with full privilege access
+     * @throws UnsupportedOperationException if not supported by the JVM
+     */
+    public static Class<?> defineClass(MethodHandles.Lookup lookup, byte[] bytes) {
+        try {
+            if (cDefineHiddenClass != null) {
+                MethodHandles.Lookup hidden = (MethodHandles.Lookup) cDefineHiddenClass.invoke
+                    (lookup, bytes, false, cHiddenClassOptions);
+                return hidden.lookupClass();
+            }
+            if (cDefineClass != null) {
+                return (Class<?>) cDefineClass.invoke(lookup, bytes);
+            }
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new UndeclaredThrowableException(cause);
+        } catch (IllegalAccessException e) {
+            throw new UndeclaredThrowableException(e);
+        }
+
+        throw new UnsupportedOperationException
+            ("Defining classes with a Lookup requires Java 9 or later");
+    }
+}
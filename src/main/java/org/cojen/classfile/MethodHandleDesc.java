@@ -0,0 +1,196 @@
+/*
+ *  Copyright 2010 Brian S O'Neill
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.classfile;
+
+/**
+ * Describes a method handle constant, as loaded by {@link
+ * CodeAssembler#loadConstant(MethodHandleDesc)} or passed to a bootstrap
+ * method. Like the other descriptors, it doesn't refer to any constant pool,
+ * and so it can be used with any ClassFile.
+ *
+ * @author Brian S O'Neill
+ * @see CodeAssembler#invokeDynamic
+ */
+public final class MethodHandleDesc {
+    public static final int
+        REF_GET_FIELD = 1,
+        REF_GET_STATIC = 2,
+        REF_PUT_FIELD = 3,
+        REF_PUT_STATIC = 4,
+        REF_INVOKE_VIRTUAL = 5,
+        REF_INVOKE_STATIC = 6,
+        REF_INVOKE_SPECIAL = 7,
+        REF_NEW_INVOKE_SPECIAL = 8,
+        REF_INVOKE_INTERFACE = 9;
+
+    /**
+     * Describes a handle which accesses a field.
+     *
+     * @param kind REF_GET_FIELD, REF_GET_STATIC, REF_PUT_FIELD or REF_PUT_STATIC
+     * @throws IllegalArgumentException if kind isn't a field access kind
+     */
+    public static MethodHandleDesc forField(int kind, TypeDesc owner,
+                                            String name, TypeDesc type)
+    {
+        if (kind < REF_GET_FIELD || kind > REF_PUT_STATIC) {
+            throw new IllegalArgumentException("Not a field access kind: " + kind);
+        }
+        if (type == null || type == TypeDesc.VOID) {
+            throw new IllegalArgumentException("Field type required");
+        }
+        return new MethodHandleDesc(kind, owner, false, name, type);
+    }
+
+    /**
+     * Describes a handle which invokes a method declared in a class. If the
+     * kind is REF_INVOKE_INTERFACE, the owner is an interface.
+     *
+     * @param kind REF_INVOKE_VIRTUAL, REF_INVOKE_STATIC, REF_INVOKE_SPECIAL or
+     * REF_INVOKE_INTERFACE
+     * @throws IllegalArgumentException if kind isn't a method invocation kind
+     */
+    public static MethodHandleDesc forMethod(int kind, TypeDesc owner,
+                                             String name, MethodDesc desc)
+    {
+        return forMethod(kind, owner, kind == REF_INVOKE_INTERFACE, name, desc);
+    }
+
+    /**
+     * Describes a handle which invokes a method. Static and private
+     * interface methods require that ownerIsInterface be true.
+     *
+     * @param kind REF_INVOKE_VIRTUAL, REF_INVOKE_STATIC, REF_INVOKE_SPECIAL or
+     * REF_INVOKE_INTERFACE
+     * @throws IllegalArgumentException if kind isn't a method invocation kind
+     */
+    public static MethodHandleDesc forMethod(int kind, TypeDesc owner, boolean ownerIsInterface,
+                                             String name, MethodDesc desc)
+    {
+        switch (kind) {
+        case REF_INVOKE_VIRTUAL:
+            if (ownerIsInterface) {
+                throw new IllegalArgumentException("Virtual method owner is an interface");
+            }
+            break;
+        case REF_INVOKE_STATIC:
+        case REF_INVOKE_SPECIAL:
+            break;
+        case REF_INVOKE_INTERFACE:
+            if (!ownerIsInterface) {
+                throw new IllegalArgumentException("Interface method owner isn't an interface");
+            }
+            break;
+        default:
+            throw new IllegalArgumentException("Not a method invocation kind: " + kind);
+        }
+        if (desc == null) {
+            throw new IllegalArgumentException("Method descriptor required");
+        }
+        return new MethodHandleDesc(kind, owner, ownerIsInterface, name, desc);
+    }
+
+    /**
+     * Describes a handle which constructs a new object.
+     *
+     * @param params constructor parameters; pass null if none
+     */
+    public static MethodHandleDesc forConstructor(TypeDesc owner, TypeDesc[] params) {
+        return new MethodHandleDesc(REF_NEW_INVOKE_SPECIAL, owner, false, "<init>",
+                                    MethodDesc.forArguments(null, params));
+    }
+
+    private final int mKind;
+    private final TypeDesc mOwner;
+    private final boolean mOwnerIsInterface;
+    private final String mName;
+    private final Descriptor mDescriptor;
+
+    private MethodHandleDesc(int kind, TypeDesc owner, boolean ownerIsInterface,
+                             String name, Descriptor desc)
+    {
+        if (owner == null || owner.isPrimitive() || owner.isArray()) {
+            throw new IllegalArgumentException("Owner must be a class: " + owner);
+        }
+        if (name == null) {
+            throw new IllegalArgumentException("Name required");
+        }
+        mKind = kind;
+        mOwner = owner;
+        mOwnerIsInterface = ownerIsInterface;
+        mName = name;
+        mDescriptor = desc;
+    }
+
+    /**
+     * Returns one of the REF_ constants.
+     */
+    public int getKind() {
+        return mKind;
+    }
+
+    public TypeDesc getOwner() {
+        return mOwner;
+    }
+
+    public boolean isOwnerInterface() {
+        return mOwnerIsInterface;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Returns a TypeDesc for field handles, and a MethodDesc otherwise.
+     */
+    public Descriptor getDescriptor() {
+        return mDescriptor;
+    }
+
+    /**
+     * Returns true if the handle accesses a field.
+     */
+    public boolean isField() {
+        return mKind <= REF_PUT_STATIC;
+    }
+
+    @Override
+    public int hashCode() {
+        return (mKind + mOwner.hashCode() * 31 + mName.hashCode()) * 31
+            + mDescriptor.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj instanceof MethodHandleDesc) {
+            MethodHandleDesc other = (MethodHandleDesc) obj;
+            return mKind == other.mKind && mOwnerIsInterface == other.mOwnerIsInterface
+                && mOwner.equals(other.mOwner) && mName.equals(other.mName)
+                && mDescriptor.equals(other.mDescriptor);
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return "MethodHandle: " + mKind + ", " + mOwner.getFullName() + '.' + mName
+            + ' ' + mDescriptor;
+    }
+}
@@ -32,6 +32,7 @@ import org.cojen.classfile.attribute.RuntimeInvisibleAnnotationsAttr;
 import org.cojen.classfile.attribute.RuntimeVisibleAnnotationsAttr;
 import org.cojen.classfile.attribute.SignatureAttr;
 import org.cojen.classfile.attribute.SourceFileAttr;
+import org.cojen.classfile.attribute.StackMapTableAttr;
 import org.cojen.classfile.attribute.SyntheticAttr;
 import org.cojen.classfile.constant.ConstantClassInfo;
 import org.cojen.classfile.constant.ConstantUTFInfo;
@@ -63,6 +64,10 @@ public class MethodInfo {
     private CodeAttr mCode;
     private ExceptionsAttr mExceptions;
 
+    // When non-null, attributes are read from it upon first access.
+    private LazyClassData mLazyData;
+    private int mLazyAttributes;
+
     private int mAnonymousInnerClassCount = 0;
 
     MethodInfo(ClassFile parent,
@@ -189,6 +194,7 @@ public class MethodInfo {
      * Returns the exceptions that this method is declared to throw.
      */
     public TypeDesc[] getExceptions() {
+        readAttributes();
         if (mExceptions == null) {
             return new TypeDesc[0];
         }
@@ -207,10 +213,12 @@ public class MethodInfo {
      * null if this method is abstract or native.
      */
     public CodeAttr getCodeAttr() {
+        readAttributes();
         return mCode;
     }
 
     public boolean isSynthetic() {
+        readAttributes();
         for (int i = mAttributes.size(); --i >= 0; ) {
             Attribute attr = mAttributes.get(i);
             if (attr instanceof SyntheticAttr) {
@@ -221,6 +229,7 @@ public class MethodInfo {
     }
 
     public boolean isDeprecated() {
+        readAttributes();
         for (int i = mAttributes.size(); --i >= 0; ) {
             Attribute attr = mAttributes.get(i);
             if (attr instanceof DeprecatedAttr) {
@@ -235,6 +244,7 @@ public class MethodInfo {
      * file, or an empty array if none.
      */
     public Annotation[] getRuntimeInvisibleAnnotations() {
+        readAttributes();
         for (int i = mAttributes.size(); --i >= 0; ) {
             Attribute attr = mAttributes.get(i);
             if (attr instanceof RuntimeInvisibleAnnotationsAttr) {
@@ -249,6 +259,7 @@ public class MethodInfo {
      * or an empty array if none.
      */
     public Annotation[] getRuntimeVisibleAnnotations() {
+        readAttributes();
         for (int i = mAttributes.size(); --i >= 0; ) {
             Attribute attr = mAttributes.get(i);
             if (attr instanceof RuntimeVisibleAnnotationsAttr) {
@@ -262,6 +273,7 @@ public class MethodInfo {
      * Add a runtime invisible annotation.
      */
     public Annotation addRuntimeInvisibleAnnotation(TypeDesc type) {
+        readAttributes();
         AnnotationsAttr attr = null;
         for (int i = mAttributes.size(); --i >= 0; ) {
             Attribute a = mAttributes.get(i);
@@ -283,6 +295,7 @@ public class MethodInfo {
      * Add a runtime visible annotation.
      */
     public Annotation addRuntimeVisibleAnnotation(TypeDesc type) {
+        readAttributes();
         AnnotationsAttr attr = null;
         for (int i = mAttributes.size(); --i >= 0; ) {
             Attribute a = mAttributes.get(i);
@@ -306,6 +319,7 @@ public class MethodInfo {
      */
     // TODO: Eventually remove this method
     public SignatureAttr getSignatureAttr() {
+        readAttributes();
         for (int i = mAttributes.size(); --i >= 0; ) {
             Attribute attr = mAttributes.get(i);
             if (attr instanceof SignatureAttr) {
@@ -319,6 +333,7 @@ public class MethodInfo {
      * Add a declared exception that this method may throw.
      */
     public void addException(TypeDesc type) {
+        readAttributes();
         if (mExceptions == null) {
             addAttribute(new ExceptionsAttr(mCp));
         }
@@ -386,6 +401,7 @@ public class MethodInfo {
     }
 
     public void addAttribute(Attribute attr) {
+        readAttributes();
         if (attr.getConstantPool() != mCp) {
             attr = attr.copyTo(mCp);
         }
@@ -407,6 +423,7 @@ public class MethodInfo {
     }
 
     public Attribute[] getAttributes() {
+        readAttributes();
         return mAttributes.toArray(new Attribute[mAttributes.size()]);
     }
 
@@ -414,6 +431,7 @@ public class MethodInfo {
      * Returns the length (in bytes) of this object in the class file.
      */
     public int getLength() {
+        readAttributes();
         int length = 8;
         
         int size = mAttributes.size();
@@ -429,8 +447,21 @@ public class MethodInfo {
      * from the given method.
      */
     public void copyFrom(MethodInfo method) {
+        method.readAttributes();
         for (Attribute attr : method.mAttributes) {
-            addAttribute(attr);
+            if (attr instanceof CodeAttr && attr.getConstantPool() != mCp) {
+                CodeAttr code;
+                try {
+                    code = ((CodeAttr)attr).copyTo(mCp);
+                } catch (IllegalStateException e) {
+                    // Code cannot be copied as-is, so reassemble it instead.
+                    new CodeDisassembler(method).disassemble(new CodeBuilder(this));
+                    continue;
+                }
+                addAttribute(code);
+            } else {
+                addAttribute(attr);
+            }
         }
     }
 
@@ -449,6 +480,7 @@ public class MethodInfo {
      * Perform final preparations before constant pool is written out.
      */
     public void prepare() {
+        readAttributes();
         int size = mAttributes.size();
         for (int i=0; i<size; i++) {
             mAttributes.get(i).prepare();
@@ -456,6 +488,7 @@ public class MethodInfo {
     }
 
     public void writeTo(DataOutput dout) throws IOException {
+        readAttributes();
         dout.writeShort(mModifiers.getBitmask());
         dout.writeShort(mNameConstant.getIndex());
         dout.writeShort(mDescriptorConstant.getIndex());
@@ -510,4 +543,44 @@ public class MethodInfo {
 
         return info;
     }
+
+    /**
+     * Reads the method header, and retains only the position of the attributes.
+     */
+    static MethodInfo readLazily(ClassFile parent,
+                                 ByteBufferDataInput din,
+                                 LazyClassData data)
+        throws IOException
+    {
+        ConstantPool cp = parent.getConstantPool();
+
+        int modifier = din.readUnsignedShort();
+        int index = din.readUnsignedShort();
+        ConstantUTFInfo nameConstant = (ConstantUTFInfo)cp.getConstant(index);
+        index = din.readUnsignedShort();
+        ConstantUTFInfo descConstant = (ConstantUTFInfo)cp.getConstant(index);
+
+        MethodInfo info = new MethodInfo(parent, modifier, nameConstant, descConstant);
+
+        info.mLazyData = data;
+        info.mLazyAttributes = din.position();
+        if (LazyClassData.skipAttributes(din, cp, Attribute.CODE)) {
+            // Adding code sets the initial stack map frame, which adds class
+            // constants to the pool. Add them now, so that the pool has the
+            // same order as when read eagerly, no matter when code is decoded.
+            new StackMapTableAttr(cp).setInitialFrame(info);
+        }
+
+        return info;
+    }
+
+    private void readAttributes() {
+        LazyClassData data = mLazyData;
+        if (data != null) {
+            mLazyData = null;
+            for (Attribute attr : data.readAttributes(mCp, mLazyAttributes)) {
+                addAttribute(attr);
+            }
+        }
+    }
 }
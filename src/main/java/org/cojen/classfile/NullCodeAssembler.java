@@ -89,6 +89,14 @@ public class NullCodeAssembler extends AbstractCodeAssembler {
         mInstrCount++;
     }
 
+    public void loadConstant(MethodDesc type) {
+        mInstrCount++;
+    }
+
+    public void loadConstant(MethodHandleDesc handle) {
+        mInstrCount++;
+    }
+
     public void loadConstant(boolean value) {
         mInstrCount++;
     }
@@ -264,6 +272,14 @@ public class NullCodeAssembler extends AbstractCodeAssembler {
         mInstrCount++;
     }
 
+    public void invokeDynamic(String methodName,
+                              TypeDesc ret,
+                              TypeDesc[] params,
+                              MethodHandleDesc bootstrap,
+                              Object... bootstrapArgs) {
+        mInstrCount++;
+    }
+
     public void invokePrivate(String methodName,
                               TypeDesc ret,
                               TypeDesc[] params) {
@@ -22,6 +22,11 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 
+import java.lang.invoke.MethodHandles;
+
+import java.lang.reflect.UndeclaredThrowableException;
+
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
@@ -29,6 +34,14 @@ import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import java.security.Permission;
 import java.security.PermissionCollection;
 import java.security.Principal;
@@ -37,9 +50,10 @@ import java.security.ProtectionDomain;
 import java.security.cert.Certificate;
 
 import org.cojen.util.Cache;
+import org.cojen.util.ConcurrentWeakKeyCache;
+import org.cojen.util.ConcurrentWeakValueCache;
+import org.cojen.util.LoadingCache;
 import org.cojen.util.KeyFactory;
-import org.cojen.util.WeakKeyCache;
-import org.cojen.util.WeakValueCache;
 
 /**
  * Allows classes to be defined and loaded at runtime. A random number is
@@ -66,9 +80,11 @@ public class RuntimeClassFile extends ClassFile {
 
     private static final Random cRandom = new Random();
 
-    private static Cache<Object, Loader> cLoaders = new WeakValueCache<Object, Loader>(11);
+    private static final LoadingCache<Object, Loader> cLoaders =
+        new ConcurrentWeakValueCache<Object, Loader>(11);
 
     private final Loader mLoader;
+    private final MethodHandles.Lookup mLookup;
 
     public RuntimeClassFile() {
         this(null, null, null, null, false, null);
@@ -124,6 +140,28 @@ public class RuntimeClassFile extends ClassFile {
         this(className, superClassName, parentLoader, domain, explicit, null);
     }
 
+    /**
+     * Construct a class which is defined with the given lookup, instead of
+     * with a class loader created by RuntimeClassFile. When supported, the
+     * class is defined as a hidden class, which can be unloaded as soon as it
+     * is unreachable. Hidden classes cannot be referenced by name, not even by
+     * other classes defined with the same lookup.
+     *
+     * @param lookup lookup with full privilege access
+     * @param className fully qualified class name, in the same package as the
+     * lookup class; pass null to use the lookup class name as a prefix
+     * @param superClassName fully qualified super class name; pass null to use Object.
+     * @throws IllegalArgumentException if the class name isn't in the lookup
+     * class package
+     * @throws UnsupportedOperationException if not supported by the JVM
+     * @see LookupDefiner
+     */
+    public RuntimeClassFile(MethodHandles.Lookup lookup,
+                            String className, String superClassName)
+    {
+        this(lookup, className, superClassName, null);
+    }
+
     // Magic constructor to select name and loader before calling super class constructor.
     private RuntimeClassFile(String className, String superClassName,
                              ClassLoader parentLoader, ProtectionDomain domain,
@@ -132,12 +170,96 @@ public class RuntimeClassFile extends ClassFile {
         super((loaderAndName = loaderAndName
                (className, parentLoader, domain, explicit)).mClassName, superClassName);
         mLoader = loaderAndName.mLoader;
+        mLookup = null;
+    }
+
+    // Magic constructor to select name before calling super class constructor.
+    private RuntimeClassFile(MethodHandles.Lookup lookup, String className,
+                             String superClassName, LoaderAndName loaderAndName)
+    {
+        super((loaderAndName = lookupAndName(className, lookup)).mClassName, superClassName);
+        mLoader = null;
+        mLookup = lookup;
     }
 
     /**
      * Finishes the class definition.
      */
     public Class defineClass() {
+        byte[] bytes = toBytes();
+        if (mLookup != null) {
+            return LookupDefiner.defineClass(mLookup, bytes);
+        }
+        return mLoader.define(getClassName(), bytes);
+    }
+
+    /**
+     * Finishes the definition of a group of classes, which must all have
+     * been constructed with the same parent loader, package and protection
+     * domain, or with the same lookup. The classes are serialized in
+     * parallel, and then they are all defined in one pass. Unless defined as
+     * hidden classes, classes in the group can refer to each other, and so
+     * the order doesn't matter.
+     *
+     * @return defined classes, in the same order as given
+     * @throws IllegalArgumentException if the classes don't share a class loader
+     */
+    public static Batch defineClasses(RuntimeClassFile... classFiles) {
+        final int count = classFiles.length;
+        if (count == 0) {
+            return new Batch(new Class[0], 0, 0);
+        }
+
+        Loader loader = classFiles[0].mLoader;
+        MethodHandles.Lookup lookup = classFiles[0].mLookup;
+        for (RuntimeClassFile cf : classFiles) {
+            if (cf.mLoader != loader || cf.mLookup != lookup) {
+                throw new IllegalArgumentException
+                    ("Class loader isn't shared: " + cf.getClassName());
+            }
+        }
+
+        long start = System.nanoTime();
+        byte[][] bytes = toBytes(classFiles);
+        long generated = System.nanoTime();
+
+        Class[] classes;
+        if (lookup != null) {
+            classes = new Class[count];
+            for (int i=0; i<count; i++) {
+                classes[i] = LookupDefiner.defineClass(lookup, bytes[i]);
+            }
+        } else {
+            String[] names = new String[count];
+            for (int i=0; i<count; i++) {
+                names[i] = classFiles[i].getClassName();
+            }
+            classes = loader.define(names, bytes);
+        }
+
+        return new Batch(classes, generated - start, System.nanoTime() - generated);
+    }
+
+    /**
+     * Finishes the definition of a group of classes.
+     *
+     * @see #defineClasses(RuntimeClassFile...)
+     */
+    public static Batch defineClasses(Collection<? extends RuntimeClassFile> classFiles) {
+        return defineClasses(classFiles.toArray(new RuntimeClassFile[classFiles.size()]));
+    }
+
+    /**
+     * Returns the ClassLoader used by defined classes.
+     */
+    public ClassLoader getClassLoader() {
+        if (mLookup != null) {
+            return mLookup.lookupClass().getClassLoader();
+        }
+        return mLoader;
+    }
+
+    private byte[] toBytes() {
         byte[] bytes;
         try {
             ByteArrayOutputStream bout = new ByteArrayOutputStream();
@@ -167,14 +289,97 @@ public class RuntimeClassFile extends ClassFile {
             }
         }
 
-        return mLoader.define(getClassName(), bytes);
+        return bytes;
     }
 
     /**
-     * Returns the ClassLoader used by defined classes.
+     * Serializes all the given classes, using helper threads if more than
+     * one processor is available. The calling thread serializes classes too.
      */
-    public ClassLoader getClassLoader() {
-        return mLoader;
+    private static byte[][] toBytes(final RuntimeClassFile[] classFiles) {
+        final int count = classFiles.length;
+        final byte[][] bytes = new byte[count][];
+
+        int helpers = Math.min(count, Runtime.getRuntime().availableProcessors()) - 1;
+        if (helpers <= 0) {
+            for (int i=0; i<count; i++) {
+                bytes[i] = classFiles[i].toBytes();
+            }
+            return bytes;
+        }
+
+        final AtomicInteger next = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(count);
+        final Throwable[] failure = new Throwable[1];
+
+        Runnable task = new Runnable() {
+            public void run() {
+                int i;
+                while ((i = next.getAndIncrement()) < count) {
+                    try {
+                        bytes[i] = classFiles[i].toBytes();
+                    } catch (Throwable e) {
+                        synchronized (failure) {
+                            if (failure[0] == null) {
+                                failure[0] = e;
+                            }
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }
+        };
+
+        Executor executor = executor();
+        for (int i=0; i<helpers; i++) {
+            executor.execute(task);
+        }
+        task.run();
+
+        // Wait for any classes still being serialized by helpers.
+        boolean interrupted = false;
+        while (true) {
+            try {
+                done.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        Throwable e = failure[0];
+        if (e != null) {
+            if (e instanceof RuntimeException) {
+                throw (RuntimeException) e;
+            }
+            if (e instanceof Error) {
+                throw (Error) e;
+            }
+            throw new UndeclaredThrowableException(e);
+        }
+
+        return bytes;
+    }
+
+    private static Executor cExecutor;
+
+    private static synchronized Executor executor() {
+        if (cExecutor == null) {
+            cExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "RuntimeClassFile-" + mCount.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return cExecutor;
     }
 
     private static LoaderAndName loaderAndName(String className,
@@ -198,11 +403,15 @@ public class RuntimeClassFile extends ClassFile {
 
         final Object loaderKey = createLoaderKey(className, parentLoader, domain);
 
-        Loader loader = cLoaders.get(loaderKey);
-        if (loader == null) {
-            loader = parentLoader == null ? new Loader(domain) : new Loader(parentLoader, domain);
-            cLoaders.put(loaderKey, loader);
-        }
+        // Classes which share a key must share a loader, and so concurrent
+        // callers must not each create their own.
+        final ClassLoader fParentLoader = parentLoader;
+        final ProtectionDomain fDomain = domain;
+        Loader loader = cLoaders.get(loaderKey, new LoadingCache.Loader<Object, Loader>() {
+            public Loader load(Object key) {
+                return new Loader(fParentLoader, fDomain);
+            }
+        });
 
         if (explicit) {
             return new LoaderAndName(loader, className);
@@ -235,6 +444,41 @@ public class RuntimeClassFile extends ClassFile {
         throw new InternalError("Unable to create unique class name");
     }
 
+    private static LoaderAndName lookupAndName(String className, MethodHandles.Lookup lookup) {
+        if (!LookupDefiner.isSupported()) {
+            throw new UnsupportedOperationException
+                ("Defining classes with a Lookup requires Java 9 or later");
+        }
+
+        if (className == null) {
+            className = lookup.lookupClass().getName();
+        } else {
+            LookupDefiner.checkPackage(lookup, className);
+        }
+
+        ClassLoader loader = lookup.lookupClass().getClassLoader();
+
+        for (int tryCount = 0; tryCount < 1000; tryCount++) {
+            long id = cRandom.nextInt() & (tryCount == 0 ? 0xffffL : 0xffffffffL);
+            String mangled = className + '$' + id;
+
+            if (LookupDefiner.isHiddenClassSupported()) {
+                // Hidden class names are always made unique.
+                return new LoaderAndName(null, mangled);
+            }
+
+            try {
+                Class.forName(mangled, false, loader);
+            } catch (ClassNotFoundException e) {
+                return new LoaderAndName(null, mangled);
+            } catch (LinkageError e) {
+                // Class by same name exists, but it is broken.
+            }
+        }
+
+        throw new InternalError("Unable to create unique class name");
+    }
+
     private static Object createLoaderKey(String className, ClassLoader parentLoader,
                                           ProtectionDomain domain)
     {
@@ -290,9 +534,15 @@ public class RuntimeClassFile extends ClassFile {
     }
 
     private static final class Loader extends ClassLoader {
-        private final Cache<String, Boolean> mReservedNames = new WeakKeyCache<String, Boolean>(17);
+        private final Cache<String, Boolean> mReservedNames =
+            new ConcurrentWeakKeyCache<String, Boolean>(17);
         private final ProtectionDomain mDomain;
 
+        // Classes being defined by a batch, which can be found while the batch
+        // is being defined.
+        private final ConcurrentMap<String, byte[]> mPending =
+            new ConcurrentHashMap<String, byte[]>();
+
         Loader(ClassLoader parent, ProtectionDomain domain) {
             super(parent);
             mDomain = prepareDomain(domain, this);
@@ -319,10 +569,8 @@ public class RuntimeClassFile extends ClassFile {
         // Prevent name collisions while multiple threads are defining classes
         // by reserving the name.
         boolean reserveName(String name, boolean explicit) {
-            synchronized (mReservedNames) {
-                if (mReservedNames.put(name, Boolean.TRUE) != null && !explicit) {
-                    return false;
-                }
+            if (mReservedNames.putIfAbsent(name, Boolean.TRUE) != null && !explicit) {
+                return false;
             }
 
             // If explicit and name has already been reserved, don't
@@ -343,6 +591,54 @@ public class RuntimeClassFile extends ClassFile {
         }
 
         Class define(String name, byte[] b) {
+            try {
+                return doDefine(name, b);
+            } finally {
+                mReservedNames.remove(name);
+            }
+        }
+
+        Class[] define(String[] names, byte[][] bytes) {
+            for (int i=0; i<names.length; i++) {
+                mPending.put(names[i], bytes[i]);
+            }
+
+            try {
+                Class[] classes = new Class[names.length];
+                for (int i=0; i<names.length; i++) {
+                    String name = names[i];
+                    byte[] b = mPending.remove(name);
+                    if (b != null) {
+                        classes[i] = doDefine(name, b);
+                    } else {
+                        // Already defined when referenced by another class
+                        // in the batch.
+                        try {
+                            classes[i] = loadClass(name);
+                        } catch (ClassNotFoundException e) {
+                            throw new IllegalStateException("Class not defined: " + name);
+                        }
+                    }
+                }
+                return classes;
+            } finally {
+                for (String name : names) {
+                    mPending.remove(name);
+                    mReservedNames.remove(name);
+                }
+            }
+        }
+
+        @Override
+        protected Class<?> findClass(String name) throws ClassNotFoundException {
+            byte[] b = mPending.remove(name);
+            if (b == null) {
+                throw new ClassNotFoundException(name);
+            }
+            return doDefine(name, b);
+        }
+
+        private Class doDefine(String name, byte[] b) {
             try {
                 Class clazz;
                 if (mDomain == null) {
@@ -360,8 +656,6 @@ public class RuntimeClassFile extends ClassFile {
                 } catch (ClassNotFoundException e2) {
                 }
                 throw e;
-            } finally {
-                mReservedNames.remove(name);
             }
         }
     }
@@ -375,4 +669,50 @@ public class RuntimeClassFile extends ClassFile {
             mClassName = className;
         }
     }
+
+    /**
+     * Result of defining a group of classes.
+     *
+     * @see RuntimeClassFile#defineClasses(RuntimeClassFile...)
+     */
+    public static final class Batch {
+        private final Class[] mClasses;
+        private final long mGenerationNanos;
+        private final long mDefinitionNanos;
+
+        Batch(Class[] classes, long generationNanos, long definitionNanos) {
+            mClasses = classes;
+            mGenerationNanos = generationNanos;
+            mDefinitionNanos = definitionNanos;
+        }
+
+        /**
+         * Returns the defined classes, in the order they were given.
+         */
+        public Class[] getClasses() {
+            return mClasses.clone();
+        }
+
+        /**
+         * Returns the elapsed time spent serializing the class files, in
+         * nanoseconds.
+         */
+        public long getGenerationNanos() {
+            return mGenerationNanos;
+        }
+
+        /**
+         * Returns the elapsed time spent defining the classes, in nanoseconds.
+         */
+        public long getDefinitionNanos() {
+            return mDefinitionNanos;
+        }
+
+        @Override
+        public String toString() {
+            return "RuntimeClassFile.Batch {classes=" + mClasses.length
+                + ", generationNanos=" + mGenerationNanos
+                + ", definitionNanos=" + mDefinitionNanos + '}';
+        }
+    }
 }
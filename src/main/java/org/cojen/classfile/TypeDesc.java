@@ -27,9 +27,9 @@ import java.lang.reflect.Array;
 import java.util.Collections;
 import java.util.Map;
 import org.cojen.util.Cache;
+import org.cojen.util.ConcurrentWeakIdentityCache;
+import org.cojen.util.ConcurrentWeakValueCache;
 import org.cojen.util.WeakCanonicalSet;
-import org.cojen.util.WeakIdentityCache;
-import org.cojen.util.WeakValueCache;
 
 /**
  * This class is used to build field and return type descriptor strings as
@@ -94,9 +94,9 @@ public abstract class TypeDesc extends Descriptor implements Serializable {
     static {
         cInstances = new WeakCanonicalSet<Descriptor>();
 
-        cClassesToInstances = new WeakIdentityCache<Class, TypeDesc>(17);
-        cNamesToInstances = new WeakValueCache<String, TypeDesc>(17);
-        cDescriptorsToInstances = new WeakValueCache<String, TypeDesc>(17);
+        cClassesToInstances = new ConcurrentWeakIdentityCache<Class, TypeDesc>(17);
+        cNamesToInstances = new ConcurrentWeakValueCache<String, TypeDesc>(17);
+        cDescriptorsToInstances = new ConcurrentWeakValueCache<String, TypeDesc>(17);
 
         VOID = intern(new PrimitiveType("V", VOID_CODE));
         BOOLEAN = intern(new PrimitiveType("Z", BOOLEAN_CODE));
@@ -17,8 +17,13 @@
 package org.cojen.classfile.attribute;
 
 import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 import org.cojen.classfile.Attribute;
 import org.cojen.classfile.ConstantInfo;
 import org.cojen.classfile.ConstantPool;
@@ -26,21 +31,32 @@ import org.cojen.classfile.ConstantPool;
 import org.cojen.classfile.constant.ConstantMethodHandleInfo;
 
 /**
- * 
+ * This class corresponds to the BootstrapMethods_attribute structure as
+ * defined in <i>The Java Virtual Machine Specification</i>.
  *
  * @author Brian S O'Neill
  */
 public class BootstrapMethodsAttr extends Attribute {
-    private final Method[] mMethods;
+    private final List<Method> mMethods;
+
+    public BootstrapMethodsAttr(ConstantPool cp) {
+        this(cp, BOOTSTRAP_METHODS);
+    }
+
+    public BootstrapMethodsAttr(ConstantPool cp, String name) {
+        super(cp, name);
+        mMethods = new ArrayList<Method>(4);
+    }
 
     public BootstrapMethodsAttr(ConstantPool cp, String name, int length, DataInput din)
         throws IOException
     {
         super(cp, name);
 
-        mMethods = new Method[din.readUnsignedShort()];
+        int count = din.readUnsignedShort();
+        mMethods = new ArrayList<Method>(count);
 
-        for (int i=0; i<mMethods.length; i++) {
+        for (int i=0; i<count; i++) {
             ConstantMethodHandleInfo info =
                 (ConstantMethodHandleInfo) cp.getConstant(din.readUnsignedShort());
 
@@ -51,22 +67,53 @@ public class BootstrapMethodsAttr extends Attribute {
                 args[j] = cp.getConstant(argRef);
             }
 
-            mMethods[i] = new Method(info, args);
+            mMethods.add(new Method(info, args));
         }
     }
 
     public int getMethodCount() {
-        return mMethods.length;
+        return mMethods.size();
     }
 
     public Method getMethod(int i) {
-        return mMethods[i];
+        return mMethods.get(i);
     }
 
+    /**
+     * Adds a bootstrap method, unless an identical one already exists.
+     *
+     * @param args static arguments; pass null if none
+     * @return index of the bootstrap method, as referenced by invokedynamic
+     * constants
+     */
+    public int addMethod(ConstantMethodHandleInfo info, ConstantInfo[] args) {
+        Method method = new Method(info, args == null ? new ConstantInfo[0] : args.clone());
+        int index = mMethods.indexOf(method);
+        if (index < 0) {
+            index = mMethods.size();
+            if (index >= 65535) {
+                throw new IllegalStateException("Too many bootstrap methods");
+            }
+            mMethods.add(method);
+        }
+        return index;
+    }
+
+    /**
+     * Copies all methods in order, and so invokedynamic constants copied to
+     * the same ConstantPool still refer to the same methods.
+     */
     @Override
     public BootstrapMethodsAttr copyTo(ConstantPool cp) {
-        // FIXME
-        throw null;
+        BootstrapMethodsAttr attr = new BootstrapMethodsAttr(cp, getName());
+        for (Method m : mMethods) {
+            ConstantInfo[] args = new ConstantInfo[m.mArgs.length];
+            for (int i=0; i<args.length; i++) {
+                args[i] = m.mArgs[i].copyTo(cp);
+            }
+            attr.mMethods.add(new Method(m.mInfo.copyTo(cp), args));
+        }
+        return attr;
     }
 
     @Override
@@ -79,6 +126,18 @@ public class BootstrapMethodsAttr extends Attribute {
         return length;
     }
 
+    @Override
+    public void writeDataTo(DataOutput dout) throws IOException {
+        dout.writeShort(mMethods.size());
+        for (Method m : mMethods) {
+            dout.writeShort(m.mInfo.getIndex());
+            dout.writeShort(m.mArgs.length);
+            for (ConstantInfo arg : m.mArgs) {
+                dout.writeShort(arg.getIndex());
+            }
+        }
+    }
+
     public static final class Method {
         private final ConstantMethodHandleInfo mInfo;
         private final ConstantInfo[] mArgs;
@@ -99,5 +158,22 @@ public class BootstrapMethodsAttr extends Attribute {
         public ConstantInfo getArg(int i) {
             return mArgs[i];
         }
+
+        @Override
+        public int hashCode() {
+            return mInfo.hashCode() * 31 + Arrays.hashCode(mArgs);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj instanceof Method) {
+                Method other = (Method) obj;
+                return mInfo.equals(other.mInfo) && Arrays.equals(mArgs, other.mArgs);
+            }
+            return false;
+        }
     }
 }
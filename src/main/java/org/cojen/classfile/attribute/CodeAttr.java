@@ -255,13 +255,31 @@ public class CodeAttr extends Attribute {
         return mAttributes.toArray(new Attribute[mAttributes.size()]);
     }
 
+    /**
+     * Copies this attribute into another constant pool. The bytecode is
+     * copied as-is, and only constant pool indexes are remapped. Unknown
+     * attributes of the code are copied only if the constant pool is the
+     * same, because any constant pool references within them cannot be
+     * remapped.
+     *
+     * @throws IllegalStateException if the bytecode cannot be copied without
+     * modifying it, because a constant referenced by Opcode.LDC cannot be
+     * assigned a one-byte index in the new constant pool
+     */
     public CodeAttr copyTo(ConstantPool cp) {
         CodeAttr attr = new CodeAttr(cp, getName());
 
-        // FIXME: need to rewrite
-        attr.mCodeBuffer = mCodeBuffer;
+        if (mCodeBuffer != null) {
+            attr.mCodeBuffer = cp == getConstantPool() ? mCodeBuffer
+                : new CopiedCodeBuffer(mCodeBuffer, getConstantPool(), cp);
+        }
 
         for (Attribute sub : mAttributes) {
+            if (sub instanceof UnknownAttr && cp != getConstantPool()) {
+                // Constant pool references within the attribute cannot be
+                // remapped, and so it must be discarded.
+                continue;
+            }
             attr.addAttribute(sub.copyTo(cp));
         }
 
@@ -302,10 +320,14 @@ public class CodeAttr extends Attribute {
                 length += 8 * handlers.length;
             }
 
-            VerificationInfo[] infos = mCodeBuffer.getVerificationInfos();
-            if (infos != null && mStackMapTable != null) {
-                mStackMapTable.buildFrames(infos);
-                if (!mStackMapTable.isEmpty()) {
+            if (mStackMapTable != null) {
+                // If no verification info is available, the existing frames
+                // still apply to the code, and so they're kept as-is.
+                VerificationInfo[] infos = mCodeBuffer.getVerificationInfos();
+                if (infos != null) {
+                    mStackMapTable.buildFrames(infos);
+                }
+                if (!mStackMapTable.isEmpty() && !mAttributes.contains(mStackMapTable)) {
                     mAttributes.add(mStackMapTable);
                 }
             }
@@ -0,0 +1,243 @@
+/*
+ *  Copyright 2010 Brian S O'Neill
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.classfile.attribute;
+
+import org.cojen.classfile.CodeBuffer;
+import org.cojen.classfile.ConstantInfo;
+import org.cojen.classfile.ConstantPool;
+import org.cojen.classfile.ExceptionHandler;
+import org.cojen.classfile.FixedLocation;
+import org.cojen.classfile.Opcode;
+import org.cojen.classfile.VerificationInfo;
+import org.cojen.classfile.constant.ConstantClassInfo;
+
+/**
+ * CodeBuffer which copies bytecode as-is into another constant pool, only
+ * remapping the constant pool indexes. Indexes are patched in when the byte
+ * codes are requested, after the target constant pool has been resolved.
+ *
+ * @author Brian S O'Neill
+ */
+final class CopiedCodeBuffer implements CodeBuffer {
+    private final int mMaxStackDepth;
+    private final int mMaxLocals;
+    private final byte[] mByteCodes;
+    private final ExceptionHandler<?>[] mHandlers;
+
+    // Code offsets of constant pool index operands, and the constants they
+    // refer to in the target pool.
+    private int[] mOperands;
+    private ConstantInfo[] mConstants;
+    private int mOperandCount;
+
+    /**
+     * @throws IllegalStateException if the code cannot be copied without
+     * modifying it
+     */
+    CopiedCodeBuffer(CodeBuffer source, ConstantPool sourceCp, ConstantPool targetCp) {
+        mMaxStackDepth = source.getMaxStackDepth();
+        mMaxLocals = source.getMaxLocals();
+
+        byte[] code = source.getByteCodes();
+        mByteCodes = code;
+        mOperands = new int[8];
+        mConstants = new ConstantInfo[8];
+
+        int address = 0;
+        while (address < code.length) {
+            byte opcode = code[address];
+            switch (opcode) {
+            default:
+                address += 1;
+                break;
+
+            case Opcode.BIPUSH:
+            case Opcode.ILOAD: case Opcode.LLOAD: case Opcode.FLOAD:
+            case Opcode.DLOAD: case Opcode.ALOAD:
+            case Opcode.ISTORE: case Opcode.LSTORE: case Opcode.FSTORE:
+            case Opcode.DSTORE: case Opcode.ASTORE:
+            case Opcode.RET:
+            case Opcode.NEWARRAY:
+                address += 2;
+                break;
+
+            case Opcode.SIPUSH:
+            case Opcode.IINC:
+            case Opcode.IFEQ: case Opcode.IFNE: case Opcode.IFLT:
+            case Opcode.IFGE: case Opcode.IFGT: case Opcode.IFLE:
+            case Opcode.IF_ICMPEQ: case Opcode.IF_ICMPNE: case Opcode.IF_ICMPLT:
+            case Opcode.IF_ICMPGE: case Opcode.IF_ICMPGT: case Opcode.IF_ICMPLE:
+            case Opcode.IF_ACMPEQ: case Opcode.IF_ACMPNE:
+            case Opcode.GOTO: case Opcode.JSR:
+            case Opcode.IFNULL: case Opcode.IFNONNULL:
+                address += 3;
+                break;
+
+            case Opcode.GOTO_W: case Opcode.JSR_W:
+                address += 5;
+                break;
+
+            case Opcode.LDC: {
+                ConstantInfo ci = remap(sourceCp, targetCp, code[address + 1] & 0xff);
+                if (!targetCp.requireNarrowIndex(ci)) {
+                    throw new IllegalStateException
+                        ("Constant referenced by ldc has an index larger than 255");
+                }
+                addOperand(address + 1, ci);
+                address += 2;
+                break;
+            }
+
+            case Opcode.LDC_W: case Opcode.LDC2_W:
+            case Opcode.GETSTATIC: case Opcode.PUTSTATIC:
+            case Opcode.GETFIELD: case Opcode.PUTFIELD:
+            case Opcode.INVOKEVIRTUAL: case Opcode.INVOKESPECIAL: case Opcode.INVOKESTATIC:
+            case Opcode.NEW: case Opcode.ANEWARRAY:
+            case Opcode.CHECKCAST: case Opcode.INSTANCEOF:
+                addOperand(address + 1, remap(sourceCp, targetCp, readShort(code, address + 1)));
+                address += 3;
+                break;
+
+            case Opcode.MULTIANEWARRAY:
+                addOperand(address + 1, remap(sourceCp, targetCp, readShort(code, address + 1)));
+                address += 4;
+                break;
+
+            case Opcode.INVOKEINTERFACE:
+            case Opcode.INVOKEDYNAMIC:
+                addOperand(address + 1, remap(sourceCp, targetCp, readShort(code, address + 1)));
+                address += 5;
+                break;
+
+            case Opcode.WIDE:
+                address += code[address + 1] == Opcode.IINC ? 6 : 4;
+                break;
+
+            case Opcode.TABLESWITCH:
+            case Opcode.LOOKUPSWITCH: {
+                int opcodeAddress = address;
+                // Skip padding until address is 32 bit word aligned.
+                address = (address + 4) & ~3;
+                // Skip the default location.
+                address += 4;
+                if (opcode == Opcode.TABLESWITCH) {
+                    int lowValue = readInt(code, address);
+                    int highValue = readInt(code, address + 4);
+                    address += 8 + 4 * (highValue - lowValue + 1);
+                } else {
+                    int caseCount = readInt(code, address);
+                    address += 4 + 8 * caseCount;
+                }
+                if (address <= opcodeAddress) {
+                    throw new IllegalStateException("Malformed switch at " + opcodeAddress);
+                }
+                break;
+            }
+            }
+        }
+
+        ExceptionHandler<?>[] handlers = source.getExceptionHandlers();
+        if (handlers != null) {
+            handlers = handlers.clone();
+            for (int i=0; i<handlers.length; i++) {
+                ExceptionHandler<?> handler = handlers[i];
+                ConstantClassInfo catchType = handler.getCatchType();
+                if (catchType != null) {
+                    catchType = catchType.copyTo(targetCp);
+                }
+                handlers[i] = new ExceptionHandler<FixedLocation>
+                    (new FixedLocation(handler.getStartLocation().getLocation()),
+                     new FixedLocation(handler.getEndLocation().getLocation()),
+                     new FixedLocation(handler.getCatchLocation().getLocation()),
+                     catchType);
+            }
+        }
+        mHandlers = handlers;
+    }
+
+    public int getMaxStackDepth() {
+        return mMaxStackDepth;
+    }
+
+    public int getMaxLocals() {
+        return mMaxLocals;
+    }
+
+    public byte[] getByteCodes() {
+        byte[] code = mByteCodes.clone();
+        for (int i=0; i<mOperandCount; i++) {
+            int address = mOperands[i];
+            int index = mConstants[i].getIndex();
+            if (index < 0) {
+                throw new IllegalStateException("Constant pool index not resolved");
+            }
+            if (code[address - 1] == Opcode.LDC) {
+                if (index > 255) {
+                    throw new IllegalStateException
+                        ("Constant referenced by ldc has an index larger than 255: " + index);
+                }
+                code[address] = (byte) index;
+            } else {
+                code[address] = (byte) (index >> 8);
+                code[address + 1] = (byte) index;
+            }
+        }
+        return code;
+    }
+
+    public ExceptionHandler<?>[] getExceptionHandlers() {
+        return mHandlers == null ? null : mHandlers.clone();
+    }
+
+    public VerificationInfo[] getVerificationInfos() {
+        // Return null to keep the copied StackMapTableAttr, which still
+        // matches the code.
+        return null;
+    }
+
+    private void addOperand(int address, ConstantInfo ci) {
+        int count = mOperandCount;
+        if (count >= mOperands.length) {
+            int[] newOperands = new int[count << 1];
+            System.arraycopy(mOperands, 0, newOperands, 0, count);
+            mOperands = newOperands;
+            ConstantInfo[] newConstants = new ConstantInfo[count << 1];
+            System.arraycopy(mConstants, 0, newConstants, 0, count);
+            mConstants = newConstants;
+        }
+        mOperands[count] = address;
+        mConstants[count] = ci;
+        mOperandCount = count + 1;
+    }
+
+    private static ConstantInfo remap(ConstantPool sourceCp, ConstantPool targetCp, int index) {
+        ConstantInfo ci = sourceCp.getConstant(index);
+        if (ci == null) {
+            throw new IllegalStateException("Undefined constant at index " + index);
+        }
+        return ci.copyTo(targetCp);
+    }
+
+    private static int readShort(byte[] code, int address) {
+        return ((code[address] & 0xff) << 8) | (code[address + 1] & 0xff);
+    }
+
+    private static int readInt(byte[] code, int address) {
+        return (code[address] << 24) | ((code[address + 1] & 0xff) << 16)
+            | ((code[address + 2] & 0xff) << 8) | (code[address + 3] & 0xff);
+    }
+}
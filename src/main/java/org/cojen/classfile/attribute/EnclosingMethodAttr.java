@@ -60,12 +60,16 @@ public class EnclosingMethodAttr extends Attribute {
         return mClass;
     }
 
+    /**
+     * Returns null if the class is not enclosed by a method or constructor.
+     */
     public ConstantNameAndTypeInfo getEnclosingMethod() {
         return mMethod;
     }
 
     public EnclosingMethodAttr copyTo(ConstantPool cp) {
-        return new EnclosingMethodAttr(cp, getName(), mClass.copyTo(cp), mMethod.copyTo(cp));
+        return new EnclosingMethodAttr(cp, getName(), mClass.copyTo(cp),
+                                       mMethod == null ? null : mMethod.copyTo(cp));
     }
 
     public int getLength() {
@@ -74,6 +78,6 @@ public class EnclosingMethodAttr extends Attribute {
     
     public void writeDataTo(DataOutput dout) throws IOException {
         dout.writeShort(mClass.getIndex());
-        dout.writeShort(mMethod.getIndex());
+        dout.writeShort(mMethod == null ? 0 : mMethod.getIndex());
     }
 }
@@ -0,0 +1,108 @@
+/*
+ *  Copyright 2010 Brian S O'Neill
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.classfile.attribute;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.cojen.classfile.Attribute;
+import org.cojen.classfile.ConstantPool;
+
+import org.cojen.classfile.constant.ConstantUTFInfo;
+
+/**
+ * This class corresponds to the LocalVariableTypeTable_attribute structure as
+ * defined in <i>The Java Virtual Machine Specification</i>. Entries are kept
+ * as read, and so the attribute is only valid for the code it was read with.
+ *
+ * @author Brian S O'Neill
+ */
+public class LocalVariableTypeTableAttr extends Attribute {
+    private final Entry[] mEntries;
+
+    public LocalVariableTypeTableAttr(ConstantPool cp, String name, int length, DataInput din)
+        throws IOException
+    {
+        super(cp, name);
+
+        int size = din.readUnsignedShort();
+        mEntries = new Entry[size];
+        for (int i=0; i<size; i++) {
+            int start_pc = din.readUnsignedShort();
+            int pc_length = din.readUnsignedShort();
+            int name_index = din.readUnsignedShort();
+            int signature_index = din.readUnsignedShort();
+            int index = din.readUnsignedShort();
+
+            mEntries[i] = new Entry(start_pc, pc_length,
+                                    (ConstantUTFInfo) cp.getConstant(name_index),
+                                    (ConstantUTFInfo) cp.getConstant(signature_index),
+                                    index);
+        }
+    }
+
+    private LocalVariableTypeTableAttr(ConstantPool cp, String name, Entry[] entries) {
+        super(cp, name);
+        mEntries = entries;
+    }
+
+    public LocalVariableTypeTableAttr copyTo(ConstantPool cp) {
+        Entry[] entries = new Entry[mEntries.length];
+        for (int i=0; i<entries.length; i++) {
+            entries[i] = mEntries[i].copyTo(cp);
+        }
+        return new LocalVariableTypeTableAttr(cp, getName(), entries);
+    }
+
+    public int getLength() {
+        return 2 + 10 * mEntries.length;
+    }
+
+    public void writeDataTo(DataOutput dout) throws IOException {
+        dout.writeShort(mEntries.length);
+        for (Entry entry : mEntries) {
+            dout.writeShort(entry.mStartPc);
+            dout.writeShort(entry.mLength);
+            dout.writeShort(entry.mName.getIndex());
+            dout.writeShort(entry.mSignature.getIndex());
+            dout.writeShort(entry.mIndex);
+        }
+    }
+
+    private static class Entry {
+        final int mStartPc;
+        final int mLength;
+        final ConstantUTFInfo mName;
+        final ConstantUTFInfo mSignature;
+        final int mIndex;
+
+        Entry(int startPc, int length,
+              ConstantUTFInfo name, ConstantUTFInfo signature, int index)
+        {
+            mStartPc = startPc;
+            mLength = length;
+            mName = name;
+            mSignature = signature;
+            mIndex = index;
+        }
+
+        Entry copyTo(ConstantPool cp) {
+            return new Entry(mStartPc, mLength, mName.copyTo(cp), mSignature.copyTo(cp), mIndex);
+        }
+    }
+}
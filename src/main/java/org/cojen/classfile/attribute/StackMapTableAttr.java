@@ -78,6 +78,7 @@ public class StackMapTableAttr extends Attribute {
         super(cp, name);
         mInitialFrame = initialFrame;
         mSize = size;
+        mLength = -1;
     }
 
     public boolean isEmpty() {
@@ -85,7 +86,12 @@ public class StackMapTableAttr extends Attribute {
     }
 
     public StackMapTableAttr copyTo(ConstantPool cp) {
-        return new StackMapTableAttr(cp, getName(), mInitialFrame.copyTo(null, cp), mSize);
+        InitialFrame initialFrame = mInitialFrame.copyTo(null, cp);
+        StackMapFrame prev = initialFrame;
+        for (StackMapFrame frame = mInitialFrame.mNext; frame != null; frame = frame.mNext) {
+            prev = frame.copyTo(prev, cp);
+        }
+        return new StackMapTableAttr(cp, getName(), initialFrame, mSize);
     }
 
     public int getLength() {
@@ -22,7 +22,9 @@ import org.cojen.classfile.ConstantInfo;
 import org.cojen.classfile.ConstantPool;
 
 /**
- * 
+ * This class corresponds to the CONSTANT_InvokeDynamic_info and
+ * CONSTANT_Dynamic_info structures as defined in <i>The Java Virtual Machine
+ * Specification</i>.
  *
  * @author Brian S O'Neill
  */
@@ -31,7 +33,19 @@ public class ConstantInvokeDynamicInfo extends ConstantInfo {
     private final ConstantNameAndTypeInfo mNameAndType;
 
     public ConstantInvokeDynamicInfo(int bootstrapIndex, ConstantNameAndTypeInfo nameAndType) {
-        super(TAG_INVOKE_DYNAMIC);
+        this(TAG_INVOKE_DYNAMIC, bootstrapIndex, nameAndType);
+    }
+
+    /**
+     * @param tag TAG_INVOKE_DYNAMIC or TAG_DYNAMIC_CONSTANT
+     */
+    public ConstantInvokeDynamicInfo(int tag, int bootstrapIndex,
+                                     ConstantNameAndTypeInfo nameAndType)
+    {
+        super(tag);
+        if (tag != TAG_INVOKE_DYNAMIC && tag != TAG_DYNAMIC_CONSTANT) {
+            throw new IllegalArgumentException("Not a dynamic constant tag: " + tag);
+        }
         mBootstrapIndex = bootstrapIndex;
         mNameAndType = nameAndType;
     }
@@ -47,10 +61,14 @@ public class ConstantInvokeDynamicInfo extends ConstantInfo {
         return mNameAndType;
     }
 
+    /**
+     * Copies this constant with the same bootstrap index, and so the target
+     * ClassFile must have an equivalent BootstrapMethodsAttr.
+     */
     @Override
     public ConstantInvokeDynamicInfo copyTo(ConstantPool cp) {
-        // FIXME
-        throw null;
+        return (ConstantInvokeDynamicInfo) cp.addConstant
+            (new ConstantInvokeDynamicInfo(getTag(), mBootstrapIndex, mNameAndType.copyTo(cp)));
     }
 
     @Override
@@ -62,13 +80,20 @@ public class ConstantInvokeDynamicInfo extends ConstantInfo {
     public boolean equals(Object obj) {
         if (obj instanceof ConstantInvokeDynamicInfo) {
             ConstantInvokeDynamicInfo other = (ConstantInvokeDynamicInfo) obj;
-            return mBootstrapIndex == other.mBootstrapIndex
+            return getTag() == other.getTag() && mBootstrapIndex == other.mBootstrapIndex
                 && mNameAndType.equals(other.mNameAndType);
         }
         
         return false;
     }
 
+    @Override
+    public void writeTo(DataOutput dout) throws IOException {
+        super.writeTo(dout);
+        dout.writeShort(mBootstrapIndex);
+        dout.writeShort(mNameAndType.getIndex());
+    }
+
     @Override
     public String toString() {
         return "CONSTANT_InvokeDynamic_info: " + getBootstrapIndex() + ", " + getNameAndType();
@@ -22,7 +22,8 @@ import org.cojen.classfile.ConstantInfo;
 import org.cojen.classfile.ConstantPool;
 
 /**
- * 
+ * This class corresponds to the CONSTANT_MethodHandle_info structure as defined in
+ * <i>The Java Virtual Machine Specification</i>.
  *
  * @author Brian S O'Neill
  */
@@ -46,8 +47,8 @@ public class ConstantMethodHandleInfo extends ConstantInfo {
 
     @Override
     public ConstantMethodHandleInfo copyTo(ConstantPool cp) {
-        // FIXME
-        throw null;
+        return (ConstantMethodHandleInfo) cp.addConstant
+            (new ConstantMethodHandleInfo(mKind, mConstant.copyTo(cp)));
     }
 
     @Override
@@ -65,6 +66,13 @@ public class ConstantMethodHandleInfo extends ConstantInfo {
         return false;
     }
 
+    @Override
+    public void writeTo(DataOutput dout) throws IOException {
+        super.writeTo(dout);
+        dout.writeByte(mKind);
+        dout.writeShort(mConstant.getIndex());
+    }
+
     @Override
     public String toString() {
         return "CONSTANT_MethodHandle_info: " + getKind() + ", " + getConstant();
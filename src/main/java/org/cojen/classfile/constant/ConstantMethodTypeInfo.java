@@ -23,20 +23,25 @@ import org.cojen.classfile.ConstantPool;
 import org.cojen.classfile.MethodDesc;
 
 /**
- * 
+ * This class corresponds to the CONSTANT_MethodType_info structure as defined in
+ * <i>The Java Virtual Machine Specification</i>.
  *
  * @author Brian S O'Neill
  */
 public class ConstantMethodTypeInfo extends ConstantInfo {
+    private final ConstantUTFInfo mDescriptorConstant;
     private final MethodDesc mDescriptor;
 
     public ConstantMethodTypeInfo(ConstantUTFInfo desc) {
-        this(desc.getValue());
+        super(TAG_METHOD_TYPE);
+        mDescriptorConstant = desc;
+        mDescriptor = MethodDesc.forDescriptor(desc.getValue());
     }
 
-    public ConstantMethodTypeInfo(String desc) {
+    public ConstantMethodTypeInfo(ConstantPool cp, MethodDesc desc) {
         super(TAG_METHOD_TYPE);
-        mDescriptor = MethodDesc.forDescriptor(desc);
+        mDescriptorConstant = cp.addConstantUTF(desc.getDescriptor());
+        mDescriptor = desc;
     }
 
     public MethodDesc getDescriptor() {
@@ -45,8 +50,7 @@ public class ConstantMethodTypeInfo extends ConstantInfo {
 
     @Override
     public ConstantMethodTypeInfo copyTo(ConstantPool cp) {
-        // FIXME
-        throw null;
+        return cp.addConstantMethodType(mDescriptor);
     }
 
     @Override
@@ -64,6 +68,12 @@ public class ConstantMethodTypeInfo extends ConstantInfo {
         return false;
     }
 
+    @Override
+    public void writeTo(DataOutput dout) throws IOException {
+        super.writeTo(dout);
+        dout.writeShort(mDescriptorConstant.getIndex());
+    }
+
     @Override
     public String toString() {
         return "CONSTANT_MethodType_info: " + getDescriptor();
@@ -18,8 +18,10 @@ package org.cojen.util;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.List;
+import java.util.ListIterator;
 import java.util.Map;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Method;
@@ -92,11 +94,20 @@ import org.cojen.classfile.TypeDesc;
  * @author Brian S O'Neill
  */
 public class BeanComparator<T> implements Comparator<T>, Serializable {
-    // Maps Rules to auto-generated Comparators.
-    private static Cache cGeneratedComparatorCache;
+    // Maps Rules to auto-generated Comparator classes, or to singleton
+    // Comparators.
+    private static final LoadingCache<Object, Object> cGeneratedComparatorCache;
+
+    // Maps BeanComparators to auto-generated SortKeyEncoders.
+    private static final LoadingCache<Object, SortKeyEncoder<?>> cSortKeyEncoderCache;
+
+    // Maps BeanComparators to auto-generated Equivalences.
+    private static final LoadingCache<Object, Equivalence<?>> cEquivalenceCache;
 
     static {
-        cGeneratedComparatorCache = new SoftValueCache(17);
+        cGeneratedComparatorCache = new ConcurrentSoftValueCache<Object, Object>(17);
+        cSortKeyEncoderCache = new ConcurrentSoftValueCache<Object, SortKeyEncoder<?>>(17);
+        cEquivalenceCache = new ConcurrentSoftValueCache<Object, Equivalence<?>>(17);
     }
 
     /**
@@ -151,6 +162,10 @@ public class BeanComparator<T> implements Comparator<T>, Serializable {
     // Auto-generated internal Comparator.
     private transient Comparator<T> mComparator;
 
+    private transient SortKeyEncoder<T> mSortKeyEncoder;
+
+    private transient Equivalence<T> mEquivalence;
+
     private transient boolean mHasHashCode;
     private transient int mHashCode;
 
@@ -383,6 +398,85 @@ public class BeanComparator<T> implements Comparator<T>, Serializable {
         return c.compare(obj1, obj2);
     }
 
+    /**
+     * Returns an encoder which converts beans into keys that order the same
+     * as this comparator. Order-by properties must be primitives, boxed
+     * primitives, enums or Strings, or they must be ordered by a {@link #using
+     * using} BeanComparator, as is the case for sub-properties. Strings must
+     * be compared {@link #caseSensitive case-sensitively} or by the default
+     * collator, {@link String#CASE_INSENSITIVE_ORDER}.
+     *
+     * @throws IllegalStateException if the ordering rules cannot be encoded
+     */
+    public SortKeyEncoder<T> sortKeyEncoder() throws IllegalStateException {
+        SortKeyEncoder<T> encoder = mSortKeyEncoder;
+        if (encoder == null) {
+            mSortKeyEncoder = encoder = AccessController.doPrivileged
+                (new PrivilegedAction<SortKeyEncoder<T>>() {
+                    public SortKeyEncoder<T> run() {
+                        return generateSortKeyEncoder();
+                    }
+                });
+        }
+        return encoder;
+    }
+
+    /**
+     * Returns an Equivalence which hashes and compares beans by the order-by
+     * properties of this comparator, and so beans are equivalent when this
+     * comparator considers them equal. Primitive properties are compared
+     * without boxing, and floating point values are compared like {@link
+     * Float#compareTo(Float) Float.compareTo}. Strings are compared ignoring
+     * case if the default collator applies. Properties ordered by a {@link
+     * #using using} BeanComparator are compared by its order-by properties,
+     * and all other objects are compared by their equals method.
+     *
+     * @throws IllegalStateException if the ordering rules rely on a
+     * Comparator other than a BeanComparator, or on a custom collator
+     */
+    public Equivalence<T> equivalence() throws IllegalStateException {
+        Equivalence<T> equivalence = mEquivalence;
+        if (equivalence == null) {
+            mEquivalence = equivalence = AccessController.doPrivileged
+                (new PrivilegedAction<Equivalence<T>>() {
+                    public Equivalence<T> run() {
+                        return generateEquivalence();
+                    }
+                });
+        }
+        return equivalence;
+    }
+
+    /**
+     * Sorts the given beans into the order imposed by this comparator. Like
+     * {@link Arrays#sort(Object[], Comparator) Arrays.sort}, the sort is
+     * stable. If the ordering rules can be {@link #sortKeyEncoder encoded},
+     * each bean is encoded once and the keys are sorted instead. Keys which
+     * fit into a long are radix sorted, and otherwise the sort is a merge
+     * sort, which large arrays split among multiple threads.
+     */
+    public void sort(T[] beans) {
+        BeanSorter.sort(beans, this);
+    }
+
+    /**
+     * Sorts the given list of beans into the order imposed by this
+     * comparator, as if by {@link #sort(Object[]) sort(T[])}.
+     *
+     * @throws UnsupportedOperationException if the list doesn't support the
+     * set operation
+     */
+    @SuppressWarnings("unchecked")
+    public void sort(List<T> beans) {
+        T[] array = (T[]) beans.toArray();
+        BeanSorter.sort(array, this);
+        ListIterator<T> it = beans.listIterator();
+        for (T bean : array) {
+            it.next();
+            it.set(bean);
+        }
+    }
+
     public int hashCode() {
         if (!mHasHashCode) {
             setHashCode(new Rules(this));
@@ -426,69 +520,66 @@ public class BeanComparator<T> implements Comparator<T>, Serializable {
     }
 
     private Comparator<T> generateComparator() {
-        Rules rules = new Rules(this);
+        final Rules rules = new Rules(this);
 
         if (!mHasHashCode) {
             setHashCode(rules);
         }
 
-        Class clazz;
-
-        synchronized (cGeneratedComparatorCache) {
-            Object c = cGeneratedComparatorCache.get(rules);
-
-            if (c == null) {
-                clazz = generateComparatorClass(rules);
-                cGeneratedComparatorCache.put(rules, clazz);
-            } else if (c instanceof Comparator) {
-                return (Comparator)c;
-            } else {
-                clazz = (Class)c;
+        Object c = cGeneratedComparatorCache.get(rules, new LoadingCache.Loader<Object, Object>() {
+            public Object load(Object key) {
+                return generateComparatorClass(rules);
             }
+        });
 
-            BeanComparator[] ruleParts = rules.getRuleParts();
-            Comparator[] collators = new Comparator[ruleParts.length];
-            Comparator[] usingComparators = new Comparator[ruleParts.length];
-            boolean singleton = true;
+        if (c instanceof Comparator) {
+            return (Comparator) c;
+        }
 
-            for (int i=0; i<ruleParts.length; i++) {
-                BeanComparator rp = ruleParts[i];
-                Comparator c2 = rp.mCollator;
-                if ((collators[i] = c2) != null) {
-                    if (c2 != String.CASE_INSENSITIVE_ORDER) {
-                        singleton = false;
-                    }
-                }
-                if ((usingComparators[i] = rp.mUsingComparator) != null) {
+        Class clazz = (Class) c;
+
+        BeanComparator[] ruleParts = rules.getRuleParts();
+        Comparator[] collators = new Comparator[ruleParts.length];
+        Comparator[] usingComparators = new Comparator[ruleParts.length];
+        boolean singleton = true;
+
+        for (int i=0; i<ruleParts.length; i++) {
+            BeanComparator rp = ruleParts[i];
+            Comparator c2 = rp.mCollator;
+            if ((collators[i] = c2) != null) {
+                if (c2 != String.CASE_INSENSITIVE_ORDER) {
                     singleton = false;
                 }
             }
-
-            try {
-                Constructor ctor = clazz.getDeclaredConstructor
-                    (new Class[] {Comparator[].class, Comparator[].class});
-                c = (Comparator)ctor.newInstance
-                    (new Object[] {collators, usingComparators});
-            } catch (NoSuchMethodException e) {
-                throw new InternalError(e.toString());
-            } catch (InstantiationException e) {
-                throw new InternalError(e.toString());
-            } catch (IllegalAccessException e) {
-                throw new InternalError(e.toString());
-            } catch (IllegalArgumentException e) {
-                throw new InternalError(e.toString());
-            } catch (InvocationTargetException e) {
-                throw new InternalError(e.getTargetException().toString());
+            if ((usingComparators[i] = rp.mUsingComparator) != null) {
+                singleton = false;
             }
+        }
 
-            if (singleton) {
-                // Can save and re-use instance since it obeys the requirements
-                // for a singleton.
-                cGeneratedComparatorCache.put(rules, c);
-            }
+        try {
+            Constructor ctor = clazz.getDeclaredConstructor
+                (new Class[] {Comparator[].class, Comparator[].class});
+            c = (Comparator)ctor.newInstance
+                (new Object[] {collators, usingComparators});
+        } catch (NoSuchMethodException e) {
+            throw new InternalError(e.toString());
+        } catch (InstantiationException e) {
+            throw new InternalError(e.toString());
+        } catch (IllegalAccessException e) {
+            throw new InternalError(e.toString());
+        } catch (IllegalArgumentException e) {
+            throw new InternalError(e.toString());
+        } catch (InvocationTargetException e) {
+            throw new InternalError(e.getTargetException().toString());
+        }
 
-            return (Comparator<T>)c;
+        if (singleton) {
+            // Can save and re-use instance since it obeys the requirements
+            // for a singleton.
+            cGeneratedComparatorCache.put(rules, c);
         }
+
+        return (Comparator<T>)c;
     }
 
     private Class generateComparatorClass(Rules rules) {
@@ -743,6 +834,792 @@ public class BeanComparator<T> implements Comparator<T>, Serializable {
         return cf.defineClass();
     }
 
+    @SuppressWarnings("unchecked")
+    private SortKeyEncoder<T> generateSortKeyEncoder() {
+        // Encoders have no state, and so they can always be re-used.
+        SortKeyEncoder<?> encoder = cSortKeyEncoderCache.get
+            (this, new LoadingCache.Loader<Object, SortKeyEncoder<?>>() {
+                public SortKeyEncoder<?> load(Object key) {
+                    Class clazz = generateSortKeyEncoderClass();
+                    try {
+                        return (SortKeyEncoder<?>) clazz.newInstance();
+                    } catch (InstantiationException e) {
+                        throw new InternalError(e.toString());
+                    } catch (IllegalAccessException e) {
+                        throw new InternalError(e.toString());
+                    }
+                }
+            });
+        // Keyed by this BeanComparator, and so it's for beans of type T.
+        return (SortKeyEncoder<T>) encoder;
+    }
+
+    private Class generateSortKeyEncoderClass() {
+        BeanComparator[] ruleParts = new Rules(this).getRuleParts();
+        BeanComparator bc = ruleParts[0];
+        boolean invert = (bc.mFlags & 0x01) != 0;
+        boolean nullHigh = (bc.mFlags & 0x02) == 0;
+        SortKeyPart[] parts = sortKeyParts(ruleParts, invert);
+
+        // Long keys are only supported for fixed width parts.
+        int longWidth = 0;
+        for (SortKeyPart part : parts) {
+            if (part.mWidth == 0) {
+                longWidth = Integer.MAX_VALUE;
+                break;
+            }
+            longWidth += part.mType.isPrimitive() ? part.mWidth : (part.mWidth + 1);
+        }
+
+        RuntimeClassFile cf = new RuntimeClassFile
+            (SortKeyEncoder.class.getName(), SortKeyEncoder.class.getName(),
+             mBeanClass.getClassLoader());
+        cf.markSynthetic();
+        cf.setSourceFile(BeanComparator.class.getName());
+        cf.setTarget("1.5");
+
+        MethodInfo ctor = cf.addConstructor(Modifiers.PUBLIC, null);
+        ctor.markSynthetic();
+        CodeBuilder builder = new CodeBuilder(ctor);
+        builder.loadThis();
+        builder.loadConstant(longWidth <= 8);
+        builder.invokeSuperConstructor(new TypeDesc[] {TypeDesc.BOOLEAN});
+        builder.returnVoid();
+
+        TypeDesc beanType = TypeDesc.forClass(mBeanClass);
+        TypeDesc keyType = TypeDesc.BYTE.toArrayType();
+
+        // Define the encodeKey method, which first computes the key length
+        // and then writes the key. Each key starts with a bean null header.
+
+        MethodInfo mi = cf.addMethod
+            (Modifiers.PUBLIC, "encodeKey", keyType, new TypeDesc[] {TypeDesc.OBJECT});
+        mi.markSynthetic();
+        builder = new CodeBuilder(mi);
+
+        LocalVariable key = builder.createLocalVariable("key", keyType);
+        LocalVariable offset = builder.createLocalVariable("offset", TypeDesc.INT);
+        builder.loadConstant(0);
+        builder.storeLocal(offset);
+
+        Label notNull = builder.createLabel();
+        builder.loadLocal(builder.getParameter(0));
+        builder.ifNullBranch(notNull, false);
+        builder.loadConstant(1);
+        builder.newObject(keyType);
+        builder.storeLocal(key);
+        storeSortKeyHeader(builder, key, offset, nullHeader(invert, nullHigh));
+        builder.loadLocal(key);
+        builder.returnValue(keyType);
+
+        notNull.setLocation();
+        LocalVariable bean = builder.createLocalVariable("bean", beanType);
+        builder.loadLocal(builder.getParameter(0));
+        builder.checkCast(beanType);
+        builder.storeLocal(bean);
+
+        createSortKeyLocals(builder, parts, false);
+        LocalVariable length = builder.createLocalVariable("length", TypeDesc.INT);
+        builder.loadConstant(0);
+        builder.storeLocal(length);
+        int fixedLength = 1 + loadSortKeyParts(builder, bean, null, parts, length);
+
+        builder.loadLocal(length);
+        builder.loadConstant(fixedLength);
+        builder.math(Opcode.IADD);
+        builder.newObject(keyType);
+        builder.storeLocal(key);
+        storeSortKeyHeader(builder, key, offset, notNullHeader(invert));
+        encodeSortKeyParts(builder, parts, key, offset);
+        builder.loadLocal(key);
+        builder.returnValue(keyType);
+
+        if (longWidth > 8) {
+            return cf.defineClass();
+        }
+
+        // Define the encodeLongKey method, which shifts each part into a long.
+
+        mi = cf.addMethod
+            (Modifiers.PUBLIC, "encodeLongKey", TypeDesc.LONG, new TypeDesc[] {TypeDesc.OBJECT});
+        mi.markSynthetic();
+        builder = new CodeBuilder(mi);
+
+        bean = builder.createLocalVariable("bean", beanType);
+        builder.loadLocal(builder.getParameter(0));
+        builder.checkCast(beanType);
+        builder.storeLocal(bean);
+
+        LocalVariable result = builder.createLocalVariable("result", TypeDesc.LONG);
+        builder.loadConstant(0L);
+        builder.storeLocal(result);
+
+        for (int i=0; i<parts.length; i++) {
+            SortKeyPart part = parts[i];
+
+            if (i > 0) {
+                builder.loadLocal(result);
+                builder.loadConstant
+                    ((part.mType.isPrimitive() ? part.mWidth : (part.mWidth + 1)) << 3);
+                builder.math(Opcode.LSHL);
+            }
+
+            builder.loadLocal(bean);
+            builder.invoke(part.mReadMethod);
+
+            if (part.mType.isPrimitive()) {
+                loadOrderedBits(builder, part);
+            } else {
+                LocalVariable value = builder.createLocalVariable(null, part.mType);
+                builder.storeLocal(value);
+                Label done = builder.createLabel();
+                notNull = builder.createLabel();
+                builder.loadLocal(value);
+                builder.ifNullBranch(notNull, false);
+                builder.loadConstant
+                    (((long) nullHeader(part.mInvert, part.mNullHigh)) << (part.mWidth << 3));
+                builder.branch(done);
+                notNull.setLocation();
+                builder.loadLocal(value);
+                loadOrderedBits(builder, part);
+                builder.loadConstant(((long) notNullHeader(part.mInvert)) << (part.mWidth << 3));
+                builder.math(Opcode.LOR);
+                done.setLocation();
+            }
+
+            if (i > 0) {
+                builder.math(Opcode.LOR);
+            }
+            builder.storeLocal(result);
+        }
+
+        builder.loadLocal(result);
+        if (longWidth == 8) {
+            // Flip the sign bit so that keys can be compared as signed longs.
+            builder.loadConstant(Long.MIN_VALUE);
+            builder.math(Opcode.LXOR);
+        }
+        builder.returnValue(TypeDesc.LONG);
+
+        return cf.defineClass();
+    }
+
+    private static SortKeyPart[] sortKeyParts(BeanComparator[] ruleParts, boolean invert) {
+        if (ruleParts[0].mUsingComparator != null) {
+            throw new IllegalStateException("Cannot encode beans ordered by a Comparator");
+        }
+
+        SortKeyPart[] parts = new SortKeyPart[ruleParts.length - 1];
+
+        for (int i=1; i<ruleParts.length; i++) {
+            BeanComparator bc = ruleParts[i];
+            BeanProperty prop = (BeanProperty)bc.getProperties().get(bc.mOrderByName);
+            Class type = prop.getType();
+            boolean partInvert = invert ^ ((bc.mFlags & 0x01) != 0);
+
+            int width = 0;
+            boolean caseInsensitive = false;
+            TypeDesc castType = null;
+            SortKeyPart[] subParts = null;
+
+            if (bc.mUsingComparator != null) {
+                if (!(bc.mUsingComparator instanceof BeanComparator) || type.isPrimitive()) {
+                    throw new IllegalStateException
+                        ("Cannot encode property '" + bc.mOrderByName +
+                         "' ordered by a Comparator");
+                }
+                BeanComparator[] subRuleParts =
+                    new Rules((BeanComparator)bc.mUsingComparator).getRuleParts();
+                Class subBeanClass = subRuleParts[0].mBeanClass;
+                if (!subBeanClass.isAssignableFrom(type)) {
+                    castType = TypeDesc.forClass(subBeanClass);
+                }
+                subParts = sortKeyParts
+                    (subRuleParts, partInvert ^ ((subRuleParts[0].mFlags & 0x01) != 0));
+            } else if (type == String.class) {
+                if ((bc.mFlags & 0x04) == 0 && bc.mCollator != null) {
+                    if (bc.mCollator != String.CASE_INSENSITIVE_ORDER) {
+                        throw new IllegalStateException
+                            ("Cannot encode property '" + bc.mOrderByName +
+                             "' ordered by a collator");
+                    }
+                    caseInsensitive = true;
+                }
+            } else if (type.isEnum()) {
+                width = 4;
+            } else {
+                TypeDesc primitiveType = TypeDesc.forClass(type).toPrimitiveType();
+                if (primitiveType != null) {
+                    switch (primitiveType.getTypeCode()) {
+                    case TypeDesc.BOOLEAN_CODE: case TypeDesc.BYTE_CODE:
+                        width = 1;
+                        break;
+                    case TypeDesc.SHORT_CODE: case TypeDesc.CHAR_CODE:
+                        width = 2;
+                        break;
+                    case TypeDesc.INT_CODE: case TypeDesc.FLOAT_CODE:
+                        width = 4;
+                        break;
+                    case TypeDesc.LONG_CODE: case TypeDesc.DOUBLE_CODE:
+                        width = 8;
+                        break;
+                    }
+                }
+                if (width == 0) {
+                    throw new IllegalStateException
+                        ("Cannot encode property '" + bc.mOrderByName +
+                         "' of type " + type.getName());
+                }
+            }
+
+            parts[i - 1] = new SortKeyPart
+                (prop.getReadMethod(), TypeDesc.forClass(type), width, partInvert,
+                 (bc.mFlags & 0x02) == 0, caseInsensitive, castType, subParts);
+        }
+
+        return parts;
+    }
+
+    private static int nullHeader(boolean invert, boolean nullHigh) {
+        return (nullHigh ? 0xff : 0) ^ (invert ? 0xff : 0);
+    }
+
+    private static int notNullHeader(boolean invert) {
+        return invert ? 0x7f : 0x80;
+    }
+
+    private static void storeSortKeyHeader(CodeBuilder builder, LocalVariable key,
+                                           LocalVariable offset, int header)
+    {
+        if (header != 0) {
+            builder.loadLocal(key);
+            builder.loadLocal(offset);
+            builder.loadConstant((byte) header);
+            builder.storeToArray(TypeDesc.BYTE);
+        }
+        builder.integerIncrement(offset, 1);
+    }
+
+    /**
+     * Creates a local variable for each part. Parts of nested beans are
+     * only assigned if the bean isn't null, and so they're initialized here.
+     */
+    private static void createSortKeyLocals(CodeBuilder builder, SortKeyPart[] parts,
+                                            boolean nested)
+    {
+        for (SortKeyPart part : parts) {
+            part.mValue = builder.createLocalVariable(null, part.mType);
+            if (nested) {
+                switch (part.mType.getTypeCode()) {
+                case TypeDesc.OBJECT_CODE:
+                    builder.loadNull();
+                    break;
+                case TypeDesc.LONG_CODE:
+                    builder.loadConstant(0L);
+                    break;
+                case TypeDesc.FLOAT_CODE:
+                    builder.loadConstant(0.0f);
+                    break;
+                case TypeDesc.DOUBLE_CODE:
+                    builder.loadConstant(0.0d);
+                    break;
+                default:
+                    builder.loadConstant(0);
+                    break;
+                }
+                builder.storeLocal(part.mValue);
+            }
+            if (part.mSubParts != null) {
+                createSortKeyLocals(builder, part.mSubParts, true);
+            }
+        }
+    }
+
+    /**
+     * Reads all the parts into their local variables, and adds the length of
+     * variable length parts to the length variable.
+     *
+     * @return length of fixed width parts
+     */
+    private static int loadSortKeyParts(CodeBuilder builder, LocalVariable bean,
+                                        TypeDesc castType, SortKeyPart[] parts,
+                                        LocalVariable length)
+    {
+        int fixedLength = 0;
+
+        for (SortKeyPart part : parts) {
+            builder.loadLocal(bean);
+            if (castType != null) {
+                builder.checkCast(castType);
+            }
+            builder.invoke(part.mReadMethod);
+            builder.storeLocal(part.mValue);
+
+            if (!part.mType.isPrimitive()) {
+                // Null header.
+                fixedLength++;
+            }
+
+            if (part.mWidth != 0) {
+                // Null values are padded to the same width.
+                fixedLength += part.mWidth;
+                continue;
+            }
+
+            Label next = builder.createLabel();
+            builder.loadLocal(part.mValue);
+            builder.ifNullBranch(next, true);
+
+            if (part.mSubParts != null) {
+                int subLength = loadSortKeyParts
+                    (builder, part.mValue, part.mCastType, part.mSubParts, length);
+                if (subLength != 0) {
+                    builder.integerIncrement(length, subLength);
+                }
+            } else {
+                builder.loadLocal(length);
+                builder.loadLocal(part.mValue);
+                builder.loadConstant(part.mCaseInsensitive);
+                builder.invokeStatic(SortKeyEncoder.class.getName(), "stringLength",
+                                     TypeDesc.INT,
+                                     new TypeDesc[] {TypeDesc.STRING, TypeDesc.BOOLEAN});
+                builder.math(Opcode.IADD);
+                builder.storeLocal(length);
+            }
+
+            next.setLocation();
+        }
+
+        return fixedLength;
+    }
+
+    private static void encodeSortKeyParts(CodeBuilder builder, SortKeyPart[] parts,
+                                           LocalVariable key, LocalVariable offset)
+    {
+        TypeDesc encoderType = TypeDesc.forClass(SortKeyEncoder.class);
+        TypeDesc keyType = TypeDesc.BYTE.toArrayType();
+
+        for (SortKeyPart part : parts) {
+            Label next = null;
+
+            if (!part.mType.isPrimitive()) {
+                Label notNull = builder.createLabel();
+                builder.loadLocal(part.mValue);
+                builder.ifNullBranch(notNull, false);
+                storeSortKeyHeader(builder, key, offset,
+                                   nullHeader(part.mInvert, part.mNullHigh));
+                if (part.mWidth != 0) {
+                    builder.integerIncrement(offset, part.mWidth);
+                }
+                next = builder.createLabel();
+                builder.branch(next);
+                notNull.setLocation();
+                storeSortKeyHeader(builder, key, offset, notNullHeader(part.mInvert));
+            }
+
+            if (part.mSubParts != null) {
+                encodeSortKeyParts(builder, part.mSubParts, key, offset);
+            } else if (part.mWidth == 0) {
+                LocalVariable start = null;
+                if (part.mInvert) {
+                    start = builder.createLocalVariable("start", TypeDesc.INT);
+                    builder.loadLocal(offset);
+                    builder.storeLocal(start);
+                }
+                builder.loadLocal(key);
+                builder.loadLocal(offset);
+                builder.loadLocal(part.mValue);
+                builder.loadConstant(part.mCaseInsensitive);
+                builder.invokeStatic(encoderType, "encodeString", TypeDesc.INT, new TypeDesc[] {
+                    keyType, TypeDesc.INT, TypeDesc.STRING, TypeDesc.BOOLEAN
+                });
+                builder.storeLocal(offset);
+                if (start != null) {
+                    builder.loadLocal(key);
+                    builder.loadLocal(start);
+                    builder.loadLocal(offset);
+                    builder.invokeStatic(encoderType, "invert", null, new TypeDesc[] {
+                        keyType, TypeDesc.INT, TypeDesc.INT
+                    });
+                }
+            } else {
+                builder.loadLocal(key);
+                builder.loadLocal(offset);
+                builder.loadLocal(part.mValue);
+                loadOrderedBits(builder, part);
+                builder.loadConstant(part.mWidth);
+                builder.invokeStatic(encoderType, "encodeBits", TypeDesc.INT, new TypeDesc[] {
+                    keyType, TypeDesc.INT, TypeDesc.LONG, TypeDesc.INT
+                });
+                builder.storeLocal(offset);
+            }
+
+            if (next != null) {
+                next.setLocation();
+            }
+        }
+    }
+
+    /**
+     * Converts the non-null fixed width value on the stack to ordered bits,
+     * inverting them if the part is reversed.
+     */
+    private static void loadOrderedBits(CodeBuilder builder, SortKeyPart part) {
+        TypeDesc type = part.mType;
+        if (type.toClass() != null && type.toClass().isEnum()) {
+            builder.invokeVirtual(type, "ordinal", TypeDesc.INT, null);
+            type = TypeDesc.INT;
+        } else if (!type.isPrimitive()) {
+            TypeDesc primitiveType = type.toPrimitiveType();
+            builder.convert(type, primitiveType);
+            type = primitiveType;
+        }
+
+        builder.invokeStatic(SortKeyEncoder.class.getName(), "orderedBits", TypeDesc.LONG,
+                             new TypeDesc[] {type});
+
+        if (part.mInvert) {
+            builder.loadConstant(part.mWidth == 8 ? ~0L : ((1L << (part.mWidth << 3)) - 1));
+            builder.math(Opcode.LXOR);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Equivalence<T> generateEquivalence() {
+        Equivalence<?> equivalence = cEquivalenceCache.get
+            (this, new LoadingCache.Loader<Object, Equivalence<?>>() {
+                public Equivalence<?> load(Object key) {
+                    Class clazz = generateEquivalenceClass();
+                    try {
+                        return (Equivalence<?>) clazz.newInstance();
+                    } catch (InstantiationException e) {
+                        throw new InternalError(e.toString());
+                    } catch (IllegalAccessException e) {
+                        throw new InternalError(e.toString());
+                    }
+                }
+            });
+        // Keyed by this BeanComparator, and so it's for beans of type T.
+        return (Equivalence<T>) equivalence;
+    }
+
+    private Class generateEquivalenceClass() {
+        BeanComparator[] ruleParts = new Rules(this).getRuleParts();
+
+        RuntimeClassFile cf = new RuntimeClassFile
+            (Equivalence.class.getName(), Equivalence.class.getName(),
+             mBeanClass.getClassLoader());
+        cf.markSynthetic();
+        cf.setSourceFile(BeanComparator.class.getName());
+        cf.setTarget("1.5");
+
+        cf.addDefaultConstructor().markSynthetic();
+
+        TypeDesc beanType = TypeDesc.forClass(mBeanClass);
+
+        // Define the hash method.
+
+        MethodInfo mi = cf.addMethod
+            (Modifiers.PUBLIC, "hash", TypeDesc.INT, new TypeDesc[] {TypeDesc.OBJECT});
+        mi.markSynthetic();
+        CodeBuilder builder = new CodeBuilder(mi);
+
+        Label notNull = builder.createLabel();
+        builder.loadLocal(builder.getParameter(0));
+        builder.ifNullBranch(notNull, false);
+        builder.loadConstant(0);
+        builder.returnValue(TypeDesc.INT);
+
+        notNull.setLocation();
+        LocalVariable bean = builder.createLocalVariable("bean", beanType);
+        builder.loadLocal(builder.getParameter(0));
+        builder.checkCast(beanType);
+        builder.storeLocal(bean);
+
+        LocalVariable hash = builder.createLocalVariable("hash", TypeDesc.INT);
+        builder.loadConstant(0);
+        builder.storeLocal(hash);
+        generateHash(builder, bean, null, ruleParts, hash);
+        builder.loadLocal(hash);
+        builder.returnValue(TypeDesc.INT);
+
+        // Define the equivalent method.
+
+        mi = cf.addMethod(Modifiers.PUBLIC, "equivalent", TypeDesc.BOOLEAN,
+                          new TypeDesc[] {TypeDesc.OBJECT, TypeDesc.OBJECT});
+        mi.markSynthetic();
+        builder = new CodeBuilder(mi);
+
+        Label isEqual = builder.createLabel();
+        Label notEqual = builder.createLabel();
+
+        builder.loadLocal(builder.getParameter(0));
+        builder.loadLocal(builder.getParameter(1));
+        builder.ifEqualBranch(isEqual, true);
+        builder.loadLocal(builder.getParameter(0));
+        builder.ifNullBranch(notEqual, true);
+        builder.loadLocal(builder.getParameter(1));
+        builder.ifNullBranch(notEqual, true);
+
+        LocalVariable a = builder.createLocalVariable("a", beanType);
+        builder.loadLocal(builder.getParameter(0));
+        builder.checkCast(beanType);
+        builder.storeLocal(a);
+        LocalVariable b = builder.createLocalVariable("b", beanType);
+        builder.loadLocal(builder.getParameter(1));
+        builder.checkCast(beanType);
+        builder.storeLocal(b);
+
+        generateEquivalent(builder, a, b, null, ruleParts, notEqual);
+
+        isEqual.setLocation();
+        builder.loadConstant(true);
+        builder.returnValue(TypeDesc.BOOLEAN);
+        notEqual.setLocation();
+        builder.loadConstant(false);
+        builder.returnValue(TypeDesc.BOOLEAN);
+
+        return cf.defineClass();
+    }
+
+    /**
+     * Returns the rule parts of the using BeanComparator, or null if none.
+     *
+     * @throws IllegalStateException if rule depends on an unsupported
+     * Comparator
+     */
+    private static BeanComparator[] equivalenceSubRules(BeanComparator bc, Class type) {
+        if (bc.mUsingComparator != null) {
+            if (!(bc.mUsingComparator instanceof BeanComparator) || type.isPrimitive()) {
+                throw new IllegalStateException
+                    ("Cannot hash property '" + bc.mOrderByName + "' ordered by a Comparator");
+            }
+            return new Rules((BeanComparator) bc.mUsingComparator).getRuleParts();
+        }
+        if (isIgnoreCase(bc, type) && bc.mCollator != String.CASE_INSENSITIVE_ORDER) {
+            throw new IllegalStateException
+                ("Cannot hash property '" + bc.mOrderByName + "' ordered by a collator");
+        }
+        return null;
+    }
+
+    /**
+     * Returns true if the default collator applies to a property.
+     */
+    private static boolean isIgnoreCase(BeanComparator bc, Class type) {
+        if ((bc.mFlags & 0x04) != 0 || bc.mCollator == null ||
+            !type.isAssignableFrom(String.class))
+        {
+            return false;
+        }
+        if (type != String.class) {
+            // Collator only applies at runtime if both values are Strings.
+            throw new IllegalStateException
+                ("Cannot hash property '" + bc.mOrderByName + "' which may be a String");
+        }
+        return true;
+    }
+
+    /**
+     * Generates code which combines the hash codes of all order-by properties
+     * into the hash variable.
+     */
+    private static void generateHash(CodeBuilder builder, LocalVariable bean,
+                                     TypeDesc castType, BeanComparator[] ruleParts,
+                                     LocalVariable hash)
+    {
+        if (ruleParts[0].mUsingComparator != null) {
+            throw new IllegalStateException("Cannot hash beans ordered by a Comparator");
+        }
+
+        for (int i=1; i<ruleParts.length; i++) {
+            BeanComparator bc = ruleParts[i];
+            BeanProperty prop = (BeanProperty)bc.getProperties().get(bc.mOrderByName);
+            Class propertyClass = prop.getType();
+            TypeDesc type = TypeDesc.forClass(propertyClass);
+            BeanComparator[] subRuleParts = equivalenceSubRules(bc, propertyClass);
+
+            builder.loadLocal(hash);
+            builder.loadConstant(31);
+            builder.math(Opcode.IMUL);
+
+            if (subRuleParts != null) {
+                // Combine the hash codes of the nested bean, unless it's null.
+                builder.storeLocal(hash);
+                LocalVariable value = builder.createLocalVariable(null, type);
+                loadProperty(builder, bean, castType, prop);
+                builder.storeLocal(value);
+                Label isNull = builder.createLabel();
+                builder.loadLocal(value);
+                builder.ifNullBranch(isNull, true);
+                generateHash(builder, value, subCastType(subRuleParts, propertyClass),
+                             subRuleParts, hash);
+                isNull.setLocation();
+                continue;
+            }
+
+            loadProperty(builder, bean, castType, prop);
+
+            switch (type.getTypeCode()) {
+            case TypeDesc.LONG_CODE:
+                generateLongHash(builder);
+                break;
+            case TypeDesc.FLOAT_CODE:
+                builder.invokeStatic("java.lang.Float", "floatToIntBits", TypeDesc.INT,
+                                     new TypeDesc[] {TypeDesc.FLOAT});
+                break;
+            case TypeDesc.DOUBLE_CODE:
+                builder.invokeStatic("java.lang.Double", "doubleToLongBits", TypeDesc.LONG,
+                                     new TypeDesc[] {TypeDesc.DOUBLE});
+                generateLongHash(builder);
+                break;
+            case TypeDesc.OBJECT_CODE:
+                LocalVariable value = builder.createLocalVariable(null, type);
+                builder.storeLocal(value);
+                Label notNull = builder.createLabel();
+                Label done = builder.createLabel();
+                builder.loadLocal(value);
+                builder.ifNullBranch(notNull, false);
+                builder.loadConstant(0);
+                builder.branch(done);
+                notNull.setLocation();
+                builder.loadLocal(value);
+                if (propertyClass.isEnum()) {
+                    builder.invokeVirtual(type, "ordinal", TypeDesc.INT, null);
+                } else if (isIgnoreCase(bc, propertyClass)) {
+                    builder.invokeStatic(Equivalence.class.getName(), "hashIgnoreCase",
+                                         TypeDesc.INT, new TypeDesc[] {TypeDesc.STRING});
+                } else {
+                    builder.invokeVirtual(TypeDesc.OBJECT, "hashCode", TypeDesc.INT, null);
+                }
+                done.setLocation();
+                break;
+            default:
+                // Boolean, byte, short, char and int values are their own hash.
+                break;
+            }
+
+            builder.math(Opcode.IADD);
+            builder.storeLocal(hash);
+        }
+    }
+
+    private static void generateLongHash(CodeBuilder builder) {
+        builder.dup2();
+        builder.loadConstant(32);
+        builder.math(Opcode.LUSHR);
+        builder.math(Opcode.LXOR);
+        builder.convert(TypeDesc.LONG, TypeDesc.INT);
+    }
+
+    /**
+     * Generates code which branches to the notEqual label if any order-by
+     * properties differ, and otherwise flows through.
+     */
+    private static void generateEquivalent(CodeBuilder builder,
+                                           LocalVariable a, LocalVariable b,
+                                           TypeDesc castType, BeanComparator[] ruleParts,
+                                           Label notEqual)
+    {
+        if (ruleParts[0].mUsingComparator != null) {
+            throw new IllegalStateException("Cannot hash beans ordered by a Comparator");
+        }
+
+        for (int i=1; i<ruleParts.length; i++) {
+            BeanComparator bc = ruleParts[i];
+            BeanProperty prop = (BeanProperty)bc.getProperties().get(bc.mOrderByName);
+            Class propertyClass = prop.getType();
+            TypeDesc type = TypeDesc.forClass(propertyClass);
+            BeanComparator[] subRuleParts = equivalenceSubRules(bc, propertyClass);
+
+            loadProperty(builder, a, castType, prop);
+
+            switch (type.getTypeCode()) {
+            case TypeDesc.LONG_CODE:
+                loadProperty(builder, b, castType, prop);
+                builder.ifComparisonBranch(notEqual, "!=", TypeDesc.LONG);
+                break;
+            case TypeDesc.FLOAT_CODE:
+                TypeDesc[] params = {TypeDesc.FLOAT};
+                builder.invokeStatic("java.lang.Float", "floatToIntBits", TypeDesc.INT, params);
+                loadProperty(builder, b, castType, prop);
+                builder.invokeStatic("java.lang.Float", "floatToIntBits", TypeDesc.INT, params);
+                builder.ifComparisonBranch(notEqual, "!=", TypeDesc.INT);
+                break;
+            case TypeDesc.DOUBLE_CODE:
+                params = new TypeDesc[] {TypeDesc.DOUBLE};
+                builder.invokeStatic("java.lang.Double", "doubleToLongBits", TypeDesc.LONG,
+                                     params);
+                loadProperty(builder, b, castType, prop);
+                builder.invokeStatic("java.lang.Double", "doubleToLongBits", TypeDesc.LONG,
+                                     params);
+                builder.ifComparisonBranch(notEqual, "!=", TypeDesc.LONG);
+                break;
+            case TypeDesc.OBJECT_CODE:
+                LocalVariable p1 = builder.createLocalVariable("p1", type);
+                builder.storeLocal(p1);
+                LocalVariable p2 = builder.createLocalVariable("p2", type);
+                loadProperty(builder, b, castType, prop);
+                builder.storeLocal(p2);
+
+                Label next = builder.createLabel();
+                builder.loadLocal(p1);
+                builder.loadLocal(p2);
+                builder.ifEqualBranch(next, true);
+                builder.loadLocal(p1);
+                builder.ifNullBranch(notEqual, true);
+                builder.loadLocal(p2);
+                builder.ifNullBranch(notEqual, true);
+
+                if (subRuleParts != null) {
+                    generateEquivalent(builder, p1, p2, subCastType(subRuleParts, propertyClass),
+                                       subRuleParts, notEqual);
+                } else if (propertyClass.isEnum()) {
+                    // Distinct enum constants are never equal.
+                    builder.branch(notEqual);
+                } else {
+                    builder.loadLocal(p1);
+                    builder.loadLocal(p2);
+                    if (isIgnoreCase(bc, propertyClass)) {
+                        builder.invokeVirtual(TypeDesc.STRING, "equalsIgnoreCase",
+                                              TypeDesc.BOOLEAN,
+                                              new TypeDesc[] {TypeDesc.STRING});
+                    } else {
+                        builder.invokeVirtual(TypeDesc.OBJECT, "equals", TypeDesc.BOOLEAN,
+                                              new TypeDesc[] {TypeDesc.OBJECT});
+                    }
+                    builder.ifZeroComparisonBranch(notEqual, "==");
+                }
+
+                next.setLocation();
+                break;
+            default:
+                loadProperty(builder, b, castType, prop);
+                builder.ifComparisonBranch(notEqual, "!=", TypeDesc.INT);
+                break;
+            }
+        }
+    }
+
+    /**
+     * Returns the type to cast a nested bean to, or null if not required.
+     */
+    private static TypeDesc subCastType(BeanComparator[] subRuleParts, Class propertyClass) {
+        Class subBeanClass = subRuleParts[0].mBeanClass;
+        return subBeanClass.isAssignableFrom(propertyClass) ? null
+            : TypeDesc.forClass(subBeanClass);
+    }
+
+    private static void loadProperty(CodeBuilder builder, LocalVariable bean,
+                                     TypeDesc castType, BeanProperty prop)
+    {
+        builder.loadLocal(bean);
+        if (castType != null) {
+            builder.checkCast(castType);
+        }
+        builder.invoke(prop.getReadMethod());
+    }
+
     private static void generatePrimitiveComparison(CodeBuilder builder,
                                                     Class type,
                                                     LocalVariable a,
@@ -893,6 +1770,38 @@ public class BeanComparator<T> implements Comparator<T>, Serializable {
         }
     }
 
+    // Describes how an order-by property is encoded into a sort key.
+    private static class SortKeyPart {
+        final Method mReadMethod;
+        final TypeDesc mType;
+        // Width of fixed width values, not including the null header, or 0
+        // for Strings and nested beans.
+        final int mWidth;
+        final boolean mInvert;
+        final boolean mNullHigh;
+        final boolean mCaseInsensitive;
+        // Non-null if nested bean must be cast before reading its properties.
+        final TypeDesc mCastType;
+        // Non-null for nested beans ordered by a BeanComparator.
+        final SortKeyPart[] mSubParts;
+
+        LocalVariable mValue;
+
+        SortKeyPart(Method readMethod, TypeDesc type, int width, boolean invert,
+                    boolean nullHigh, boolean caseInsensitive, TypeDesc castType,
+                    SortKeyPart[] subParts)
+        {
+            mReadMethod = readMethod;
+            mType = type;
+            mWidth = width;
+            mInvert = invert;
+            mNullHigh = nullHigh;
+            mCaseInsensitive = caseInsensitive;
+            mCastType = castType;
+            mSubParts = subParts;
+        }
+    }
+
     // A key that uniquely describes the rules of a BeanComparator.
     private static class Rules {
         private BeanComparator[] mRuleParts;
@@ -33,8 +33,15 @@ import java.util.Map;
  */
 public class BeanIntrospector {
     // Weakly maps Class objects to softly referenced BeanProperty maps.
-    private static Cache<Class, SoftReference<Map<String, BeanProperty>>> cPropertiesCache =
-        new WeakIdentityCache<Class, SoftReference<Map<String, BeanProperty>>>(17);
+    private static final LoadingCache<Class, SoftReference<Map<String, BeanProperty>>> cPropertiesCache =
+        new ConcurrentWeakIdentityCache<Class, SoftReference<Map<String, BeanProperty>>>(17);
+
+    private static final LoadingCache.Loader<Class, SoftReference<Map<String, BeanProperty>>> cLoader =
+        new LoadingCache.Loader<Class, SoftReference<Map<String, BeanProperty>>>() {
+            public SoftReference<Map<String, BeanProperty>> load(Class clazz) {
+                return new SoftReference<Map<String, BeanProperty>>(createProperties(clazz));
+            }
+        };
 
     public static void main(String[] args) throws Exception {
         System.out.println(getAllProperties(Class.forName(args[0])));
@@ -49,18 +56,14 @@ public class BeanIntrospector {
      *
      */
     public static Map<String, BeanProperty> getAllProperties(Class clazz) {
-        synchronized (cPropertiesCache) {
-            Map<String, BeanProperty> properties;
-            SoftReference<Map<String, BeanProperty>> ref = cPropertiesCache.get(clazz);
-            if (ref != null) {
-                properties = ref.get();
-                if (properties != null) {
-                    return properties;
-                }
-            }
-            properties = createProperties(clazz);
-            cPropertiesCache.put(clazz, new SoftReference<Map<String, BeanProperty>>(properties));
-            return properties;
+        while (true) {
+            SoftReference<Map<String, BeanProperty>> ref = cPropertiesCache.get(clazz, cLoader);
+            Map<String, BeanProperty> properties = ref.get();
+            if (properties != null) {
+                return properties;
+            }
+            // Discard the cleared reference and create again.
+            cPropertiesCache.remove(clazz, ref);
         }
     }
 
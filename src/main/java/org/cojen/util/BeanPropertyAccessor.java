@@ -21,6 +21,7 @@ import java.lang.ref.SoftReference;
 import java.lang.reflect.Method;
 
 import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -70,8 +71,17 @@ public abstract class BeanPropertyAccessor<B> {
     private static final int HAS_WRITE_METHOD = 6;
 
     private static final
-        Map<PropertySet, Cache<Class, SoftReference<BeanPropertyAccessor>>> cAccessors =
-        new HashMap<PropertySet, Cache<Class, SoftReference<BeanPropertyAccessor>>>();
+        Map<PropertySet, LoadingCache<Class, SoftReference<BeanPropertyAccessor>>> cAccessors;
+
+    static {
+        cAccessors = new EnumMap<PropertySet, LoadingCache<Class, SoftReference<BeanPropertyAccessor>>>
+            (PropertySet.class);
+        for (PropertySet set : PropertySet.values()) {
+            cAccessors.put
+                (set, new ConcurrentWeakIdentityCache<Class, SoftReference<BeanPropertyAccessor>>
+                 (17));
+        }
+    }
 
     /**
      * Returns a new or cached BeanPropertyAccessor for the given class.
@@ -80,25 +90,24 @@ public abstract class BeanPropertyAccessor<B> {
         return forClass(clazz, PropertySet.ALL);
     }
 
-    public static <B> BeanPropertyAccessor<B> forClass(Class<B> clazz, PropertySet set) {
-        synchronized (cAccessors) {
-            Cache<Class, SoftReference<BeanPropertyAccessor>> accessors = cAccessors.get(set);
-            if (accessors == null) {
-                accessors = new WeakIdentityCache<Class, SoftReference<BeanPropertyAccessor>>(17);
-                cAccessors.put(set, accessors);
-            }
+    public static <B> BeanPropertyAccessor<B> forClass(final Class<B> clazz,
+                                                       final PropertySet set)
+    {
+        LoadingCache<Class, SoftReference<BeanPropertyAccessor>> accessors = cAccessors.get(set);
 
-            BeanPropertyAccessor bpa;
-            SoftReference<BeanPropertyAccessor> ref = accessors.get(clazz);
-            if (ref != null) {
-                bpa = ref.get();
-                if (bpa != null) {
-                    return bpa;
-                }
+        while (true) {
+            SoftReference<BeanPropertyAccessor> ref = accessors.get
+                (clazz, new LoadingCache.Loader<Class, SoftReference<BeanPropertyAccessor>>() {
+                    public SoftReference<BeanPropertyAccessor> load(Class key) {
+                        return new SoftReference<BeanPropertyAccessor>(generate(clazz, set));
+                    }
+                });
+            BeanPropertyAccessor bpa = ref.get();
+            if (bpa != null) {
+                return bpa;
             }
-            bpa = generate(clazz, set);
-            accessors.put(clazz, new SoftReference<BeanPropertyAccessor>(bpa));
-            return bpa;
+            // Discard the cleared reference and generate again.
+            accessors.remove(clazz, ref);
         }
     }
 
@@ -45,54 +45,59 @@ import java.util.TreeSet;
  * @since 2.1
  */
 public abstract class BeanPropertyMapFactory<B> {
-    private static final Cache<Class, SoftReference<BeanPropertyMapFactory>> cFactories =
-        new WeakIdentityCache<Class, SoftReference<BeanPropertyMapFactory>>(17);
+    private static final LoadingCache<Class, SoftReference<BeanPropertyMapFactory>> cFactories =
+        new ConcurrentWeakIdentityCache<Class, SoftReference<BeanPropertyMapFactory>>(17);
+
+    private static final LoadingCache.Loader<Class, SoftReference<BeanPropertyMapFactory>> cLoader =
+        new LoadingCache.Loader<Class, SoftReference<BeanPropertyMapFactory>>() {
+            public SoftReference<BeanPropertyMapFactory> load(Class clazz) {
+                return new SoftReference<BeanPropertyMapFactory>(create(clazz));
+            }
+        };
 
     /**
      * Returns a new or cached BeanPropertyMapFactory for the given class.
      */
     public static <B> BeanPropertyMapFactory<B> forClass(Class<B> clazz) {
-        synchronized (cFactories) {
-            BeanPropertyMapFactory factory;
-            SoftReference<BeanPropertyMapFactory> ref = cFactories.get(clazz);
-            if (ref != null) {
-                factory = ref.get();
-                if (factory != null) {
-                    return factory;
-                }
+        while (true) {
+            SoftReference<BeanPropertyMapFactory> ref = cFactories.get(clazz, cLoader);
+            BeanPropertyMapFactory factory = ref.get();
+            if (factory != null) {
+                return factory;
             }
+            // Discard the cleared reference and create again.
+            cFactories.remove(clazz, ref);
+        }
+    }
 
-            final Map<String, BeanProperty> properties = BeanIntrospector.getAllProperties(clazz);
-            Map<String, BeanProperty> supportedProperties = properties;
-
-            // Determine which properties are to be excluded.
-            for (Map.Entry<String, BeanProperty> entry : properties.entrySet()) {
-                BeanProperty property = entry.getValue();
-                if (property.getReadMethod() == null ||
-                    property.getWriteMethod() == null ||
-                    BeanPropertyAccessor.throwsCheckedException(property.getReadMethod()) ||
-                    BeanPropertyAccessor.throwsCheckedException(property.getWriteMethod()))
-                {
-                    // Exclude property.
-                    if (supportedProperties == properties) {
-                        supportedProperties = new HashMap<String, BeanProperty>(properties);
-                    }
-                    supportedProperties.remove(entry.getKey());
+    private static <B> BeanPropertyMapFactory<B> create(Class<B> clazz) {
+        final Map<String, BeanProperty> properties = BeanIntrospector.getAllProperties(clazz);
+        Map<String, BeanProperty> supportedProperties = properties;
+
+        // Determine which properties are to be excluded.
+        for (Map.Entry<String, BeanProperty> entry : properties.entrySet()) {
+            BeanProperty property = entry.getValue();
+            if (property.getReadMethod() == null ||
+                property.getWriteMethod() == null ||
+                BeanPropertyAccessor.throwsCheckedException(property.getReadMethod()) ||
+                BeanPropertyAccessor.throwsCheckedException(property.getWriteMethod()))
+            {
+                // Exclude property.
+                if (supportedProperties == properties) {
+                    supportedProperties = new HashMap<String, BeanProperty>(properties);
                 }
+                supportedProperties.remove(entry.getKey());
             }
+        }
 
-            if (supportedProperties.size() == 0) {
-                factory = Empty.INSTANCE;
-            } else {
-                factory = new Standard<B>
-                    (BeanPropertyAccessor.forClass
-                     (clazz, BeanPropertyAccessor.PropertySet.READ_WRITE_UNCHECKED_EXCEPTIONS),
-                     supportedProperties);
-            }
-
-            cFactories.put(clazz, new SoftReference<BeanPropertyMapFactory>(factory));
-            return factory;
+        if (supportedProperties.size() == 0) {
+            return Empty.INSTANCE;
         }
+
+        return new Standard<B>
+            (BeanPropertyAccessor.forClass
+             (clazz, BeanPropertyAccessor.PropertySet.READ_WRITE_UNCHECKED_EXCEPTIONS),
+             supportedProperties);
     }
 
     /**
@@ -0,0 +1,409 @@
+/*
+ *  Copyright 2010 Brian S O'Neill
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.util;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Stable sorts used by {@link BeanComparator#sort BeanComparator.sort}. Beans
+ * whose ordering rules fit into long sort keys are radix sorted. Beans with
+ * byte array sort keys are radix sorted by key prefix, and then merge sorted
+ * by the full key where prefixes are equal. Beans which cannot be encoded,
+ * either because of their ordering rules or their values, are merge sorted
+ * by the comparator. Large merge sorts are split among fork-join threads.
+ *
+ * @author Brian S O'Neill
+ */
+final class BeanSorter {
+    // Ranges smaller than this are sorted by insertion sort.
+    private static final int INSERTION_THRESHOLD = 16;
+
+    // Ranges smaller than this are merge sorted by a single thread.
+    private static final int PARALLEL_THRESHOLD = 1 << 13;
+
+    private static final Comparator<byte[]> cKeyComparator = new Comparator<byte[]>() {
+        public int compare(byte[] a, byte[] b) {
+            return SortKeyEncoder.compareKeys(a, b);
+        }
+    };
+
+    private static ForkJoinPool cPool;
+
+    private static synchronized ForkJoinPool pool() {
+        if (cPool == null) {
+            cPool = new ForkJoinPool();
+        }
+        return cPool;
+    }
+
+    private BeanSorter() {
+    }
+
+    static <T> void sort(T[] beans, BeanComparator<T> comparator) {
+        int length = beans.length;
+        if (length < 2) {
+            return;
+        }
+
+        SortKeyEncoder<T> encoder;
+        try {
+            encoder = comparator.sortKeyEncoder();
+        } catch (IllegalStateException e) {
+            parallelMergeSort(beans, null, beans.clone(), null, 0, length, comparator);
+            return;
+        }
+
+        if (encoder.isLongKeySupported()) {
+            sortByLongKeys(beans, comparator, encoder);
+        } else if (!sortByKeys(beans, encoder)) {
+            parallelMergeSort(beans, null, beans.clone(), null, 0, length, comparator);
+        }
+    }
+
+    private static <T> void sortByLongKeys(T[] beans, Comparator<? super T> comparator,
+                                           SortKeyEncoder<T> encoder)
+    {
+        int length = beans.length;
+
+        // Long keys cannot encode null beans, and so sort them separately.
+        T nonNull = null;
+        int nullCount = 0;
+        for (T bean : beans) {
+            if (bean == null) {
+                nullCount++;
+            } else if (nonNull == null) {
+                nonNull = bean;
+            }
+        }
+
+        int count = length - nullCount;
+        long[] keys = new long[count];
+        T[] values = Arrays.copyOf(beans, count);
+        for (int i=0, j=0; i<length; i++) {
+            T bean = beans[i];
+            if (bean != null) {
+                keys[j] = encoder.encodeLongKey(bean);
+                values[j++] = bean;
+            }
+        }
+
+        int[] order = radixSort(keys);
+
+        int offset = 0;
+        if (nullCount > 0 && nonNull != null && comparator.compare(null, nonNull) < 0) {
+            offset = nullCount;
+            Arrays.fill(beans, 0, nullCount, null);
+        } else {
+            Arrays.fill(beans, count, length, null);
+        }
+        for (int i=0; i<count; i++) {
+            beans[offset + i] = values[order[i]];
+        }
+    }
+
+    /**
+     * Radix sorts 8 bytes of each key, following the bytes which all keys
+     * have in common, and then merge sorts each run of keys which have the
+     * same 8 bytes.
+     *
+     * @return false if a bean cannot be encoded, in which case nothing is
+     * sorted
+     */
+    private static <T> boolean sortByKeys(T[] beans, SortKeyEncoder<T> encoder) {
+        int length = beans.length;
+
+        byte[][] keys = new byte[length][];
+        try {
+            for (int i=0; i<length; i++) {
+                keys[i] = encoder.encodeKey(beans[i]);
+            }
+        } catch (IllegalArgumentException e) {
+            // A String has an unpaired surrogate, which only the comparator
+            // can order.
+            return false;
+        }
+
+        byte[] first = keys[0];
+        int common = first.length;
+        for (int i=1; i<length && common > 0; i++) {
+            byte[] key = keys[i];
+            int max = Math.min(common, key.length);
+            int j = 0;
+            while (j < max && key[j] == first[j]) {
+                j++;
+            }
+            common = j;
+        }
+
+        long[] prefixes = new long[length];
+        for (int i=0; i<length; i++) {
+            byte[] key = keys[i];
+            long prefix = 0;
+            int prefixLength = Math.min(8, key.length - common);
+            for (int j=0; j<prefixLength; j++) {
+                prefix = (prefix << 8) | (key[common + j] & 0xff);
+            }
+            if (prefixLength < 8) {
+                prefix <<= (8 - prefixLength) << 3;
+            }
+            // Flip the sign bit for the signed radix sort.
+            prefixes[i] = prefix ^ Long.MIN_VALUE;
+        }
+
+        int[] order = radixSort(prefixes);
+
+        byte[][] sortedKeys = new byte[length][];
+        T[] sortedBeans = beans.clone();
+        for (int i=0; i<length; i++) {
+            int from = order[i];
+            sortedKeys[i] = keys[from];
+            sortedBeans[i] = beans[from];
+        }
+
+        byte[][] srcKeys = null;
+        T[] srcBeans = null;
+
+        for (int low = 0; low < length; ) {
+            long prefix = prefixes[low];
+            int high = low + 1;
+            while (high < length && prefixes[high] == prefix) {
+                high++;
+            }
+            if (high - low > 1) {
+                if (srcKeys == null) {
+                    srcKeys = sortedKeys.clone();
+                    srcBeans = sortedBeans.clone();
+                }
+                parallelMergeSort(sortedKeys, sortedBeans, srcKeys, srcBeans,
+                                  low, high, cKeyComparator);
+            }
+            low = high;
+        }
+
+        System.arraycopy(sortedBeans, 0, beans, 0, length);
+        return true;
+    }
+
+    /**
+     * Sorts a range of keys, and moves the values along with them. Large
+     * ranges are sorted by multiple threads.
+     *
+     * @param values optional values to move with the keys
+     * @param srcKeys scratch space, which initially has the same elements as
+     * the keys in the range
+     * @param srcValues scratch space for values
+     */
+    private static <K> void parallelMergeSort(K[] keys, Object[] values,
+                                              K[] srcKeys, Object[] srcValues,
+                                              int low, int high, Comparator<? super K> comparator)
+    {
+        if (high - low < PARALLEL_THRESHOLD || Runtime.getRuntime().availableProcessors() <= 1) {
+            mergeSort(srcKeys, srcValues, keys, values, low, high, comparator);
+        } else {
+            pool().invoke(new MergeSortTask<K>
+                          (srcKeys, srcValues, keys, values, low, high, comparator));
+        }
+    }
+
+    /**
+     * Sorts the destination range, using the source arrays as scratch
+     * space. Both sources and destinations must initially contain the same
+     * elements.
+     */
+    private static <K> void mergeSort(K[] srcKeys, Object[] srcValues,
+                                      K[] destKeys, Object[] destValues,
+                                      int low, int high, Comparator<? super K> comparator)
+    {
+        if (high - low < INSERTION_THRESHOLD) {
+            insertionSort(destKeys, destValues, low, high, comparator);
+            return;
+        }
+        int mid = (low + high) >>> 1;
+        mergeSort(destKeys, destValues, srcKeys, srcValues, low, mid, comparator);
+        mergeSort(destKeys, destValues, srcKeys, srcValues, mid, high, comparator);
+        merge(srcKeys, srcValues, destKeys, destValues, low, mid, high, comparator);
+    }
+
+    private static <K> void insertionSort(K[] keys, Object[] values,
+                                          int low, int high, Comparator<? super K> comparator)
+    {
+        for (int i=low+1; i<high; i++) {
+            K key = keys[i];
+            Object value = values == null ? null : values[i];
+            int j = i;
+            for (; j > low && comparator.compare(keys[j - 1], key) > 0; j--) {
+                keys[j] = keys[j - 1];
+                if (values != null) {
+                    values[j] = values[j - 1];
+                }
+            }
+            keys[j] = key;
+            if (values != null) {
+                values[j] = value;
+            }
+        }
+    }
+
+    /**
+     * Merges the two sorted source ranges into the destination.
+     */
+    private static <K> void merge(K[] srcKeys, Object[] srcValues,
+                                  K[] destKeys, Object[] destValues,
+                                  int low, int mid, int high, Comparator<? super K> comparator)
+    {
+        if (comparator.compare(srcKeys[mid - 1], srcKeys[mid]) <= 0) {
+            // Already in order.
+            System.arraycopy(srcKeys, low, destKeys, low, high - low);
+            if (srcValues != null) {
+                System.arraycopy(srcValues, low, destValues, low, high - low);
+            }
+            return;
+        }
+
+        for (int i=low, p=low, q=mid; i<high; i++) {
+            int from;
+            if (q >= high || (p < mid && comparator.compare(srcKeys[p], srcKeys[q]) <= 0)) {
+                from = p++;
+            } else {
+                from = q++;
+            }
+            destKeys[i] = srcKeys[from];
+            if (srcValues != null) {
+                destValues[i] = srcValues[from];
+            }
+        }
+    }
+
+    /**
+     * LSD radix sort of signed long keys, one byte at a time. Bytes which are
+     * the same in all keys are skipped.
+     *
+     * @return original index of each sorted key
+     */
+    private static int[] radixSort(long[] keys) {
+        int length = keys.length;
+        int[] order = new int[length];
+        for (int i=0; i<length; i++) {
+            order[i] = i;
+        }
+        if (length < 2) {
+            return order;
+        }
+
+        // Count the occurrences of every byte value at every position in one
+        // pass. The sign bit is flipped so that keys order as unsigned.
+        int[][] counts = new int[8][256];
+        for (int i=0; i<length; i++) {
+            long key = keys[i] ^ Long.MIN_VALUE;
+            for (int d=0; d<8; d++) {
+                counts[d][((int) (key >>> (d << 3))) & 0xff]++;
+            }
+        }
+
+        long[] srcKeys = keys;
+        int[] srcOrder = order;
+        long[] destKeys = null;
+        int[] destOrder = null;
+
+        for (int d=0; d<8; d++) {
+            int shift = d << 3;
+            int[] count = counts[d];
+
+            if (count[((int) ((keys[0] ^ Long.MIN_VALUE) >>> shift)) & 0xff] == length) {
+                continue;
+            }
+
+            // Convert counts to starting positions.
+            for (int b=0, sum=0; b<256; b++) {
+                int c = count[b];
+                count[b] = sum;
+                sum += c;
+            }
+
+            if (destKeys == null) {
+                destKeys = new long[length];
+                destOrder = new int[length];
+            }
+
+            for (int i=0; i<length; i++) {
+                long key = srcKeys[i];
+                int pos = count[((int) ((key ^ Long.MIN_VALUE) >>> shift)) & 0xff]++;
+                destKeys[pos] = key;
+                destOrder[pos] = srcOrder[i];
+            }
+
+            long[] tempKeys = srcKeys;
+            srcKeys = destKeys;
+            destKeys = tempKeys;
+            int[] tempOrder = srcOrder;
+            srcOrder = destOrder;
+            destOrder = tempOrder;
+        }
+
+        if (srcKeys != keys) {
+            System.arraycopy(srcKeys, 0, keys, 0, length);
+        }
+        return srcOrder;
+    }
+
+    private static class MergeSortTask<K> extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final K[] mSrcKeys;
+        private final Object[] mSrcValues;
+        private final K[] mDestKeys;
+        private final Object[] mDestValues;
+        private final int mLow;
+        private final int mHigh;
+        private final Comparator<? super K> mComparator;
+
+        MergeSortTask(K[] srcKeys, Object[] srcValues,
+                      K[] destKeys, Object[] destValues,
+                      int low, int high, Comparator<? super K> comparator)
+        {
+            mSrcKeys = srcKeys;
+            mSrcValues = srcValues;
+            mDestKeys = destKeys;
+            mDestValues = destValues;
+            mLow = low;
+            mHigh = high;
+            mComparator = comparator;
+        }
+
+        @Override
+        protected void compute() {
+            int low = mLow;
+            int high = mHigh;
+
+            if (high - low < PARALLEL_THRESHOLD) {
+                mergeSort(mSrcKeys, mSrcValues, mDestKeys, mDestValues, low, high, mComparator);
+                return;
+            }
+
+            int mid = (low + high) >>> 1;
+            invokeAll(new MergeSortTask<K>(mDestKeys, mDestValues, mSrcKeys, mSrcValues,
+                                           low, mid, mComparator),
+                      new MergeSortTask<K>(mDestKeys, mDestValues, mSrcKeys, mSrcValues,
+                                           mid, high, mComparator));
+            merge(mSrcKeys, mSrcValues, mDestKeys, mDestValues, low, mid, high, mComparator);
+        }
+    }
+}
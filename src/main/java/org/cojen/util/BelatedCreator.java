@@ -72,12 +72,12 @@ import org.cojen.classfile.TypeDesc;
 public abstract class BelatedCreator<T, E extends Exception> {
     private static final String REF_FIELD_NAME = "ref";
 
-    private static final Cache<Class<?>, Class<?>> cWrapperCache;
+    private static final LoadingCache<Class<?>, Class<?>> cWrapperCache;
 
     private static final ExecutorService cThreadPool;
 
     static {
-        cWrapperCache = new SoftValueCache(17);
+        cWrapperCache = new ConcurrentSoftValueCache<Class<?>, Class<?>>(17);
         cThreadPool = Executors.newCachedThreadPool(new TFactory());
     }
 
@@ -279,14 +279,12 @@ public abstract class BelatedCreator<T, E extends Exception> {
      * object.
      */
     private Constructor<T> getWrapper() {
-        Class<T> clazz;
-        synchronized (cWrapperCache) {
-            clazz = (Class<T>) cWrapperCache.get(mType);
-            if (clazz == null) {
-                clazz = createWrapper();
-                cWrapperCache.put(mType, clazz);
-            }
-        }
+        Class<T> clazz = (Class<T>) cWrapperCache.get
+            (mType, new LoadingCache.Loader<Class<?>, Class<?>>() {
+                public Class<?> load(Class<?> type) {
+                    return createWrapper();
+                }
+            });
 
         try {
             return clazz.getConstructor(AtomicReference.class);
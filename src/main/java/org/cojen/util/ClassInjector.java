@@ -21,6 +21,7 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
 import java.lang.ref.SoftReference;
 import java.util.HashSet;
 import java.util.Map;
@@ -28,6 +29,7 @@ import java.util.Random;
 import java.util.Set;
 
 import org.cojen.classfile.ClassFile;
+import org.cojen.classfile.LookupDefiner;
 
 /**
  * ClassInjector allows transient classes to be loaded, where a transient class
@@ -90,6 +92,57 @@ public class ClassInjector {
         return create(prefix, parent, false);
     }
 
+    /**
+     * Create a ClassInjector for defining one class with the given lookup,
+     * into the lookup class's loader and package. When supported, the class
+     * is defined as a hidden class, which can be unloaded as soon as it is
+     * unreachable.
+     *
+     * @param prefix optional class name prefix, in the same package as the
+     * lookup class
+     * @param lookup lookup with full privilege access
+     * @throws IllegalArgumentException if the prefix isn't in the lookup
+     * class package
+     * @throws UnsupportedOperationException if not supported by the JVM
+     * @see LookupDefiner
+     */
+    public static ClassInjector createForLookup(String prefix, MethodHandles.Lookup lookup) {
+        if (!LookupDefiner.isSupported()) {
+            throw new UnsupportedOperationException
+                ("Defining classes with a Lookup requires Java 9 or later");
+        }
+        if (prefix == null) {
+            prefix = lookup.lookupClass().getName();
+        } else {
+            LookupDefiner.checkPackage(lookup, prefix);
+        }
+
+        ClassLoader loader = lookup.lookupClass().getClassLoader();
+
+        for (int tryCount = 0; tryCount < 1000; tryCount++) {
+            long ID;
+            synchronized (cRandom) {
+                ID = cRandom.nextInt();
+            }
+            ID &= tryCount == 0 ? 0xffffL : 0xffffffffL;
+
+            String name = prefix + '$' + ID;
+
+            if (LookupDefiner.isHiddenClassSupported()) {
+                return new ClassInjector(name, lookup);
+            }
+
+            try {
+                Class.forName(name, false, loader);
+            } catch (ClassNotFoundException e) {
+                return new ClassInjector(name, lookup);
+            } catch (LinkageError e) {
+            }
+        }
+
+        throw new InternalError("Unable to create unique class name");
+    }
+
     /**
      * Create a ClassInjector for defining one class with an explicit name. If
      * the parent ClassLoader is not specified, it will default to the
@@ -211,6 +264,7 @@ public class ClassInjector {
 
     private final String mName;
     private final Loader mLoader;
+    private final MethodHandles.Lookup mLookup;
 
     private ByteArrayOutputStream mData;
     private Class mClass;
@@ -218,6 +272,13 @@ public class ClassInjector {
     private ClassInjector(String name, Loader loader) {
         mName = name;
         mLoader = loader;
+        mLookup = null;
+    }
+
+    private ClassInjector(String name, MethodHandles.Lookup lookup) {
+        mName = name;
+        mLoader = null;
+        mLookup = lookup;
     }
 
     /**
@@ -295,7 +356,11 @@ public class ClassInjector {
             }
         }
 
-        mClass = mLoader.define(mName, bytes);
+        if (mLookup != null) {
+            mClass = LookupDefiner.defineClass(mLookup, bytes);
+        } else {
+            mClass = mLoader.define(mName, bytes);
+        }
         mData = null;
         return mClass;
     }
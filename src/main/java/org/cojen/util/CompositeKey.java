@@ -0,0 +1,60 @@
+/*
+ *  Copyright 2010 Brian S O'Neill
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.util;
+
+/**
+ * Base class for the multi-field keys constructed by the factories which
+ * {@link KeyFactory#forInterface KeyFactory.forInterface} returns. Each key
+ * class is auto-generated, with a final field for each key element, and
+ * primitive elements are stored unboxed. Keys are equal when all of their
+ * elements are equal, and they are ordered by comparing elements in turn.
+ * Object elements are hashed, compared and ordered as by {@link KeyFactory},
+ * fully recursing into arrays, and nulls are ordered high.
+ *
+ * @author Brian S O'Neill
+ * @see KeyFactory#forInterface
+ */
+public abstract class CompositeKey implements Comparable<Object> {
+    protected CompositeKey() {
+    }
+
+    @Override
+    public abstract int hashCode();
+
+    @Override
+    public abstract boolean equals(Object obj);
+
+    /**
+     * @throws ClassCastException if the object isn't a key with the same
+     * elements types
+     */
+    public abstract int compareTo(Object obj);
+
+    // The remaining methods are called by the auto-generated subclasses.
+
+    protected static int hash(Object a) {
+        return KeyFactory.hashCode(a);
+    }
+
+    protected static boolean equal(Object a, Object b) {
+        return KeyFactory.equals(a, b);
+    }
+
+    protected static int compare(Object a, Object b) {
+        return KeyFactory.compare(a, b);
+    }
+}
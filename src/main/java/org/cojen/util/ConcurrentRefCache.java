@@ -0,0 +1,575 @@
+/*
+ *  Copyright 2010 Brian S O'Neill
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.util;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import static java.util.AbstractMap.SimpleImmutableEntry;
+
+/**
+ * Base class for caches which permit concurrent access. Reads never lock, and
+ * writes lock only the segment which owns the key. Entries whose references
+ * have been cleared are evicted via the shared background thread.
+ *
+ * @author Brian S O'Neill
+ * @see RefCache
+ */
+public abstract class ConcurrentRefCache<K, V> implements LoadingCache<K, V> {
+    static final float LOAD_FACTOR = 0.75f;
+    static final int DEFAULT_CONCURRENCY = 16;
+
+    private static final int MAX_SEGMENTS = 1 << 16;
+
+    private final Segment<K, V>[] mSegments;
+    private final int mSegmentShift;
+    private final int mSegmentMask;
+
+    /**
+     * @param capacity initial capacity, divided among all segments
+     * @param concurrency estimated number of concurrently updating threads
+     */
+    ConcurrentRefCache(int capacity, int concurrency) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Capacity: " + capacity);
+        }
+        if (concurrency <= 0) {
+            throw new IllegalArgumentException("Concurrency: " + concurrency);
+        }
+
+        int shift = 0;
+        int count = 1;
+        while (count < concurrency && count < MAX_SEGMENTS) {
+            shift++;
+            count <<= 1;
+        }
+
+        mSegmentShift = 32 - shift;
+        mSegmentMask = count - 1;
+
+        int segmentCapacity = 1;
+        while (segmentCapacity * count < capacity) {
+            segmentCapacity <<= 1;
+        }
+
+        @SuppressWarnings("unchecked")
+        Segment<K, V>[] segments = (Segment<K, V>[]) new Segment<?, ?>[count];
+        for (int i=0; i<count; i++) {
+            segments[i] = new Segment<K, V>(this, segmentCapacity);
+        }
+        mSegments = segments;
+    }
+
+    public int size() {
+        long size = 0;
+        for (Segment<K, V> segment : mSegments) {
+            size += segment.mSize;
+        }
+        return size > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) size;
+    }
+
+    public boolean isEmpty() {
+        for (Segment<K, V> segment : mSegments) {
+            if (segment.mSize != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public V get(K key) {
+        int hash = hash(key);
+        return segmentFor(hash).get(key, hash);
+    }
+
+    public V put(K key, V value) {
+        int hash = hash(key);
+        return segmentFor(hash).put(key, hash, value, false);
+    }
+
+    public V putIfAbsent(K key, V value) {
+        int hash = hash(key);
+        return segmentFor(hash).put(key, hash, value, true);
+    }
+
+    public V remove(K key) {
+        int hash = hash(key);
+        return segmentFor(hash).remove(key, hash, null, false);
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(K key, LoadingCache.Loader<? super K, ? extends V> loader) {
+        int hash = hash(key);
+        Segment<K, V> segment = segmentFor(hash);
+
+        while (true) {
+            V value = segment.get(key, hash);
+            if (value != null) {
+                return value;
+            }
+
+            Object existing = segment.beginLoad(key, hash);
+            if (!(existing instanceof PendingLoad)) {
+                return (V) existing;
+            }
+
+            PendingLoad<K, V> pending = (PendingLoad<K, V>) existing;
+            if (!pending.isOwner()) {
+                switch (pending.await()) {
+                case PendingLoad.SUCCESS:
+                    return pending.mValue;
+                case PendingLoad.FAILED:
+                    // Loader failed, so try again.
+                    continue;
+                default:
+                    // Waiting would deadlock, so load without waiting.
+                    return loadWithoutWaiting(key, loader);
+                }
+            }
+
+            boolean success = false;
+            try {
+                value = loader.load(key);
+                success = true;
+            } finally {
+                segment.endLoad(pending, value, success);
+            }
+            return value;
+        }
+    }
+
+    private V loadWithoutWaiting(K key, LoadingCache.Loader<? super K, ? extends V> loader) {
+        V value = loader.load(key);
+        if (value != null) {
+            V existing = putIfAbsent(key, value);
+            if (existing != null) {
+                value = existing;
+            }
+        }
+        return value;
+    }
+
+    public boolean remove(K key, V value) {
+        if (value == null) {
+            return false;
+        }
+        int hash = hash(key);
+        return segmentFor(hash).remove(key, hash, value, true) != null;
+    }
+
+    public boolean replace(K key, V oldValue, V newValue) {
+        if (oldValue == null) {
+            return false;
+        }
+        int hash = hash(key);
+        return segmentFor(hash).replace(key, hash, oldValue, newValue) != null;
+    }
+
+    public V replace(K key, V value) {
+        int hash = hash(key);
+        return segmentFor(hash).replace(key, hash, null, value);
+    }
+
+    public void copyKeysInto(Collection<? super K> c) {
+        for (Segment<K, V> segment : mSegments) {
+            AtomicReferenceArray<RefEntry<K, V>> table = segment.mTable;
+            for (int i=table.length(); --i>=0 ;) {
+                for (RefEntry<K, V> e = table.get(i); e != null; e = e.next()) {
+                    K key = e.key();
+                    e.value();
+                    if (!e.isCleared()) {
+                        c.add(key);
+                    }
+                }
+            }
+        }
+    }
+
+    public void copyValuesInto(Collection<? super V> c) {
+        for (Segment<K, V> segment : mSegments) {
+            AtomicReferenceArray<RefEntry<K, V>> table = segment.mTable;
+            for (int i=table.length(); --i>=0 ;) {
+                for (RefEntry<K, V> e = table.get(i); e != null; e = e.next()) {
+                    e.key();
+                    V value = e.value();
+                    if (!e.isCleared()) {
+                        c.add(value);
+                    }
+                }
+            }
+        }
+    }
+
+    public void copyEntriesInto(Collection<? super Map.Entry<K, V>> c) {
+        for (Segment<K, V> segment : mSegments) {
+            AtomicReferenceArray<RefEntry<K, V>> table = segment.mTable;
+            for (int i=table.length(); --i>=0 ;) {
+                for (RefEntry<K, V> e = table.get(i); e != null; e = e.next()) {
+                    K key = e.key();
+                    V value = e.value();
+                    if (!e.isCleared()) {
+                        c.add(new SimpleImmutableEntry<K, V>(key, value));
+                    }
+                }
+            }
+        }
+    }
+
+    public void clear() {
+        for (Segment<K, V> segment : mSegments) {
+            segment.clear();
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder b = new StringBuilder();
+        b.append('{');
+
+        boolean any = false;
+
+        for (Segment<K, V> segment : mSegments) {
+            AtomicReferenceArray<RefEntry<K, V>> table = segment.mTable;
+            for (int i=table.length(); --i>=0 ;) {
+                for (RefEntry<K, V> e = table.get(i); e != null; e = e.next()) {
+                    K key = e.key();
+                    V value = e.value();
+                    if (!e.isCleared()) {
+                        if (any) {
+                            b.append(',').append(' ');
+                        }
+                        b.append(key).append('=').append(value);
+                        any = true;
+                    }
+                }
+            }
+        }
+
+        b.append('}');
+        return b.toString();
+    }
+
+    protected int keyHashCode(K key) {
+        return key.hashCode();
+    }
+
+    protected boolean keyEquals(K a, K b) {
+        return a.equals(b);
+    }
+
+    /**
+     * Returns a new entry which references the key or value, depending on the
+     * cache type. Entries must register with the CacheEvictor queue.
+     */
+    abstract RefEntry<K, V> newEntry(Segment<K, V> segment, int hash, K key, V value,
+                                     RefEntry<K, V> next);
+
+    final boolean matches(RefEntry<K, V> e, K key, int hash) {
+        if (e.hash() != hash) {
+            return false;
+        }
+        K k = e.key();
+        return k == key || (k != null && key != null && keyEquals(key, k));
+    }
+
+    final boolean keyMatches(K a, K b) {
+        return a == b || (a != null && b != null && keyEquals(a, b));
+    }
+
+    final int hash(K key) {
+        return spread(key == null ? 0 : keyHashCode(key));
+    }
+
+    static int spread(int h) {
+        // Spread bits to improve segment and bucket selection, since both use
+        // power of two masks. Uses a variant of the single-word Wang/Jenkins hash.
+        h += (h << 15) ^ 0xffffcd7d;
+        h ^= (h >>> 10);
+        h += (h << 3);
+        h ^= (h >>> 6);
+        h += (h << 2) + (h << 14);
+        return h ^ (h >>> 16);
+    }
+
+    final Segment<K, V> segmentFor(int hash) {
+        return mSegments[(hash >>> mSegmentShift) & mSegmentMask];
+    }
+
+    /**
+     * Entry is implemented by a Reference subclass, and so either the key or the value
+     * is strongly held. The referent must be read before calling isCleared, to ensure
+     * that it isn't cleared after the check.
+     */
+    static interface RefEntry<K, V> extends CacheEvictor.Ref {
+        int hash();
+
+        K key();
+
+        V value();
+
+        boolean isCleared();
+
+        void clear();
+
+        RefEntry<K, V> next();
+
+        void setNext(RefEntry<K, V> next);
+    }
+
+    /**
+     * Independently locked portion of the cache. Table slots and entry links are
+     * volatile, and so readers always observe fully constructed entries. Entries are
+     * unlinked in place, which doesn't disturb readers which are already past them.
+     */
+    static final class Segment<K, V> {
+        private final ConcurrentRefCache<K, V> mCache;
+
+        volatile AtomicReferenceArray<RefEntry<K, V>> mTable;
+        volatile int mSize;
+
+        private int mThreshold;
+
+        // Stack of loads in progress.
+        private PendingLoad<K, V> mPending;
+
+        Segment(ConcurrentRefCache<K, V> cache, int capacity) {
+            mCache = cache;
+            mTable = new AtomicReferenceArray<RefEntry<K, V>>(capacity);
+            mThreshold = (int) (capacity * LOAD_FACTOR);
+        }
+
+        V get(K key, int hash) {
+            AtomicReferenceArray<RefEntry<K, V>> table = mTable;
+            for (RefEntry<K, V> e = table.get(hash & (table.length() - 1));
+                 e != null; e = e.next())
+            {
+                if (mCache.matches(e, key, hash)) {
+                    V value = e.value();
+                    if (!e.isCleared()) {
+                        return value;
+                    }
+                }
+            }
+            return null;
+        }
+
+        synchronized V put(K key, int hash, V value, boolean onlyIfAbsent) {
+            AtomicReferenceArray<RefEntry<K, V>> table = mTable;
+            int index = hash & (table.length() - 1);
+
+            for (RefEntry<K, V> e = table.get(index), prev = null; e != null; e = e.next()) {
+                if (mCache.matches(e, key, hash)) {
+                    V old = e.value();
+                    if (!e.isCleared()) {
+                        if (onlyIfAbsent && old != null) {
+                            return old;
+                        }
+                        RefEntry<K, V> newEntry = mCache.newEntry(this, hash, key, value, e.next());
+                        if (prev == null) {
+                            table.set(index, newEntry);
+                        } else {
+                            prev.setNext(newEntry);
+                        }
+                        e.clear();
+                        return old;
+                    }
+                }
+                e.key();
+                e.value();
+                if (e.isCleared()) {
+                    // Clean up after a cleared Reference.
+                    if (prev == null) {
+                        table.set(index, e.next());
+                    } else {
+                        prev.setNext(e.next());
+                    }
+                    mSize--;
+                } else {
+                    prev = e;
+                }
+            }
+
+            if (mSize >= mThreshold) {
+                rehash();
+                table = mTable;
+                index = hash & (table.length() - 1);
+            }
+
+            table.set(index, mCache.newEntry(this, hash, key, value, table.get(index)));
+            mSize++;
+            return null;
+        }
+
+        /**
+         * @param expect when matchValue is true, the entry is removed only if its value
+         * is equal to this one
+         */
+        synchronized V remove(K key, int hash, V expect, boolean matchValue) {
+            AtomicReferenceArray<RefEntry<K, V>> table = mTable;
+            int index = hash & (table.length() - 1);
+
+            for (RefEntry<K, V> e = table.get(index), prev = null; e != null; e = e.next()) {
+                if (mCache.matches(e, key, hash)) {
+                    V old = e.value();
+                    if (e.isCleared()) {
+                        return null;
+                    }
+                    if (matchValue && (old == null || !old.equals(expect))) {
+                        return null;
+                    }
+                    if (prev == null) {
+                        table.set(index, e.next());
+                    } else {
+                        prev.setNext(e.next());
+                    }
+                    e.clear();
+                    mSize--;
+                    return old;
+                }
+                prev = e;
+            }
+
+            return null;
+        }
+
+        /**
+         * @param expect when non-null, the entry is replaced only if its value is equal
+         * to this one
+         * @return the replaced value, or null if nothing was replaced
+         */
+        synchronized V replace(K key, int hash, V expect, V value) {
+            AtomicReferenceArray<RefEntry<K, V>> table = mTable;
+            int index = hash & (table.length() - 1);
+
+            for (RefEntry<K, V> e = table.get(index), prev = null; e != null; e = e.next()) {
+                if (mCache.matches(e, key, hash)) {
+                    V old = e.value();
+                    if (e.isCleared() || old == null) {
+                        return null;
+                    }
+                    if (expect != null && !old.equals(expect)) {
+                        return null;
+                    }
+                    RefEntry<K, V> newEntry = mCache.newEntry(this, hash, key, value, e.next());
+                    if (prev == null) {
+                        table.set(index, newEntry);
+                    } else {
+                        prev.setNext(newEntry);
+                    }
+                    e.clear();
+                    return old;
+                }
+                prev = e;
+            }
+
+            return null;
+        }
+
+        /**
+         * Returns the non-null value mapped to the key, or else returns the load in
+         * progress for the key. A new load is started for the current thread if
+         * none is in progress.
+         */
+        synchronized Object beginLoad(K key, int hash) {
+            V value = get(key, hash);
+            if (value != null) {
+                return value;
+            }
+            for (PendingLoad<K, V> p = mPending; p != null; p = p.mNext) {
+                if (p.mHash == hash && mCache.keyMatches(p.mKey, key)) {
+                    return p.checkRecursion();
+                }
+            }
+            return mPending = new PendingLoad<K, V>(key, hash, mPending);
+        }
+
+        void endLoad(PendingLoad<K, V> pending, V value, boolean success) {
+            try {
+                synchronized (this) {
+                    mPending = PendingLoad.unlink(mPending, pending);
+                    if (success && value != null) {
+                        put(pending.mKey, pending.mHash, value, false);
+                    }
+                }
+            } finally {
+                // Waiting threads must always be released.
+                pending.finish(value, success);
+            }
+        }
+
+        synchronized void clear() {
+            AtomicReferenceArray<RefEntry<K, V>> table = mTable;
+            for (int i=table.length(); --i>=0 ;) {
+                for (RefEntry<K, V> e = table.get(i); e != null; e = e.next()) {
+                    e.clear();
+                }
+                table.set(i, null);
+            }
+            mSize = 0;
+        }
+
+        /**
+         * Called by the CacheEvictor thread.
+         */
+        synchronized void removeCleared(RefEntry<K, V> cleared) {
+            AtomicReferenceArray<RefEntry<K, V>> table = mTable;
+            int index = cleared.hash() & (table.length() - 1);
+            for (RefEntry<K, V> e = table.get(index), prev = null; e != null; e = e.next()) {
+                if (e == cleared) {
+                    if (prev == null) {
+                        table.set(index, e.next());
+                    } else {
+                        prev.setNext(e.next());
+                    }
+                    mSize--;
+                    return;
+                }
+                prev = e;
+            }
+        }
+
+        /**
+         * Copies all live entries into a new table. Existing entries aren't relinked,
+         * since concurrent readers might still be traversing them.
+         */
+        private void rehash() {
+            AtomicReferenceArray<RefEntry<K, V>> oldTable = mTable;
+            int newCapacity = oldTable.length() << 1;
+            AtomicReferenceArray<RefEntry<K, V>> newTable =
+                new AtomicReferenceArray<RefEntry<K, V>>(newCapacity);
+            int size = 0;
+
+            for (int i=oldTable.length(); --i>=0 ;) {
+                for (RefEntry<K, V> e = oldTable.get(i); e != null; e = e.next()) {
+                    K key = e.key();
+                    V value = e.value();
+                    if (!e.isCleared()) {
+                        int hash = e.hash();
+                        int index = hash & (newCapacity - 1);
+                        newTable.set(index, mCache.newEntry
+                                     (this, hash, key, value, newTable.get(index)));
+                        size++;
+                    }
+                }
+            }
+
+            mThreshold = (int) (newCapacity * LOAD_FACTOR);
+            mSize = size;
+            mTable = newTable;
+        }
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ *  Copyright 2010 Brian S O'Neill
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.util;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Thread-safe replacement for a synchronized {@link WeakIdentityMap}. Reads
+ * never lock, and writes lock only the segment which owns the key. Entries
+ * whose keys have been collected are removed by a shared background thread,
+ * and so no cleanup work is performed by map operations. Like WeakIdentityMap,
+ * keys are compared by identity. Null keys and values are not permitted.
+ * <p>
+ * Iterators operate over a snapshot of the map, and they never throw
+ * ConcurrentModificationException.
+ *
+ * @author Brian S O'Neill
+ * @see ConcurrentWeakIdentityCache
+ */
+public class ConcurrentWeakIdentityMap<K, V> extends AbstractMap<K, V>
+    implements ConcurrentMap<K, V>
+{
+    private final ConcurrentWeakIdentityCache<K, V> mCache;
+
+    private transient Set<Map.Entry<K, V>> mEntrySet;
+
+    public ConcurrentWeakIdentityMap() {
+        this(16);
+    }
+
+    public ConcurrentWeakIdentityMap(int capacity) {
+        mCache = new ConcurrentWeakIdentityCache<K, V>(capacity);
+    }
+
+    /**
+     * @param concurrency estimated number of concurrently updating threads
+     */
+    public ConcurrentWeakIdentityMap(int capacity, int concurrency) {
+        mCache = new ConcurrentWeakIdentityCache<K, V>(capacity, concurrency);
+    }
+
+    /**
+     * Returns the number of mappings, which might include mappings whose
+     * keys were collected and which haven't been removed yet.
+     */
+    @Override
+    public int size() {
+        return mCache.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return mCache.isEmpty();
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        return key == null ? null : mCache.get((K) key);
+    }
+
+    @Override
+    public V put(K key, V value) {
+        return mCache.put(key, checkValue(value));
+    }
+
+    public V putIfAbsent(K key, V value) {
+        return mCache.putIfAbsent(key, checkValue(value));
+    }
+
+    /**
+     * Returns the value mapped to the key, or else calls the loader and maps
+     * the key to its non-null result. This is like computeIfAbsent, except
+     * that threads which concurrently request the same key wait for a single
+     * loader call to finish, and so generators aren't run twice for the same
+     * key.
+     *
+     * @return existing or loaded value, which is null only if the loader
+     * returned null
+     * @throws IllegalStateException if the loader recursively requests the
+     * same key
+     */
+    public V get(K key, LoadingCache.Loader<? super K, ? extends V> loader) {
+        if (key == null) {
+            throw new NullPointerException("Cannot accept null key");
+        }
+        return mCache.get(key, loader);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V remove(Object key) {
+        return key == null ? null : mCache.remove((K) key);
+    }
+
+    @SuppressWarnings("unchecked")
+    public boolean remove(Object key, Object value) {
+        return key != null && value != null && mCache.remove((K) key, (V) value);
+    }
+
+    public boolean replace(K key, V oldValue, V newValue) {
+        return mCache.replace(key, oldValue, checkValue(newValue));
+    }
+
+    public V replace(K key, V value) {
+        return mCache.replace(key, checkValue(value));
+    }
+
+    @Override
+    public void clear() {
+        mCache.clear();
+    }
+
+    @Override
+    public Set<Map.Entry<K, V>> entrySet() {
+        Set<Map.Entry<K, V>> entrySet = mEntrySet;
+        if (entrySet == null) {
+            mEntrySet = entrySet = new AbstractSet<Map.Entry<K, V>>() {
+                @Override
+                public Iterator<Map.Entry<K, V>> iterator() {
+                    List<Map.Entry<K, V>> snapshot = new ArrayList<Map.Entry<K, V>>(size());
+                    mCache.copyEntriesInto(snapshot);
+                    final Iterator<Map.Entry<K, V>> it = snapshot.iterator();
+
+                    return new Iterator<Map.Entry<K, V>>() {
+                        private Map.Entry<K, V> mLast;
+
+                        public boolean hasNext() {
+                            return it.hasNext();
+                        }
+
+                        public Map.Entry<K, V> next() {
+                            return mLast = it.next();
+                        }
+
+                        public void remove() {
+                            if (mLast == null) {
+                                throw new IllegalStateException();
+                            }
+                            ConcurrentWeakIdentityMap.this.remove(mLast.getKey(), mLast.getValue());
+                            mLast = null;
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return ConcurrentWeakIdentityMap.this.size();
+                }
+
+                @Override
+                public boolean contains(Object obj) {
+                    if (!(obj instanceof Map.Entry)) {
+                        return false;
+                    }
+                    Map.Entry<?, ?> entry = (Map.Entry<?, ?>) obj;
+                    V value = get(entry.getKey());
+                    return value != null && value.equals(entry.getValue());
+                }
+
+                @Override
+                public boolean remove(Object obj) {
+                    if (!(obj instanceof Map.Entry)) {
+                        return false;
+                    }
+                    Map.Entry<?, ?> entry = (Map.Entry<?, ?>) obj;
+                    return ConcurrentWeakIdentityMap.this.remove
+                        (entry.getKey(), entry.getValue());
+                }
+
+                @Override
+                public void clear() {
+                    ConcurrentWeakIdentityMap.this.clear();
+                }
+            };
+        }
+        return entrySet;
+    }
+
+    private static <V> V checkValue(V value) {
+        if (value == null) {
+            throw new NullPointerException("Cannot accept null value");
+        }
+        return value;
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ *  Copyright 2010 Brian S O'Neill
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.util;
+
+import java.lang.ref.WeakReference;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Thread-safe cache which evicts entries via a shared background thread, and
+ * which supports concurrent access without blocking readers. Cache permits null
+ * keys, but not null values.
+ *
+ * @author Brian S O'Neill
+ * @see WeakValueCache
+ * @see ConcurrentSoftValueCache
+ * @see ConcurrentWeakKeyCache
+ */
+public class ConcurrentWeakValueCache<K, V> extends ConcurrentRefCache<K, V> {
+    public ConcurrentWeakValueCache(int capacity) {
+        this(capacity, DEFAULT_CONCURRENCY);
+    }
+
+    /**
+     * @param concurrency estimated number of concurrently updating threads
+     */
+    public ConcurrentWeakValueCache(int capacity, int concurrency) {
+        super(capacity, concurrency);
+    }
+
+    @Override
+    public V get(K key) {
+        // Specialized to avoid interface calls against the entries.
+        int hash = hash(key);
+        AtomicReferenceArray<RefEntry<K, V>> table = segmentFor(hash).mTable;
+        for (Entry<K, V> e = (Entry<K, V>) table.get(hash & (table.length() - 1));
+             e != null; e = (Entry<K, V>) e.mNext)
+        {
+            if (e.mHash == hash) {
+                K k = e.mKey;
+                if (k == key || (k != null && key != null && keyEquals(key, k))) {
+                    return e.get();
+                }
+            }
+        }
+        return null;
+    }
+
+    @Override
+    RefEntry<K, V> newEntry(Segment<K, V> segment, int hash, K key, V value,
+                            RefEntry<K, V> next)
+    {
+        if (value == null) {
+            throw new NullPointerException("Cannot accept null value");
+        }
+        return new Entry<K, V>(segment, hash, key, value, next);
+    }
+
+    private static class Entry<K, V> extends WeakReference<V> implements RefEntry<K, V> {
+        final Segment<K, V> mSegment;
+        final int mHash;
+        final K mKey;
+        volatile RefEntry<K, V> mNext;
+
+        Entry(Segment<K, V> segment, int hash, K key, V value, RefEntry<K, V> next) {
+            super(value, CacheEvictor.queue());
+            mSegment = segment;
+            mHash = hash;
+            mKey = key;
+            mNext = next;
+        }
+
+        public int hash() {
+            return mHash;
+        }
+
+        public K key() {
+            return mKey;
+        }
+
+        public V value() {
+            return get();
+        }
+
+        public boolean isCleared() {
+            return get() == null;
+        }
+
+        public RefEntry<K, V> next() {
+            return mNext;
+        }
+
+        public void setNext(RefEntry<K, V> next) {
+            mNext = next;
+        }
+
+        @Override
+        public void remove() {
+            mSegment.removeCleared(this);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ *  Copyright 2010 Brian S O'Neill
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.util;
+
+/**
+ * Hashes beans and tests them for equivalence by the properties of the
+ * {@link BeanComparator} the Equivalence was obtained from. Two beans are
+ * equivalent when the comparator considers them equal, and so hash-based
+ * grouping can use the same key definition as sorting. Beans can be used as
+ * HashMap keys by {@link #wrap wrapping} them.
+ * <p>
+ * Equivalence instances are thread-safe and contain auto-generated code.
+ *
+ * @author Brian S O'Neill
+ * @see BeanComparator#equivalence
+ */
+public abstract class Equivalence<T> {
+    protected Equivalence() {
+    }
+
+    /**
+     * Returns a hash code for the bean, which is equal for equivalent
+     * beans. The hash code of null is zero.
+     */
+    public abstract int hash(T bean);
+
+    /**
+     * Returns true if the beans are equivalent. Null is only equivalent to
+     * itself.
+     */
+    public abstract boolean equivalent(T a, T b);
+
+    /**
+     * Returns a wrapper for the bean whose equals and hashCode methods are
+     * defined by this Equivalence.
+     */
+    public Wrapper<T> wrap(T bean) {
+        return new Wrapper<T>(this, bean);
+    }
+
+    /**
+     * Called by auto-generated subclasses to hash Strings the same way for
+     * all Strings which are equal ignoring case. Each code point is folded,
+     * because surrogate pairs are compared as code points.
+     */
+    protected static int hashIgnoreCase(String str) {
+        int hash = 0;
+        for (int i=0; i<str.length(); ) {
+            int c = str.codePointAt(i);
+            i += Character.charCount(c);
+            hash = hash * 31 + Character.toLowerCase(Character.toUpperCase(c));
+        }
+        return hash;
+    }
+
+    /**
+     * Bean wrapper returned by {@link Equivalence#wrap}.
+     */
+    public static final class Wrapper<T> {
+        private final Equivalence<T> mEquivalence;
+        private final T mBean;
+
+        Wrapper(Equivalence<T> equivalence, T bean) {
+            mEquivalence = equivalence;
+            mBean = bean;
+        }
+
+        public T get() {
+            return mBean;
+        }
+
+        @Override
+        public int hashCode() {
+            return mEquivalence.hash(mBean);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj instanceof Wrapper) {
+                Wrapper<?> other = (Wrapper<?>) obj;
+                if (mEquivalence == other.mEquivalence) {
+                    // Same Equivalence, and so the bean is a T.
+                    @SuppressWarnings("unchecked")
+                    T bean = (T) other.mBean;
+                    return mEquivalence.equivalent(mBean, bean);
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return "Equivalence.Wrapper {" + mBean + '}';
+        }
+    }
+}
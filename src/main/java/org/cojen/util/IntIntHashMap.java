@@ -0,0 +1,384 @@
+/*
+ *  Copyright 2010 Brian S O'Neill
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.util;
+
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.NoSuchElementException;
+
+/**
+ * Map of int keys to int values, which stores keys and values in parallel
+ * arrays and resolves collisions by linear probing, like {@link
+ * OpenIntHashMap}. Nothing is boxed, and get, put and remove don't allocate
+ * anything except when the map grows. This class is not thread-safe.
+ *
+ * @author Brian S O'Neill
+ */
+public class IntIntHashMap {
+    // Key zero marks an empty slot, and so a mapping for zero is kept apart.
+    private int[] mKeys;
+    private int[] mValues;
+    private boolean mHasZeroKey;
+    private int mZeroValue;
+
+    private int mSize;
+    private int mThreshold;
+    // Right shift which selects the high bits of the hash as the slot.
+    private int mShift;
+    private int mModCount;
+
+    /**
+     * Constructs an empty map with a small default capacity.
+     */
+    public IntIntHashMap() {
+        this(8);
+    }
+
+    /**
+     * @param capacity number of mappings the map can hold without growing
+     * @throws IllegalArgumentException if capacity is negative
+     */
+    public IntIntHashMap(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Illegal capacity: " + capacity);
+        }
+        // Keep the load factor at or below 0.75.
+        int length = Integer.highestOneBit(Math.max(4, capacity + (capacity + 2) / 3) - 1) << 1;
+        init(length);
+    }
+
+    /**
+     * Returns the number of mappings in this map.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    public boolean containsKey(int key) {
+        return key == 0 ? mHasZeroKey : mKeys[slot(key)] != 0;
+    }
+
+    /**
+     * Returns the value mapped to the given key, or the default value if
+     * none.
+     */
+    public int get(int key, int defaultValue) {
+        if (key == 0) {
+            return mHasZeroKey ? mZeroValue : defaultValue;
+        }
+        int slot = slot(key);
+        return mKeys[slot] == 0 ? defaultValue : mValues[slot];
+    }
+
+    /**
+     * Maps the given key to the given value.
+     *
+     * @return true if the key wasn't mapped before
+     */
+    public boolean put(int key, int value) {
+        if (key == 0) {
+            mZeroValue = value;
+            if (mHasZeroKey) {
+                return false;
+            }
+            mHasZeroKey = true;
+            mSize++;
+            mModCount++;
+            return true;
+        }
+
+        int slot = slot(key);
+        mValues[slot] = value;
+        if (mKeys[slot] != 0) {
+            return false;
+        }
+        mKeys[slot] = key;
+        mModCount++;
+        // The zero key doesn't occupy a slot, but counting it is harmless.
+        if (++mSize > mThreshold) {
+            grow();
+        }
+        return true;
+    }
+
+    /**
+     * Adds a delta to the value mapped to the given key, treating an
+     * unmapped key as zero.
+     *
+     * @return new value
+     */
+    public int add(int key, int delta) {
+        if (key == 0) {
+            if (mHasZeroKey) {
+                return mZeroValue += delta;
+            }
+        } else {
+            int slot = slot(key);
+            if (mKeys[slot] != 0) {
+                return mValues[slot] += delta;
+            }
+        }
+        put(key, delta);
+        return delta;
+    }
+
+    /**
+     * Removes the mapping for the given key.
+     *
+     * @return true if the key was mapped
+     */
+    public boolean remove(int key) {
+        if (key == 0) {
+            if (!mHasZeroKey) {
+                return false;
+            }
+            mHasZeroKey = false;
+            mSize--;
+            mModCount++;
+            return true;
+        }
+
+        int[] keys = mKeys;
+        int[] values = mValues;
+        int mask = keys.length - 1;
+        int slot = slot(key);
+        if (keys[slot] == 0) {
+            return false;
+        }
+
+        // Shift following entries back, so that no probe sequence is broken
+        // by the new empty slot.
+        int hole = slot;
+        for (int i = (hole + 1) & mask; keys[i] != 0; i = (i + 1) & mask) {
+            int home = hash(keys[i]) >>> mShift;
+            // Move the entry if its home slot is not between the hole and it.
+            if (((i - home) & mask) >= ((i - hole) & mask)) {
+                keys[hole] = keys[i];
+                values[hole] = values[i];
+                hole = i;
+            }
+        }
+        keys[hole] = 0;
+
+        mSize--;
+        mModCount++;
+        return true;
+    }
+
+    /**
+     * Removes all mappings.
+     */
+    public void clear() {
+        if (mSize > 0) {
+            Arrays.fill(mKeys, 0);
+            mHasZeroKey = false;
+            mSize = 0;
+            mModCount++;
+        }
+    }
+
+    /**
+     * Returns all the keys in this map, in no particular order.
+     */
+    public int[] keys() {
+        int[] keys = mKeys;
+        int[] result = new int[mSize];
+        int j = 0;
+        if (mHasZeroKey) {
+            // Result is already zero-filled.
+            j++;
+        }
+        for (int i=0; j<result.length; i++) {
+            int key = keys[i];
+            if (key != 0) {
+                result[j++] = key;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns a cursor positioned before the first mapping. Iteration order
+     * is unspecified, and the map must not be modified while the cursor is
+     * in use, except by changing values with {@link Cursor#setValue}.
+     */
+    public Cursor cursor() {
+        return new Cursor(this);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder b = new StringBuilder();
+        b.append('{');
+        Cursor c = cursor();
+        boolean first = true;
+        while (c.next()) {
+            if (!first) {
+                b.append(", ");
+            }
+            first = false;
+            b.append(c.key()).append('=').append(c.value());
+        }
+        return b.append('}').toString();
+    }
+
+    /**
+     * Returns the slot which holds the non-zero key, or else the empty slot
+     * where it would be inserted.
+     */
+    private int slot(int key) {
+        int[] keys = mKeys;
+        int mask = keys.length - 1;
+        int i = hash(key) >>> mShift;
+        int k;
+        while ((k = keys[i]) != 0 && k != key) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    private void grow() {
+        int[] oldKeys = mKeys;
+        int[] oldValues = mValues;
+        init(oldKeys.length << 1);
+        int[] keys = mKeys;
+        int[] values = mValues;
+        int mask = keys.length - 1;
+        int shift = mShift;
+        for (int i=0; i<oldKeys.length; i++) {
+            int key = oldKeys[i];
+            if (key != 0) {
+                int slot = hash(key) >>> shift;
+                while (keys[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = key;
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    private void init(int length) {
+        mKeys = new int[length];
+        mValues = new int[length];
+        mThreshold = length - (length >> 2);
+        mShift = Integer.numberOfLeadingZeros(length) + 1;
+    }
+
+    /**
+     * Fibonacci hash, whose high bits spread keys evenly even when they are
+     * sequential or multiples of a stride.
+     */
+    private static int hash(int key) {
+        return key * 0x9e3779b9;
+    }
+
+    /**
+     * Iterates over the mappings of an {@link IntIntHashMap}. The mapping for
+     * key zero, if any, is visited last.
+     */
+    public static final class Cursor {
+        private final IntIntHashMap mMap;
+        private final int mExpectedModCount;
+        private int mSlot = -1;
+
+        Cursor(IntIntHashMap map) {
+            mMap = map;
+            mExpectedModCount = map.mModCount;
+        }
+
+        /**
+         * Advances to the next mapping.
+         *
+         * @return false if no more mappings
+         * @throws ConcurrentModificationException if the map was modified
+         */
+        public boolean next() {
+            IntIntHashMap map = mMap;
+            if (map.mModCount != mExpectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            int[] keys = map.mKeys;
+            int slot = mSlot;
+            while (++slot < keys.length) {
+                if (keys[slot] != 0) {
+                    mSlot = slot;
+                    return true;
+                }
+            }
+            // Slot just past the end refers to the zero key.
+            if (slot == keys.length && map.mHasZeroKey) {
+                mSlot = slot;
+                return true;
+            }
+            mSlot = keys.length + 1;
+            return false;
+        }
+
+        /**
+         * Returns the key of the current mapping.
+         */
+        public int key() {
+            int slot = current();
+            int[] keys = mMap.mKeys;
+            return slot == keys.length ? 0 : keys[slot];
+        }
+
+        /**
+         * Returns the value of the current mapping.
+         */
+        public int value() {
+            int slot = current();
+            IntIntHashMap map = mMap;
+            return slot == map.mKeys.length ? map.mZeroValue : map.mValues[slot];
+        }
+
+        /**
+         * Replaces the value of the current mapping.
+         *
+         * @return previous value
+         */
+        public int setValue(int value) {
+            int slot = current();
+            IntIntHashMap map = mMap;
+            int old;
+            if (slot == map.mKeys.length) {
+                old = map.mZeroValue;
+                map.mZeroValue = value;
+            } else {
+                old = map.mValues[slot];
+                map.mValues[slot] = value;
+            }
+            return old;
+        }
+
+        private int current() {
+            int slot = mSlot;
+            if (slot < 0 || slot > mMap.mKeys.length) {
+                throw new NoSuchElementException();
+            }
+            if (mMap.mModCount != mExpectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            return slot;
+        }
+    }
+}
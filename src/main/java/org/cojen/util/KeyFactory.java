@@ -16,13 +16,42 @@
 
 package org.cojen.util;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+
+import java.nio.ByteOrder;
+
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.cojen.classfile.CodeBuilder;
+import org.cojen.classfile.Label;
+import org.cojen.classfile.LocalVariable;
+import org.cojen.classfile.MethodInfo;
+import org.cojen.classfile.Modifiers;
+import org.cojen.classfile.Opcode;
+import org.cojen.classfile.RuntimeClassFile;
+import org.cojen.classfile.TypeDesc;
 
 /**
  * KeyFactory generates keys which can be hashed or compared for any kind of
  * object including arrays, arrays of arrays, and null. All hashcode
  * computations, equality tests, and ordering comparsisons fully recurse into
- * arrays.
+ * arrays. Byte, char and boolean arrays are hashed a word at a time with a
+ * well-mixed function, and so all elements of long arrays contribute to the
+ * hash code.
+ *
+ * <p>Keys composed of several elements can be created without allocating and
+ * wrapping an array, by a factory which {@link #forInterface forInterface}
+ * returns.
  *
  * @author Brian S O'Neill
  */
@@ -33,6 +62,106 @@ public class KeyFactory {
         }
     };
 
+    // Constants for the xxHash64 based array hash functions.
+    private static final long PRIME1 = 0x9e3779b185ebca87L;
+    private static final long PRIME2 = 0xc2b2ae3d27d4eb4fL;
+    private static final long PRIME3 = 0x165667b19e3779f9L;
+    private static final long PRIME4 = 0x85ebca77c2b2ae63L;
+    private static final long PRIME5 = 0x27d4eb2f165667c5L;
+
+    // Reads little-endian longs from byte arrays, available in Java 9 and
+    // later. The JIT compiles it into a single load.
+    private static final MethodHandle cLongView;
+
+    // Vectorized mismatch, available in Java 9 and later.
+    private static final MethodHandle cByteMismatch;
+    private static final MethodHandle cCharMismatch;
+
+    static {
+        MethodHandle mh;
+        try {
+            Object handle = MethodHandles.class
+                .getMethod("byteArrayViewVarHandle", Class.class, ByteOrder.class)
+                .invoke(null, long[].class, ByteOrder.LITTLE_ENDIAN);
+            Class modeClass = Class.forName("java.lang.invoke.VarHandle$AccessMode");
+            mh = (MethodHandle) handle.getClass().getMethod("toMethodHandle", modeClass)
+                .invoke(handle, Enum.valueOf(modeClass, "GET"));
+            mh = mh.asType(MethodType.methodType(long.class, byte[].class, int.class));
+        } catch (Throwable e) {
+            mh = null;
+        }
+        cLongView = mh;
+        cByteMismatch = findMismatch(byte[].class);
+        cCharMismatch = findMismatch(char[].class);
+    }
+
+    private static MethodHandle findMismatch(Class arrayType) {
+        try {
+            return MethodHandles.publicLookup().findStatic
+                (Arrays.class, "mismatch", MethodType.methodType(int.class, arrayType, arrayType));
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    // Maps factory interfaces to factory instances.
+    private static final LoadingCache<Class<?>, Object> cFactories =
+        new ConcurrentWeakIdentityCache<Class<?>, Object>(17);
+
+    /**
+     * Returns a factory instance which constructs {@link CompositeKey
+     * composite keys}. Each method in the interface defines a kind of key via
+     * its parameters, which are the key elements. A key class is generated
+     * for each distinct parameter signature, with a field per element, and
+     * primitive elements are not boxed. The method return types must be
+     * Object, Comparable or CompositeKey.
+     *
+     * <p>Here's an example factory interface:
+     *
+     * <pre>
+     * public interface CacheKeys {
+     *     Object newKey(Class type, String name, int version);
+     *
+     *     Object newKey(long id, boolean active);
+     * }
+     * </pre>
+     *
+     * Here's an example of it being used:
+     *
+     * <pre>
+     * CacheKeys keys = KeyFactory.forInterface(CacheKeys.class);
+     * ...
+     * Object key = keys.newKey(String.class, "length", 2);
+     * </pre>
+     *
+     * Keys made by one method are equal to keys made by another method with
+     * the same parameter signature, but keys from different factory
+     * interfaces are never equal.
+     *
+     * @param factory public interface defining the kinds of keys
+     * @throws IllegalArgumentException if factory type is not a public
+     * interface or if it is malformed
+     */
+    @SuppressWarnings("unchecked")
+    public static <F> F forInterface(final Class<F> factory) {
+        if (factory == null) {
+            throw new IllegalArgumentException("No factory type");
+        }
+
+        return (F) cFactories.get(factory, new LoadingCache.Loader<Class<?>, Object>() {
+            public Object load(Class<?> type) {
+                if (!factory.isInterface() || !Modifier.isPublic(factory.getModifiers())) {
+                    throw new IllegalArgumentException("Factory must be a public interface");
+                }
+                return AccessController.doPrivileged(new PrivilegedAction<F>() {
+                    public F run() {
+                        return generateFactory(factory);
+                    }
+                });
+            }
+        });
+    }
+
     public static Object createKey(boolean[] obj) {
         return obj == null ? NULL : new BooleanArrayKey(obj);
     }
@@ -100,27 +229,124 @@ public class KeyFactory {
     }
 
     static int hashCode(boolean[] a) {
-        int hash = 0;
-        for (int i = a.length; --i >= 0; ) {
-            hash = (hash << 1) + (a[i] ? 0 : 1);
+        int length = a.length;
+        long hash = PRIME5 + length;
+        // Pack 64 booleans into each word.
+        for (int i=0; i<length; ) {
+            long word = 0;
+            int end = Math.min(length, i + 64);
+            for (int bit = 0; i < end; i++, bit++) {
+                if (a[i]) {
+                    word |= 1L << bit;
+                }
+            }
+            hash = mixWord(hash, word);
         }
-        return hash == 0 ? -1 : hash;
+        return finishHash(hash);
     }
 
     static int hashCode(byte[] a) {
-        int hash = 0;
-        for (int i = a.length; --i >= 0; ) {
-            hash = (hash << 1) + a[i];
+        int length = a.length;
+        int i = 0;
+        long hash;
+
+        if (length >= 32) {
+            // Hash four independent lanes, which the processor can overlap.
+            long v1 = PRIME1 + PRIME2;
+            long v2 = PRIME2;
+            long v3 = 0;
+            long v4 = -PRIME1;
+            int limit = length - 32;
+            do {
+                v1 = round(v1, longAt(a, i));
+                v2 = round(v2, longAt(a, i + 8));
+                v3 = round(v3, longAt(a, i + 16));
+                v4 = round(v4, longAt(a, i + 24));
+                i += 32;
+            } while (i <= limit);
+            hash = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7)
+                + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            hash = mergeLane(hash, v1);
+            hash = mergeLane(hash, v2);
+            hash = mergeLane(hash, v3);
+            hash = mergeLane(hash, v4);
+        } else {
+            hash = PRIME5;
         }
-        return hash == 0 ? -1 : hash;
+
+        hash += length;
+
+        for (; i + 8 <= length; i += 8) {
+            hash = mixWord(hash, longAt(a, i));
+        }
+
+        if (i < length) {
+            long word = 0;
+            for (int shift = 0; i < length; i++, shift += 8) {
+                word |= (a[i] & 0xffL) << shift;
+            }
+            hash = mixWord(hash, word);
+        }
+
+        return finishHash(hash);
     }
 
     static int hashCode(char[] a) {
-        int hash = 0;
-        for (int i = a.length; --i >= 0; ) {
-            hash = (hash << 1) + a[i];
+        int length = a.length;
+        long hash = PRIME5 + length;
+        int i = 0;
+        for (; i + 4 <= length; i += 4) {
+            hash = mixWord(hash, a[i] | ((long) a[i + 1] << 16)
+                           | ((long) a[i + 2] << 32) | ((long) a[i + 3] << 48));
+        }
+        if (i < length) {
+            long word = 0;
+            for (int shift = 0; i < length; i++, shift += 16) {
+                word |= (long) a[i] << shift;
+            }
+            hash = mixWord(hash, word);
         }
-        return hash == 0 ? -1 : hash;
+        return finishHash(hash);
+    }
+
+    private static long longAt(byte[] a, int offset) {
+        if (cLongView != null) {
+            try {
+                return (long) cLongView.invokeExact(a, offset);
+            } catch (Throwable e) {
+                ThrowUnchecked.fire(e);
+            }
+        }
+        return (a[offset] & 0xffL)
+            | ((a[offset + 1] & 0xffL) << 8)
+            | ((a[offset + 2] & 0xffL) << 16)
+            | ((a[offset + 3] & 0xffL) << 24)
+            | ((a[offset + 4] & 0xffL) << 32)
+            | ((a[offset + 5] & 0xffL) << 40)
+            | ((a[offset + 6] & 0xffL) << 48)
+            | ((long) a[offset + 7] << 56);
+    }
+
+    private static long round(long acc, long word) {
+        return Long.rotateLeft(acc + word * PRIME2, 31) * PRIME1;
+    }
+
+    private static long mergeLane(long hash, long lane) {
+        return (hash ^ round(0, lane)) * PRIME1 + PRIME4;
+    }
+
+    private static long mixWord(long hash, long word) {
+        return Long.rotateLeft(hash ^ round(0, word), 27) * PRIME1 + PRIME4;
+    }
+
+    private static int finishHash(long hash) {
+        hash ^= hash >>> 33;
+        hash *= PRIME2;
+        hash ^= hash >>> 29;
+        hash *= PRIME3;
+        hash ^= hash >>> 32;
+        int h = (int) hash;
+        return h == 0 ? -1 : h;
     }
 
     static int hashCode(double[] a) {
@@ -277,7 +503,9 @@ public class KeyFactory {
         for (int i=0; i<length; i++) {
             int av = a[i] ? 0 : 1;
             int bv = b[i] ? 0 : 1;
-            return av < bv ? -1 : (av > bv ? 1 : 0);
+            if (av != bv) {
+                return av < bv ? -1 : 1;
+            }
         }
         return a.length < b.length ? -1 : (a.length > b.length ? 1 : 0);
     }
@@ -293,10 +521,23 @@ public class KeyFactory {
             return -1;
         }
         int length = Math.min(a.length, b.length);
-        for (int i=0; i<length; i++) {
-            byte av = a[i];
-            byte bv = b[i];
-            return av < bv ? -1 : (av > bv ? 1 : 0);
+        if (cByteMismatch != null) {
+            try {
+                int i = (int) cByteMismatch.invokeExact(a, b);
+                if (i >= 0 && i < length) {
+                    return a[i] < b[i] ? -1 : 1;
+                }
+            } catch (Throwable e) {
+                ThrowUnchecked.fire(e);
+            }
+        } else {
+            for (int i=0; i<length; i++) {
+                byte av = a[i];
+                byte bv = b[i];
+                if (av != bv) {
+                    return av < bv ? -1 : 1;
+                }
+            }
         }
         return a.length < b.length ? -1 : (a.length > b.length ? 1 : 0);
     }
@@ -312,10 +553,23 @@ public class KeyFactory {
             return -1;
         }
         int length = Math.min(a.length, b.length);
-        for (int i=0; i<length; i++) {
-            char av = a[i];
-            char bv = b[i];
-            return av < bv ? -1 : (av > bv ? 1 : 0);
+        if (cCharMismatch != null) {
+            try {
+                int i = (int) cCharMismatch.invokeExact(a, b);
+                if (i >= 0 && i < length) {
+                    return a[i] < b[i] ? -1 : 1;
+                }
+            } catch (Throwable e) {
+                ThrowUnchecked.fire(e);
+            }
+        } else {
+            for (int i=0; i<length; i++) {
+                char av = a[i];
+                char bv = b[i];
+                if (av != bv) {
+                    return av < bv ? -1 : 1;
+                }
+            }
         }
         return a.length < b.length ? -1 : (a.length > b.length ? 1 : 0);
     }
@@ -374,7 +628,9 @@ public class KeyFactory {
         for (int i=0; i<length; i++) {
             int av = a[i];
             int bv = b[i];
-            return av < bv ? -1 : (av > bv ? 1 : 0);
+            if (av != bv) {
+                return av < bv ? -1 : 1;
+            }
         }
         return a.length < b.length ? -1 : (a.length > b.length ? 1 : 0);
     }
@@ -393,7 +649,9 @@ public class KeyFactory {
         for (int i=0; i<length; i++) {
             long av = a[i];
             long bv = b[i];
-            return av < bv ? -1 : (av > bv ? 1 : 0);
+            if (av != bv) {
+                return av < bv ? -1 : 1;
+            }
         }
         return a.length < b.length ? -1 : (a.length > b.length ? 1 : 0);
     }
@@ -412,7 +670,9 @@ public class KeyFactory {
         for (int i=0; i<length; i++) {
             short av = a[i];
             short bv = b[i];
-            return av < bv ? -1 : (av > bv ? 1 : 0);
+            if (av != bv) {
+                return av < bv ? -1 : 1;
+            }
         }
         return a.length < b.length ? -1 : (a.length > b.length ? 1 : 0);
     }
@@ -482,6 +742,351 @@ public class KeyFactory {
     protected KeyFactory() {
     }
 
+    @SuppressWarnings("unchecked")
+    private static <F> F generateFactory(Class<F> factory) {
+        // Key classes and the factory class are defined in the same package
+        // and class loader, so that the factory can construct the keys.
+        String prefix = CompositeKey.class.getName();
+        ClassLoader loader = factory.getClassLoader();
+
+        RuntimeClassFile cf = null;
+
+        // Maps parameter signatures to key class names.
+        Map<String, String> keyClasses = new HashMap<String, String>();
+        RuntimeClassFile[] keyClassFiles = new RuntimeClassFile[0];
+
+        for (Method method : factory.getMethods()) {
+            if (!Modifier.isAbstract(method.getModifiers())) {
+                continue;
+            }
+
+            if (!method.getReturnType().isAssignableFrom(CompositeKey.class)) {
+                throw new IllegalArgumentException
+                    ("Method return type must be Object, Comparable or CompositeKey: " + method);
+            }
+
+            TypeDesc[] elementTypes = elementTypes(method.getParameterTypes());
+            StringBuilder sb = new StringBuilder();
+            for (TypeDesc type : elementTypes) {
+                sb.append(type.getDescriptor());
+            }
+            String signature = sb.toString();
+
+            String keyClassName = keyClasses.get(signature);
+            if (keyClassName == null) {
+                RuntimeClassFile keyCf = generateKeyClass(prefix, loader, elementTypes);
+                keyClassName = keyCf.getClassName();
+                keyClasses.put(signature, keyClassName);
+                RuntimeClassFile[] copy = new RuntimeClassFile[keyClassFiles.length + 1];
+                System.arraycopy(keyClassFiles, 0, copy, 0, keyClassFiles.length);
+                copy[keyClassFiles.length] = keyCf;
+                keyClassFiles = copy;
+            }
+
+            if (cf == null) {
+                cf = new RuntimeClassFile(prefix, null, loader);
+                cf.setSourceFile(KeyFactory.class.getName());
+                cf.setTarget("1.5");
+                cf.addInterface(factory);
+                cf.markSynthetic();
+                cf.addDefaultConstructor();
+            }
+
+            TypeDesc keyType = TypeDesc.forClass(keyClassName);
+            CodeBuilder b = new CodeBuilder(cf.addMethod(method));
+            b.newObject(keyType);
+            b.dup();
+            int count = b.getParameterCount();
+            for (int i=0; i<count; i++) {
+                b.loadLocal(b.getParameter(i));
+            }
+            b.invokeConstructor(keyType, elementTypes);
+            b.returnValue(TypeDesc.OBJECT);
+        }
+
+        if (cf == null) {
+            // No methods found to implement.
+            throw new IllegalArgumentException("No methods in factory to implement");
+        }
+
+        for (RuntimeClassFile keyCf : keyClassFiles) {
+            keyCf.defineClass();
+        }
+
+        try {
+            return (F) cf.defineClass().newInstance();
+        } catch (InstantiationException e) {
+            throw new InternalError(e.toString());
+        } catch (IllegalAccessException e) {
+            throw new InternalError(e.toString());
+        }
+    }
+
+    /**
+     * Returns the key field types for the given factory method parameters,
+     * which are primitive or Object.
+     */
+    private static TypeDesc[] elementTypes(Class<?>[] paramTypes) {
+        TypeDesc[] types = new TypeDesc[paramTypes.length];
+        for (int i=0; i<types.length; i++) {
+            Class<?> type = paramTypes[i];
+            types[i] = type.isPrimitive() ? TypeDesc.forClass(type) : TypeDesc.OBJECT;
+        }
+        return types;
+    }
+
+    private static RuntimeClassFile generateKeyClass(String prefix, ClassLoader loader,
+                                                     TypeDesc[] elementTypes)
+    {
+        RuntimeClassFile cf = new RuntimeClassFile
+            (prefix, CompositeKey.class.getName(), loader);
+        cf.setModifiers(cf.getModifiers().toFinal(true));
+        cf.markSynthetic();
+        cf.setSourceFile(KeyFactory.class.getName());
+        cf.setTarget("1.5");
+
+        TypeDesc keyType = TypeDesc.forClass(cf.getClassName());
+
+        for (int i=0; i<elementTypes.length; i++) {
+            cf.addField(Modifiers.PRIVATE.toFinal(true), fieldName(i), elementTypes[i]);
+        }
+
+        // Constructor stores all the elements.
+        {
+            MethodInfo mi = cf.addConstructor(Modifiers.PUBLIC, elementTypes);
+            CodeBuilder b = new CodeBuilder(mi);
+            b.loadThis();
+            b.invokeSuperConstructor(null);
+            for (int i=0; i<elementTypes.length; i++) {
+                b.loadThis();
+                b.loadLocal(b.getParameter(i));
+                b.storeField(fieldName(i), elementTypes[i]);
+            }
+            b.returnVoid();
+        }
+
+        // Hash code combines the element hash codes.
+        {
+            MethodInfo mi = cf.addMethod(Modifiers.PUBLIC, "hashCode", TypeDesc.INT, null);
+            CodeBuilder b = new CodeBuilder(mi);
+            b.loadConstant(0);
+            for (int i=0; i<elementTypes.length; i++) {
+                TypeDesc type = elementTypes[i];
+                if (i > 0) {
+                    b.loadConstant(31);
+                    b.math(Opcode.IMUL);
+                }
+                b.loadThis();
+                b.loadField(fieldName(i), type);
+                switch (type.getTypeCode()) {
+                case TypeDesc.BOOLEAN_CODE:
+                    // Same as Boolean.hashCode.
+                    Label isTrue = b.createLabel();
+                    Label done = b.createLabel();
+                    b.ifZeroComparisonBranch(isTrue, "!=");
+                    b.loadConstant(1237);
+                    b.branch(done);
+                    isTrue.setLocation();
+                    b.loadConstant(1231);
+                    done.setLocation();
+                    break;
+                case TypeDesc.LONG_CODE:
+                    generateLongHash(b);
+                    break;
+                case TypeDesc.FLOAT_CODE:
+                    b.invokeStatic("java.lang.Float", "floatToIntBits", TypeDesc.INT,
+                                   new TypeDesc[] {TypeDesc.FLOAT});
+                    break;
+                case TypeDesc.DOUBLE_CODE:
+                    b.invokeStatic("java.lang.Double", "doubleToLongBits", TypeDesc.LONG,
+                                   new TypeDesc[] {TypeDesc.DOUBLE});
+                    generateLongHash(b);
+                    break;
+                case TypeDesc.OBJECT_CODE:
+                    b.invokeStatic(CompositeKey.class.getName(), "hash", TypeDesc.INT,
+                                   new TypeDesc[] {TypeDesc.OBJECT});
+                    break;
+                default:
+                    // Byte, short, char and int values are their own hash.
+                    break;
+                }
+                b.math(Opcode.IADD);
+            }
+            b.returnValue(TypeDesc.INT);
+        }
+
+        // Equals compares all the elements in order.
+        {
+            MethodInfo mi = cf.addMethod(Modifiers.PUBLIC, "equals", TypeDesc.BOOLEAN,
+                                         new TypeDesc[] {TypeDesc.OBJECT});
+            CodeBuilder b = new CodeBuilder(mi);
+            Label isEqual = b.createLabel();
+            Label notEqual = b.createLabel();
+
+            LocalVariable obj = b.getParameter(0);
+            b.loadThis();
+            b.loadLocal(obj);
+            b.ifEqualBranch(isEqual, true);
+            b.loadLocal(obj);
+            b.instanceOf(keyType);
+            b.ifZeroComparisonBranch(notEqual, "==");
+
+            LocalVariable other = b.createLocalVariable("other", keyType);
+            b.loadLocal(obj);
+            b.checkCast(keyType);
+            b.storeLocal(other);
+
+            for (int i=0; i<elementTypes.length; i++) {
+                TypeDesc type = elementTypes[i];
+                String name = fieldName(i);
+                b.loadThis();
+                b.loadField(name, type);
+                switch (type.getTypeCode()) {
+                case TypeDesc.LONG_CODE:
+                    b.loadLocal(other);
+                    b.loadField(name, type);
+                    b.ifComparisonBranch(notEqual, "!=", type);
+                    break;
+                case TypeDesc.FLOAT_CODE:
+                    TypeDesc[] params = {TypeDesc.FLOAT};
+                    b.invokeStatic("java.lang.Float", "floatToIntBits", TypeDesc.INT, params);
+                    b.loadLocal(other);
+                    b.loadField(name, type);
+                    b.invokeStatic("java.lang.Float", "floatToIntBits", TypeDesc.INT, params);
+                    b.ifComparisonBranch(notEqual, "!=", TypeDesc.INT);
+                    break;
+                case TypeDesc.DOUBLE_CODE:
+                    params = new TypeDesc[] {TypeDesc.DOUBLE};
+                    b.invokeStatic("java.lang.Double", "doubleToLongBits", TypeDesc.LONG,
+                                   params);
+                    b.loadLocal(other);
+                    b.loadField(name, type);
+                    b.invokeStatic("java.lang.Double", "doubleToLongBits", TypeDesc.LONG,
+                                   params);
+                    b.ifComparisonBranch(notEqual, "!=", TypeDesc.LONG);
+                    break;
+                case TypeDesc.OBJECT_CODE:
+                    b.loadLocal(other);
+                    b.loadField(name, type);
+                    b.invokeStatic(CompositeKey.class.getName(), "equal", TypeDesc.BOOLEAN,
+                                   new TypeDesc[] {TypeDesc.OBJECT, TypeDesc.OBJECT});
+                    b.ifZeroComparisonBranch(notEqual, "==");
+                    break;
+                default:
+                    b.loadLocal(other);
+                    b.loadField(name, type);
+                    b.ifComparisonBranch(notEqual, "!=", TypeDesc.INT);
+                    break;
+                }
+            }
+
+            isEqual.setLocation();
+            b.loadConstant(true);
+            b.returnValue(TypeDesc.BOOLEAN);
+            notEqual.setLocation();
+            b.loadConstant(false);
+            b.returnValue(TypeDesc.BOOLEAN);
+        }
+
+        // CompareTo returns the result of the first unequal element.
+        {
+            MethodInfo mi = cf.addMethod(Modifiers.PUBLIC, "compareTo", TypeDesc.INT,
+                                         new TypeDesc[] {TypeDesc.OBJECT});
+            CodeBuilder b = new CodeBuilder(mi);
+
+            LocalVariable other = b.createLocalVariable("other", keyType);
+            b.loadLocal(b.getParameter(0));
+            b.checkCast(keyType);
+            b.storeLocal(other);
+
+            Label less = b.createLabel();
+            Label greater = b.createLabel();
+            LocalVariable result = null;
+
+            for (int i=0; i<elementTypes.length; i++) {
+                TypeDesc type = elementTypes[i];
+                String name = fieldName(i);
+                b.loadThis();
+                b.loadField(name, type);
+                b.loadLocal(other);
+                b.loadField(name, type);
+
+                switch (type.getTypeCode()) {
+                case TypeDesc.BOOLEAN_CODE:
+                case TypeDesc.BYTE_CODE:
+                case TypeDesc.SHORT_CODE:
+                case TypeDesc.CHAR_CODE:
+                case TypeDesc.INT_CODE:
+                    if (type == TypeDesc.INT) {
+                        // Subtraction might overflow, so branch instead.
+                        LocalVariable a = b.createLocalVariable("a", type);
+                        LocalVariable c = b.createLocalVariable("b", type);
+                        b.storeLocal(c);
+                        b.storeLocal(a);
+                        b.loadLocal(a);
+                        b.loadLocal(c);
+                        b.ifComparisonBranch(less, "<", type);
+                        b.loadLocal(a);
+                        b.loadLocal(c);
+                        b.ifComparisonBranch(greater, ">", type);
+                        continue;
+                    }
+                    b.math(Opcode.ISUB);
+                    break;
+                case TypeDesc.LONG_CODE:
+                    b.math(Opcode.LCMP);
+                    break;
+                case TypeDesc.FLOAT_CODE:
+                    b.invokeStatic("java.lang.Float", "compare", TypeDesc.INT,
+                                   new TypeDesc[] {TypeDesc.FLOAT, TypeDesc.FLOAT});
+                    break;
+                case TypeDesc.DOUBLE_CODE:
+                    b.invokeStatic("java.lang.Double", "compare", TypeDesc.INT,
+                                   new TypeDesc[] {TypeDesc.DOUBLE, TypeDesc.DOUBLE});
+                    break;
+                default:
+                    b.invokeStatic(CompositeKey.class.getName(), "compare", TypeDesc.INT,
+                                   new TypeDesc[] {TypeDesc.OBJECT, TypeDesc.OBJECT});
+                    break;
+                }
+
+                if (result == null) {
+                    result = b.createLocalVariable("result", TypeDesc.INT);
+                }
+                Label next = b.createLabel();
+                b.storeLocal(result);
+                b.loadLocal(result);
+                b.ifZeroComparisonBranch(next, "==");
+                b.loadLocal(result);
+                b.returnValue(TypeDesc.INT);
+                next.setLocation();
+            }
+
+            b.loadConstant(0);
+            b.returnValue(TypeDesc.INT);
+            less.setLocation();
+            b.loadConstant(-1);
+            b.returnValue(TypeDesc.INT);
+            greater.setLocation();
+            b.loadConstant(1);
+            b.returnValue(TypeDesc.INT);
+        }
+
+        return cf;
+    }
+
+    private static String fieldName(int index) {
+        return "e" + index;
+    }
+
+    private static void generateLongHash(CodeBuilder b) {
+        b.dup2();
+        b.loadConstant(32);
+        b.math(Opcode.LUSHR);
+        b.math(Opcode.LXOR);
+        b.convert(TypeDesc.LONG, TypeDesc.INT);
+    }
+
     private static interface ArrayKey extends Comparable, java.io.Serializable {
         int hashCode();
 
@@ -0,0 +1,55 @@
+/*
+ *  Copyright 2010 Brian S O'Neill
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.util;
+
+/**
+ * Cache which can create values for keys which aren't cached, calling at
+ * most one loader at a time for each key.
+ *
+ * @author Brian S O'Neill
+ */
+public interface LoadingCache<K, V> extends Cache<K, V> {
+    /**
+     * Returns the non-null value mapped to the key, or else calls the loader
+     * and maps the key to its non-null result. Threads which concurrently
+     * request the same key wait for a single loader call to finish, but loads
+     * of other keys aren't blocked. If the loader throws an exception, a
+     * waiting thread calls its own loader instead.
+     *
+     * <p>A loader can request other keys, even from the same cache. If the
+     * thread loading a requested key is itself waiting, directly or through
+     * other threads, for a load by the current thread, then waiting would
+     * deadlock. The current thread calls its own loader instead, and the key
+     * is only mapped to its result if no value was mapped in the meantime.
+     *
+     * @return existing or loaded value, which is null only if the loader
+     * returned null
+     * @throws IllegalStateException if the loader recursively requests the
+     * same key
+     */
+    V get(K key, Loader<? super K, ? extends V> loader);
+
+    /**
+     * Creates values for keys which aren't cached.
+     */
+    public static interface Loader<K, V> {
+        /**
+         * @return new value for the key, or null if none
+         */
+        V load(K key);
+    }
+}
@@ -0,0 +1,330 @@
+/*
+ *  Copyright 2010 Brian S O'Neill
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.util;
+
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.NoSuchElementException;
+
+/**
+ * Map of object keys to int values, which stores keys and values in
+ * parallel arrays and resolves collisions by linear probing, like {@link
+ * OpenIntHashMap}. Values are never boxed, and get, put and remove don't
+ * allocate anything except when the map grows. Keys are compared with their
+ * equals method, and a null key is supported. This class is not thread-safe.
+ *
+ * @author Brian S O'Neill
+ */
+public class ObjectIntHashMap<K> {
+    // Stored in place of a null key, since null marks an empty slot.
+    private static final Object NULL = new Object();
+
+    private Object[] mKeys;
+    private int[] mValues;
+    private int mSize;
+    private int mThreshold;
+    // Right shift which selects the high bits of the hash as the slot.
+    private int mShift;
+    private int mModCount;
+
+    /**
+     * Constructs an empty map with a small default capacity.
+     */
+    public ObjectIntHashMap() {
+        this(8);
+    }
+
+    /**
+     * @param capacity number of mappings the map can hold without growing
+     * @throws IllegalArgumentException if capacity is negative
+     */
+    public ObjectIntHashMap(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Illegal capacity: " + capacity);
+        }
+        // Keep the load factor at or below 0.75.
+        int length = Integer.highestOneBit(Math.max(4, capacity + (capacity + 2) / 3) - 1) << 1;
+        init(length);
+    }
+
+    /**
+     * Returns the number of mappings in this map.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    public boolean containsKey(K key) {
+        return mKeys[slot(mask(key))] != null;
+    }
+
+    /**
+     * Returns the value mapped to the given key, or the default value if
+     * none.
+     */
+    public int get(K key, int defaultValue) {
+        int slot = slot(mask(key));
+        return mKeys[slot] == null ? defaultValue : mValues[slot];
+    }
+
+    /**
+     * Maps the given key to the given value.
+     *
+     * @return true if the key wasn't mapped before
+     */
+    public boolean put(K key, int value) {
+        Object masked = mask(key);
+        int slot = slot(masked);
+        mValues[slot] = value;
+        if (mKeys[slot] != null) {
+            return false;
+        }
+        mKeys[slot] = masked;
+        mModCount++;
+        if (++mSize > mThreshold) {
+            grow();
+        }
+        return true;
+    }
+
+    /**
+     * Adds a delta to the value mapped to the given key, treating an
+     * unmapped key as zero.
+     *
+     * @return new value
+     */
+    public int add(K key, int delta) {
+        Object masked = mask(key);
+        int slot = slot(masked);
+        if (mKeys[slot] != null) {
+            return mValues[slot] += delta;
+        }
+        put(key, delta);
+        return delta;
+    }
+
+    /**
+     * Removes the mapping for the given key.
+     *
+     * @return true if the key was mapped
+     */
+    public boolean remove(K key) {
+        Object[] keys = mKeys;
+        int[] values = mValues;
+        int mask = keys.length - 1;
+        int slot = slot(mask(key));
+        if (keys[slot] == null) {
+            return false;
+        }
+
+        // Shift following entries back, so that no probe sequence is broken
+        // by the new empty slot.
+        int hole = slot;
+        Object k;
+        for (int i = (hole + 1) & mask; (k = keys[i]) != null; i = (i + 1) & mask) {
+            int home = hash(k) >>> mShift;
+            // Move the entry if its home slot is not between the hole and it.
+            if (((i - home) & mask) >= ((i - hole) & mask)) {
+                keys[hole] = k;
+                values[hole] = values[i];
+                hole = i;
+            }
+        }
+        keys[hole] = null;
+
+        mSize--;
+        mModCount++;
+        return true;
+    }
+
+    /**
+     * Removes all mappings.
+     */
+    public void clear() {
+        if (mSize > 0) {
+            Arrays.fill(mKeys, null);
+            mSize = 0;
+            mModCount++;
+        }
+    }
+
+    /**
+     * Returns a cursor positioned before the first mapping. Iteration order
+     * is unspecified, and the map must not be modified while the cursor is
+     * in use, except by changing values with {@link Cursor#setValue}.
+     */
+    public Cursor<K> cursor() {
+        return new Cursor<K>(this);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder b = new StringBuilder();
+        b.append('{');
+        Cursor<K> c = cursor();
+        boolean first = true;
+        while (c.next()) {
+            if (!first) {
+                b.append(", ");
+            }
+            first = false;
+            K key = c.key();
+            b.append(key == this ? "(this Map)" : key).append('=').append(c.value());
+        }
+        return b.append('}').toString();
+    }
+
+    /**
+     * Returns the slot which holds the masked key, or else the empty slot
+     * where it would be inserted.
+     */
+    private int slot(Object key) {
+        Object[] keys = mKeys;
+        int mask = keys.length - 1;
+        int i = hash(key) >>> mShift;
+        Object k;
+        while ((k = keys[i]) != null && k != key && !k.equals(key)) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    private void grow() {
+        Object[] oldKeys = mKeys;
+        int[] oldValues = mValues;
+        init(oldKeys.length << 1);
+        Object[] keys = mKeys;
+        int[] values = mValues;
+        int mask = keys.length - 1;
+        int shift = mShift;
+        for (int i=0; i<oldKeys.length; i++) {
+            Object key = oldKeys[i];
+            if (key != null) {
+                int slot = hash(key) >>> shift;
+                while (keys[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = key;
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    private void init(int length) {
+        mKeys = new Object[length];
+        mValues = new int[length];
+        mThreshold = length - (length >> 2);
+        mShift = Integer.numberOfLeadingZeros(length) + 1;
+    }
+
+    /**
+     * Fibonacci hash of the key's hash code, since the high bits select the
+     * slot.
+     */
+    private static int hash(Object key) {
+        return key.hashCode() * 0x9e3779b9;
+    }
+
+    private static Object mask(Object key) {
+        return key == null ? NULL : key;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <K> K unmask(Object key) {
+        return key == NULL ? null : (K) key;
+    }
+
+    /**
+     * Iterates over the mappings of an {@link ObjectIntHashMap} without
+     * allocating entry objects or boxing values.
+     */
+    public static final class Cursor<K> {
+        private final ObjectIntHashMap<K> mMap;
+        private final int mExpectedModCount;
+        private int mSlot = -1;
+
+        Cursor(ObjectIntHashMap<K> map) {
+            mMap = map;
+            mExpectedModCount = map.mModCount;
+        }
+
+        /**
+         * Advances to the next mapping.
+         *
+         * @return false if no more mappings
+         * @throws ConcurrentModificationException if the map was modified
+         */
+        public boolean next() {
+            ObjectIntHashMap<K> map = mMap;
+            if (map.mModCount != mExpectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            Object[] keys = map.mKeys;
+            int slot = mSlot;
+            while (++slot < keys.length) {
+                if (keys[slot] != null) {
+                    mSlot = slot;
+                    return true;
+                }
+            }
+            mSlot = keys.length;
+            return false;
+        }
+
+        /**
+         * Returns the key of the current mapping.
+         */
+        public K key() {
+            return unmask(mMap.mKeys[current()]);
+        }
+
+        /**
+         * Returns the value of the current mapping.
+         */
+        public int value() {
+            return mMap.mValues[current()];
+        }
+
+        /**
+         * Replaces the value of the current mapping.
+         *
+         * @return previous value
+         */
+        public int setValue(int value) {
+            int[] values = mMap.mValues;
+            int slot = current();
+            int old = values[slot];
+            values[slot] = value;
+            return old;
+        }
+
+        private int current() {
+            int slot = mSlot;
+            if (slot < 0 || slot >= mMap.mKeys.length) {
+                throw new NoSuchElementException();
+            }
+            if (mMap.mModCount != mExpectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            return slot;
+        }
+    }
+}
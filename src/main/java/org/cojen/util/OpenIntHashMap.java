@@ -0,0 +1,336 @@
+/*
+ *  Copyright 2010 Brian S O'Neill
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.util;
+
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.NoSuchElementException;
+
+/**
+ * Map of int keys to object values, which stores keys and values in
+ * parallel arrays and resolves collisions by linear probing. Unlike {@link
+ * IntHashMap}, no entry objects are allocated and keys are never boxed, and
+ * so get, put and remove don't allocate anything except when the map
+ * grows. Mappings are iterated with a {@link Cursor}. This class is not
+ * thread-safe.
+ *
+ * @author Brian S O'Neill
+ */
+public class OpenIntHashMap<V> {
+    // Stored in place of null values, since null marks an empty slot.
+    private static final Object NULL = new Object();
+
+    private int[] mKeys;
+    private Object[] mValues;
+    private int mSize;
+    private int mThreshold;
+    // Right shift which selects the high bits of the hash as the slot.
+    private int mShift;
+    private int mModCount;
+
+    /**
+     * Constructs an empty map with a small default capacity.
+     */
+    public OpenIntHashMap() {
+        this(8);
+    }
+
+    /**
+     * @param capacity number of mappings the map can hold without growing
+     * @throws IllegalArgumentException if capacity is negative
+     */
+    public OpenIntHashMap(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Illegal capacity: " + capacity);
+        }
+        // Keep the load factor at or below 0.75.
+        int length = Integer.highestOneBit(Math.max(4, capacity + (capacity + 2) / 3) - 1) << 1;
+        init(length);
+    }
+
+    /**
+     * Returns the number of mappings in this map.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    public boolean containsKey(int key) {
+        return mValues[slot(key)] != null;
+    }
+
+    /**
+     * Returns the value mapped to the given key, or null if none.
+     */
+    public V get(int key) {
+        return unmask(mValues[slot(key)]);
+    }
+
+    /**
+     * Maps the given key to the given value.
+     *
+     * @return previous value mapped to the key, or null if none
+     */
+    public V put(int key, V value) {
+        int slot = slot(key);
+        Object[] values = mValues;
+        Object old = values[slot];
+        values[slot] = value == null ? NULL : value;
+        if (old != null) {
+            return unmask(old);
+        }
+        mKeys[slot] = key;
+        mModCount++;
+        if (++mSize > mThreshold) {
+            grow();
+        }
+        return null;
+    }
+
+    /**
+     * Removes the mapping for the given key.
+     *
+     * @return previous value mapped to the key, or null if none
+     */
+    public V remove(int key) {
+        int[] keys = mKeys;
+        Object[] values = mValues;
+        int mask = keys.length - 1;
+        int slot = slot(key);
+        Object old = values[slot];
+        if (old == null) {
+            return null;
+        }
+
+        // Shift following entries back, so that no probe sequence is broken
+        // by the new empty slot.
+        int hole = slot;
+        for (int i = (hole + 1) & mask; values[i] != null; i = (i + 1) & mask) {
+            int home = hash(keys[i]) >>> mShift;
+            // Move the entry if its home slot is not between the hole and it.
+            if (((i - home) & mask) >= ((i - hole) & mask)) {
+                keys[hole] = keys[i];
+                values[hole] = values[i];
+                hole = i;
+            }
+        }
+        values[hole] = null;
+
+        mSize--;
+        mModCount++;
+        return unmask(old);
+    }
+
+    /**
+     * Removes all mappings.
+     */
+    public void clear() {
+        if (mSize > 0) {
+            Arrays.fill(mValues, null);
+            mSize = 0;
+            mModCount++;
+        }
+    }
+
+    /**
+     * Returns all the keys in this map, in no particular order.
+     */
+    public int[] keys() {
+        int[] keys = mKeys;
+        Object[] values = mValues;
+        int[] result = new int[mSize];
+        for (int i=0, j=0; j<result.length; i++) {
+            if (values[i] != null) {
+                result[j++] = keys[i];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns a cursor positioned before the first mapping. Iteration order
+     * is unspecified, and the map must not be modified while the cursor is
+     * in use, except by changing values with {@link Cursor#setValue}.
+     */
+    public Cursor<V> cursor() {
+        return new Cursor<V>(this);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder b = new StringBuilder();
+        b.append('{');
+        Cursor<V> c = cursor();
+        boolean first = true;
+        while (c.next()) {
+            if (!first) {
+                b.append(", ");
+            }
+            first = false;
+            b.append(c.key()).append('=');
+            V value = c.value();
+            b.append(value == this ? "(this Map)" : value);
+        }
+        return b.append('}').toString();
+    }
+
+    /**
+     * Returns the slot which holds the key, or else the empty slot where it
+     * would be inserted.
+     */
+    private int slot(int key) {
+        int[] keys = mKeys;
+        Object[] values = mValues;
+        int mask = keys.length - 1;
+        int i = hash(key) >>> mShift;
+        while (values[i] != null && keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    private void grow() {
+        int[] oldKeys = mKeys;
+        Object[] oldValues = mValues;
+        init(oldKeys.length << 1);
+        int[] keys = mKeys;
+        Object[] values = mValues;
+        int mask = keys.length - 1;
+        int shift = mShift;
+        for (int i=0; i<oldKeys.length; i++) {
+            Object value = oldValues[i];
+            if (value != null) {
+                int key = oldKeys[i];
+                int slot = hash(key) >>> shift;
+                while (values[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = key;
+                values[slot] = value;
+            }
+        }
+    }
+
+    private void init(int length) {
+        mKeys = new int[length];
+        mValues = new Object[length];
+        mThreshold = length - (length >> 2);
+        mShift = Integer.numberOfLeadingZeros(length) + 1;
+    }
+
+    /**
+     * Fibonacci hash, whose high bits spread keys evenly even when they are
+     * sequential or multiples of a stride, as code addresses often are.
+     */
+    private static int hash(int key) {
+        return key * 0x9e3779b9;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V> V unmask(Object value) {
+        return value == NULL ? null : (V) value;
+    }
+
+    /**
+     * Iterates over the mappings of an {@link OpenIntHashMap} without
+     * allocating entry objects or boxing keys.
+     *
+     * <pre>
+     * OpenIntHashMap.Cursor&lt;String&gt; c = map.cursor();
+     * while (c.next()) {
+     *     int key = c.key();
+     *     String value = c.value();
+     *     ...
+     * }
+     * </pre>
+     */
+    public static final class Cursor<V> {
+        private final OpenIntHashMap<V> mMap;
+        private final int mExpectedModCount;
+        private int mSlot = -1;
+
+        Cursor(OpenIntHashMap<V> map) {
+            mMap = map;
+            mExpectedModCount = map.mModCount;
+        }
+
+        /**
+         * Advances to the next mapping.
+         *
+         * @return false if no more mappings
+         * @throws ConcurrentModificationException if the map was modified
+         */
+        public boolean next() {
+            OpenIntHashMap<V> map = mMap;
+            if (map.mModCount != mExpectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            Object[] values = map.mValues;
+            int slot = mSlot;
+            while (++slot < values.length) {
+                if (values[slot] != null) {
+                    mSlot = slot;
+                    return true;
+                }
+            }
+            mSlot = values.length;
+            return false;
+        }
+
+        /**
+         * Returns the key of the current mapping.
+         */
+        public int key() {
+            return mMap.mKeys[current()];
+        }
+
+        /**
+         * Returns the value of the current mapping.
+         */
+        public V value() {
+            return unmask(mMap.mValues[current()]);
+        }
+
+        /**
+         * Replaces the value of the current mapping.
+         *
+         * @return previous value
+         */
+        public V setValue(V value) {
+            Object[] values = mMap.mValues;
+            int slot = current();
+            Object old = values[slot];
+            values[slot] = value == null ? NULL : value;
+            return unmask(old);
+        }
+
+        private int current() {
+            int slot = mSlot;
+            if (slot < 0 || slot >= mMap.mValues.length) {
+                throw new NoSuchElementException();
+            }
+            if (mMap.mModCount != mExpectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            return slot;
+        }
+    }
+}
@@ -48,20 +48,20 @@ public abstract class PatternMatcher<V> {
     private static final int[] NO_POSITIONS = new int[0];
 
     // Maps pattern sets to auto-generated classes.
-    private static Cache cPatternMatcherClasses = new SoftValueCache(17);
+    private static final LoadingCache<Object, Class> cPatternMatcherClasses =
+        new ConcurrentSoftValueCache<Object, Class>(17);
 
-    public static synchronized <V> PatternMatcher<V> forPatterns(Map<String, V> patternMap) {
+    public static <V> PatternMatcher<V> forPatterns(Map<String, V> patternMap) {
         final Maker maker = new Maker(patternMap);
-        final Class clazz = (Class)cPatternMatcherClasses.get(maker.getKey());
 
         return AccessController.doPrivileged(new PrivilegedAction<PatternMatcher<V>>() {
             public PatternMatcher<V> run() {
-                Class clz = clazz;
-
-                if (clz == null) {
-                    clz = maker.createClassFile().defineClass();
-                    cPatternMatcherClasses.put(maker.getKey(), clz);
-                }
+                Class clz = cPatternMatcherClasses.get
+                    (maker.getKey(), new LoadingCache.Loader<Object, Class>() {
+                        public Class load(Object key) {
+                            return maker.createClassFile().defineClass();
+                        }
+                    });
 
                 try {
                     Constructor ctor = clz.getConstructor(new Class[]{Object[].class});
@@ -0,0 +1,143 @@
+/*
+ *  Copyright 2010 Brian S O'Neill
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.util;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tracks a load in progress by {@link LoadingCache#get(Object, LoadingCache.Loader)}, which
+ * other threads requesting the same key wait on. Caches keep a stack of them,
+ * guarded by the cache's own lock.
+ *
+ * @author Brian S O'Neill
+ */
+final class PendingLoad<K, V> {
+    /** Result of await when the load succeeded. */
+    static final int SUCCESS = 0;
+    /** Result of await when the load failed. */
+    static final int FAILED = 1;
+    /** Result of await when waiting would deadlock, and so it didn't wait. */
+    static final int DEADLOCK = 2;
+
+    // Maps each thread blocked in await to the load it's waiting for, across
+    // all caches. Guarded by its own lock.
+    private static final Map<Thread, PendingLoad<?, ?>> cWaiting =
+        new HashMap<Thread, PendingLoad<?, ?>>();
+    final K mKey;
+    final int mHash;
+    final Thread mLoader;
+    PendingLoad<K, V> mNext;
+
+    private boolean mDone;
+    private boolean mSuccess;
+    V mValue;
+
+    PendingLoad(K key, int hash, PendingLoad<K, V> next) {
+        mKey = key;
+        mHash = hash;
+        mLoader = Thread.currentThread();
+        mNext = next;
+    }
+
+    /**
+     * Returns true if the current thread is performing the load.
+     */
+    boolean isOwner() {
+        return mLoader == Thread.currentThread();
+    }
+
+    /**
+     * Returns this load if performed by another thread.
+     *
+     * @throws IllegalStateException if the current thread is performing the
+     * load, which means that the loader requested its own key
+     */
+    PendingLoad<K, V> checkRecursion() {
+        if (isOwner()) {
+            throw new IllegalStateException("Recursive load of key: " + mKey);
+        }
+        return this;
+    }
+
+    /**
+     * Removes the given load from a stack.
+     *
+     * @return new top of the stack
+     */
+    static <K, V> PendingLoad<K, V> unlink(PendingLoad<K, V> top, PendingLoad<K, V> pending) {
+        for (PendingLoad<K, V> p = top, prev = null; p != null; p = p.mNext) {
+            if (p == pending) {
+                if (prev == null) {
+                    return p.mNext;
+                }
+                prev.mNext = p.mNext;
+                break;
+            }
+            prev = p;
+        }
+        return top;
+    }
+
+    synchronized void finish(V value, boolean success) {
+        mValue = value;
+        mSuccess = success;
+        mDone = true;
+        notifyAll();
+    }
+
+    /**
+     * Waits uninterruptibly for the load to finish, unless the thread
+     * performing it is waiting for a load performed by the current thread,
+     * directly or through other waiting threads.
+     *
+     * @return SUCCESS, FAILED or DEADLOCK
+     */
+    int await() {
+        Thread current = Thread.currentThread();
+
+        synchronized (cWaiting) {
+            for (PendingLoad<?, ?> p = this; p != null; p = cWaiting.get(p.mLoader)) {
+                if (p.mLoader == current) {
+                    return DEADLOCK;
+                }
+            }
+            cWaiting.put(current, this);
+        }
+
+        try {
+            synchronized (this) {
+                boolean interrupted = false;
+                while (!mDone) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                if (interrupted) {
+                    current.interrupt();
+                }
+                return mSuccess ? SUCCESS : FAILED;
+            }
+        } finally {
+            synchronized (cWaiting) {
+                cWaiting.remove(current);
+            }
+        }
+    }
+}
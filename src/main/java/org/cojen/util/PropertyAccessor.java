@@ -0,0 +1,327 @@
+/*
+ *  Copyright 2010 Brian S O'Neill
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.util;
+
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+
+import org.cojen.classfile.CodeBuilder;
+import org.cojen.classfile.MethodInfo;
+import org.cojen.classfile.Modifiers;
+import org.cojen.classfile.RuntimeClassFile;
+import org.cojen.classfile.TypeDesc;
+
+/**
+ * Reads and writes a single bean property. Unlike {@link
+ * BeanPropertyAccessor}, the property name is resolved only once, when the
+ * PropertyAccessor is obtained. Each property is supported by its own
+ * auto-generated class, which calls the bean access methods directly.
+ *
+ * <p>Primitive properties can be accessed without boxing, using the
+ * specialized methods like {@link #getIntValue getIntValue}. A property can
+ * be read by any specialized method its type widens to, and it can be written
+ * by the specialized method of its own type. Byte, short and char properties
+ * are written by {@link #setIntValue setIntValue}, which narrows the value.
+ * The default implementations of the specialized methods convert to and from
+ * the boxed value instead.
+ *
+ * @author Brian S O'Neill
+ * @see BeanPropertyAccessor
+ */
+public abstract class PropertyAccessor<B> {
+    // Maps bean classes to caches of property names to accessors.
+    private static final
+        LoadingCache<Class<?>, LoadingCache<String, PropertyAccessor<?>>> cAccessors =
+        new ConcurrentWeakIdentityCache<Class<?>, LoadingCache<String, PropertyAccessor<?>>>(17);
+
+    /**
+     * Returns a new or cached PropertyAccessor for the given bean property.
+     *
+     * @throws NoSuchPropertyException if property isn't readable or writable
+     */
+    @SuppressWarnings("unchecked")
+    public static <B> PropertyAccessor<B> forProperty(final Class<B> clazz, String property)
+        throws NoSuchPropertyException
+    {
+        LoadingCache<String, PropertyAccessor<?>> accessors = cAccessors.get(clazz);
+        if (accessors == null) {
+            accessors = new ConcurrentSoftValueCache<String, PropertyAccessor<?>>(17);
+            LoadingCache<String, PropertyAccessor<?>> existing =
+                cAccessors.putIfAbsent(clazz, accessors);
+            if (existing != null) {
+                accessors = existing;
+            }
+        }
+
+        PropertyAccessor<?> accessor = accessors.get
+            (property, new LoadingCache.Loader<String, PropertyAccessor<?>>() {
+                public PropertyAccessor<?> load(String property) {
+                    BeanProperty bp = BeanIntrospector.getAllProperties(clazz).get(property);
+                    if (bp == null || (bp.getReadMethod() == null && bp.getWriteMethod() == null)) {
+                        throw new NoSuchPropertyException(property, true);
+                    }
+                    return generate(clazz, bp);
+                }
+            });
+
+        // Accessors are cached per bean class, and so the cast is safe.
+        return (PropertyAccessor<B>) accessor;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <B> PropertyAccessor<B> generate(final Class<B> beanType,
+                                                    final BeanProperty bp)
+    {
+        return AccessController.doPrivileged(new PrivilegedAction<PropertyAccessor<B>>() {
+            public PropertyAccessor<B> run() {
+                Class<?> clazz = generateClassFile(beanType, bp).defineClass();
+                try {
+                    return (PropertyAccessor<B>) clazz.newInstance();
+                } catch (InstantiationException e) {
+                    throw new InternalError(e.toString());
+                } catch (IllegalAccessException e) {
+                    throw new InternalError(e.toString());
+                }
+            }
+        });
+    }
+
+    private static RuntimeClassFile generateClassFile(Class<?> beanType, BeanProperty bp) {
+        RuntimeClassFile cf = new RuntimeClassFile
+            (PropertyAccessor.class.getName(),
+             PropertyAccessor.class.getName(),
+             beanType.getClassLoader());
+        cf.markSynthetic();
+        cf.setSourceFile(PropertyAccessor.class.getName());
+        cf.setTarget("1.5");
+
+        TypeDesc beanDesc = TypeDesc.forClass(beanType);
+        TypeDesc type = TypeDesc.forClass(bp.getType());
+
+        MethodInfo ctor = cf.addConstructor(Modifiers.PUBLIC, null);
+        ctor.markSynthetic();
+        CodeBuilder b = new CodeBuilder(ctor);
+
+        b.loadThis();
+        b.loadConstant(bp.getName());
+        b.loadConstant(type);
+        b.loadConstant(bp.getReadMethod() != null);
+        b.loadConstant(bp.getWriteMethod() != null);
+        b.invokeSuperConstructor(new TypeDesc[] {
+            TypeDesc.STRING, TypeDesc.forClass(Class.class), TypeDesc.BOOLEAN, TypeDesc.BOOLEAN
+        });
+        b.returnVoid();
+
+        if (bp.getReadMethod() != null) {
+            generateGetMethod(cf, beanDesc, bp, type, TypeDesc.OBJECT);
+
+            if (type == TypeDesc.BOOLEAN) {
+                generateGetMethod(cf, beanDesc, bp, type, TypeDesc.BOOLEAN);
+            } else if (type.isPrimitive()) {
+                TypeDesc[] widened = {TypeDesc.INT, TypeDesc.LONG, TypeDesc.FLOAT, TypeDesc.DOUBLE};
+                for (TypeDesc to : widened) {
+                    if (widens(type, to)) {
+                        generateGetMethod(cf, beanDesc, bp, type, to);
+                    }
+                }
+            }
+        }
+
+        if (bp.getWriteMethod() != null) {
+            generateSetMethod(cf, beanDesc, bp, type, TypeDesc.OBJECT);
+
+            switch (type.getTypeCode()) {
+            case TypeDesc.BYTE_CODE: case TypeDesc.SHORT_CODE: case TypeDesc.CHAR_CODE:
+                generateSetMethod(cf, beanDesc, bp, type, TypeDesc.INT);
+                break;
+            case TypeDesc.BOOLEAN_CODE: case TypeDesc.INT_CODE: case TypeDesc.LONG_CODE:
+            case TypeDesc.FLOAT_CODE: case TypeDesc.DOUBLE_CODE:
+                generateSetMethod(cf, beanDesc, bp, type, type);
+                break;
+            }
+        }
+
+        return cf;
+    }
+
+    private static boolean widens(TypeDesc from, TypeDesc to) {
+        switch (from.getTypeCode()) {
+        case TypeDesc.BYTE_CODE: case TypeDesc.SHORT_CODE:
+        case TypeDesc.CHAR_CODE: case TypeDesc.INT_CODE:
+            return true;
+        case TypeDesc.LONG_CODE: case TypeDesc.FLOAT_CODE:
+            return to != TypeDesc.INT;
+        case TypeDesc.DOUBLE_CODE:
+            return to == TypeDesc.DOUBLE;
+        default:
+            return false;
+        }
+    }
+
+    private static String methodName(String prefix, TypeDesc type) {
+        if (type == TypeDesc.OBJECT) {
+            return prefix + "Value";
+        }
+        String name = type.getRootName();
+        return prefix + Character.toUpperCase(name.charAt(0)) + name.substring(1) + "Value";
+    }
+
+    private static void generateGetMethod(RuntimeClassFile cf, TypeDesc beanDesc,
+                                          BeanProperty bp, TypeDesc type, TypeDesc returnType)
+    {
+        MethodInfo mi = cf.addMethod
+            (Modifiers.PUBLIC, methodName("get", returnType), returnType,
+             new TypeDesc[] {TypeDesc.OBJECT});
+        mi.markSynthetic();
+        CodeBuilder b = new CodeBuilder(mi);
+
+        b.loadLocal(b.getParameter(0));
+        b.checkCast(beanDesc);
+        b.invoke(bp.getReadMethod());
+        b.convert(type, returnType == TypeDesc.OBJECT ? type.toObjectType() : returnType);
+        b.returnValue(returnType);
+    }
+
+    private static void generateSetMethod(RuntimeClassFile cf, TypeDesc beanDesc,
+                                          BeanProperty bp, TypeDesc type, TypeDesc valueType)
+    {
+        MethodInfo mi = cf.addMethod
+            (Modifiers.PUBLIC, methodName("set", valueType), null,
+             new TypeDesc[] {TypeDesc.OBJECT, valueType});
+        mi.markSynthetic();
+        CodeBuilder b = new CodeBuilder(mi);
+
+        b.loadLocal(b.getParameter(0));
+        b.checkCast(beanDesc);
+        b.loadLocal(b.getParameter(1));
+        if (valueType == TypeDesc.OBJECT) {
+            b.checkCast(type.toObjectType());
+            b.convert(type.toObjectType(), type);
+        } else {
+            b.convert(valueType, type);
+        }
+        b.invoke(bp.getWriteMethod());
+        b.returnVoid();
+    }
+
+    private final String mName;
+    private final Class<?> mType;
+    private final boolean mReadable;
+    private final boolean mWritable;
+
+    protected PropertyAccessor(String name, Class<?> type, boolean readable, boolean writable) {
+        mName = name;
+        mType = type;
+        mReadable = readable;
+        mWritable = writable;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public Class<?> getType() {
+        return mType;
+    }
+
+    public boolean isReadable() {
+        return mReadable;
+    }
+
+    public boolean isWritable() {
+        return mWritable;
+    }
+
+    /**
+     * Returns the property value, boxing it if primitive.
+     *
+     * @throws NoSuchPropertyException if property isn't readable
+     */
+    public Object getValue(B bean) throws NoSuchPropertyException {
+        throw new NoSuchPropertyException(mName, true);
+    }
+
+    /**
+     * Sets the property value, unboxing it if primitive.
+     *
+     * @throws NoSuchPropertyException if property isn't writable
+     */
+    public void setValue(B bean, Object value) throws NoSuchPropertyException {
+        throw new NoSuchPropertyException(mName, false);
+    }
+
+    public boolean getBooleanValue(B bean) throws NoSuchPropertyException {
+        return (Boolean) getValue(bean);
+    }
+
+    public int getIntValue(B bean) throws NoSuchPropertyException {
+        Object value = getValue(bean);
+        if (value instanceof Character) {
+            return (Character) value;
+        }
+        return ((Number) value).intValue();
+    }
+
+    public long getLongValue(B bean) throws NoSuchPropertyException {
+        Object value = getValue(bean);
+        if (value instanceof Character) {
+            return (Character) value;
+        }
+        return ((Number) value).longValue();
+    }
+
+    public float getFloatValue(B bean) throws NoSuchPropertyException {
+        Object value = getValue(bean);
+        if (value instanceof Character) {
+            return (Character) value;
+        }
+        return ((Number) value).floatValue();
+    }
+
+    public double getDoubleValue(B bean) throws NoSuchPropertyException {
+        Object value = getValue(bean);
+        if (value instanceof Character) {
+            return (Character) value;
+        }
+        return ((Number) value).doubleValue();
+    }
+
+    public void setBooleanValue(B bean, boolean value) throws NoSuchPropertyException {
+        setValue(bean, value);
+    }
+
+    public void setIntValue(B bean, int value) throws NoSuchPropertyException {
+        setValue(bean, value);
+    }
+
+    public void setLongValue(B bean, long value) throws NoSuchPropertyException {
+        setValue(bean, value);
+    }
+
+    public void setFloatValue(B bean, float value) throws NoSuchPropertyException {
+        setValue(bean, value);
+    }
+
+    public void setDoubleValue(B bean, double value) throws NoSuchPropertyException {
+        setValue(bean, value);
+    }
+
+    @Override
+    public String toString() {
+        return "PropertyAccessor {name=" + mName + ", type=" + mType.getName() + '}';
+    }
+}
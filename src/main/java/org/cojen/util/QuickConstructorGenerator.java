@@ -63,8 +63,8 @@ import org.cojen.classfile.TypeDesc;
  */
 public class QuickConstructorGenerator {
     // Map<factory class, Map<object type, factory instance>>
-    @SuppressWarnings("unchecked")
-    private static Cache<Class<?>, Cache<Class<?>, Object>> cCache = new WeakIdentityCache(17);
+    private static final LoadingCache<Class<?>, LoadingCache<Class<?>, Object>> cCache =
+        new ConcurrentWeakIdentityCache<Class<?>, LoadingCache<Class<?>, Object>>(17);
 
     /**
      * Returns a factory instance for one type of object. Each method in the
@@ -102,40 +102,39 @@ public class QuickConstructorGenerator {
      * if it is malformed
      */
     @SuppressWarnings("unchecked")
-    public static synchronized <F> F getInstance(final Class<?> objectType,
-                                                 final Class<F> factory)
-    {
-        Cache<Class<?>, Object> innerCache = cCache.get(factory);
-        if (innerCache == null) {
-            innerCache = new SoftValueCache(5);
-            cCache.put(factory, innerCache);
-        }
-        F instance = (F) innerCache.get(objectType);
-        if (instance != null) {
-            return instance;
-        }
-
+    public static <F> F getInstance(final Class<?> objectType, final Class<F> factory) {
         if (objectType == null) {
             throw new IllegalArgumentException("No object type");
         }
         if (factory == null) {
             throw new IllegalArgumentException("No factory type");
         }
-        if (!factory.isInterface()) {
-            throw new IllegalArgumentException("Factory must be an interface");
+
+        LoadingCache<Class<?>, Object> innerCache = cCache.get(factory);
+        if (innerCache == null) {
+            innerCache = new ConcurrentSoftValueCache<Class<?>, Object>(5);
+            LoadingCache<Class<?>, Object> existing = cCache.putIfAbsent(factory, innerCache);
+            if (existing != null) {
+                innerCache = existing;
+            }
         }
 
-        final Cache<Class<?>, Object> fInnerCache = innerCache;
-        return AccessController.doPrivileged(new PrivilegedAction<F>() {
-            public F run() {
-                return getInstance(fInnerCache, objectType, factory);
+        return (F) innerCache.get(objectType, new LoadingCache.Loader<Class<?>, Object>() {
+            public Object load(Class<?> type) {
+                if (!factory.isInterface()) {
+                    throw new IllegalArgumentException("Factory must be an interface");
+                }
+                return AccessController.doPrivileged(new PrivilegedAction<F>() {
+                    public F run() {
+                        return generate(objectType, factory);
+                    }
+                });
             }
         });
     }
 
-    private static synchronized <F> F getInstance(Cache<Class<?>, Object> innerCache,
-                                                  Class<?> objectType, Class<F> factory)
-    {
+    @SuppressWarnings("unchecked")
+    private static <F> F generate(Class<?> objectType, Class<F> factory) {
         String prefix = objectType.getName();
         if (prefix.startsWith("java.")) {
             // Defining classes in java packages is restricted.
@@ -219,8 +218,6 @@ public class QuickConstructorGenerator {
             throw new UndeclaredThrowableException(e);
         }
 
-        innerCache.put(objectType, instance);
-
         return instance;
     }
 }
@@ -20,12 +20,15 @@ package org.cojen.util;
  *
  * @author Brian S O'Neill
  */
-public abstract class RefCache<K, V> implements Cache<K, V> {
+public abstract class RefCache<K, V> implements LoadingCache<K, V> {
     static final float LOAD_FACTOR = 0.75f;
 
     int mSize;
     int mThreshold;
 
+    // Stack of loads in progress.
+    private PendingLoad<K, V> mPending;
+
     RefCache(int capacity) {
         mThreshold = (int) (capacity * LOAD_FACTOR);
     }
@@ -67,6 +70,67 @@ public abstract class RefCache<K, V> implements Cache<K, V> {
         return get(key) == null ? null : put(key, value);
     }
 
+    public final V get(K key, Loader<? super K, ? extends V> loader) {
+        int hash = key == null ? 0 : keyHashCode(key);
+
+        while (true) {
+            PendingLoad<K, V> pending;
+            synchronized (this) {
+                V value = get(key);
+                if (value != null) {
+                    return value;
+                }
+                pending = findLoad(key, hash);
+                if (pending == null) {
+                    mPending = pending = new PendingLoad<K, V>(key, hash, mPending);
+                }
+            }
+
+            if (!pending.isOwner()) {
+                switch (pending.await()) {
+                case PendingLoad.SUCCESS:
+                    return pending.mValue;
+                case PendingLoad.FAILED:
+                    // Loader failed, so try again.
+                    continue;
+                default:
+                    // Waiting would deadlock, so load without waiting.
+                    return loadWithoutWaiting(key, loader);
+                }
+            }
+
+            V value = null;
+            boolean success = false;
+            try {
+                value = loader.load(key);
+                success = true;
+            } finally {
+                try {
+                    synchronized (this) {
+                        mPending = PendingLoad.unlink(mPending, pending);
+                        if (success && value != null) {
+                            put(key, value);
+                        }
+                    }
+                } finally {
+                    pending.finish(value, success);
+                }
+            }
+            return value;
+        }
+    }
+
+    private V loadWithoutWaiting(K key, Loader<? super K, ? extends V> loader) {
+        V value = loader.load(key);
+        if (value != null) {
+            V existing = putIfAbsent(key, value);
+            if (existing != null) {
+                value = existing;
+            }
+        }
+        return value;
+    }
+
     protected int keyHashCode(K key) {
         return key.hashCode();
     }
@@ -74,4 +138,17 @@ public abstract class RefCache<K, V> implements Cache<K, V> {
     protected boolean keyEquals(K a, K b) {
         return a.equals(b);
     }
+
+    /**
+     * Caller must be synchronized.
+     */
+    private PendingLoad<K, V> findLoad(K key, int hash) {
+        for (PendingLoad<K, V> p = mPending; p != null; p = p.mNext) {
+            K k = p.mKey;
+            if (p.mHash == hash && (k == key || (k != null && key != null && keyEquals(k, key)))) {
+                return p.checkRecursion();
+            }
+        }
+        return null;
+    }
 }
@@ -0,0 +1,252 @@
+/*
+ *  Copyright 2010 Brian S O'Neill
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.util;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+import java.util.Arrays;
+
+/**
+ * Encodes beans into keys which order the same as the {@link BeanComparator}
+ * the encoder was obtained from. A bean is encoded once, and then sorts and
+ * merges compare its key without calling property accessors, unboxing values
+ * or running collators. Keys are compared as unsigned bytes, as by {@link
+ * #compareKeys compareKeys}.
+ * <p>
+ * When all order-by properties are primitive, boxed primitives or enums, and
+ * their encoded widths fit into 8 bytes, beans can instead be encoded into
+ * long keys, which are compared as signed longs.
+ * <p>
+ * SortKeyEncoder instances are thread-safe and contain auto-generated code.
+ *
+ * @author Brian S O'Neill
+ * @see BeanComparator#sortKeyEncoder
+ */
+public abstract class SortKeyEncoder<T> {
+    // Vectorized comparison, available in Java 9 and later.
+    private static final MethodHandle cCompareUnsigned;
+
+    static {
+        MethodHandle mh;
+        try {
+            mh = MethodHandles.publicLookup().findStatic
+                (Arrays.class, "compareUnsigned",
+                 MethodType.methodType(int.class, byte[].class, byte[].class));
+        } catch (Exception e) {
+            mh = null;
+        }
+        cCompareUnsigned = mh;
+    }
+
+    private final boolean mLongKeySupported;
+
+    protected SortKeyEncoder(boolean longKeySupported) {
+        mLongKeySupported = longKeySupported;
+    }
+
+    /**
+     * Returns a key which compares to other keys from this encoder, as
+     * unsigned bytes, the same way the bean compares to other beans. Beans
+     * which are equal produce equal keys.
+     *
+     * @param bean bean to encode; may be null
+     * @throws IllegalArgumentException if a String which is compared ignoring
+     * case has an unpaired surrogate
+     */
+    public abstract byte[] encodeKey(T bean);
+
+    /**
+     * Returns true if {@link #encodeLongKey encodeLongKey} is supported.
+     */
+    public boolean isLongKeySupported() {
+        return mLongKeySupported;
+    }
+
+    /**
+     * Returns a key which compares to other keys from this encoder, as signed
+     * longs, the same way the bean compares to other non-null beans.
+     *
+     * @param bean bean to encode; must not be null
+     * @throws UnsupportedOperationException if long keys aren't supported
+     */
+    public long encodeLongKey(T bean) {
+        throw new UnsupportedOperationException("Key doesn't fit into a long");
+    }
+
+    /**
+     * Compares keys as unsigned bytes, and a key which is a prefix of
+     * another key is lower.
+     */
+    public static int compareKeys(byte[] a, byte[] b) {
+        MethodHandle mh = cCompareUnsigned;
+        if (mh != null) {
+            try {
+                return (int) mh.invokeExact(a, b);
+            } catch (Throwable e) {
+                ThrowUnchecked.fire(e);
+            }
+        }
+
+        int length = Math.min(a.length, b.length);
+        for (int i=0; i<length; i++) {
+            int ab = a[i] & 0xff;
+            int bb = b[i] & 0xff;
+            if (ab != bb) {
+                return ab < bb ? -1 : 1;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    // The remaining methods are called by the auto-generated subclasses.
+    // Fixed width values are converted to unsigned bits which order the same
+    // as the values, and then they're written in big-endian format.
+
+    protected static long orderedBits(boolean value) {
+        return value ? 1 : 0;
+    }
+
+    protected static long orderedBits(byte value) {
+        return (value ^ 0x80) & 0xff;
+    }
+
+    protected static long orderedBits(short value) {
+        return (value ^ 0x8000) & 0xffff;
+    }
+
+    protected static long orderedBits(char value) {
+        return value;
+    }
+
+    protected static long orderedBits(int value) {
+        return (value ^ 0x80000000) & 0xffffffffL;
+    }
+
+    protected static long orderedBits(long value) {
+        return value ^ Long.MIN_VALUE;
+    }
+
+    /**
+     * Orders the same as {@link Float#compareTo(Float) Float.compareTo}.
+     */
+    protected static long orderedBits(float value) {
+        int bits = Float.floatToIntBits(value);
+        return (bits ^ ((bits >> 31) | 0x80000000)) & 0xffffffffL;
+    }
+
+    /**
+     * Orders the same as {@link Double#compareTo(Double) Double.compareTo}.
+     */
+    protected static long orderedBits(double value) {
+        long bits = Double.doubleToLongBits(value);
+        return bits ^ ((bits >> 63) | Long.MIN_VALUE);
+    }
+
+    /**
+     * @param width amount of low-order bytes to write
+     * @return updated offset
+     */
+    protected static int encodeBits(byte[] key, int offset, long bits, int width) {
+        for (int shift = (width - 1) << 3; shift >= 0; shift -= 8) {
+            key[offset++] = (byte) (bits >> shift);
+        }
+        return offset;
+    }
+
+    /**
+     * Returns the encoded length of a String, including the terminator.
+     *
+     * @throws IllegalArgumentException if case insensitive and the String
+     * has an unpaired surrogate
+     */
+    protected static int stringLength(String str, boolean caseInsensitive) {
+        int length = str.length();
+        int encodedLength = 1;
+        for (int i=0; i<length; ) {
+            int c;
+            if (caseInsensitive) {
+                c = str.codePointAt(i);
+                if (c < 0x10000 && Character.isSurrogate((char) c)) {
+                    // CASE_INSENSITIVE_ORDER pairs it with an adjacent
+                    // surrogate when they differ, which isn't consistent
+                    // with any encoding.
+                    throw new IllegalArgumentException("Unpaired surrogate at " + i);
+                }
+                i += Character.charCount(c);
+                c = fold(c);
+            } else {
+                c = str.charAt(i++);
+            }
+            encodedLength += c < 0x7f ? 1 : (c < 0x4000 ? 2 : 3);
+        }
+        return encodedLength;
+    }
+
+    /**
+     * Encodes each char into 1 to 3 bytes, none of which start with zero,
+     * and then writes a zero terminator. The encoding orders the same as
+     * {@link String#compareTo(String) String.compareTo}. If case insensitive,
+     * each code point is folded and encoded instead, because {@link
+     * String#CASE_INSENSITIVE_ORDER} compares surrogate pairs as code points.
+     *
+     * @return updated offset
+     */
+    protected static int encodeString(byte[] key, int offset, String str,
+                                      boolean caseInsensitive)
+    {
+        int length = str.length();
+        for (int i=0; i<length; ) {
+            int c;
+            if (caseInsensitive) {
+                c = str.codePointAt(i);
+                i += Character.charCount(c);
+                c = fold(c);
+            } else {
+                c = str.charAt(i++);
+            }
+            if (c < 0x7f) {
+                key[offset++] = (byte) (c + 1);
+            } else {
+                if (c < 0x4000) {
+                    key[offset++] = (byte) (0x80 | (c >> 8));
+                } else {
+                    // Supplementary code points are at most 21 bits.
+                    key[offset++] = (byte) (0xc0 | (c >> 16));
+                    key[offset++] = (byte) (c >> 8);
+                }
+                key[offset++] = (byte) c;
+            }
+        }
+        key[offset++] = 0;
+        return offset;
+    }
+
+    /**
+     * Flips all the bits in the given range, reversing its order.
+     */
+    protected static void invert(byte[] key, int start, int end) {
+        for (int i=start; i<end; i++) {
+            key[i] = (byte) ~key[i];
+        }
+    }
+
+    private static int fold(int c) {
+        return Character.toLowerCase(Character.toUpperCase(c));
+    }
+}
@@ -22,6 +22,8 @@ import java.util.AbstractSet;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
 /**
  * A thread-safe Set that manages canonical objects: sharable objects that are
  * typically immutable. Call the {@link #put put} method for supplying the
@@ -31,20 +33,46 @@ import java.util.NoSuchElementException;
  * sense to be canonicalized because each instance will be considered unique.
  * The object returned from the {@link #put put} method will always be the same
  * as the one passed in.
+ * <p>
+ * Lookups never lock, and so putting an object which is already canonical
+ * doesn't block. New objects are added by locking only the segment which owns
+ * them. Segments are created when first needed, and so sets which hold only a
+ * few objects stay small. Cleared entries are removed by a shared background
+ * thread.
  *
  * @author Brian S O'Neill
  */
 public class WeakCanonicalSet<T> extends AbstractSet<T> {
-    private final float LOAD_FACTOR = 0.75f;
+    private static final float LOAD_FACTOR = 0.75f;
 
-    private Entry<T>[] mEntries;
-    private int mSize;
-    private int mThreshold;
+    private final AtomicReferenceArray<Segment<T>> mSegments;
+    private final int mSegmentShift;
+    private final int mSegmentMask;
 
     public WeakCanonicalSet() {
-        final int initialCapacity = 17;
-        mEntries = new Entry[initialCapacity];
-        mThreshold = (int)(initialCapacity * LOAD_FACTOR);
+        this(ConcurrentRefCache.DEFAULT_CONCURRENCY);
+    }
+
+    /**
+     * @param concurrency estimated number of threads concurrently adding new
+     * objects
+     */
+    public WeakCanonicalSet(int concurrency) {
+        if (concurrency <= 0) {
+            throw new IllegalArgumentException("Concurrency: " + concurrency);
+        }
+
+        int shift = 0;
+        int count = 1;
+        while (count < concurrency && count < (1 << 16)) {
+            shift++;
+            count <<= 1;
+        }
+
+        mSegmentShift = 32 - shift;
+        mSegmentMask = count - 1;
+
+        mSegments = new AtomicReferenceArray<Segment<T>>(count);
     }
 
     /**
@@ -55,80 +83,64 @@ public class WeakCanonicalSet<T> extends AbstractSet<T> {
      *
      * @param obj candidate canonical object; null is also accepted
      */
-    public synchronized <U extends T> U put(U obj) {
+    @SuppressWarnings("unchecked")
+    public <U extends T> U put(U obj) {
         if (obj == null) {
             return null;
         }
 
-        Entry<T>[] entries = mEntries;
-        int hash = hashCode(obj);
-        int index = (hash & 0x7fffffff) % entries.length;
-        for (Entry<T> e = entries[index], prev = null; e != null; e = e.mNext) {
-            T iobj = e.get();
-            if (iobj == null) {
-                // Clean up after a cleared Reference.
-                if (prev == null) {
-                    entries[index] = e.mNext;
-                } else {
-                    prev.mNext = e.mNext;
-                }
-                mSize--;
-            } else if (e.mHash == hash && obj.getClass() == iobj.getClass() && equals(obj, iobj)) {
-                // Found canonical instance.
-                return (U) iobj;
-            } else {
-                prev = e;
-            }
-        }
+        int hash = ConcurrentRefCache.spread(hashCode(obj));
+        int index = (hash >>> mSegmentShift) & mSegmentMask;
+        Segment<T> segment = mSegments.get(index);
 
-        if (mSize >= mThreshold) {
-            cleanup();
-            if (mSize >= mThreshold) {
-                rehash();
-                entries = mEntries;
-                index = (hash & 0x7fffffff) % entries.length;
+        T canonical;
+        if (segment == null) {
+            segment = new Segment<T>(this, 4);
+            if (!mSegments.compareAndSet(index, null, segment)) {
+                segment = mSegments.get(index);
             }
+        } else if ((canonical = segment.find(obj, hash)) != null) {
+            // Casts are safe because canonical instances only match objects
+            // of the same class.
+            return (U) canonical;
         }
 
-        entries[index] = new Entry<T>(this, obj, hash, entries[index]);
-        mSize++;
-        return obj;
+        return (U) segment.put(obj, hash);
     }
 
     /**
-     * Iterator is only thread safe if accessed while synchronized on WeakCanonicalSet
-     * instance.
+     * Returns a weakly consistent iterator, which never throws
+     * ConcurrentModificationException.
      */
-    public synchronized Iterator<T> iterator() {
-        return new SetIterator(mEntries);
+    public Iterator<T> iterator() {
+        return new SetIterator();
     }
 
-    public synchronized int size() {
-        return mSize;
+    /**
+     * Returns the number of objects in the set, which might include objects
+     * that were collected and which haven't been removed yet.
+     */
+    public int size() {
+        long size = 0;
+        for (int i=mSegments.length(); --i>=0 ;) {
+            Segment<T> segment = mSegments.get(i);
+            if (segment != null) {
+                size += segment.mSize;
+            }
+        }
+        return size > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) size;
     }
 
-    public synchronized boolean contains(Object obj) {
+    public boolean contains(Object obj) {
         if (obj == null) {
             return false;
         }
-
-        Entry<T>[] entries = mEntries;
-        int hash = hashCode(obj);
-        int index = (hash & 0x7fffffff) % entries.length;
-        for (Entry<T> e = entries[index]; e != null; e = e.mNext) {
-            Object iobj = e.get();
-            if (iobj != null && e.mHash == hash && obj.getClass() == iobj.getClass() &&
-                equals(obj, iobj))
-            {
-                // Found canonical instance.
-                return true;
-            }
-        }
-
-        return false;
+        int hash = ConcurrentRefCache.spread(hashCode(obj));
+        Segment<T> segment = mSegments.get((hash >>> mSegmentShift) & mSegmentMask);
+        return segment != null && segment.find(obj, hash) != null;
     }
 
-    public synchronized String toString() {
+    public String toString() {
         return WeakIdentityMap.toString(this);
     }
 
@@ -140,94 +152,150 @@ public class WeakCanonicalSet<T> extends AbstractSet<T> {
         return a.equals(b);
     }
 
-    synchronized void removeCleared(Entry<T> cleared) {
-        Entry<T>[] entries = mEntries;
-        int index = (cleared.mHash & 0x7fffffff) % entries.length;
+    /**
+     * Independently locked portion of the set. Table slots and entry links are
+     * volatile, and so lookups always observe fully constructed entries.
+     */
+    private static final class Segment<T> {
+        private final WeakCanonicalSet<T> mSet;
+
+        volatile AtomicReferenceArray<Entry<T>> mTable;
+        volatile int mSize;
 
-        for (Entry<T> e = entries[index], prev = null; e != null; e = e.mNext) {
-            if (e == cleared) {
-                if (prev == null) {
-                    entries[index] = e.mNext;
-                } else {
-                    prev.mNext = e.mNext;
+        private int mThreshold;
+
+        Segment(WeakCanonicalSet<T> set, int capacity) {
+            mSet = set;
+            mTable = new AtomicReferenceArray<Entry<T>>(capacity);
+            mThreshold = (int) (capacity * LOAD_FACTOR);
+        }
+
+        /**
+         * Returns the canonical instance equal to the given object, or null if
+         * none.
+         */
+        T find(Object obj, int hash) {
+            AtomicReferenceArray<Entry<T>> table = mTable;
+            for (Entry<T> e = table.get(hash & (table.length() - 1)); e != null; e = e.mNext) {
+                T iobj;
+                if (e.mHash == hash && (iobj = e.get()) != null && matches(obj, iobj)) {
+                    return iobj;
                 }
-                mSize--;
-                return;
-            } else {
-                prev = e;
             }
+            return null;
         }
-    }
-
-    private void cleanup() {
-        Entry<T>[] entries = mEntries;
-        int size = 0;
 
-        for (int i=entries.length; --i>=0 ;) {
-            for (Entry<T> e = entries[i], prev = null; e != null; e = e.mNext) {
-                if (e.get() == null) {
+        /**
+         * Returns the canonical instance equal to the given object, adding the
+         * object if none.
+         */
+        synchronized T put(T obj, int hash) {
+            AtomicReferenceArray<Entry<T>> table = mTable;
+            int index = hash & (table.length() - 1);
+
+            for (Entry<T> e = table.get(index), prev = null; e != null; e = e.mNext) {
+                T iobj = e.get();
+                if (iobj == null) {
                     // Clean up after a cleared Reference.
                     if (prev == null) {
-                        entries[i] = e.mNext;
+                        table.set(index, e.mNext);
                     } else {
                         prev.mNext = e.mNext;
                     }
+                    mSize--;
+                } else if (e.mHash == hash && matches(obj, iobj)) {
+                    // Found canonical instance.
+                    return iobj;
                 } else {
-                    size++;
                     prev = e;
                 }
             }
-        }
 
-        mSize = size;
-    }
+            if (mSize >= mThreshold) {
+                rehash();
+                table = mTable;
+                index = hash & (table.length() - 1);
+            }
+
+            table.set(index, new Entry<T>(this, obj, hash, table.get(index)));
+            mSize++;
+            return obj;
+        }
 
-    private void rehash() {
-        Entry<T>[] oldEntries = mEntries;
-        int newCapacity = oldEntries.length * 2 + 1;
-        Entry<T>[] newEntries = new Entry[newCapacity];
-        int size = 0;
-
-        for (int i=oldEntries.length; --i>=0 ;) {
-            for (Entry<T> old = oldEntries[i]; old != null; ) {
-                Entry<T> e = old;
-                old = old.mNext;
-                // Only copy entry if it hasn't been cleared.
-                if (e.get() != null) {
-                    size++;
-                    int index = (e.mHash & 0x7fffffff) % newCapacity;
-                    e.mNext = newEntries[index];
-                    newEntries[index] = e;
+        /**
+         * Called by the CacheEvictor thread.
+         */
+        synchronized void removeCleared(Entry<T> cleared) {
+            AtomicReferenceArray<Entry<T>> table = mTable;
+            int index = cleared.mHash & (table.length() - 1);
+            for (Entry<T> e = table.get(index), prev = null; e != null; e = e.mNext) {
+                if (e == cleared) {
+                    if (prev == null) {
+                        table.set(index, e.mNext);
+                    } else {
+                        prev.mNext = e.mNext;
+                    }
+                    mSize--;
+                    return;
                 }
+                prev = e;
             }
         }
 
-        mEntries = newEntries;
-        mSize = size;
-        mThreshold = (int) (newCapacity * LOAD_FACTOR);
+        private boolean matches(Object obj, T iobj) {
+            return obj.getClass() == iobj.getClass() && mSet.equals(obj, iobj);
+        }
+
+        /**
+         * Copies all live entries into a new table. Existing entries aren't
+         * relinked, since concurrent lookups might still be traversing them.
+         */
+        private void rehash() {
+            AtomicReferenceArray<Entry<T>> oldTable = mTable;
+            int newCapacity = oldTable.length() << 1;
+            AtomicReferenceArray<Entry<T>> newTable =
+                new AtomicReferenceArray<Entry<T>>(newCapacity);
+            int size = 0;
+
+            for (int i=oldTable.length(); --i>=0 ;) {
+                for (Entry<T> e = oldTable.get(i); e != null; e = e.mNext) {
+                    T obj = e.get();
+                    // Only copy entry if it hasn't been cleared.
+                    if (obj != null) {
+                        int index = e.mHash & (newCapacity - 1);
+                        newTable.set(index, new Entry<T>(this, obj, e.mHash, newTable.get(index)));
+                        size++;
+                    }
+                }
+            }
+
+            mThreshold = (int) (newCapacity * LOAD_FACTOR);
+            mSize = size;
+            mTable = newTable;
+        }
     }
 
-    private static class Entry<T> extends WeakReference<T> implements CacheEvictor.Ref {
-        final WeakCanonicalSet mSet;
+    private static final class Entry<T> extends WeakReference<T> implements CacheEvictor.Ref {
+        final Segment<T> mSegment;
         final int mHash;
-        Entry<T> mNext;
+        volatile Entry<T> mNext;
 
-        Entry(WeakCanonicalSet<T> set, T canonical, int hash, Entry<T> next) {
+        Entry(Segment<T> segment, T canonical, int hash, Entry<T> next) {
             super(canonical, CacheEvictor.queue());
-            mSet = set;
+            mSegment = segment;
             mHash = hash;
             mNext = next;
         }
 
         @Override
         public void remove() {
-            mSet.removeCleared(this);
+            mSegment.removeCleared(this);
         }
     }
 
     private class SetIterator implements Iterator<T> {
-        private final Entry<T>[] mEntries;
-
+        private int mSegmentIndex;
+        private AtomicReferenceArray<Entry<T>> mTable;
         private int mIndex;
 
         // To ensure that the iterator doesn't return cleared entries, keep a
@@ -236,22 +304,21 @@ public class WeakCanonicalSet<T> extends AbstractSet<T> {
         private T mEntryCanonical;
         private Entry<T> mEntry;
 
-        SetIterator(Entry<T>[] entries) {
-            mEntries = entries;
-            mIndex = mEntries.length;
-        }
-
         public boolean hasNext() {
             while (mEntry == null || (mEntryCanonical = mEntry.get()) == null) {
                 if (mEntry != null) {
                     // Skip past a cleared Reference.
                     mEntry = mEntry.mNext;
-                } else {
-                    if (mIndex <= 0) {
-                        return false;
-                    } else {
-                        mEntry = mEntries[--mIndex];
+                } else if (mIndex > 0) {
+                    mEntry = mTable.get(--mIndex);
+                } else if (mSegmentIndex < mSegments.length()) {
+                    Segment<T> segment = mSegments.get(mSegmentIndex++);
+                    if (segment != null) {
+                        mTable = segment.mTable;
+                        mIndex = mTable.length();
                     }
+                } else {
+                    return false;
                 }
             }
 
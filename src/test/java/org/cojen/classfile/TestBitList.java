@@ -0,0 +1,225 @@
+/*
+ *  Copyright 2010 Brian S O'Neill
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package org.cojen.classfile;
+
+import java.util.BitSet;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * 
+ *
+ * @author Brian S O'Neill
+ */
+public class TestBitList {
+    @Test
+    public void wordBoundaries() {
+        int[] indexes = {0, 1, 62, 63, 64, 65, 127, 128, 191, 255};
+
+        for (boolean sparse : new boolean[] {false, true}) {
+            BitList list = new BitList(256, sparse);
+            BitSet expect = new BitSet();
+            for (int index : indexes) {
+                assertTrue(list.set(index));
+                assertFalse(list.set(index));
+                expect.set(index);
+            }
+            check(expect, list);
+
+            assertEquals(63, list.nextSetBit(63));
+            assertEquals(127, list.nextSetBit(66));
+            assertEquals(2, list.nextClearBit(0));
+            assertEquals(66, list.nextClearBit(62));
+            assertEquals(-1, list.nextSetBit(256));
+
+            assertTrue(list.clear(64));
+            assertFalse(list.clear(64));
+            expect.clear(64);
+            check(expect, list);
+        }
+    }
+
+    @Test
+    public void setRange() {
+        int[][] ranges = {
+            {0, 1}, {63, 64}, {63, 65}, {60, 70}, {64, 128}, {0, 192}, {1, 255}, {100, 100}
+        };
+
+        for (boolean sparse : new boolean[] {false, true}) {
+            for (int[] range : ranges) {
+                BitList list = new BitList(256, sparse);
+                list.set(range[0], range[1]);
+                BitSet expect = new BitSet();
+                expect.set(range[0], range[1]);
+                check(expect, list);
+                assertEquals(range[1] == range[0] ? range[0] : range[1],
+                             list.nextClearBit(range[0]));
+            }
+        }
+
+        BitList list = new BitList(64);
+        list.set(0, 64);
+        assertTrue(list.isAllSet());
+        list.clear(63);
+        assertFalse(list.isAllSet());
+    }
+
+    @Test
+    public void growth() {
+        BitList list = new BitList(10);
+        assertEquals(64, list.capacity());
+        list.set(64);
+        assertTrue(list.capacity() > 64);
+        list.set(1000, 1100);
+
+        BitSet expect = new BitSet();
+        expect.set(64);
+        expect.set(1000, 1100);
+        check(expect, list);
+    }
+
+    @Test
+    public void sparseToDense() {
+        // Capacity of 1024 bits allows 32 sparse indexes.
+        BitList list = new BitList(1024, true);
+        BitList dense = new BitList(1024);
+        BitSet expect = new BitSet();
+
+        Random rnd = new Random(5512);
+        while (expect.cardinality() < 100) {
+            int index = rnd.nextInt(1024);
+            assertEquals(!expect.get(index), list.set(index));
+            dense.set(index);
+            expect.set(index);
+            check(expect, list);
+            assertEquals(dense, list);
+            assertEquals(list, dense);
+            assertEquals(dense.hashCode(), list.hashCode());
+        }
+
+        // A sparse list which would grow beyond the limit switches in one step.
+        list = new BitList(1024, true);
+        list.set(5);
+        list.set(100, 200);
+        expect = new BitSet();
+        expect.set(5);
+        expect.set(100, 200);
+        check(expect, list);
+
+        // Copies are independent of the original.
+        BitList copy = new BitList(1024, true);
+        copy.set(3);
+        BitList sparseCopy = copy.copy();
+        sparseCopy.set(4);
+        assertFalse(copy.get(4));
+        copy.copyFrom(list);
+        check(expect, copy);
+        copy.clearAll();
+        assertTrue(copy.isAllClear());
+        assertEquals(0, copy.cardinality());
+    }
+
+    @Test
+    public void bulk() {
+        Random rnd = new Random(90210);
+
+        for (int i=0; i<2000; i++) {
+            int capacity = 64 << rnd.nextInt(5);
+            BitSet a = randomBits(rnd, capacity);
+            BitSet b = randomBits(rnd, 64 << rnd.nextInt(5));
+
+            for (int op=0; op<4; op++) {
+                BitList list = toList(a, capacity, rnd.nextBoolean());
+                BitList other = toList(b, 64, rnd.nextBoolean());
+
+                BitSet expect = (BitSet) a.clone();
+                boolean changes;
+                switch (op) {
+                case 0:
+                    expect.or(b);
+                    changes = list.or(other);
+                    break;
+                case 1:
+                    expect.andNot(b);
+                    changes = list.andNot(other);
+                    break;
+                case 2:
+                    expect.and(b);
+                    changes = list.and(other);
+                    break;
+                default:
+                    expect.xor(b);
+                    changes = list.xor(other);
+                    break;
+                }
+
+                check(expect, list);
+                assertEquals(!expect.equals(a), changes);
+                // The operand is never modified.
+                check(b, other);
+                assertEquals(a.intersects(b), toList(a, capacity, false).intersects(other));
+            }
+        }
+    }
+
+    private static BitSet randomBits(Random rnd, int capacity) {
+        BitSet bits = new BitSet();
+        // Mostly few bits, so that sparse lists stay sparse, and sometimes many.
+        int count = rnd.nextInt(4) == 0 ? rnd.nextInt(capacity) : rnd.nextInt(8);
+        for (int i=0; i<count; i++) {
+            if (rnd.nextInt(8) == 0) {
+                int from = rnd.nextInt(capacity);
+                bits.set(from, Math.min(capacity, from + rnd.nextInt(130)));
+            } else {
+                bits.set(rnd.nextInt(capacity));
+            }
+        }
+        return bits;
+    }
+
+    private static BitList toList(BitSet bits, int capacity, boolean sparse) {
+        BitList list = new BitList(capacity, sparse);
+        for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)) {
+            list.set(i);
+        }
+        return list;
+    }
+
+    private static void check(BitSet expect, BitList list) {
+        for (int i=0; i<list.capacity() + 64; i++) {
+            assertEquals(expect.get(i), list.get(i));
+        }
+
+        BitSet actual = new BitSet();
+        for (int i = list.nextSetBit(0); i >= 0; i = list.nextSetBit(i + 1)) {
+            actual.set(i);
+        }
+        assertEquals(expect, actual);
+
+        for (int i=0; i<list.capacity(); i += 7) {
+            assertEquals(expect.nextClearBit(i), list.nextClearBit(i));
+        }
+
+        assertEquals(expect.cardinality(), list.cardinality());
+        assertEquals(expect.isEmpty(), list.isAllClear());
+        assertEquals(expect.toString(), list.toString());
+    }
+}
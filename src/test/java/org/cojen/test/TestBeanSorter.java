@@ -0,0 +1,173 @@
+/*
+ *  Copyright 2010 Brian S O'Neill
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package org.cojen.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import org.cojen.util.BeanComparator;
+
+/**
+ * Checks that BeanComparator.sort produces the same order as a stable
+ * Arrays.sort with the comparator, for radix sorted long keys, byte array
+ * keys, and beans which can only be sorted by the comparator. The largest
+ * arrays have runs of equal keys which are long enough to be merge sorted
+ * by multiple threads.
+ *
+ * @author Brian S O'Neill
+ */
+public class TestBeanSorter {
+    private static final int[] SIZES = {0, 1, 2, 17, 1000, 200000};
+
+    // Tokens which strings are built from, including surrogate pairs.
+    private static final String[] PAIRED = {
+        "a", "A", "b", "zz", "\u00b5", "\u03bc", "\uffff", "\ud800\udc00", "\ud801\udc28",
+    };
+
+    // Tokens including unpaired high surrogates, which aren't mixed with
+    // surrogate pairs. CASE_INSENSITIVE_ORDER doesn't consistently order
+    // Strings which have both, and so no sort would match Arrays.sort.
+    private static final String[] UNPAIRED = {
+        "a", "A", "b", "zz", "\u00b5", "\u03bc", "\uffff", "\ud800", "\udbff",
+    };
+
+    public static void main(String[] args) throws Exception {
+        TestBeanSorter test = new TestBeanSorter();
+        test.sortPaired();
+        test.sortUnpaired();
+        test.sortList();
+        System.out.println("passed");
+    }
+
+    public static class Bean {
+        private final String mName;
+        private final int mValue;
+        private final Integer mCount;
+
+        public Bean(String name, int value, Integer count) {
+            mName = name;
+            mValue = value;
+            mCount = count;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public int getValue() {
+            return mValue;
+        }
+
+        public Integer getCount() {
+            return mCount;
+        }
+
+        public String toString() {
+            return mName + ", " + mValue + ", " + mCount;
+        }
+    }
+
+    /**
+     * Comparator which prevents the ordering rules from being encoded.
+     */
+    public static class LengthComparator implements Comparator<String> {
+        public int compare(String a, String b) {
+            return a.length() - b.length();
+        }
+    }
+
+    @Test
+    public void sortPaired() {
+        sort(false);
+    }
+
+    /**
+     * Strings compared ignoring case which have unpaired surrogates cannot
+     * be encoded, and so they're sorted by the comparator.
+     */
+    @Test
+    public void sortUnpaired() {
+        sort(true);
+    }
+
+    @Test
+    public void sortList() {
+        BeanComparator<Bean> bc = BeanComparator.forClass(Bean.class).orderBy("name");
+        Bean[] beans = randomBeans(new Random(1), 5000, UNPAIRED);
+        List<Bean> list = new ArrayList<Bean>(Arrays.asList(beans));
+        Arrays.sort(beans, bc);
+        bc.sort(list);
+        assertEquals(Arrays.asList(beans), list);
+    }
+
+    private static void sort(boolean unpaired) {
+        List<BeanComparator<Bean>> comparators = comparators();
+        Random rnd = new Random(unpaired ? 2 : 3);
+
+        for (int size : SIZES) {
+            Bean[] beans = randomBeans(rnd, size, unpaired ? UNPAIRED : PAIRED);
+            for (BeanComparator<Bean> bc : comparators) {
+                Bean[] expected = beans.clone();
+                Arrays.sort(expected, bc);
+                Bean[] actual = beans.clone();
+                bc.sort(actual);
+                assertArrayEquals(size + ": " + bc, expected, actual);
+            }
+        }
+    }
+
+    private static List<BeanComparator<Bean>> comparators() {
+        BeanComparator<Bean> bc = BeanComparator.forClass(Bean.class);
+        List<BeanComparator<Bean>> list = new ArrayList<BeanComparator<Bean>>();
+        // Byte array keys.
+        list.add(bc.orderBy("name"));
+        list.add(bc.orderBy("name").caseSensitive().reverse().orderBy("value"));
+        list.add(bc.orderBy("count").orderBy("name"));
+        // Long keys.
+        list.add(bc.orderBy("value"));
+        list.add(bc.orderBy("count").nullLow().orderBy("value").reverse());
+        // Not encodable.
+        list.add(bc.orderBy("name").collate(new LengthComparator()).orderBy("value"));
+        return list;
+    }
+
+    private static Bean[] randomBeans(Random rnd, int size, String[] tokens) {
+        Bean[] beans = new Bean[size];
+        for (int i=0; i<size; i++) {
+            if (rnd.nextInt(100) == 0) {
+                // Null beans are sorted too.
+                continue;
+            }
+            StringBuilder name = new StringBuilder();
+            int length = rnd.nextInt(5);
+            for (int j=0; j<length; j++) {
+                name.append(tokens[rnd.nextInt(tokens.length)]);
+            }
+            Integer count = rnd.nextInt(10) == 0 ? null : rnd.nextInt(20) - 10;
+            beans[i] = new Bean(name.toString(), rnd.nextInt(1000) - 500, count);
+        }
+        return beans;
+    }
+}
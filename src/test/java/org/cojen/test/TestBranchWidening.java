@@ -0,0 +1,186 @@
+/*
+ *  Copyright 2010 Brian S O'Neill
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package org.cojen.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import java.lang.reflect.Method;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import org.cojen.classfile.*;
+
+/**
+ * Generates methods larger than 32K bytes, in which a branch only goes out
+ * of range once a later branch has been widened, and checks that they load
+ * and run. The first branch jumps over the second, and the second jumps
+ * far enough to always be widened. The first branch is placed just within
+ * range of its target, such that the second branch growing pushes it out of
+ * range.
+ *
+ * @author Brian S O'Neill
+ */
+public class TestBranchWidening {
+    private static final int MAX_OFFSET = 32767;
+
+    // Growth of a widened "if" branch into an inverted "if" and goto_w.
+    private static final int WIDENED_IF_GROWTH = 5;
+
+    // Amount of increments between the two branch targets.
+    private static final int MIDDLE_COUNT = 40;
+
+    public static void main(String[] args) throws Exception {
+        TestBranchWidening test = new TestBranchWidening();
+        test.cascadeIf();
+        test.cascadeGoto();
+        System.out.println("passed");
+    }
+
+    @Test
+    public void cascadeIf() throws Exception {
+        cascade(false);
+    }
+
+    @Test
+    public void cascadeGoto() throws Exception {
+        cascade(true);
+    }
+
+    private static void cascade(boolean useGoto) throws Exception {
+        // Without widening, the first branch offset grows one byte for each
+        // byte of filler. Find the offset with no filler.
+        byte[] probe = code(generate(useGoto, 0));
+        int branch = useGoto ? 6 : 3;
+        assertEquals(useGoto ? Opcode.GOTO : Opcode.IFEQ, probe[branch]);
+        int baseOffset = ((probe[branch + 1] << 8) | (probe[branch + 2] & 0xff));
+
+        // The first fillers leave the first branch in range only until the
+        // second branch is widened. The last few are out of range regardless.
+        int minFiller = MAX_OFFSET - WIDENED_IF_GROWTH + 1 - baseOffset;
+
+        for (int filler = minFiller; filler < minFiller + WIDENED_IF_GROWTH + 3; filler++) {
+            RuntimeClassFile cf = generate(useGoto, filler);
+            byte[] code = code(cf);
+            assertTrue(code.length > MAX_OFFSET);
+
+            if (useGoto) {
+                assertEquals(Opcode.GOTO_W, code[branch]);
+            } else {
+                // Inverted condition branches over a goto_w.
+                assertEquals(Opcode.IFNE, code[branch]);
+                assertEquals(Opcode.GOTO_W, code[branch + 3]);
+            }
+
+            Method m = cf.defineClass().getMethod("test", int.class);
+            for (int n=-1; n<=2; n++) {
+                assertEquals(expected(n, filler), m.invoke(null, n));
+            }
+        }
+    }
+
+    /**
+     * Returns the code of the test method, as it would be loaded.
+     */
+    private static byte[] code(RuntimeClassFile cf) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        cf.writeTo(out);
+        ClassFile read = ClassFile.readFrom(new ByteArrayInputStream(out.toByteArray()));
+        for (MethodInfo mi : read.getMethods()) {
+            if (mi.getName().equals("test")) {
+                return mi.getCodeAttr().getCodeBuffer().getByteCodes();
+            }
+        }
+        throw new AssertionError();
+    }
+
+    private static int expected(int n, int filler) {
+        int r = 0;
+        if (n == 0) {
+            r += 100 + MIDDLE_COUNT;
+        } else if (n != 1) {
+            r += filler / 3 + 100 + MIDDLE_COUNT;
+        }
+        return r + 10000;
+    }
+
+    /**
+     * @param useGoto when true, the first branch is a goto, else an if
+     * @param filler amount of bytes between the second branch and the first
+     * branch target
+     */
+    private static RuntimeClassFile generate(boolean useGoto, int filler) {
+        RuntimeClassFile cf = new RuntimeClassFile(TestBranchWidening.class.getName());
+        cf.setTarget("1.5");
+
+        MethodInfo mi = cf.addMethod
+            (Modifiers.PUBLIC_STATIC, "test", TypeDesc.INT, new TypeDesc[] {TypeDesc.INT});
+        CodeBuilder b = new CodeBuilder(mi);
+
+        LocalVariable n = b.getParameter(0);
+        LocalVariable r = b.createLocalVariable("r", TypeDesc.INT);
+
+        Label first = b.createLabel();
+        Label second = b.createLabel();
+
+        if (useGoto) {
+            Label skip = b.createLabel();
+            b.loadLocal(n);
+            b.ifZeroComparisonBranch(skip, "!=");
+            b.loadConstant(0);
+            b.storeLocal(r);
+            // Offset 6.
+            b.branch(first);
+            skip.setLocation();
+        } else {
+            b.loadConstant(0);
+            b.storeLocal(r);
+            b.loadLocal(n);
+            // Offset 3.
+            b.ifZeroComparisonBranch(first, "==");
+        }
+
+        b.loadConstant(0);
+        b.storeLocal(r);
+        b.loadLocal(n);
+        b.loadConstant(1);
+        b.ifComparisonBranch(second, "==");
+
+        for (int i=0; i<filler / 3; i++) {
+            b.integerIncrement(r, 1);
+        }
+        for (int i=0; i<filler % 3; i++) {
+            b.nop();
+        }
+
+        first.setLocation();
+        b.integerIncrement(r, 100);
+        for (int i=0; i<MIDDLE_COUNT; i++) {
+            b.integerIncrement(r, 1);
+        }
+
+        second.setLocation();
+        b.integerIncrement(r, 10000);
+        b.loadLocal(r);
+        b.returnValue(TypeDesc.INT);
+
+        return cf;
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ *  Copyright 2010 Brian S O'Neill
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package org.cojen.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.net.URISyntaxException;
+
+import java.nio.ByteBuffer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import org.cojen.classfile.ClassFile;
+import org.cojen.classfile.FieldInfo;
+import org.cojen.classfile.MethodInfo;
+import org.cojen.classfile.Modifiers;
+import org.cojen.classfile.TypeDesc;
+
+import org.cojen.classfile.attribute.CodeAttr;
+
+/**
+ * Reads the classes of this library, and a few JDK classes, from streams and
+ * from ByteBuffers, eagerly and lazily. Writing them out again must produce
+ * the same bytes.
+ *
+ * @author Brian S O'Neill
+ */
+public class TestClassFileRead {
+    // JDK classes which have newer attributes and constants, like bootstrap
+    // methods, nest members and records.
+    private static final Class<?>[] JDK_CLASSES = {
+        String.class, java.util.HashMap.class, java.util.concurrent.ConcurrentHashMap.class,
+        java.util.stream.Collectors.class, java.lang.invoke.MethodHandles.class,
+    };
+
+    public static void main(String[] args) throws Exception {
+        TestClassFileRead test = new TestClassFileRead();
+        test.byteBuffer();
+        test.lazy();
+        System.out.println("passed");
+    }
+
+    /**
+     * Returns the bytes of all the classes in this library, and of some JDK
+     * classes.
+     */
+    static List<byte[]> classFiles() throws IOException {
+        List<byte[]> list = new ArrayList<byte[]>();
+        File root;
+        try {
+            root = new File(ClassFile.class.getProtectionDomain()
+                            .getCodeSource().getLocation().toURI());
+        } catch (URISyntaxException e) {
+            throw new IOException(e);
+        }
+        addClassFiles(list, root);
+        assertTrue(list.size() > 100);
+
+        for (Class<?> clazz : JDK_CLASSES) {
+            String name = clazz.getName();
+            InputStream in = clazz.getResourceAsStream
+                (name.substring(name.lastIndexOf('.') + 1) + ".class");
+            assertNotNull(name, in);
+            list.add(readFully(in));
+        }
+
+        list.add(toBytes(constants()));
+
+        return list;
+    }
+
+    /**
+     * Returns a class with String constants which have every size of
+     * modified UTF-8 character, and which are longer than any buffer used
+     * for decoding them.
+     */
+    private static ClassFile constants() {
+        ClassFile cf = new ClassFile(TestClassFileRead.class.getName() + "$Constants");
+        StringBuilder b = new StringBuilder();
+        for (int i=0; i<20; i++) {
+            String value = b.toString();
+            cf.addField(Modifiers.PUBLIC_STATIC.toFinal(true), "c" + i, TypeDesc.STRING)
+                .setConstantValue(value);
+            b.append(value).append("a\u0000\u00b5\u07ff\u0800\uffff\ud801\udc28");
+            if (b.length() > 20000) {
+                b.setLength(20000);
+            }
+        }
+        return cf;
+    }
+
+    private static void addClassFiles(List<byte[]> list, File file) throws IOException {
+        if (file.isDirectory()) {
+            for (File f : file.listFiles()) {
+                addClassFiles(list, f);
+            }
+        } else if (file.getName().endsWith(".class")) {
+            list.add(readFully(new FileInputStream(file)));
+        }
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            int amt;
+            while ((amt = in.read(buf)) > 0) {
+                out.write(buf, 0, amt);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    static byte[] toBytes(ClassFile cf) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        cf.writeTo(out);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void byteBuffer() throws Exception {
+        List<byte[]> classFiles = classFiles();
+
+        int total = 0;
+        for (byte[] bytes : classFiles) {
+            total += bytes.length;
+        }
+
+        // All classes are concatenated into each buffer, which are read in
+        // sequence. Offsets don't begin at zero, and heap buffers have an
+        // array offset too.
+        ByteBuffer heap = ByteBuffer.allocate(total + 10);
+        heap.position(10);
+        heap = heap.slice();
+        ByteBuffer direct = ByteBuffer.allocateDirect(total + 3);
+        direct.position(3);
+        for (byte[] bytes : classFiles) {
+            heap.put(bytes);
+            direct.put(bytes);
+        }
+        heap.flip();
+        direct.position(3);
+
+        for (byte[] bytes : classFiles) {
+            ClassFile expected = ClassFile.readFrom(new ByteArrayInputStream(bytes));
+            byte[] expectedBytes = toBytes(expected);
+            String name = expected.getClassName();
+
+            int start = heap.position();
+            ClassFile cf = ClassFile.readFrom(heap);
+            assertEquals(name, start + bytes.length, heap.position());
+            assertEquals(name, expected.getClassName(), cf.getClassName());
+            assertArrayEquals(name, expectedBytes, toBytes(cf));
+
+            start = direct.position();
+            cf = ClassFile.readFrom(direct);
+            assertEquals(name, start + bytes.length, direct.position());
+            assertArrayEquals(name, expectedBytes, toBytes(cf));
+
+            // Read-only buffers have no accessible array.
+            cf = ClassFile.readFrom(ByteBuffer.wrap(bytes).asReadOnlyBuffer());
+            assertArrayEquals(name, expectedBytes, toBytes(cf));
+        }
+
+        assertFalse(heap.hasRemaining());
+        assertFalse(direct.hasRemaining());
+    }
+
+    @Test
+    public void lazy() throws Exception {
+        for (byte[] bytes : classFiles()) {
+            ClassFile expected = ClassFile.readFrom(ByteBuffer.wrap(bytes));
+            byte[] expectedBytes = toBytes(expected);
+            String name = expected.getClassName();
+
+            // Only the header is accessed before writing.
+            ClassFile cf = readLazily(bytes);
+            assertEquals(name, cf.getClassName());
+            assertEquals(name, expected.getSuperClassName(), cf.getSuperClassName());
+            assertEquals(name, expected.getModifiers(), cf.getModifiers());
+            assertArrayEquals(name, expected.getInterfaces(), cf.getInterfaces());
+            assertArrayEquals(name, expectedBytes, toBytes(cf));
+
+            // Members are decoded in a different order than they're written.
+            cf = readLazily(bytes);
+            MethodInfo[] methods = cf.getAllMethods();
+            MethodInfo[] expectedMethods = expected.getAllMethods();
+            assertEquals(name, expectedMethods.length, methods.length);
+            for (int i=methods.length; --i>=0; ) {
+                assertEquals(name, expectedMethods[i].toString(), methods[i].toString());
+                CodeAttr code = methods[i].getCodeAttr();
+                CodeAttr expectedCode = expectedMethods[i].getCodeAttr();
+                if (expectedCode == null) {
+                    assertNull(name, code);
+                } else {
+                    assertArrayEquals(name, expectedCode.getCodeBuffer().getByteCodes(),
+                                      code.getCodeBuffer().getByteCodes());
+                    assertEquals(name, expectedCode.getLength(), code.getLength());
+                }
+            }
+            FieldInfo[] fields = cf.getFields();
+            assertEquals(name, expected.getFields().length, fields.length);
+            assertEquals(name, expected.getSourceFile(), cf.getSourceFile());
+            assertArrayEquals(name, expectedBytes, toBytes(cf));
+
+            // Modifying a lazily read class decodes it first.
+            cf = readLazily(bytes);
+            cf.addField(Modifiers.PRIVATE, "extraField", TypeDesc.INT);
+            expected.addField(Modifiers.PRIVATE, "extraField", TypeDesc.INT);
+            assertArrayEquals(name, toBytes(expected), toBytes(cf));
+        }
+    }
+
+    private static ClassFile readLazily(byte[] bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        ClassFile cf = ClassFile.readFrom(buffer, null, null, true);
+        assertFalse(buffer.hasRemaining());
+        return cf;
+    }
+}
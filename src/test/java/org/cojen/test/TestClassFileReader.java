@@ -0,0 +1,425 @@
+/*
+ *  Copyright 2010 Brian S O'Neill
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package org.cojen.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import java.nio.ByteBuffer;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import org.cojen.classfile.*;
+
+import org.cojen.classfile.attribute.CodeAttr;
+
+import org.cojen.classfile.constant.ConstantClassInfo;
+import org.cojen.classfile.constant.ConstantInterfaceMethodInfo;
+
+/**
+ * Reads classes with ClassFileReader, and checks the visited contents
+ * against classes read by ClassFile. The code passed to CodeVisitors is
+ * encoded again, which must produce the original bytecode.
+ *
+ * @author Brian S O'Neill
+ */
+public class TestClassFileReader {
+    public static void main(String[] args) throws Exception {
+        TestClassFileReader test = new TestClassFileReader();
+        test.visitCode();
+        test.visitAssembler();
+        System.out.println("passed");
+    }
+
+    @Test
+    public void visitCode() throws Exception {
+        // The reader is reused, as it would be for bulk reads.
+        ClassFileReader reader = new ClassFileReader();
+        for (byte[] bytes : TestClassFileRead.classFiles()) {
+            ClassFile cf = ClassFile.readFrom(ByteBuffer.wrap(bytes));
+            Checker checker = new Checker(cf, false);
+            reader.read(bytes, checker);
+            checker.checkEnd();
+        }
+    }
+
+    @Test
+    public void visitAssembler() throws Exception {
+        ClassFileReader reader = new ClassFileReader();
+        for (byte[] bytes : TestClassFileRead.classFiles()) {
+            ClassFile cf = ClassFile.readFrom(ByteBuffer.wrap(bytes));
+            Checker checker = new Checker(cf, true);
+            reader.read(ByteBuffer.wrap(bytes), checker);
+            checker.checkEnd();
+        }
+    }
+
+    /**
+     * Checks the visited class against the one read by ClassFile.
+     */
+    static class Checker extends ClassFileVisitor {
+        private final ClassFile mClassFile;
+        private final boolean mAssemble;
+        private final FieldInfo[] mFields;
+        private final MethodInfo[] mMethods;
+
+        private int mFieldCount;
+        private int mMethodCount;
+        private boolean mEnded;
+
+        private MethodInfo mAssembleMethod;
+        private StringWriter mExpected;
+        private StringWriter mActual;
+
+        Checker(ClassFile cf, boolean assemble) {
+            mClassFile = cf;
+            mAssemble = assemble;
+            mFields = cf.getFields();
+            mMethods = cf.getAllMethods();
+        }
+
+        @Override
+        public void visit(int majorVersion, int minorVersion, ConstantPool cp,
+                          Modifiers modifiers, String className, String superClassName,
+                          String[] interfaces)
+        {
+            ClassFile cf = mClassFile;
+            assertEquals(cf.getMajorVersion(), majorVersion);
+            assertEquals(cf.getMinorVersion(), minorVersion);
+            // Reading a ClassFile can add constants to the end of its pool.
+            ConstantPool expected = cf.getConstantPool();
+            assertTrue(cp.getSize() <= expected.getSize());
+            for (int i=1; i<=cp.getSize(); i++) {
+                assertEquals(expected.getConstant(i), cp.getConstant(i));
+            }
+            assertEquals(cf.getModifiers(), modifiers);
+            assertEquals(cf.getClassName(), className);
+            assertEquals(cf.getSuperClassName(), superClassName);
+            assertArrayEquals(cf.getInterfaces(), interfaces);
+        }
+
+        @Override
+        public void visitField(Modifiers modifiers, String name, TypeDesc type) {
+            FieldInfo field = mFields[mFieldCount++];
+            assertEquals(field.getModifiers(), modifiers);
+            assertEquals(field.getName(), name);
+            assertEquals(field.getType(), type);
+        }
+
+        @Override
+        public CodeVisitor visitMethod(Modifiers modifiers, String name, MethodDesc desc) {
+            checkAssembled();
+            MethodInfo method = mMethods[mMethodCount++];
+            assertEquals(method.getModifiers(), modifiers);
+            assertEquals(method.getName(), name);
+            assertEquals(method.getMethodDescriptor(), desc);
+
+            CodeAttr code = method.getCodeAttr();
+            if (code == null) {
+                return null;
+            }
+            if (mAssemble) {
+                mAssembleMethod = method;
+                return null;
+            }
+            return new Encoder(method.getName(), code);
+        }
+
+        @Override
+        public CodeAssembler visitMethodAssembler(Modifiers modifiers, String name,
+                                                  MethodDesc desc)
+        {
+            MethodInfo method = mAssembleMethod;
+            assertNotNull(name, method);
+            mAssembleMethod = null;
+            assertEquals(method.getName(), name);
+
+            // Both disassemblers must produce the same output, which is
+            // checked after the method has been visited.
+            mExpected = new StringWriter();
+            new CodeDisassembler(method).disassemble(printer(method, mExpected));
+            mActual = new StringWriter();
+            return printer(method, mActual);
+        }
+
+        @Override
+        public void visitEnd() {
+            checkAssembled();
+            mEnded = true;
+        }
+
+        private void checkAssembled() {
+            // A method with code must have been assembled.
+            assertNull(mAssembleMethod);
+            if (mExpected != null) {
+                assertEquals(mClassFile.getClassName(), mExpected.toString(), mActual.toString());
+                mExpected = null;
+                mActual = null;
+            }
+        }
+
+        void checkEnd() {
+            String name = mClassFile.getClassName();
+            assertTrue(name, mEnded);
+            assertNull(name, mAssembleMethod);
+            assertEquals(name, mFields.length, mFieldCount);
+            assertEquals(name, mMethods.length, mMethodCount);
+        }
+
+        private static CodeAssemblerPrinter printer(MethodInfo method, StringWriter out) {
+            return new CodeAssemblerPrinter
+                (method.getMethodDescriptor().getParameterTypes(),
+                 method.getModifiers().isStatic(), new PrintWriter(out, true));
+        }
+    }
+
+    /**
+     * Encodes the visited instructions, which must match the original code.
+     */
+    static class Encoder extends CodeVisitor {
+        private final String mName;
+        private final CodeAttr mCode;
+        private final byte[] mByteCodes;
+
+        private final ByteArrayOutputStream mBytes = new ByteArrayOutputStream();
+        private final DataOutputStream mOut = new DataOutputStream(mBytes);
+
+        private final BitSet mLabels = new BitSet();
+        private final BitSet mTargets = new BitSet();
+        private final List<int[]> mHandlers = new ArrayList<int[]>();
+
+        private boolean mStarted;
+        private boolean mEnded;
+
+        Encoder(String name, CodeAttr code) {
+            mName = name;
+            mCode = code;
+            mByteCodes = code.getCodeBuffer().getByteCodes();
+        }
+
+        @Override
+        public void visitCode(int maxStackDepth, int maxLocals, int codeLength) {
+            assertFalse(mName, mStarted);
+            mStarted = true;
+            CodeBuffer buffer = mCode.getCodeBuffer();
+            assertEquals(mName, buffer.getMaxStackDepth(), maxStackDepth);
+            assertEquals(mName, buffer.getMaxLocals(), maxLocals);
+            assertEquals(mName, mByteCodes.length, codeLength);
+        }
+
+        @Override
+        public void visitExceptionHandler(int startAddress, int endAddress, int handlerAddress,
+                                          ConstantClassInfo catchType)
+        {
+            ExceptionHandler<?> handler =
+                mCode.getCodeBuffer().getExceptionHandlers()[mHandlers.size()];
+            assertEquals(mName, handler.getStartLocation().getLocation(), startAddress);
+            assertEquals(mName, handler.getEndLocation().getLocation(), endAddress);
+            assertEquals(mName, handler.getCatchLocation().getLocation(), handlerAddress);
+            if (handler.getCatchType() == null) {
+                assertNull(mName, catchType);
+            } else {
+                assertEquals(mName, handler.getCatchType().getType(), catchType.getType());
+            }
+            mHandlers.add(new int[] {startAddress, endAddress, handlerAddress});
+            mTargets.set(startAddress);
+            mTargets.set(endAddress);
+            mTargets.set(handlerAddress);
+        }
+
+        @Override
+        public void visitLabel(int address) {
+            assertTrue(mName, address >= mBytes.size() && address <= mByteCodes.length);
+            mLabels.set(address);
+        }
+
+        @Override
+        public void visitInstruction(int address, byte opcode) {
+            begin(address);
+            write(opcode);
+        }
+
+        @Override
+        public void visitIntInstruction(int address, byte opcode, int operand) {
+            begin(address);
+            write(opcode);
+            if (opcode == Opcode.SIPUSH) {
+                writeShort(operand);
+            } else {
+                write(operand);
+            }
+        }
+
+        @Override
+        public void visitLocalInstruction(int address, byte opcode, int localIndex) {
+            begin(address);
+            if ((opcode >= Opcode.ILOAD_0 && opcode <= Opcode.ALOAD_3) ||
+                (opcode >= Opcode.ISTORE_0 && opcode <= Opcode.ASTORE_3))
+            {
+                write(opcode);
+            } else if (localIndex > 255) {
+                write(Opcode.WIDE);
+                write(opcode);
+                writeShort(localIndex);
+            } else {
+                write(opcode);
+                write(localIndex);
+            }
+        }
+
+        @Override
+        public void visitIncrementInstruction(int address, int localIndex, int amount) {
+            begin(address);
+            if (localIndex > 255 || amount < -128 || amount > 127) {
+                write(Opcode.WIDE);
+                write(Opcode.IINC);
+                writeShort(localIndex);
+                writeShort(amount);
+            } else {
+                write(Opcode.IINC);
+                write(localIndex);
+                write(amount);
+            }
+        }
+
+        @Override
+        public void visitBranchInstruction(int address, byte opcode, int targetAddress) {
+            begin(address);
+            mTargets.set(targetAddress);
+            write(opcode);
+            if (opcode == Opcode.GOTO_W || opcode == Opcode.JSR_W) {
+                writeInt(targetAddress - address);
+            } else {
+                writeShort(targetAddress - address);
+            }
+        }
+
+        @Override
+        public void visitConstantInstruction(int address, byte opcode, ConstantInfo constant) {
+            begin(address);
+            write(opcode);
+            switch (opcode) {
+            case Opcode.LDC:
+                write(constant.getIndex());
+                break;
+            case Opcode.INVOKEINTERFACE:
+                writeShort(constant.getIndex());
+                int count = 1;
+                MethodDesc desc = (MethodDesc)
+                    ((ConstantInterfaceMethodInfo) constant).getNameAndType().getType();
+                for (TypeDesc type : desc.getParameterTypes()) {
+                    count += type.isDoubleWord() ? 2 : 1;
+                }
+                write(count);
+                write(0);
+                break;
+            case Opcode.INVOKEDYNAMIC:
+                writeShort(constant.getIndex());
+                writeShort(0);
+                break;
+            default:
+                writeShort(constant.getIndex());
+                break;
+            }
+        }
+
+        @Override
+        public void visitMultiANewArrayInstruction(int address, ConstantClassInfo type,
+                                                   int dimensions)
+        {
+            begin(address);
+            write(Opcode.MULTIANEWARRAY);
+            writeShort(type.getIndex());
+            write(dimensions);
+        }
+
+        @Override
+        public void visitSwitchInstruction(int address, byte opcode, int defaultAddress,
+                                           int caseCount, int[] cases, int[] addresses)
+        {
+            begin(address);
+            write(opcode);
+            while ((mBytes.size() & 3) != 0) {
+                write(0);
+            }
+            mTargets.set(defaultAddress);
+            writeInt(defaultAddress - address);
+            if (opcode == Opcode.TABLESWITCH) {
+                writeInt(cases[0]);
+                writeInt(cases[caseCount - 1]);
+            } else {
+                writeInt(caseCount);
+            }
+            for (int i=0; i<caseCount; i++) {
+                mTargets.set(addresses[i]);
+                if (opcode == Opcode.LOOKUPSWITCH) {
+                    writeInt(cases[i]);
+                }
+                writeInt(addresses[i] - address);
+            }
+        }
+
+        @Override
+        public void visitEnd() {
+            assertTrue(mName, mStarted);
+            assertFalse(mName, mEnded);
+            mEnded = true;
+            assertArrayEquals(mName, mByteCodes, mBytes.toByteArray());
+            assertEquals(mName, mCode.getCodeBuffer().getExceptionHandlers().length,
+                         mHandlers.size());
+            // Every target has a label.
+            BitSet unlabeled = (BitSet) mTargets.clone();
+            unlabeled.andNot(mLabels);
+            assertTrue(mName + ": " + unlabeled, unlabeled.isEmpty());
+        }
+
+        private void begin(int address) {
+            assertTrue(mName, mStarted);
+            assertEquals(mName, mBytes.size(), address);
+        }
+
+        private void write(int b) {
+            mBytes.write(b);
+        }
+
+        private void writeShort(int v) {
+            try {
+                mOut.writeShort(v);
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        private void writeInt(int v) {
+            try {
+                mOut.writeInt(v);
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        }
+    }
+}
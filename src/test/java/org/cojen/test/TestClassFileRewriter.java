@@ -0,0 +1,121 @@
+/*
+ *  Copyright 2010 Brian S O'Neill
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package org.cojen.test;
+
+import java.nio.ByteBuffer;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import org.cojen.classfile.ClassFile;
+import org.cojen.classfile.ClassFileRewriter;
+import org.cojen.classfile.MethodInfo;
+
+/**
+ * Rewrites all the classes of this library into new constant pools, copying
+ * the code of some methods as-is and reassembling the rest. The rewritten
+ * classes are loaded, which verifies them, and one of them is used.
+ *
+ * @author Brian S O'Neill
+ */
+public class TestClassFileRewriter {
+    public static void main(String[] args) throws Exception {
+        TestClassFileRewriter test = new TestClassFileRewriter();
+        test.copyAll();
+        test.rewriteSome();
+        System.out.println("passed");
+    }
+
+    @Test
+    public void copyAll() throws Exception {
+        rewriteAndLoad(new ClassFileRewriter());
+    }
+
+    @Test
+    public void rewriteSome() throws Exception {
+        rewriteAndLoad(new ClassFileRewriter() {
+            private int mCount;
+
+            @Override
+            protected boolean isRewritable(MethodInfo method) {
+                return (++mCount & 1) == 0;
+            }
+        });
+    }
+
+    private static void rewriteAndLoad(ClassFileRewriter rewriter) throws Exception {
+        final Map<String, byte[]> classes = new HashMap<String, byte[]>();
+
+        for (byte[] bytes : TestClassFileRead.classFiles()) {
+            ClassFile source = ClassFile.readFrom(ByteBuffer.wrap(bytes));
+            String name = source.getClassName();
+            if (!name.startsWith("org.cojen.")
+                || name.startsWith(TestClassFileRead.class.getName()))
+            {
+                continue;
+            }
+
+            ClassFile target = rewriter.rewrite(source);
+            assertEquals(name, target.getClassName());
+            assertEquals(name, source.getAllMethods().length, target.getAllMethods().length);
+            classes.put(name, TestClassFileRead.toBytes(target));
+        }
+
+        // Loads the rewritten classes in preference to the originals.
+        ClassLoader loader = new ClassLoader(TestClassFileRewriter.class.getClassLoader()) {
+            @Override
+            protected Class<?> loadClass(String name, boolean resolve)
+                throws ClassNotFoundException
+            {
+                synchronized (getClassLoadingLock(name)) {
+                    Class<?> clazz = findLoadedClass(name);
+                    if (clazz == null) {
+                        byte[] bytes = classes.get(name);
+                        if (bytes == null) {
+                            return super.loadClass(name, resolve);
+                        }
+                        clazz = defineClass(name, bytes, 0, bytes.length);
+                    }
+                    return clazz;
+                }
+            }
+        };
+
+        for (String name : classes.keySet()) {
+            Class<?> clazz = Class.forName(name, false, loader);
+            assertSame(loader, clazz.getClassLoader());
+            // Links the class, which verifies it.
+            clazz.getDeclaredMethods();
+        }
+
+        @SuppressWarnings("unchecked")
+        Map<String, Integer> map = (Map<String, Integer>) loader
+            .loadClass("org.cojen.util.SoftValuedHashMap").newInstance();
+        for (int i=0; i<1000; i++) {
+            map.put(String.valueOf(i), i);
+        }
+        for (int i=0; i<1000; i++) {
+            assertEquals(Integer.valueOf(i), map.get(String.valueOf(i)));
+        }
+        assertEquals(1000, map.size());
+    }
+}
@@ -0,0 +1,284 @@
+/*
+ *  Copyright 2010 Brian S O'Neill
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package org.cojen.test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import org.cojen.util.*;
+
+/**
+ * Tests the concurrent caches against a HashMap, as their segments are
+ * rehashed, and checks that entries whose references are cleared are
+ * evicted.
+ *
+ * @author Brian S O'Neill
+ */
+public class TestConcurrentRefCache {
+    private static final int KEYS = 5000;
+
+    public static void main(String[] args) throws Exception {
+        TestConcurrentRefCache test = new TestConcurrentRefCache();
+        test.operations();
+        test.concurrentRehash();
+        test.clearedValues();
+        test.clearedKeys();
+        System.out.println("passed");
+    }
+
+    private static List<Cache<Integer, Integer>> caches() {
+        List<Cache<Integer, Integer>> list = new ArrayList<Cache<Integer, Integer>>();
+        // Small capacities, to force many rehashes.
+        list.add(new ConcurrentSoftValueCache<Integer, Integer>(1));
+        list.add(new ConcurrentWeakValueCache<Integer, Integer>(1, 4));
+        list.add(new ConcurrentWeakKeyCache<Integer, Integer>(1));
+        list.add(new ConcurrentWeakIdentityCache<Integer, Integer>(1, 1));
+        return list;
+    }
+
+    /**
+     * Integers which are distinct instances, so that identity caches match
+     * them only by instance. All are strongly held by the test.
+     */
+    private static Integer[] newIntegers(int count) {
+        Integer[] values = new Integer[count];
+        for (int i=0; i<count; i++) {
+            values[i] = new Integer(i);
+        }
+        return values;
+    }
+
+    @Test
+    public void operations() {
+        Integer[] keys = newIntegers(KEYS);
+        Integer[] values = newIntegers(100);
+
+        for (Cache<Integer, Integer> cache : caches()) {
+            String name = cache.getClass().getSimpleName();
+            Map<Integer, Integer> model = new HashMap<Integer, Integer>();
+            Random rnd = new Random(5);
+
+            for (int i=0; i<200000; i++) {
+                // Favor puts early on, to grow the cache.
+                int op = rnd.nextInt(i < 20000 ? 3 : 8);
+                Integer key = keys[rnd.nextInt(KEYS)];
+                Integer value = values[rnd.nextInt(values.length)];
+                Integer expect = values[rnd.nextInt(values.length)];
+
+                switch (op) {
+                case 0:
+                    assertSame(name, model.put(key, value), cache.put(key, value));
+                    break;
+                case 1: {
+                    Integer existing = model.get(key);
+                    if (existing == null) {
+                        model.put(key, value);
+                    }
+                    assertSame(name, existing, cache.putIfAbsent(key, value));
+                    break;
+                }
+                case 2:
+                    assertSame(name, model.get(key), cache.get(key));
+                    break;
+                case 3:
+                    assertSame(name, model.remove(key), cache.remove(key));
+                    break;
+                case 4: {
+                    boolean matches = expect.equals(model.get(key));
+                    if (matches) {
+                        model.remove(key);
+                    }
+                    assertEquals(name, matches, cache.remove(key, expect));
+                    break;
+                }
+                case 5: {
+                    Integer existing = model.get(key);
+                    if (existing != null) {
+                        model.put(key, value);
+                    }
+                    assertSame(name, existing, cache.replace(key, value));
+                    break;
+                }
+                case 6: {
+                    boolean matches = expect.equals(model.get(key));
+                    if (matches) {
+                        model.put(key, value);
+                    }
+                    assertEquals(name, matches, cache.replace(key, expect, value));
+                    break;
+                }
+                default:
+                    assertSame(name, model.get(key), cache.get(key));
+                    break;
+                }
+            }
+
+            assertEquals(name, model.size(), cache.size());
+            assertEquals(name, model.isEmpty(), cache.isEmpty());
+
+            List<Integer> cacheKeys = new ArrayList<Integer>();
+            cache.copyKeysInto(cacheKeys);
+            assertEquals(name, model.keySet(), new HashSet<Integer>(cacheKeys));
+            assertEquals(name, model.size(), cacheKeys.size());
+
+            for (Map.Entry<Integer, Integer> e : model.entrySet()) {
+                assertSame(name, e.getValue(), cache.get(e.getKey()));
+            }
+
+            cache.clear();
+            assertEquals(name, 0, cache.size());
+            assertTrue(name, cache.isEmpty());
+            assertNull(name, cache.get(keys[0]));
+        }
+    }
+
+    /**
+     * Threads update disjoint ranges of keys while segments are rehashed by
+     * the others.
+     */
+    @Test
+    public void concurrentRehash() throws Exception {
+        final int threadCount = 4;
+        final Integer[] keys = newIntegers(KEYS * threadCount);
+
+        for (final Cache<Integer, Integer> cache : caches()) {
+            final String name = cache.getClass().getSimpleName();
+            final Throwable[] failures = new Throwable[threadCount];
+            Thread[] threads = new Thread[threadCount];
+
+            for (int t=0; t<threadCount; t++) {
+                final int slot = t;
+                threads[t] = new Thread() {
+                    public void run() {
+                        try {
+                            int base = slot * KEYS;
+                            for (int i=0; i<KEYS; i++) {
+                                Integer key = keys[base + i];
+                                assertNull(cache.put(key, key));
+                                if ((i & 3) == 0) {
+                                    assertSame(key, cache.remove(key));
+                                }
+                            }
+                            for (int i=0; i<KEYS; i++) {
+                                Integer key = keys[base + i];
+                                assertSame(name, (i & 3) == 0 ? null : key, cache.get(key));
+                            }
+                        } catch (Throwable e) {
+                            failures[slot] = e;
+                        }
+                    }
+                };
+                threads[t].start();
+            }
+
+            for (int t=0; t<threadCount; t++) {
+                threads[t].join();
+                if (failures[t] != null) {
+                    throw new AssertionError(failures[t]);
+                }
+            }
+
+            assertEquals(name, threadCount * (KEYS - KEYS / 4), cache.size());
+        }
+    }
+
+    /**
+     * Entries whose values are cleared aren't visible, and they're replaced
+     * when their keys are put again.
+     */
+    @Test
+    public void clearedValues() throws Exception {
+        Cache<Integer, Object> cache = new ConcurrentWeakValueCache<Integer, Object>(1);
+        Integer[] keys = newIntegers(KEYS);
+
+        for (Integer key : keys) {
+            cache.put(key, new Object());
+        }
+
+        awaitCleared(cache);
+
+        for (Integer key : keys) {
+            assertNull(cache.get(key));
+            assertNull(cache.replace(key, "x"));
+            assertFalse(cache.remove(key, "x"));
+        }
+
+        List<Object> values = new ArrayList<Object>();
+        cache.copyValuesInto(values);
+        assertTrue(values.isEmpty());
+
+        // Putting the keys again replaces the cleared entries.
+        for (Integer key : keys) {
+            assertNull(cache.putIfAbsent(key, key));
+        }
+        assertEquals(KEYS, cache.size());
+        for (Integer key : keys) {
+            assertSame(key, cache.get(key));
+        }
+    }
+
+    /**
+     * Entries whose keys are cleared are evicted when the segments are
+     * rehashed.
+     */
+    @Test
+    public void clearedKeys() throws Exception {
+        Cache<Integer, Object> cache = new ConcurrentWeakKeyCache<Integer, Object>(1, 1);
+
+        for (int i=0; i<KEYS; i++) {
+            cache.put(new Integer(i), "value");
+        }
+
+        awaitCleared(cache);
+
+        // Enough new entries to rehash the cache twice.
+        Integer[] keys = newIntegers(KEYS * 3);
+        for (Integer key : keys) {
+            cache.put(key, key);
+        }
+
+        List<Integer> cacheKeys = new ArrayList<Integer>();
+        cache.copyKeysInto(cacheKeys);
+        assertEquals(keys.length, cacheKeys.size());
+        assertTrue(cache.size() < keys.length + KEYS);
+    }
+
+    /**
+     * Collects garbage until no entries have live references.
+     */
+    private static void awaitCleared(Cache<?, ?> cache) throws InterruptedException {
+        for (int i=0; i<100; i++) {
+            System.gc();
+            List<Object> entries = new ArrayList<Object>();
+            cache.copyEntriesInto(entries);
+            if (entries.isEmpty()) {
+                return;
+            }
+            Thread.sleep(50);
+        }
+        fail("References weren't cleared");
+    }
+}
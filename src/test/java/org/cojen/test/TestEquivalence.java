@@ -0,0 +1,94 @@
+/*
+ *  Copyright 2010 Brian S O'Neill
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package org.cojen.test;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import org.cojen.util.BeanComparator;
+import org.cojen.util.Equivalence;
+
+/**
+ * Checks that equivalent beans have equal hash codes, and that equivalence
+ * agrees with the comparator, for Strings compared ignoring case which
+ * include supplementary characters that fold to other characters.
+ *
+ * @author Brian S O'Neill
+ */
+public class TestEquivalence {
+    private static final String[] CHARS = {
+        "a", "A", "\u00b5", "\u03bc", "\u039c", "\u00df", "\uffff",
+        // Supplementary characters, some of which are Deseret and Old
+        // Hungarian letters which fold to other characters. Unpaired
+        // surrogates are excluded, because equalsIgnoreCase pairs them with
+        // adjacent characters inconsistently.
+        "\ud800\udc00", "\ud801\udc00", "\ud801\udc28", "\ud803\udc80", "\ud803\udcc0",
+    };
+
+    public static void main(String[] args) throws Exception {
+        new TestEquivalence().ignoreCase();
+        System.out.println("passed");
+    }
+
+    public static class Bean {
+        private final String mValue;
+
+        public Bean(String value) {
+            mValue = value;
+        }
+
+        public String getValue() {
+            return mValue;
+        }
+    }
+
+    @Test
+    public void ignoreCase() {
+        BeanComparator<Bean> bc = BeanComparator.forClass(Bean.class).orderBy("value");
+        Equivalence<Bean> eq = bc.equivalence();
+        Random rnd = new Random(42);
+        int equivalent = 0;
+
+        for (int i=0; i<100000; i++) {
+            Bean a = new Bean(randomString(rnd));
+            Bean b = new Bean(randomString(rnd));
+            boolean expected = bc.compare(a, b) == 0;
+            assertEquals(expected, eq.equivalent(a, b));
+            assertEquals(expected, eq.wrap(a).equals(eq.wrap(b)));
+            if (expected) {
+                assertEquals(eq.hash(a), eq.hash(b));
+                assertEquals(eq.wrap(a).hashCode(), eq.wrap(b).hashCode());
+                equivalent++;
+            }
+        }
+
+        assertTrue(equivalent > 1000);
+    }
+
+    private static String randomString(Random rnd) {
+        StringBuilder b = new StringBuilder();
+        int length = rnd.nextInt(3);
+        for (int i=0; i<length; i++) {
+            b.append(CHARS[rnd.nextInt(CHARS.length)]);
+        }
+        return b.toString();
+    }
+}
@@ -0,0 +1,434 @@
+/*
+ *  Copyright 2010 Brian S O'Neill
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package org.cojen.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import java.lang.reflect.Method;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import org.cojen.classfile.*;
+
+/**
+ * Generates methods whose flow analysis involves switches, nested exception
+ * handlers, branches which must be widened, and double word locals. Each
+ * method is verified and run by the JVM, and the results are checked against
+ * equivalent Java code. The generated class is then disassembled and
+ * reassembled, which must produce the same analysis and results.
+ *
+ * @author Brian S O'Neill
+ */
+public class TestFlowAnalysis {
+    // Amount of statements in the body of the wide loop. Each is at least 7
+    // bytes, so the loop is larger than a 16-bit branch offset can reach.
+    private static final int WIDE_STATEMENTS = 6000;
+
+    public static void main(String[] args) throws Exception {
+        new TestFlowAnalysis().flowAnalysis();
+        System.out.println("passed");
+    }
+
+    @Test
+    public void flowAnalysis() throws Exception {
+        RuntimeClassFile cf = new RuntimeClassFile(TestFlowAnalysis.class.getName() + "$Gen");
+        cf.setTarget("1.5");
+        addSwitches(cf);
+        addHandlers(cf);
+        addWide(cf);
+
+        // Expected max stack and max locals. Locals which are dead when
+        // others are created share registers with them.
+        checkAnalysis(cf, "switches", 4, 5);
+        checkAnalysis(cf, "handlers", 6, 5);
+        checkAnalysis(cf, "wide", 4, 6);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        cf.writeTo(out);
+        byte[] bytes = out.toByteArray();
+
+        check(cf.defineClass());
+
+        // Reassemble the code and compare the analysis.
+        ClassFile original = ClassFile.readFrom(new ByteArrayInputStream(bytes));
+        RuntimeClassFile copy = new RuntimeClassFile(TestFlowAnalysis.class.getName() + "$Copy");
+        copy.setTarget("1.5");
+        for (MethodInfo mi : original.getMethods()) {
+            MethodInfo copied = copy.addMethod
+                (mi.getModifiers(), mi.getName(), mi.getMethodDescriptor().getReturnType(),
+                 mi.getMethodDescriptor().getParameterTypes());
+            CodeBuilder b = new CodeBuilder(copied);
+            new CodeDisassembler(mi).disassemble(b);
+
+            CodeBuffer code = mi.getCodeAttr().getCodeBuffer();
+            assertEquals(mi.getName(), code.getMaxStackDepth(), b.getMaxStackDepth());
+            assertEquals(mi.getName(), code.getMaxLocals(), b.getMaxLocals());
+        }
+
+        check(copy.defineClass());
+    }
+
+    private static void checkAnalysis(ClassFile cf, String name, int maxStack, int maxLocals) {
+        for (MethodInfo mi : cf.getMethods()) {
+            if (mi.getName().equals(name)) {
+                CodeBuffer code = mi.getCodeAttr().getCodeBuffer();
+                assertEquals(name, maxStack, code.getMaxStackDepth());
+                assertEquals(name, maxLocals, code.getMaxLocals());
+                return;
+            }
+        }
+        fail(name);
+    }
+
+    private static void check(Class<?> clazz) throws Exception {
+        Method switches = clazz.getMethod("switches", int.class, long.class, double.class);
+        for (int x=-2; x<=6; x++) {
+            for (long a : new long[] {0, 7, -123456789012L}) {
+                for (double d : new double[] {0, 2.5, -1e10}) {
+                    assertEquals(switches(x, a, d), switches.invoke(null, x, a, d));
+                }
+            }
+        }
+
+        Method handlers = clazz.getMethod("handlers", int.class, long.class);
+        for (int x : new int[] {-5, -1, 0, 1, 3, 100, 101, 1000}) {
+            for (long a : new long[] {0, 9, 1L << 40}) {
+                assertEquals(handlers(x, a), handlers.invoke(null, x, a));
+            }
+        }
+
+        Method wide = clazz.getMethod("wide", int.class);
+        for (int n : new int[] {-1, 0, 1, 2, 7, 10}) {
+            assertEquals(wide(n), wide.invoke(null, n));
+        }
+    }
+
+    /**
+     * Java equivalent of the generated switches method.
+     */
+    static long switches(int x, long a, double d) {
+        long acc = a;
+        double f = d;
+        switch (x) {
+        case 0:
+            acc += 1;
+            break;
+        case 1:
+            acc *= 3;
+            // Fall through.
+        case 2:
+            f += 0.5;
+            break;
+        case 3:
+            return acc - (long) f;
+        default:
+            acc = -acc;
+            break;
+        }
+        switch (x * 100) {
+        case -200:
+            acc ^= 0xff;
+            break;
+        case 500:
+            f *= 2;
+            break;
+        case 100000:
+            return 0;
+        }
+        return acc + (long) f;
+    }
+
+    private static void addSwitches(ClassFile cf) {
+        MethodInfo mi = cf.addMethod
+            (Modifiers.PUBLIC_STATIC, "switches", TypeDesc.LONG,
+             new TypeDesc[] {TypeDesc.INT, TypeDesc.LONG, TypeDesc.DOUBLE});
+        CodeBuilder b = new CodeBuilder(mi);
+
+        LocalVariable x = b.getParameter(0);
+        LocalVariable acc = b.createLocalVariable("acc", TypeDesc.LONG);
+        LocalVariable f = b.createLocalVariable("f", TypeDesc.DOUBLE);
+
+        b.loadLocal(b.getParameter(1));
+        b.storeLocal(acc);
+        b.loadLocal(b.getParameter(2));
+        b.storeLocal(f);
+
+        Label case0 = b.createLabel();
+        Label case1 = b.createLabel();
+        Label case2 = b.createLabel();
+        Label case3 = b.createLabel();
+        Label deflt = b.createLabel();
+        Label next = b.createLabel();
+
+        b.loadLocal(x);
+        b.switchBranch(new int[] {0, 1, 2, 3}, new Location[] {case0, case1, case2, case3}, deflt);
+
+        case0.setLocation();
+        b.loadLocal(acc);
+        b.loadConstant(1L);
+        b.math(Opcode.LADD);
+        b.storeLocal(acc);
+        b.branch(next);
+
+        case1.setLocation();
+        b.loadLocal(acc);
+        b.loadConstant(3L);
+        b.math(Opcode.LMUL);
+        b.storeLocal(acc);
+
+        case2.setLocation();
+        b.loadLocal(f);
+        b.loadConstant(0.5);
+        b.math(Opcode.DADD);
+        b.storeLocal(f);
+        b.branch(next);
+
+        case3.setLocation();
+        b.loadLocal(acc);
+        b.loadLocal(f);
+        b.convert(TypeDesc.DOUBLE, TypeDesc.LONG);
+        b.math(Opcode.LSUB);
+        b.returnValue(TypeDesc.LONG);
+
+        deflt.setLocation();
+        b.loadLocal(acc);
+        b.math(Opcode.LNEG);
+        b.storeLocal(acc);
+
+        next.setLocation();
+
+        // Sparse cases, which are assembled as a lookupswitch.
+        Label xorCase = b.createLabel();
+        Label mulCase = b.createLabel();
+        Label zeroCase = b.createLabel();
+        Label end = b.createLabel();
+
+        b.loadLocal(x);
+        b.loadConstant(100);
+        b.math(Opcode.IMUL);
+        b.switchBranch(new int[] {-200, 500, 100000},
+                       new Location[] {xorCase, mulCase, zeroCase}, end);
+
+        xorCase.setLocation();
+        b.loadLocal(acc);
+        b.loadConstant(0xffL);
+        b.math(Opcode.LXOR);
+        b.storeLocal(acc);
+        b.branch(end);
+
+        mulCase.setLocation();
+        b.loadLocal(f);
+        b.loadConstant(2.0);
+        b.math(Opcode.DMUL);
+        b.storeLocal(f);
+        b.branch(end);
+
+        zeroCase.setLocation();
+        b.loadConstant(0L);
+        b.returnValue(TypeDesc.LONG);
+
+        end.setLocation();
+        b.loadLocal(acc);
+        b.loadLocal(f);
+        b.convert(TypeDesc.DOUBLE, TypeDesc.LONG);
+        b.math(Opcode.LADD);
+        b.returnValue(TypeDesc.LONG);
+    }
+
+    /**
+     * Java equivalent of the generated handlers method.
+     */
+    static int handlers(int x, long a) {
+        long acc = a * 2;
+        double dd = x;
+        try {
+            try {
+                if (x < 0) {
+                    throw new IllegalStateException();
+                }
+                acc = acc / x;
+            } catch (ArithmeticException e) {
+                acc = -1;
+                dd = 0.25;
+            }
+            if (x > 100) {
+                throw new IllegalArgumentException();
+            }
+        } catch (RuntimeException e) {
+            return (int) (acc + 1000 + (long) dd);
+        }
+        return (int) (acc + (long) (dd * 2));
+    }
+
+    private static void addHandlers(ClassFile cf) {
+        MethodInfo mi = cf.addMethod
+            (Modifiers.PUBLIC_STATIC, "handlers", TypeDesc.INT,
+             new TypeDesc[] {TypeDesc.INT, TypeDesc.LONG});
+        CodeBuilder b = new CodeBuilder(mi);
+
+        LocalVariable x = b.getParameter(0);
+        LocalVariable acc = b.createLocalVariable("acc", TypeDesc.LONG);
+        LocalVariable dd = b.createLocalVariable("dd", TypeDesc.DOUBLE);
+
+        b.loadLocal(b.getParameter(1));
+        b.loadConstant(2L);
+        b.math(Opcode.LMUL);
+        b.storeLocal(acc);
+        b.loadLocal(x);
+        b.convert(TypeDesc.INT, TypeDesc.DOUBLE);
+        b.storeLocal(dd);
+
+        Label outerStart = b.createLabel().setLocation();
+        Label innerStart = b.createLabel().setLocation();
+
+        Label divide = b.createLabel();
+        b.loadLocal(x);
+        b.ifZeroComparisonBranch(divide, ">=");
+        TypeDesc stateEx = TypeDesc.forClass(IllegalStateException.class);
+        b.newObject(stateEx);
+        b.dup();
+        b.invokeConstructor(stateEx, null);
+        b.throwObject();
+
+        divide.setLocation();
+        b.loadLocal(acc);
+        b.loadLocal(x);
+        b.convert(TypeDesc.INT, TypeDesc.LONG);
+        b.math(Opcode.LDIV);
+        b.storeLocal(acc);
+        Label innerEnd = b.createLabel().setLocation();
+
+        Label check = b.createLabel();
+        b.branch(check);
+
+        b.exceptionHandler(innerStart, innerEnd, ArithmeticException.class.getName());
+        b.pop();
+        b.loadConstant(-1L);
+        b.storeLocal(acc);
+        b.loadConstant(0.25);
+        b.storeLocal(dd);
+
+        check.setLocation();
+        Label normal = b.createLabel();
+        b.loadLocal(x);
+        b.loadConstant(100);
+        b.ifComparisonBranch(normal, "<=");
+        TypeDesc argEx = TypeDesc.forClass(IllegalArgumentException.class);
+        b.newObject(argEx);
+        b.dup();
+        b.invokeConstructor(argEx, null);
+        b.throwObject();
+        Label outerEnd = b.createLabel().setLocation();
+
+        b.exceptionHandler(outerStart, outerEnd, RuntimeException.class.getName());
+        b.pop();
+        b.loadLocal(acc);
+        b.loadConstant(1000L);
+        b.math(Opcode.LADD);
+        b.loadLocal(dd);
+        b.convert(TypeDesc.DOUBLE, TypeDesc.LONG);
+        b.math(Opcode.LADD);
+        b.convert(TypeDesc.LONG, TypeDesc.INT);
+        b.returnValue(TypeDesc.INT);
+
+        normal.setLocation();
+        b.loadLocal(acc);
+        b.loadLocal(dd);
+        b.loadConstant(2.0);
+        b.math(Opcode.DMUL);
+        b.convert(TypeDesc.DOUBLE, TypeDesc.LONG);
+        b.math(Opcode.LADD);
+        b.convert(TypeDesc.LONG, TypeDesc.INT);
+        b.returnValue(TypeDesc.INT);
+    }
+
+    /**
+     * Java equivalent of the generated wide method.
+     */
+    static long wide(int n) {
+        long acc = n;
+        double f = 0.5;
+        if (n != 7) {
+            for (int i=0; i<n; i++) {
+                for (int j=0; j<WIDE_STATEMENTS; j++) {
+                    acc = acc * 31 + j;
+                }
+                f += 1.0;
+            }
+        }
+        return acc + (long) f;
+    }
+
+    private static void addWide(ClassFile cf) {
+        MethodInfo mi = cf.addMethod
+            (Modifiers.PUBLIC_STATIC, "wide", TypeDesc.LONG, new TypeDesc[] {TypeDesc.INT});
+        CodeBuilder b = new CodeBuilder(mi);
+
+        LocalVariable n = b.getParameter(0);
+        LocalVariable acc = b.createLocalVariable("acc", TypeDesc.LONG);
+        LocalVariable f = b.createLocalVariable("f", TypeDesc.DOUBLE);
+        LocalVariable i = b.createLocalVariable("i", TypeDesc.INT);
+
+        b.loadLocal(n);
+        b.convert(TypeDesc.INT, TypeDesc.LONG);
+        b.storeLocal(acc);
+        b.loadConstant(0.5);
+        b.storeLocal(f);
+
+        Label end = b.createLabel();
+        b.loadLocal(n);
+        b.loadConstant(7);
+        b.ifComparisonBranch(end, "==");
+
+        b.loadConstant(0);
+        b.storeLocal(i);
+
+        // The loop test branches forward over the whole body, and the loop
+        // branches back to the test, so both must be widened.
+        Label test = b.createLabel().setLocation();
+        b.loadLocal(i);
+        b.loadLocal(n);
+        b.ifComparisonBranch(end, ">=");
+
+        for (int j=0; j<WIDE_STATEMENTS; j++) {
+            b.loadLocal(acc);
+            b.loadConstant(31L);
+            b.math(Opcode.LMUL);
+            b.loadConstant((long) j);
+            b.math(Opcode.LADD);
+            b.storeLocal(acc);
+        }
+
+        b.loadLocal(f);
+        b.loadConstant(1.0);
+        b.math(Opcode.DADD);
+        b.storeLocal(f);
+        b.integerIncrement(i, 1);
+        b.branch(test);
+
+        end.setLocation();
+        b.loadLocal(acc);
+        b.loadLocal(f);
+        b.convert(TypeDesc.DOUBLE, TypeDesc.LONG);
+        b.math(Opcode.LADD);
+        b.returnValue(TypeDesc.LONG);
+    }
+}
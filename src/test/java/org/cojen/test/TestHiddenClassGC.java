@@ -0,0 +1,96 @@
+/*
+ *  Copyright 2010 Brian S O'Neill
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.test;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.management.ClassLoadingMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.util.concurrent.Callable;
+
+import org.cojen.classfile.*;
+
+/**
+ * Compares class unloading and metaspace use when defining classes with a
+ * RuntimeClassFile loader versus a Lookup. Arguments: [loader|lookup|both] [count]
+ *
+ * @author Brian S O'Neill
+ */
+public class TestHiddenClassGC {
+    public static void main(String[] args) throws Exception {
+        String strategy = args.length > 0 ? args[0] : "both";
+        int count = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+
+        if (!"lookup".equals(strategy)) {
+            run("loader", count);
+        }
+        if (!"loader".equals(strategy)) {
+            if (LookupDefiner.isSupported()) {
+                run("lookup", count);
+            } else {
+                System.out.println("lookup: not supported");
+            }
+        }
+    }
+
+    private static void run(String strategy, int count) throws Exception {
+        boolean lookup = "lookup".equals(strategy);
+        MethodHandles.Lookup l = MethodHandles.lookup();
+
+        report(strategy + " before");
+
+        for (int i=0; i<count; i++) {
+            RuntimeClassFile cf;
+            if (lookup) {
+                cf = new RuntimeClassFile(l, null, null);
+            } else {
+                cf = new RuntimeClassFile(TestHiddenClassGC.class.getName());
+            }
+            cf.addInterface(Callable.class);
+            cf.addDefaultConstructor();
+
+            MethodInfo mi = cf.addMethod(Modifiers.PUBLIC, "call", TypeDesc.OBJECT, null);
+            CodeBuilder b = new CodeBuilder(mi);
+            b.loadConstant("Stuff " + i);
+            b.returnValue(TypeDesc.OBJECT);
+
+            Class clazz = cf.defineClass();
+            ((Callable) clazz.newInstance()).call();
+        }
+
+        report(strategy + " defined " + count);
+    }
+
+    private static void report(String label) {
+        for (int i=0; i<3; i++) {
+            System.gc();
+        }
+
+        long metaspace = -1;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if ("Metaspace".equals(pool.getName())) {
+                metaspace = pool.getUsage().getUsed();
+            }
+        }
+
+        ClassLoadingMXBean classes = ManagementFactory.getClassLoadingMXBean();
+
+        System.out.println(label + ": metaspace=" + (metaspace >> 10) + "K, loaded="
+                           + classes.getLoadedClassCount() + ", unloaded="
+                           + classes.getUnloadedClassCount());
+    }
+}
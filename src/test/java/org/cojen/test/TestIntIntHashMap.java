@@ -0,0 +1,158 @@
+/*
+ *  Copyright 2010 Brian S O'Neill
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.test;
+
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import org.cojen.util.IntIntHashMap;
+
+/**
+ * 
+ *
+ * @author Brian S O'Neill
+ */
+public class TestIntIntHashMap {
+    @Test
+    public void basics() {
+        IntIntHashMap map = new IntIntHashMap();
+        assertTrue(map.isEmpty());
+        assertEquals(-1, map.get(0, -1));
+        assertFalse(map.containsKey(0));
+
+        // Key zero is stored apart from the table.
+        assertTrue(map.put(0, 100));
+        assertTrue(map.put(-1, 200));
+        assertFalse(map.put(0, 101));
+        assertEquals(2, map.size());
+        assertEquals(101, map.get(0, -1));
+        assertEquals(200, map.get(-1, -1));
+
+        assertEquals(5, map.add(7, 5));
+        assertEquals(8, map.add(7, 3));
+        assertEquals(111, map.add(0, 10));
+        assertEquals(3, map.size());
+
+        int[] keys = map.keys();
+        Arrays.sort(keys);
+        assertArrayEquals(new int[] {-1, 0, 7}, keys);
+
+        assertTrue(map.remove(0));
+        assertFalse(map.remove(0));
+        assertFalse(map.containsKey(0));
+        assertEquals(-1, map.get(0, -1));
+        assertEquals(2, map.size());
+
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertFalse(map.containsKey(7));
+        assertEquals(0, map.keys().length);
+    }
+
+    @Test
+    public void randomOps() {
+        Random rnd = new Random(1290384);
+        for (int range : new int[] {16, 1000, 100000}) {
+            IntIntHashMap map = new IntIntHashMap(0);
+            Map<Integer, Integer> expect = new HashMap<Integer, Integer>();
+
+            for (int i=0; i<200000; i++) {
+                int key = (rnd.nextInt(range) - range / 2) << (rnd.nextInt(4) * 8);
+                switch (rnd.nextInt(5)) {
+                case 0: case 1:
+                    assertEquals(!expect.containsKey(key), map.put(key, i));
+                    expect.put(key, i);
+                    break;
+                case 2: {
+                    Integer old = expect.get(key);
+                    int sum = (old == null ? 0 : old) + 3;
+                    expect.put(key, sum);
+                    assertEquals(sum, map.add(key, 3));
+                    break;
+                }
+                case 3:
+                    assertEquals(expect.remove(key) != null, map.remove(key));
+                    break;
+                default:
+                    assertEquals(expect.containsKey(key), map.containsKey(key));
+                    Integer value = expect.get(key);
+                    assertEquals(value == null ? -1 : value, map.get(key, -1));
+                    break;
+                }
+                assertEquals(expect.size(), map.size());
+            }
+
+            verify(expect, map);
+        }
+    }
+
+    @Test
+    public void cursor() {
+        IntIntHashMap map = new IntIntHashMap();
+        for (int i=-50; i<50; i++) {
+            map.put(i * 31, i);
+        }
+
+        int count = 0;
+        IntIntHashMap.Cursor c = map.cursor();
+        while (c.next()) {
+            assertEquals(c.key() / 31, c.value());
+            c.setValue(-c.value());
+            count++;
+        }
+        assertFalse(c.next());
+        assertEquals(100, count);
+
+        for (int i=-50; i<50; i++) {
+            assertEquals(-i, map.get(i * 31, 1000));
+        }
+
+        c = map.cursor();
+        assertTrue(c.next());
+        map.remove(31);
+        try {
+            c.next();
+            fail();
+        } catch (ConcurrentModificationException e) {
+        }
+    }
+
+    private static void verify(Map<Integer, Integer> expect, IntIntHashMap map) {
+        assertEquals(expect.size(), map.size());
+
+        int[] keys = map.keys();
+        assertEquals(expect.size(), keys.length);
+        for (int key : keys) {
+            assertTrue(expect.containsKey(key));
+        }
+
+        Map<Integer, Integer> found = new HashMap<Integer, Integer>();
+        IntIntHashMap.Cursor c = map.cursor();
+        while (c.next()) {
+            assertFalse(found.containsKey(c.key()));
+            found.put(c.key(), c.value());
+        }
+        assertEquals(expect, found);
+    }
+}
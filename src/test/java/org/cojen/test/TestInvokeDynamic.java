@@ -0,0 +1,180 @@
+/*
+ *  Copyright 2010 Brian S O'Neill
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package org.cojen.test;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.ConstantCallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+import java.lang.reflect.Method;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import org.cojen.classfile.*;
+
+/**
+ * Generates methods which target Java 7 and use invokedynamic and method
+ * handle constants within loops and branches, which the verifier only
+ * accepts with stack map frames.
+ *
+ * @author Brian S O'Neill
+ */
+public class TestInvokeDynamic {
+    private static final TypeDesc THIS = TypeDesc.forClass(TestInvokeDynamic.class);
+
+    private static final MethodDesc INT_TO_INT =
+        MethodDesc.forArguments(TypeDesc.INT, new TypeDesc[] {TypeDesc.INT});
+
+    public static void main(String[] args) throws Throwable {
+        new TestInvokeDynamic().invokeDynamic();
+        System.out.println("passed");
+    }
+
+    /**
+     * Bootstrap method which links to the multiply method, with the given
+     * factor bound to it.
+     */
+    public static CallSite bootstrap(MethodHandles.Lookup lookup, String name,
+                                     MethodType type, int factor)
+        throws Exception
+    {
+        MethodHandle mh = MethodHandles.lookup().findStatic
+            (TestInvokeDynamic.class, "multiply",
+             MethodType.methodType(int.class, int.class, int.class));
+        return new ConstantCallSite(MethodHandles.insertArguments(mh, 0, factor).asType(type));
+    }
+
+    public static int multiply(int factor, int x) {
+        return factor * x;
+    }
+
+    @Test
+    public void invokeDynamic() throws Throwable {
+        RuntimeClassFile cf = new RuntimeClassFile(TestInvokeDynamic.class.getName() + "$Gen");
+        cf.setTarget("1.7");
+        addSum(cf);
+        addConstant(cf);
+        Class<?> clazz = cf.defineClass();
+
+        Method sum = clazz.getMethod("sum", int.class);
+        for (int n : new int[] {-1, 0, 1, 4, 10}) {
+            assertEquals(sum(n), sum.invoke(null, n));
+        }
+
+        Method constant = clazz.getMethod("constant", boolean.class);
+        MethodHandle mh = (MethodHandle) constant.invoke(null, true);
+        assertEquals(6, (int) mh.invokeExact(2, 3));
+        assertEquals(MethodType.methodType(int.class, int.class), constant.invoke(null, false));
+    }
+
+    /**
+     * Java equivalent of the generated sum method.
+     */
+    static int sum(int n) {
+        int r = 0;
+        for (int i=0; i<n; i++) {
+            if ((i & 1) == 0) {
+                r += multiply(3, i);
+            } else {
+                r -= multiply(5, i);
+            }
+        }
+        return r;
+    }
+
+    private static void addSum(ClassFile cf) {
+        MethodInfo mi = cf.addMethod
+            (Modifiers.PUBLIC_STATIC, "sum", TypeDesc.INT, new TypeDesc[] {TypeDesc.INT});
+        CodeBuilder b = new CodeBuilder(mi);
+
+        MethodHandleDesc bootstrap = MethodHandleDesc.forMethod
+            (MethodHandleDesc.REF_INVOKE_STATIC, THIS, "bootstrap",
+             MethodDesc.forArguments
+             (TypeDesc.forClass(CallSite.class),
+              new TypeDesc[] {TypeDesc.forClass(MethodHandles.Lookup.class), TypeDesc.STRING,
+                              TypeDesc.forClass(MethodType.class), TypeDesc.INT}));
+
+        LocalVariable n = b.getParameter(0);
+        LocalVariable r = b.createLocalVariable("r", TypeDesc.INT);
+        LocalVariable i = b.createLocalVariable("i", TypeDesc.INT);
+
+        b.loadConstant(0);
+        b.storeLocal(r);
+        b.loadConstant(0);
+        b.storeLocal(i);
+
+        Label test = b.createLabel();
+        Label body = b.createLabel();
+        Label odd = b.createLabel();
+        Label next = b.createLabel();
+        b.branch(test);
+
+        body.setLocation();
+        b.loadLocal(r);
+        b.loadLocal(i);
+        b.loadLocal(i);
+        b.loadConstant(1);
+        b.math(Opcode.IAND);
+        b.ifZeroComparisonBranch(odd, "!=");
+        b.invokeDynamic("times3", TypeDesc.INT, new TypeDesc[] {TypeDesc.INT}, bootstrap, 3);
+        b.math(Opcode.IADD);
+        b.branch(next);
+        odd.setLocation();
+        b.invokeDynamic("times5", TypeDesc.INT, new TypeDesc[] {TypeDesc.INT}, bootstrap, 5);
+        b.math(Opcode.ISUB);
+        next.setLocation();
+        b.storeLocal(r);
+        b.integerIncrement(i, 1);
+
+        test.setLocation();
+        b.loadLocal(i);
+        b.loadLocal(n);
+        b.ifComparisonBranch(body, "<");
+
+        b.loadLocal(r);
+        b.returnValue(TypeDesc.INT);
+    }
+
+    /**
+     * Returns a MethodHandle or a MethodType constant, which merge as Object.
+     */
+    private static void addConstant(ClassFile cf) {
+        MethodInfo mi = cf.addMethod
+            (Modifiers.PUBLIC_STATIC, "constant", TypeDesc.OBJECT,
+             new TypeDesc[] {TypeDesc.BOOLEAN});
+        CodeBuilder b = new CodeBuilder(mi);
+
+        Label type = b.createLabel();
+        Label done = b.createLabel();
+        b.loadLocal(b.getParameter(0));
+        b.ifZeroComparisonBranch(type, "==");
+        b.loadConstant(MethodHandleDesc.forMethod
+                       (MethodHandleDesc.REF_INVOKE_STATIC, THIS, "multiply",
+                        MethodDesc.forArguments
+                        (TypeDesc.INT, new TypeDesc[] {TypeDesc.INT, TypeDesc.INT})));
+        b.branch(done);
+        type.setLocation();
+        b.loadConstant(INT_TO_INT);
+        done.setLocation();
+        b.returnValue(TypeDesc.OBJECT);
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ *  Copyright 2010 Brian S O'Neill
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package org.cojen.test;
+
+import java.lang.reflect.Array;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import org.cojen.util.KeyFactory;
+
+/**
+ * Checks array keys against element by element comparisons, with arrays which
+ * differ only at a single element, anywhere in the array, and with arrays
+ * which are prefixes of others.
+ *
+ * @author Brian S O'Neill
+ */
+public class TestKeyFactory {
+    public static void main(String[] args) throws Exception {
+        TestKeyFactory test = new TestKeyFactory();
+        test.arrayKeys();
+        test.compositeKeys();
+        test.nestedArrays();
+        System.out.println("passed");
+    }
+
+    public static interface Keys {
+        Object newKey(byte[] array, int version);
+
+        Object newKey(long[] array, int version);
+    }
+
+    /**
+     * Element values for each kind of array. Floating point values include
+     * negative zero and NaN, which keys treat as distinct from zero and equal
+     * to themselves.
+     */
+    private static final Object[][] VALUES = {
+        {true, false},
+        {(byte) 0, (byte) 1, (byte) -1, Byte.MIN_VALUE},
+        {(char) 0, 'a', (char) 0x7fff, (char) 0xffff},
+        {(short) 0, (short) 1, (short) -1, Short.MIN_VALUE},
+        {0, 1, -1, Integer.MIN_VALUE},
+        {0L, 1L, -1L, Long.MIN_VALUE},
+        {0.0f, -0.0f, 1.0f, Float.NaN},
+        {0.0d, -0.0d, 1.0d, Double.NaN},
+        {"a", "b", "", "ab"},
+    };
+
+    private static final Class<?>[] TYPES = {
+        boolean.class, byte.class, char.class, short.class, int.class, long.class,
+        float.class, double.class, String.class,
+    };
+
+    @Test
+    public void arrayKeys() {
+        Random rnd = new Random(15);
+        for (int t=0; t<TYPES.length; t++) {
+            int[] collisions = new int[2];
+            // Lengths span the word at a time hashing of byte, char and
+            // boolean arrays, and the partial words after them.
+            for (int length=0; length<=70; length+=(length < 20 ? 1 : 5)) {
+                List<Object> arrays = variants(rnd, TYPES[t], VALUES[t], length);
+                List<Object> keys = new ArrayList<Object>();
+                for (Object array : arrays) {
+                    keys.add(KeyFactory.createKey(array));
+                }
+                check(arrays, keys, collisions);
+            }
+            if (t <= 2) {
+                // Only byte, char and boolean arrays are hashed a word at
+                // a time. The others keep the classic multiply or shift
+                // hashes, which collide for small element values.
+                checkCollisions(TYPES[t].getName(), collisions);
+            }
+        }
+    }
+
+    @Test
+    public void compositeKeys() {
+        Keys factory = KeyFactory.forInterface(Keys.class);
+        Random rnd = new Random(16);
+        int[] collisions = new int[2];
+        for (int length=0; length<=40; length+=3) {
+            List<Object> arrays = variants(rnd, byte.class, VALUES[1], length);
+            List<Object> keys = new ArrayList<Object>();
+            for (Object array : arrays) {
+                keys.add(factory.newKey((byte[]) array, 1));
+            }
+            check(arrays, keys, collisions);
+
+            arrays = variants(rnd, long.class, VALUES[5], length);
+            keys.clear();
+            for (Object array : arrays) {
+                keys.add(factory.newKey((long[]) array, 1));
+            }
+            check(arrays, keys, new int[2]);
+        }
+        checkCollisions("byte", collisions);
+    }
+
+    @Test
+    public void nestedArrays() {
+        Object a = KeyFactory.createKey(new Object[] {new int[] {1, 2, 3}, "x"});
+        Object b = KeyFactory.createKey(new Object[] {new int[] {1, 2, 3}, "x"});
+        Object c = KeyFactory.createKey(new Object[] {new int[] {1, 2, 4}, "x"});
+        Object d = KeyFactory.createKey(new Object[] {new int[] {1, 2, 3}, "y"});
+
+        assertEquals(a, b);
+        assertEquals(a.hashCode(), b.hashCode());
+        assertEquals(0, compareTo(a, b));
+        assertFalse(a.equals(c));
+        assertFalse(a.equals(d));
+        assertTrue(compareTo(a, c) < 0);
+        assertTrue(compareTo(c, a) > 0);
+        assertTrue(compareTo(a, d) < 0);
+        assertTrue(compareTo(d, c) < 0);
+    }
+
+    /**
+     * Returns a random array, equal copies of it, copies with one element
+     * changed at each position, and shorter and longer copies.
+     */
+    private static List<Object> variants(Random rnd, Class<?> type, Object[] values,
+                                         int length)
+    {
+        Object base = Array.newInstance(type, length);
+        for (int i=0; i<length; i++) {
+            Array.set(base, i, values[rnd.nextInt(values.length)]);
+        }
+
+        List<Object> list = new ArrayList<Object>();
+        list.add(base);
+        list.add(copy(base, length));
+        list.add(copy(base, length));
+
+        for (int i=0; i<length; i++) {
+            Object value = Array.get(base, i);
+            for (Object other : values) {
+                if (!other.equals(value)) {
+                    Object array = copy(base, length);
+                    Array.set(array, i, other);
+                    list.add(array);
+                }
+            }
+        }
+
+        if (length > 0) {
+            list.add(copy(base, length - 1));
+            list.add(copy(base, length / 2));
+        }
+        Object longer = copy(base, length + 1);
+        Array.set(longer, length, values[0]);
+        list.add(longer);
+
+        return list;
+    }
+
+    private static Object copy(Object array, int length) {
+        Object copy = Array.newInstance(array.getClass().getComponentType(), length);
+        System.arraycopy(array, 0, copy, 0, Math.min(length, Array.getLength(array)));
+        return copy;
+    }
+
+    /**
+     * @param collisions counts of unequal pairs, and of those with equal hash codes
+     */
+    private static void check(List<Object> arrays, List<Object> keys, int[] collisions) {
+
+        for (int i=0; i<arrays.size(); i++) {
+            Object a = arrays.get(i);
+            Object ka = keys.get(i);
+            for (int j=0; j<arrays.size(); j++) {
+                Object b = arrays.get(j);
+                Object kb = keys.get(j);
+                int expected = Integer.signum(compareArrays(a, b));
+                String message = toString(a) + ", " + toString(b);
+
+                assertEquals(message, expected, Integer.signum(compareTo(ka, kb)));
+                assertEquals(message, expected == 0, ka.equals(kb));
+                if (expected == 0) {
+                    assertEquals(message, ka.hashCode(), kb.hashCode());
+                } else if (i < j) {
+                    collisions[0]++;
+                    if (ka.hashCode() == kb.hashCode()) {
+                        collisions[1]++;
+                    }
+                }
+            }
+        }
+    }
+
+    private static void checkCollisions(String type, int[] collisions) {
+        // Hash codes depend on all the elements, not just the first few.
+        assertTrue(type + ": " + collisions[1] + " of " + collisions[0],
+                   collisions[1] <= collisions[0] / 100);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static int compareTo(Object a, Object b) {
+        return ((Comparable<Object>) a).compareTo(b);
+    }
+
+    /**
+     * Compares arrays an element at a time, and then by length. Keys order
+     * true before false.
+     */
+    @SuppressWarnings("unchecked")
+    private static int compareArrays(Object a, Object b) {
+        int length = Math.min(Array.getLength(a), Array.getLength(b));
+        for (int i=0; i<length; i++) {
+            Object av = Array.get(a, i);
+            Object bv = Array.get(b, i);
+            int v;
+            if (av instanceof Boolean) {
+                v = av.equals(bv) ? 0 : (((Boolean) av) ? -1 : 1);
+            } else {
+                v = ((Comparable<Object>) av).compareTo(bv);
+            }
+            if (v != 0) {
+                return v;
+            }
+        }
+        return Array.getLength(a) - Array.getLength(b);
+    }
+
+    private static String toString(Object array) {
+        List<Object> list = new ArrayList<Object>();
+        for (int i=0; i<Array.getLength(array); i++) {
+            list.add(Array.get(array, i));
+        }
+        return list.toString();
+    }
+}
@@ -0,0 +1,280 @@
+/*
+ *  Copyright 2010 Brian S O'Neill
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package org.cojen.test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import org.cojen.util.ConcurrentSoftValueCache;
+import org.cojen.util.LoadingCache;
+import org.cojen.util.SoftValueCache;
+
+/**
+ * Tests LoadingCache.get(key, loader) for both the synchronized and the
+ * concurrent cache implementations: concurrent requests share one load,
+ * failed loads are retried by waiting threads, recursive loads are
+ * rejected, and loads which request each other's keys don't deadlock.
+ *
+ * @author Brian S O'Neill
+ */
+public class TestLoadingCache {
+    private static final int THREADS = 8;
+
+    public static void main(String[] args) throws Exception {
+        TestLoadingCache test = new TestLoadingCache();
+        test.dedup();
+        test.loaderException();
+        test.recursion();
+        test.crossKeys();
+        System.out.println("passed");
+    }
+
+    private static List<LoadingCache<String, String>> caches() {
+        List<LoadingCache<String, String>> list = new ArrayList<LoadingCache<String, String>>();
+        list.add(new SoftValueCache<String, String>(10));
+        list.add(new ConcurrentSoftValueCache<String, String>(10));
+        return list;
+    }
+
+    @Test
+    public void dedup() throws Exception {
+        for (final LoadingCache<String, String> cache : caches()) {
+            final AtomicInteger calls = new AtomicInteger();
+            final CountDownLatch started = new CountDownLatch(1);
+            final CountDownLatch release = new CountDownLatch(1);
+
+            final LoadingCache.Loader<String, String> loader =
+                new LoadingCache.Loader<String, String>() {
+                    public String load(String key) {
+                        calls.incrementAndGet();
+                        started.countDown();
+                        await(release);
+                        return "value-" + key;
+                    }
+                };
+
+            final String[] results = new String[THREADS];
+            Thread[] threads = new Thread[THREADS];
+            for (int i=0; i<THREADS; i++) {
+                final int slot = i;
+                threads[i] = new Thread() {
+                    public void run() {
+                        results[slot] = cache.get("k", loader);
+                    }
+                };
+                threads[i].start();
+                if (i == 0) {
+                    await(started);
+                }
+            }
+
+            // Give the other threads time to begin waiting.
+            Thread.sleep(100);
+            release.countDown();
+            join(threads);
+
+            assertEquals(1, calls.get());
+            for (String result : results) {
+                assertEquals("value-k", result);
+            }
+            assertEquals("value-k", cache.get("k"));
+
+            // Loads of other keys aren't blocked by a load in progress.
+            assertEquals("value-j", cache.get("j", loader));
+            assertEquals(2, calls.get());
+        }
+    }
+
+    @Test
+    public void loaderException() throws Exception {
+        for (final LoadingCache<String, String> cache : caches()) {
+            final CountDownLatch started = new CountDownLatch(1);
+            final CountDownLatch release = new CountDownLatch(1);
+
+            final LoadingCache.Loader<String, String> failing =
+                new LoadingCache.Loader<String, String>() {
+                    public String load(String key) {
+                        started.countDown();
+                        await(release);
+                        throw new IllegalArgumentException("failed");
+                    }
+                };
+
+            final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+            Thread first = new Thread() {
+                public void run() {
+                    try {
+                        cache.get("k", failing);
+                    } catch (Throwable e) {
+                        failure.set(e);
+                    }
+                }
+            };
+            first.start();
+            await(started);
+
+            // The waiting thread calls its own loader after the first fails.
+            final AtomicReference<String> result = new AtomicReference<String>();
+            Thread second = new Thread() {
+                public void run() {
+                    result.set(cache.get("k", new LoadingCache.Loader<String, String>() {
+                        public String load(String key) {
+                            return "second";
+                        }
+                    }));
+                }
+            };
+            second.start();
+            Thread.sleep(100);
+            release.countDown();
+            join(first, second);
+
+            assertTrue(failure.get() instanceof IllegalArgumentException);
+            assertEquals("second", result.get());
+            assertEquals("second", cache.get("k"));
+
+            // A failed load maps nothing.
+            try {
+                cache.get("x", new LoadingCache.Loader<String, String>() {
+                    public String load(String key) {
+                        throw new IllegalStateException();
+                    }
+                });
+                fail();
+            } catch (IllegalStateException e) {
+            }
+            assertNull(cache.get("x"));
+
+            // A null result maps nothing either.
+            assertNull(cache.get("y", new LoadingCache.Loader<String, String>() {
+                public String load(String key) {
+                    return null;
+                }
+            }));
+            assertNull(cache.get("y"));
+        }
+    }
+
+    @Test
+    public void recursion() throws Exception {
+        for (final LoadingCache<String, String> cache : caches()) {
+            try {
+                cache.get("k", new LoadingCache.Loader<String, String>() {
+                    public String load(String key) {
+                        return cache.get(key, this);
+                    }
+                });
+                fail();
+            } catch (IllegalStateException e) {
+            }
+
+            // The failed load doesn't linger.
+            assertEquals("v", cache.get("k", new LoadingCache.Loader<String, String>() {
+                public String load(String key) {
+                    return "v";
+                }
+            }));
+
+            // Loaders can request other keys.
+            assertEquals("a+b", cache.get("a", new LoadingCache.Loader<String, String>() {
+                public String load(String key) {
+                    if (key.equals("b")) {
+                        return key;
+                    }
+                    return key + '+' + cache.get("b", this);
+                }
+            }));
+            assertEquals("b", cache.get("b"));
+        }
+    }
+
+    /**
+     * Two threads load keys whose loaders request each other's keys. One of
+     * them must load without waiting for the other.
+     */
+    @Test
+    public void crossKeys() throws Exception {
+        for (final LoadingCache<String, String> cache : caches()) {
+            final CountDownLatch bothLoading = new CountDownLatch(2);
+
+            // Loader used when waiting would deadlock.
+            final LoadingCache.Loader<String, String> inner =
+                new LoadingCache.Loader<String, String>() {
+                    public String load(String key) {
+                        return key + key;
+                    }
+                };
+
+            final LoadingCache.Loader<String, String> loader =
+                new LoadingCache.Loader<String, String>() {
+                    public String load(String key) {
+                        bothLoading.countDown();
+                        await(bothLoading);
+                        return key + '+' + cache.get(key.equals("a") ? "b" : "a", inner);
+                    }
+                };
+
+            final String[] results = new String[2];
+            Thread ta = new Thread() {
+                public void run() {
+                    results[0] = cache.get("a", loader);
+                }
+            };
+            Thread tb = new Thread() {
+                public void run() {
+                    results[1] = cache.get("b", loader);
+                }
+            };
+            ta.start();
+            tb.start();
+            join(ta, tb);
+
+            // The thread which didn't wait loaded the other key itself, and
+            // the other thread got the result of its full load.
+            String pair = results[0] + ", " + results[1];
+            assertTrue(pair, pair.equals("a+b+aa, b+aa") || pair.equals("a+bb, b+a+bb"));
+        }
+    }
+
+    static void await(CountDownLatch latch) {
+        try {
+            if (!latch.await(10, TimeUnit.SECONDS)) {
+                throw new AssertionError("Timed out");
+            }
+        } catch (InterruptedException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static void join(Thread... threads) throws InterruptedException {
+        for (Thread t : threads) {
+            t.join(10000);
+            assertFalse("Deadlocked", t.isAlive());
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ *  Copyright 2010 Brian S O'Neill
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.test;
+
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import org.cojen.util.LongHashMap;
+
+/**
+ * 
+ *
+ * @author Brian S O'Neill
+ */
+public class TestLongHashMap {
+    @Test
+    public void basics() {
+        LongHashMap<String> map = new LongHashMap<String>();
+        assertTrue(map.isEmpty());
+        assertNull(map.get(0));
+        assertFalse(map.containsKey(0));
+
+        assertNull(map.put(0, "zero"));
+        assertNull(map.put(-1, "minus one"));
+        assertNull(map.put(Long.MIN_VALUE, null));
+        assertNull(map.put(1L << 32, "high"));
+        assertEquals("high", map.remove(1L << 32));
+        assertEquals(3, map.size());
+
+        assertEquals("zero", map.get(0));
+        assertEquals("minus one", map.get(-1));
+        assertTrue(map.containsKey(Long.MIN_VALUE));
+        assertNull(map.get(Long.MIN_VALUE));
+        assertFalse(map.containsKey(1L << 32));
+
+        assertEquals("zero", map.put(0, "0"));
+        assertEquals(3, map.size());
+
+        assertNull(map.remove(Long.MIN_VALUE));
+        assertFalse(map.containsKey(Long.MIN_VALUE));
+        assertNull(map.remove(12345));
+        assertEquals(2, map.size());
+
+        long[] keys = map.keys();
+        Arrays.sort(keys);
+        assertArrayEquals(new long[] {-1, 0}, keys);
+
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertFalse(map.containsKey(0));
+    }
+
+    @Test
+    public void randomOps() {
+        Random rnd = new Random(3984712);
+        // Few distinct keys, so that removes often shift colliding entries.
+        for (int range : new int[] {16, 1000, 100000}) {
+            LongHashMap<Integer> map = new LongHashMap<Integer>(0);
+            Map<Long, Integer> expect = new HashMap<Long, Integer>();
+
+            for (int i=0; i<200000; i++) {
+                // Keys which differ only in their high word must not collide.
+                long key = ((long) (rnd.nextInt(range) - range / 2)) << (rnd.nextInt(8) * 8);
+                switch (rnd.nextInt(4)) {
+                case 0: case 1:
+                    Integer value = rnd.nextInt(10) == 0 ? null : i;
+                    assertEquals(expect.put(key, value), map.put(key, value));
+                    break;
+                case 2:
+                    assertEquals(expect.remove(key), map.remove(key));
+                    break;
+                default:
+                    assertEquals(expect.containsKey(key), map.containsKey(key));
+                    assertEquals(expect.get(key), map.get(key));
+                    break;
+                }
+                assertEquals(expect.size(), map.size());
+            }
+
+            verify(expect, map);
+        }
+    }
+
+    @Test
+    public void cursor() {
+        LongHashMap<Integer> map = new LongHashMap<Integer>();
+        for (int i=-50; i<50; i++) {
+            map.put(i * 31L << 32, i);
+        }
+
+        LongHashMap.Cursor<Integer> c = map.cursor();
+        while (c.next()) {
+            assertEquals((c.key() >> 32) / 31, (int) c.value());
+            c.setValue(-c.value());
+        }
+        assertFalse(c.next());
+
+        for (int i=-50; i<50; i++) {
+            assertEquals(-i, (int) map.get(i * 31L << 32));
+        }
+
+        c = map.cursor();
+        assertTrue(c.next());
+        map.put(1000000, 1);
+        try {
+            c.next();
+            fail();
+        } catch (ConcurrentModificationException e) {
+        }
+    }
+
+    private static void verify(Map<Long, Integer> expect, LongHashMap<Integer> map) {
+        assertEquals(expect.size(), map.size());
+
+        long[] keys = map.keys();
+        assertEquals(expect.size(), keys.length);
+        for (long key : keys) {
+            assertTrue(expect.containsKey(key));
+        }
+
+        Map<Long, Integer> found = new HashMap<Long, Integer>();
+        LongHashMap.Cursor<Integer> c = map.cursor();
+        while (c.next()) {
+            assertFalse(found.containsKey(c.key()));
+            found.put(c.key(), c.value());
+        }
+        assertEquals(expect, found);
+    }
+}
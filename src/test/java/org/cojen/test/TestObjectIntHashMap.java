@@ -0,0 +1,158 @@
+/*
+ *  Copyright 2010 Brian S O'Neill
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.test;
+
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import org.cojen.util.ObjectIntHashMap;
+
+/**
+ * 
+ *
+ * @author Brian S O'Neill
+ */
+public class TestObjectIntHashMap {
+    @Test
+    public void basics() {
+        ObjectIntHashMap<String> map = new ObjectIntHashMap<String>();
+        assertTrue(map.isEmpty());
+        assertEquals(-1, map.get("a", -1));
+        assertFalse(map.containsKey(null));
+
+        assertTrue(map.put("a", 1));
+        assertTrue(map.put(null, 2));
+        assertFalse(map.put("a", 3));
+        assertEquals(2, map.size());
+        assertEquals(3, map.get("a", -1));
+        assertEquals(2, map.get(null, -1));
+
+        // Keys are compared by equals, not identity.
+        assertEquals(3, map.get(new String("a"), -1));
+        assertEquals(13, map.add(new String("a"), 10));
+
+        assertEquals(7, map.add("b", 7));
+        assertEquals(3, map.size());
+
+        assertTrue(map.remove(null));
+        assertFalse(map.remove(null));
+        assertFalse(map.containsKey(null));
+        assertEquals(2, map.size());
+
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertFalse(map.containsKey("a"));
+    }
+
+    @Test
+    public void randomOps() {
+        Random rnd = new Random(87234);
+        for (int range : new int[] {16, 1000, 100000}) {
+            ObjectIntHashMap<Key> map = new ObjectIntHashMap<Key>(0);
+            Map<Key, Integer> expect = new HashMap<Key, Integer>();
+
+            for (int i=0; i<200000; i++) {
+                int k = rnd.nextInt(range);
+                Key key = k == 0 ? null : new Key(k);
+                switch (rnd.nextInt(5)) {
+                case 0: case 1:
+                    assertEquals(!expect.containsKey(key), map.put(key, i));
+                    expect.put(key, i);
+                    break;
+                case 2: {
+                    Integer old = expect.get(key);
+                    int sum = (old == null ? 0 : old) - 1;
+                    expect.put(key, sum);
+                    assertEquals(sum, map.add(key, -1));
+                    break;
+                }
+                case 3:
+                    assertEquals(expect.remove(key) != null, map.remove(key));
+                    break;
+                default:
+                    assertEquals(expect.containsKey(key), map.containsKey(key));
+                    Integer value = expect.get(key);
+                    assertEquals(value == null ? -1 : value, map.get(key, -1));
+                    break;
+                }
+                assertEquals(expect.size(), map.size());
+            }
+
+            Map<Key, Integer> found = new HashMap<Key, Integer>();
+            ObjectIntHashMap.Cursor<Key> c = map.cursor();
+            while (c.next()) {
+                assertFalse(found.containsKey(c.key()));
+                found.put(c.key(), c.value());
+            }
+            assertEquals(expect, found);
+        }
+    }
+
+    @Test
+    public void cursor() {
+        ObjectIntHashMap<String> map = new ObjectIntHashMap<String>();
+        for (int i=0; i<100; i++) {
+            map.put(String.valueOf(i), i);
+        }
+
+        ObjectIntHashMap.Cursor<String> c = map.cursor();
+        while (c.next()) {
+            assertEquals(Integer.parseInt(c.key()), c.value());
+            c.setValue(-c.value());
+        }
+
+        for (int i=0; i<100; i++) {
+            assertEquals(-i, map.get(String.valueOf(i), 1000));
+        }
+
+        c = map.cursor();
+        assertTrue(c.next());
+        map.put("new", 1);
+        try {
+            c.next();
+            fail();
+        } catch (ConcurrentModificationException e) {
+        }
+    }
+
+    /**
+     * Key with a poor hash code, which forces long probe sequences.
+     */
+    private static class Key {
+        final int mValue;
+
+        Key(int value) {
+            mValue = value;
+        }
+
+        @Override
+        public int hashCode() {
+            return mValue & 7;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Key && ((Key) obj).mValue == mValue;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ *  Copyright 2010 Brian S O'Neill
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package org.cojen.test;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import org.cojen.util.BeanComparator;
+import org.cojen.util.SortKeyEncoder;
+
+/**
+ * Checks that encoded String keys order the same as the comparator, for
+ * random Strings which include supplementary characters, unpaired
+ * surrogates, and characters which fold to other characters. Unpaired
+ * surrogates cannot be encoded when case is ignored.
+ *
+ * @author Brian S O'Neill
+ */
+public class TestSortKeyEncoder {
+    // Chars which strings are built from. Surrogate pairs are appended as a
+    // unit.
+    private static final String[] CHARS = {
+        "a", "A", "z", "Z", "\u007f", "\u00b5", "\u00ff", "\u0178", "\u03bc", "\u03a3",
+        "\u03c2", "\u0130", "\u0131", "\u10a0", "\u2d00", "\u3fff", "\u4000", "\ufb00",
+        "\uffff",
+        // Supplementary characters, some of which are Deseret and Old
+        // Hungarian letters which fold to other characters.
+        "\ud800\udc00", "\ud801\udc00", "\ud801\udc28", "\ud801\udc4f",
+        "\ud803\udc80", "\ud803\udcc0", "\udbff\udfff",
+    };
+
+    private static final String[] UNPAIRED = {"\ud800", "\udc00", "\udbff"};
+
+    public static void main(String[] args) throws Exception {
+        TestSortKeyEncoder test = new TestSortKeyEncoder();
+        test.caseInsensitive();
+        test.caseSensitive();
+        test.supplementary();
+        test.unpaired();
+        System.out.println("passed");
+    }
+
+    public static class Bean {
+        private final String mValue;
+
+        public Bean(String value) {
+            mValue = value;
+        }
+
+        public String getValue() {
+            return mValue;
+        }
+
+        public String toString() {
+            return mValue;
+        }
+    }
+
+    @Test
+    public void caseInsensitive() {
+        check(BeanComparator.forClass(Bean.class).orderBy("value"), false);
+    }
+
+    @Test
+    public void caseSensitive() {
+        check(BeanComparator.forClass(Bean.class).orderBy("value").caseSensitive(), true);
+    }
+
+    @Test
+    public void supplementary() {
+        BeanComparator<Bean> bc = BeanComparator.forClass(Bean.class).orderBy("value");
+        SortKeyEncoder<Bean> encoder = bc.sortKeyEncoder();
+        Bean a = new Bean("\ud800\udc00");
+        Bean b = new Bean("\uffff");
+        assertTrue(bc.compare(a, b) > 0);
+        assertTrue(SortKeyEncoder.compareKeys(encoder.encodeKey(a), encoder.encodeKey(b)) > 0);
+    }
+
+    @Test
+    public void unpaired() {
+        SortKeyEncoder<Bean> encoder =
+            BeanComparator.forClass(Bean.class).orderBy("value").sortKeyEncoder();
+        for (String str : UNPAIRED) {
+            try {
+                encoder.encodeKey(new Bean("a" + str + "b"));
+                fail();
+            } catch (IllegalArgumentException e) {
+            }
+        }
+        encoder.encodeKey(new Bean("a" + UNPAIRED[0] + UNPAIRED[1] + "b"));
+    }
+
+    private static void check(BeanComparator<Bean> bc, boolean unpaired) {
+        SortKeyEncoder<Bean> encoder = bc.sortKeyEncoder();
+        Random rnd = new Random(8675309);
+
+        for (int i=0; i<100000; i++) {
+            Bean a = new Bean(randomString(rnd, unpaired));
+            Bean b = new Bean(rnd.nextInt(4) == 0 ? a.getValue() : randomString(rnd, unpaired));
+            int expected = Integer.signum(bc.compare(a, b));
+            int actual = Integer.signum
+                (SortKeyEncoder.compareKeys(encoder.encodeKey(a), encoder.encodeKey(b)));
+            if (expected != actual) {
+                fail(escape(a.getValue()) + " vs " + escape(b.getValue()) +
+                     ": expected " + expected + ", actual " + actual);
+            }
+        }
+    }
+
+    /**
+     * @param unpaired when true, also append unpaired surrogates
+     */
+    private static String randomString(Random rnd, boolean unpaired) {
+        StringBuilder b = new StringBuilder();
+        int length = rnd.nextInt(6);
+        for (int i=0; i<length; i++) {
+            if (unpaired && rnd.nextInt(8) == 0) {
+                b.append(UNPAIRED[rnd.nextInt(UNPAIRED.length)]);
+            } else {
+                b.append(CHARS[rnd.nextInt(CHARS.length)]);
+            }
+        }
+        return b.toString();
+    }
+
+    private static String escape(String str) {
+        StringBuilder b = new StringBuilder();
+        for (int i=0; i<str.length(); i++) {
+            b.append(String.format("\\u%04x", (int) str.charAt(i)));
+        }
+        return b.toString();
+    }
+}
@@ -0,0 +1,483 @@
+/*
+ *  Copyright 2010 Brian S O'Neill
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package org.cojen.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import org.cojen.classfile.*;
+
+/**
+ * Generates methods which target Java 7, and so must have stack map frames
+ * at every branch target. Each method is verified and run by the JVM. The
+ * generated class is then disassembled and reassembled, which must produce
+ * frames which verify too.
+ *
+ * @author Brian S O'Neill
+ */
+public class TestStackMapFrames {
+    private static final String TARGET = "1.7";
+
+    private static final TypeDesc NUMBER = TypeDesc.forClass(Number.class);
+    private static final TypeDesc STRING_BUILDER = TypeDesc.forClass(StringBuilder.class);
+
+    // Amount of increments in the wide loop, each of which is 3 bytes.
+    private static final int WIDE_STATEMENTS = 12000;
+
+    public static void main(String[] args) throws Exception {
+        TestStackMapFrames test = new TestStackMapFrames();
+        test.frames();
+        test.objectMerge();
+        System.out.println("passed");
+    }
+
+    @Test
+    public void frames() throws Exception {
+        ClassHierarchyResolver resolver = new ClassFileHierarchyResolver();
+
+        RuntimeClassFile cf = new RuntimeClassFile
+            (TestStackMapFrames.class.getName() + "$Gen", Exception.class.getName());
+        cf.setTarget(TARGET);
+        addConstructor(cf, resolver);
+        addJoin(cf, resolver, false);
+        addLoop(cf, resolver);
+        addHandler(cf, resolver);
+        addNewWithBranch(cf, resolver);
+        addDeadCode(cf, resolver);
+        addSwitch(cf, resolver);
+        addWide(cf, resolver);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        cf.writeTo(out);
+        byte[] bytes = out.toByteArray();
+
+        check(cf.defineClass());
+
+        // Reassemble the code, which builds new frames.
+        ClassFile original = ClassFile.readFrom(new ByteArrayInputStream(bytes));
+        RuntimeClassFile copy = new RuntimeClassFile
+            (TestStackMapFrames.class.getName() + "$Copy", Exception.class.getName());
+        copy.setTarget(TARGET);
+        for (MethodInfo mi : original.getMethods()) {
+            MethodInfo copied = copy.addMethod
+                (mi.getModifiers(), mi.getName(), mi.getMethodDescriptor().getReturnType(),
+                 mi.getMethodDescriptor().getParameterTypes());
+            CodeBuilder b = new CodeBuilder(copied);
+            b.setClassHierarchyResolver(resolver);
+            new CodeDisassembler(mi).disassemble(b);
+        }
+        for (MethodInfo mi : original.getConstructors()) {
+            MethodInfo copied = copy.addConstructor
+                (mi.getModifiers(), mi.getMethodDescriptor().getParameterTypes());
+            CodeBuilder b = new CodeBuilder(copied);
+            b.setClassHierarchyResolver(resolver);
+            new CodeDisassembler(mi).disassemble(b);
+        }
+
+        check(copy.defineClass());
+    }
+
+    /**
+     * Without a resolver, differing types merge to Object, and a cast is
+     * needed to use the merged value.
+     */
+    @Test
+    public void objectMerge() throws Exception {
+        RuntimeClassFile cf = new RuntimeClassFile(TestStackMapFrames.class.getName() + "$Obj");
+        cf.setTarget(TARGET);
+        addJoin(cf, null, true);
+        checkJoin(cf.defineClass());
+    }
+
+    private static void check(Class<?> clazz) throws Exception {
+        Constructor<?> ctor = clazz.getConstructor(String.class);
+        assertEquals("none", ((Exception) ctor.newInstance((Object) null)).getMessage());
+        assertEquals("hello", ((Exception) ctor.newInstance("hello")).getMessage());
+
+        checkJoin(clazz);
+
+        Method loop = clazz.getMethod("loop", int.class);
+        for (int n : new int[] {-1, 0, 1, 5, 100}) {
+            assertEquals(loop(n), loop.invoke(null, n));
+        }
+
+        Method handler = clazz.getMethod("handler", int.class);
+        for (int x : new int[] {-3, 0, 1, 7}) {
+            assertEquals(handler(x), handler.invoke(null, x));
+        }
+
+        Method newWithBranch = clazz.getMethod("newWithBranch", int.class);
+        assertEquals(10, newWithBranch.invoke(null, 1));
+        assertEquals(20, newWithBranch.invoke(null, 0));
+
+        assertEquals(1, clazz.getMethod("deadCode").invoke(null));
+
+        Method switches = clazz.getMethod("switches", int.class);
+        for (int x=-2; x<=5; x++) {
+            assertEquals(switches(x), switches.invoke(null, x));
+        }
+
+        Method wide = clazz.getMethod("wide", int.class);
+        for (int n : new int[] {-1, 0, 1, 3}) {
+            assertEquals(n <= 0 ? 0 : n * WIDE_STATEMENTS, wide.invoke(null, n));
+        }
+    }
+
+    private static void checkJoin(Class<?> clazz) throws Exception {
+        Method join = clazz.getMethod("join", int.class);
+        assertEquals(5, join.invoke(null, 5));
+        assertEquals(-5, join.invoke(null, -5));
+    }
+
+    private static CodeBuilder builder(MethodInfo mi, ClassHierarchyResolver resolver) {
+        CodeBuilder b = new CodeBuilder(mi);
+        b.setClassHierarchyResolver(resolver);
+        return b;
+    }
+
+    /**
+     * Constructor which branches before the super constructor is invoked,
+     * while "this" is still uninitialized.
+     */
+    private static void addConstructor(ClassFile cf, ClassHierarchyResolver resolver) {
+        MethodInfo mi = cf.addConstructor(Modifiers.PUBLIC, new TypeDesc[] {TypeDesc.STRING});
+        CodeBuilder b = builder(mi, resolver);
+
+        LocalVariable s = b.getParameter(0);
+        Label notNull = b.createLabel();
+        b.loadLocal(s);
+        b.ifNullBranch(notNull, false);
+        b.loadConstant("none");
+        b.storeLocal(s);
+        notNull.setLocation();
+        b.loadThis();
+        b.loadLocal(s);
+        b.invokeSuperConstructor(new TypeDesc[] {TypeDesc.STRING});
+        b.returnVoid();
+    }
+
+    /**
+     * Integer and Long values merge into a Number, on the stack and in a
+     * local variable.
+     */
+    private static void addJoin(ClassFile cf, ClassHierarchyResolver resolver, boolean cast) {
+        MethodInfo mi = cf.addMethod
+            (Modifiers.PUBLIC_STATIC, "join", TypeDesc.INT, new TypeDesc[] {TypeDesc.INT});
+        CodeBuilder b = builder(mi, resolver);
+
+        LocalVariable x = b.getParameter(0);
+        LocalVariable n = b.createLocalVariable("n", NUMBER);
+
+        Label isLong = b.createLabel();
+        Label joined = b.createLabel();
+        b.loadLocal(x);
+        b.ifZeroComparisonBranch(isLong, "<");
+        b.loadLocal(x);
+        b.invokeStatic(TypeDesc.INT.toObjectType(), "valueOf",
+                       TypeDesc.INT.toObjectType(), new TypeDesc[] {TypeDesc.INT});
+        b.branch(joined);
+        isLong.setLocation();
+        b.loadLocal(x);
+        b.convert(TypeDesc.INT, TypeDesc.LONG);
+        b.invokeStatic(TypeDesc.LONG.toObjectType(), "valueOf",
+                       TypeDesc.LONG.toObjectType(), new TypeDesc[] {TypeDesc.LONG});
+        joined.setLocation();
+        if (cast) {
+            b.checkCast(NUMBER);
+        }
+        b.storeLocal(n);
+        b.loadLocal(n);
+        b.invokeVirtual(NUMBER, "intValue", TypeDesc.INT, null);
+        b.returnValue(TypeDesc.INT);
+    }
+
+    /**
+     * Java equivalent of the generated loop method.
+     */
+    static long loop(int n) {
+        long acc = 1;
+        double f = 0.5;
+        for (int i=0; i<n; i++) {
+            acc = acc * 3 + i;
+            f += acc;
+        }
+        return acc + (long) f;
+    }
+
+    private static void addLoop(ClassFile cf, ClassHierarchyResolver resolver) {
+        MethodInfo mi = cf.addMethod
+            (Modifiers.PUBLIC_STATIC, "loop", TypeDesc.LONG, new TypeDesc[] {TypeDesc.INT});
+        CodeBuilder b = builder(mi, resolver);
+
+        LocalVariable n = b.getParameter(0);
+        LocalVariable acc = b.createLocalVariable("acc", TypeDesc.LONG);
+        LocalVariable f = b.createLocalVariable("f", TypeDesc.DOUBLE);
+        LocalVariable i = b.createLocalVariable("i", TypeDesc.INT);
+
+        b.loadConstant(1L);
+        b.storeLocal(acc);
+        b.loadConstant(0.5);
+        b.storeLocal(f);
+        b.loadConstant(0);
+        b.storeLocal(i);
+
+        Label test = b.createLabel();
+        Label body = b.createLabel();
+        b.branch(test);
+
+        body.setLocation();
+        b.loadLocal(acc);
+        b.loadConstant(3L);
+        b.math(Opcode.LMUL);
+        b.loadLocal(i);
+        b.convert(TypeDesc.INT, TypeDesc.LONG);
+        b.math(Opcode.LADD);
+        b.storeLocal(acc);
+        b.loadLocal(f);
+        b.loadLocal(acc);
+        b.convert(TypeDesc.LONG, TypeDesc.DOUBLE);
+        b.math(Opcode.DADD);
+        b.storeLocal(f);
+        b.integerIncrement(i, 1);
+
+        test.setLocation();
+        b.loadLocal(i);
+        b.loadLocal(n);
+        b.ifComparisonBranch(body, "<");
+
+        b.loadLocal(acc);
+        b.loadLocal(f);
+        b.convert(TypeDesc.DOUBLE, TypeDesc.LONG);
+        b.math(Opcode.LADD);
+        b.returnValue(TypeDesc.LONG);
+    }
+
+    /**
+     * Java equivalent of the generated handler method.
+     */
+    static int handler(int x) {
+        String s = "a";
+        try {
+            s = "b";
+            return 100 / x + s.length();
+        } catch (ArithmeticException e) {
+            return -s.length();
+        }
+    }
+
+    private static void addHandler(ClassFile cf, ClassHierarchyResolver resolver) {
+        MethodInfo mi = cf.addMethod
+            (Modifiers.PUBLIC_STATIC, "handler", TypeDesc.INT, new TypeDesc[] {TypeDesc.INT});
+        CodeBuilder b = builder(mi, resolver);
+
+        LocalVariable x = b.getParameter(0);
+        LocalVariable s = b.createLocalVariable("s", TypeDesc.STRING);
+
+        b.loadConstant("a");
+        b.storeLocal(s);
+
+        Label start = b.createLabel().setLocation();
+        b.loadConstant("b");
+        b.storeLocal(s);
+        b.loadConstant(100);
+        b.loadLocal(x);
+        b.math(Opcode.IDIV);
+        b.loadLocal(s);
+        b.invokeVirtual(TypeDesc.STRING, "length", TypeDesc.INT, null);
+        b.math(Opcode.IADD);
+        b.returnValue(TypeDesc.INT);
+        Label end = b.createLabel().setLocation();
+
+        b.exceptionHandler(start, end, ArithmeticException.class.getName());
+        b.loadLocal(s);
+        b.invokeVirtual(TypeDesc.STRING, "length", TypeDesc.INT, null);
+        b.math(Opcode.INEG);
+        b.returnValue(TypeDesc.INT);
+    }
+
+    /**
+     * Branches while an uninitialized object is on the stack, as in
+     * "new StringBuilder(x > 0 ? 10 : 20).capacity()".
+     */
+    private static void addNewWithBranch(ClassFile cf, ClassHierarchyResolver resolver) {
+        MethodInfo mi = cf.addMethod
+            (Modifiers.PUBLIC_STATIC, "newWithBranch", TypeDesc.INT,
+             new TypeDesc[] {TypeDesc.INT});
+        CodeBuilder b = builder(mi, resolver);
+
+        Label small = b.createLabel();
+        Label construct = b.createLabel();
+        b.newObject(STRING_BUILDER);
+        b.dup();
+        b.loadLocal(b.getParameter(0));
+        b.ifZeroComparisonBranch(small, ">");
+        b.loadConstant(20);
+        b.branch(construct);
+        small.setLocation();
+        b.loadConstant(10);
+        construct.setLocation();
+        b.invokeConstructor(STRING_BUILDER, new TypeDesc[] {TypeDesc.INT});
+        b.invokeVirtual(STRING_BUILDER, "capacity", TypeDesc.INT, null);
+        b.returnValue(TypeDesc.INT);
+    }
+
+    /**
+     * Code which cannot be reached has no types, and is dropped.
+     */
+    private static void addDeadCode(ClassFile cf, ClassHierarchyResolver resolver) {
+        MethodInfo mi = cf.addMethod(Modifiers.PUBLIC_STATIC, "deadCode", TypeDesc.INT, null);
+        CodeBuilder b = builder(mi, resolver);
+
+        Label start = b.createLabel().setLocation();
+        b.loadConstant(1);
+        b.returnValue(TypeDesc.INT);
+        Label dead = b.createLabel().setLocation();
+        b.loadConstant(2);
+        b.returnValue(TypeDesc.INT);
+        Label end = b.createLabel().setLocation();
+
+        // Handler which only guards dead code.
+        b.exceptionHandler(dead, end, null);
+        b.loadConstant(3);
+        b.returnValue(TypeDesc.INT);
+
+        // Handler which guards live code, and is unused.
+        b.exceptionHandler(start, end, null);
+        b.loadConstant(4);
+        b.returnValue(TypeDesc.INT);
+    }
+
+    /**
+     * Java equivalent of the generated switches method.
+     */
+    static int switches(int x) {
+        Object obj = null;
+        int r;
+        switch (x) {
+        case 0:
+            r = 10;
+            break;
+        case 1:
+            obj = "one";
+            // Fall through.
+        case 2:
+            r = 20;
+            break;
+        case 3:
+            return -1;
+        default:
+            r = x;
+            break;
+        }
+        return obj == null ? r : r + 1;
+    }
+
+    private static void addSwitch(ClassFile cf, ClassHierarchyResolver resolver) {
+        MethodInfo mi = cf.addMethod
+            (Modifiers.PUBLIC_STATIC, "switches", TypeDesc.INT, new TypeDesc[] {TypeDesc.INT});
+        CodeBuilder b = builder(mi, resolver);
+
+        LocalVariable x = b.getParameter(0);
+        LocalVariable obj = b.createLocalVariable("obj", TypeDesc.OBJECT);
+        LocalVariable r = b.createLocalVariable("r", TypeDesc.INT);
+
+        b.loadNull();
+        b.storeLocal(obj);
+
+        Label case0 = b.createLabel();
+        Label case1 = b.createLabel();
+        Label case2 = b.createLabel();
+        Label case3 = b.createLabel();
+        Label deflt = b.createLabel();
+        Label next = b.createLabel();
+
+        b.loadLocal(x);
+        b.switchBranch(new int[] {0, 1, 2, 3}, new Location[] {case0, case1, case2, case3}, deflt);
+
+        case0.setLocation();
+        b.loadConstant(10);
+        b.storeLocal(r);
+        b.branch(next);
+
+        case1.setLocation();
+        b.loadConstant("one");
+        b.storeLocal(obj);
+
+        case2.setLocation();
+        b.loadConstant(20);
+        b.storeLocal(r);
+        b.branch(next);
+
+        case3.setLocation();
+        b.loadConstant(-1);
+        b.returnValue(TypeDesc.INT);
+
+        deflt.setLocation();
+        b.loadLocal(x);
+        b.storeLocal(r);
+
+        next.setLocation();
+        Label notNull = b.createLabel();
+        b.loadLocal(obj);
+        b.ifNullBranch(notNull, false);
+        b.loadLocal(r);
+        b.returnValue(TypeDesc.INT);
+        notNull.setLocation();
+        b.loadLocal(r);
+        b.loadConstant(1);
+        b.math(Opcode.IADD);
+        b.returnValue(TypeDesc.INT);
+    }
+
+    /**
+     * Loop whose body is too large for a 16-bit branch offset, and so its
+     * branches are widened.
+     */
+    private static void addWide(ClassFile cf, ClassHierarchyResolver resolver) {
+        MethodInfo mi = cf.addMethod
+            (Modifiers.PUBLIC_STATIC, "wide", TypeDesc.INT, new TypeDesc[] {TypeDesc.INT});
+        CodeBuilder b = builder(mi, resolver);
+
+        LocalVariable n = b.getParameter(0);
+        LocalVariable r = b.createLocalVariable("r", TypeDesc.INT);
+
+        b.loadConstant(0);
+        b.storeLocal(r);
+
+        Label top = b.createLabel().setLocation();
+        Label done = b.createLabel();
+        b.loadLocal(n);
+        b.ifZeroComparisonBranch(done, "<=");
+        for (int i=0; i<WIDE_STATEMENTS; i++) {
+            b.integerIncrement(r, 1);
+        }
+        b.integerIncrement(n, -1);
+        b.branch(top);
+
+        done.setLocation();
+        b.loadLocal(r);
+        b.returnValue(TypeDesc.INT);
+    }
+}